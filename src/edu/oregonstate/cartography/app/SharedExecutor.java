@@ -0,0 +1,230 @@
+package edu.oregonstate.cartography.app;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A pool of threads shared by all multi-threaded computations. The pool has as
+ * many threads as CPU cores are available. Threads are daemon threads, so the
+ * pool does not prevent the application from exiting.
+ *
+ * Work is distributed in bands of rows. The thread calling forEachBand()
+ * processes bands as well, and only waits for bands that are being processed
+ * by other threads. Hence, forEachBand() can be called from within a task
+ * running in the pool without risking a deadlock.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class SharedExecutor {
+
+    /**
+     * A task that is applied to bands of rows.
+     */
+    public static abstract class BandTask {
+
+        /**
+         * Process a band of rows.
+         *
+         * @param firstRow The first row of the band.
+         * @param endRow The first row of the next band.
+         */
+        protected abstract void run(int firstRow, int endRow);
+
+        /**
+         * Returns whether the remaining bands should be skipped. Checked
+         * before each band is processed.
+         *
+         * @return True if processing should stop.
+         */
+        protected boolean isCancelled() {
+            return false;
+        }
+    }
+
+    /**
+     * The number of threads in the pool.
+     */
+    private static final int THREADS_COUNT = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * The shared pool.
+     */
+    private static final ExecutorService executor
+            = Executors.newFixedThreadPool(THREADS_COUNT, new ThreadFactory() {
+                private final AtomicInteger counter = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Pyramid Shader Worker " + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private SharedExecutor() {
+    }
+
+    /**
+     * Returns the shared executor.
+     *
+     * @return The executor.
+     */
+    public static ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Returns the number of threads in the shared executor.
+     *
+     * @return The number of threads.
+     */
+    public static int getThreadsCount() {
+        return THREADS_COUNT;
+    }
+
+    /**
+     * Computes a band height for distributing rows among threads. Bands are
+     * small enough for checking regularly for cancellation and for balancing
+     * the load among threads, but not larger than maxBandRows.
+     *
+     * @param nRows The total number of rows.
+     * @param maxBandRows The maximum number of rows in a band.
+     * @return The number of rows in a band.
+     */
+    public static int bandRows(int nRows, int maxBandRows) {
+        return Math.max(1, Math.min(maxBandRows, nRows / (THREADS_COUNT * 8)));
+    }
+
+    /**
+     * Applies a task to all rows in bands of bandRows rows. Bands are processed
+     * in parallel by the shared pool and the calling thread. Returns when all
+     * bands have been processed or the task has been cancelled.
+     *
+     * @param nRows The total number of rows.
+     * @param bandRows The number of rows in a band.
+     * @param task The task to apply.
+     */
+    public static void forEachBand(final int nRows, final int bandRows, final BandTask task) {
+        if (nRows <= 0) {
+            return;
+        }
+        if (bandRows <= 0) {
+            throw new IllegalArgumentException("invalid band size");
+        }
+        final int nBands = (nRows + bandRows - 1) / bandRows;
+        final AtomicInteger nextBand = new AtomicInteger();
+        final AtomicInteger finishedBands = new AtomicInteger();
+        final AtomicReference<Throwable> exception = new AtomicReference<>();
+        final Object lock = new Object();
+
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int band;
+                while ((band = nextBand.getAndIncrement()) < nBands) {
+                    try {
+                        if (exception.get() == null && !task.isCancelled()) {
+                            int firstRow = band * bandRows;
+                            task.run(firstRow, Math.min(nRows, firstRow + bandRows));
+                        }
+                    } catch (Throwable t) {
+                        exception.compareAndSet(null, t);
+                    } finally {
+                        if (finishedBands.incrementAndGet() == nBands) {
+                            synchronized (lock) {
+                                lock.notifyAll();
+                            }
+                        }
+                    }
+                }
+            }
+        };
+
+        // helpers that are started after all bands have been claimed return
+        // immediately
+        int nHelpers = Math.min(nBands - 1, THREADS_COUNT);
+        for (int i = 0; i < nHelpers; i++) {
+            executor.execute(worker);
+        }
+        worker.run();
+
+        // wait for bands processed by other threads
+        boolean interrupted = false;
+        synchronized (lock) {
+            while (finishedBands.get() < nBands) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException ex) {
+                    // other threads may still write to shared data, so wait
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        Throwable t = exception.get();
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new RuntimeException(t);
+        }
+    }
+
+    /**
+     * Runs two tasks concurrently and returns when both have finished. The
+     * second task is passed to the shared pool, while the calling thread runs
+     * the first task. If no thread of the pool has started the second task
+     * when the first task has finished, the calling thread also runs the
+     * second task. Hence, this method can be called from within a task running
+     * in the pool without risking a deadlock.
+     *
+     * @param task1 The first task, run by the calling thread.
+     * @param task2 The second task.
+     */
+    public static void runConcurrently(Runnable task1, Runnable task2) {
+        FutureTask<Void> future = new FutureTask<>(task2, null);
+        executor.execute(future);
+        try {
+            task1.run();
+        } finally {
+            // does nothing if a pool thread has started the task
+            future.run();
+
+            // wait for the second task, even if the first task failed, as
+            // both tasks may write to shared data
+            boolean interrupted = false;
+            try {
+                for (;;) {
+                    try {
+                        future.get();
+                        break;
+                    } catch (InterruptedException ex) {
+                        interrupted = true;
+                    }
+                }
+            } catch (ExecutionException ex) {
+                Throwable t = ex.getCause();
+                if (t instanceof RuntimeException) {
+                    throw (RuntimeException) t;
+                } else if (t instanceof Error) {
+                    throw (Error) t;
+                }
+                throw new RuntimeException(t);
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridHeaderImporter;
+import edu.oregonstate.cartography.grid.GridReader;
+import edu.oregonstate.cartography.grid.Model;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders many grids with the same recipe. Grids are parsed by a pool of I/O
+ * threads and rendered by a separate pool of render threads, so that reading
+ * the next grid overlaps with rendering the current one. Before a grid is
+ * loaded, its memory requirement is estimated from the header of the file, and
+ * the grid is only loaded when the estimate fits into the memory budget. A
+ * grid that cannot be processed is reported, and the remaining grids are still
+ * processed.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class BatchProcessor {
+
+    private final RenderRecipe recipe;
+
+    /**
+     * The output directory. If null, files are written to the directory of
+     * the grid.
+     */
+    private final File outDirectory;
+
+    private final MemoryBudget budget;
+    private final ExecutorService ioExecutor;
+    private final ExecutorService renderExecutor;
+
+    /**
+     * Messages are printed to this stream. Access is synchronized on the
+     * stream.
+     */
+    private PrintStream log = System.out;
+
+    /**
+     * Creates a batch processor.
+     *
+     * @param recipe The settings for rendering.
+     * @param outDirectory The output directory. If null, files are written to
+     * the directory of each grid.
+     * @param memoryBytes The memory available for concurrent jobs.
+     * @param renderThreads The number of grids rendered concurrently.
+     * @param ioThreads The number of grids parsed concurrently.
+     */
+    public BatchProcessor(RenderRecipe recipe, File outDirectory,
+            long memoryBytes, int renderThreads, int ioThreads) {
+        if (renderThreads < 1 || ioThreads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.recipe = recipe;
+        this.outDirectory = outDirectory;
+        budget = new MemoryBudget(memoryBytes);
+        ioExecutor = Executors.newFixedThreadPool(ioThreads, threadFactory("Batch I/O "));
+        renderExecutor = Executors.newFixedThreadPool(renderThreads, threadFactory("Batch Render "));
+    }
+
+    private static ThreadFactory threadFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Sets the stream for progress and error messages.
+     *
+     * @param log The stream.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Renders grids and writes the outputs of the recipe. Blocks until all
+     * grids have been processed.
+     *
+     * @param gridFiles The ESRI ASCII grid files.
+     * @return The number of grids that could not be processed.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     */
+    public int process(List<File> gridFiles) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(gridFiles.size());
+        AtomicInteger failures = new AtomicInteger();
+        for (File gridFile : gridFiles) {
+            long bytes;
+            try {
+                GridHeaderImporter header = GridHeaderImporter.read(gridFile);
+                bytes = recipe.estimateMemoryBytes(header.getCols(), header.getRows());
+            } catch (IOException exc) {
+                failed(gridFile, exc, failures);
+                done.countDown();
+                continue;
+            }
+            // wait for memory before the grid is loaded
+            budget.acquire(bytes);
+            ioExecutor.execute(new ReadJob(gridFile, bytes, done, failures));
+        }
+        done.await();
+        return failures.get();
+    }
+
+    /**
+     * Stops the threads of this processor.
+     */
+    public void shutdown() {
+        ioExecutor.shutdownNow();
+        renderExecutor.shutdownNow();
+    }
+
+    private void print(String message) {
+        synchronized (log) {
+            log.println(message);
+        }
+    }
+
+    private void failed(File gridFile, Throwable exc, AtomicInteger failures) {
+        failures.incrementAndGet();
+        String message = exc.getMessage() != null ? exc.getMessage() : exc.toString();
+        print(gridFile.getName() + ": failed: " + message);
+    }
+
+    /**
+     * Parses a grid and passes it to the render executor.
+     */
+    private final class ReadJob implements Runnable {
+
+        private final File gridFile;
+        private final long bytes;
+        private final CountDownLatch done;
+        private final AtomicInteger failures;
+
+        ReadJob(File gridFile, long bytes, CountDownLatch done, AtomicInteger failures) {
+            this.gridFile = gridFile;
+            this.bytes = bytes;
+            this.done = done;
+            this.failures = failures;
+        }
+
+        @Override
+        public void run() {
+            // the render job releases the memory and counts down the latch
+            // once it has been handed over
+            boolean handedOver = false;
+            try {
+                final long start = System.nanoTime();
+                final Grid grid = GridReader.read(gridFile.getPath());
+                final long readMs = (System.nanoTime() - start) / 1000 / 1000;
+                renderExecutor.execute(new RenderJob(grid, readMs));
+                handedOver = true;
+            } catch (IOException | RuntimeException | Error exc) {
+                failed(gridFile, exc, failures);
+            } finally {
+                if (!handedOver) {
+                    budget.release(bytes);
+                    done.countDown();
+                }
+            }
+        }
+
+        /**
+         * Renders a grid that has been read and writes the output files.
+         */
+        private final class RenderJob implements Runnable {
+
+            private final Grid grid;
+            private final long readMs;
+
+            RenderJob(Grid grid, long readMs) {
+                this.grid = grid;
+                this.readMs = readMs;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    long renderStart = System.nanoTime();
+                    Model model = recipe.createModel(grid, null);
+                    File dir = outDirectory != null ? outDirectory
+                            : gridFile.getAbsoluteFile().getParentFile();
+                    String basePath = PyramidShaderCLI.basePath(dir, gridFile);
+                    List<File> files = recipe.writeOutputs(model, basePath, null);
+                    long renderMs = (System.nanoTime() - renderStart) / 1000 / 1000;
+                    print(gridFile.getName() + ": " + files.size() + " files, read "
+                            + readMs + " ms, rendered " + renderMs + " ms");
+                } catch (IOException | RuntimeException | Error exc) {
+                    failed(gridFile, exc, failures);
+                } finally {
+                    budget.release(bytes);
+                    done.countDown();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.CompositeRenderer;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.NormalVectorField;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.image.PNGStripWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * Renders frames of an animation with a moving light for a model. The
+ * azimuth and the zenith of the light are interpolated between a start and
+ * an end value, and optionally the generalization details as well. The frames
+ * are written as numbered PNG images.
+ *
+ * The normal vectors of the generalized grid are computed once and shared by
+ * all frames, so that a frame only requires shading with a dot product,
+ * coloring and contour lines. Normals are only recomputed for each frame if
+ * the generalization changes. Frames are rendered with blocks in parallel,
+ * while previous frames are encoded as PNG by separate encoder threads.
+ *
+ * The settings of the model are changed while rendering and are restored
+ * afterwards.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class LightAnimation {
+
+    /**
+     * The number of image rows rendered as one block.
+     */
+    private static final int BAND_ROWS = 32;
+
+    private final Model model;
+
+    private int framesCount = 36;
+    private double azimuthStart;
+    private double azimuthEnd;
+    private double zenithStart;
+    private double zenithEnd;
+
+    /**
+     * Generalization details of the first and the last frame. NaN if the
+     * generalization does not change.
+     */
+    private double detailsStart = Double.NaN;
+    private double detailsEnd = Double.NaN;
+
+    /**
+     * If true, the end values are not reached, so that the first frame can
+     * follow the last frame.
+     */
+    private boolean loop = true;
+
+    /**
+     * The images are this many times larger than the generalized grid.
+     */
+    private double scale = 1;
+
+    /**
+     * The number of threads encoding PNG images.
+     */
+    private int encoderThreads = Math.max(1, SharedExecutor.getThreadsCount() / 2);
+
+    /**
+     * The deflate compression level of the PNG images.
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    private CancellationToken cancellationToken;
+
+    /**
+     * Statistics of a rendered animation.
+     */
+    public static final class Statistics {
+
+        private final int frames;
+        private final long nanos;
+        private final long renderNanos;
+
+        private Statistics(int frames, long nanos, long renderNanos) {
+            this.frames = frames;
+            this.nanos = nanos;
+            this.renderNanos = renderNanos;
+        }
+
+        /**
+         * Returns the number of written frames.
+         *
+         * @return The number of frames.
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * Returns the number of frames rendered and written per second.
+         *
+         * @return Frames per second.
+         */
+        public double getFramesPerSecond() {
+            return frames / (nanos / 1e9);
+        }
+
+        /**
+         * Returns the number of frames rendered per second without encoding.
+         *
+         * @return Frames per second.
+         */
+        public double getRenderedFramesPerSecond() {
+            return frames / (renderNanos / 1e9);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d frames in %d ms, %.1f frames/s "
+                    + "(rendering %.1f frames/s)", frames, nanos / 1000 / 1000,
+                    getFramesPerSecond(), getRenderedFramesPerSecond());
+        }
+    }
+
+    /**
+     * Creates an animation for a model with a grid. By default, the light
+     * rotates once around the terrain at the zenith angle of the model.
+     *
+     * @param model The model.
+     * @throws IllegalArgumentException If the model has no grid.
+     */
+    public LightAnimation(Model model) {
+        if (model.getGeneralizedGrid() == null) {
+            throw new IllegalArgumentException("no grid");
+        }
+        this.model = model;
+        azimuthStart = model.azimuth;
+        azimuthEnd = model.azimuth + 360;
+        zenithStart = zenithEnd = model.zenith;
+    }
+
+    /**
+     * Sets the number of frames.
+     *
+     * @param framesCount The number of frames, at least 1.
+     */
+    public void setFramesCount(int framesCount) {
+        if (framesCount < 1) {
+            throw new IllegalArgumentException("invalid number of frames");
+        }
+        this.framesCount = framesCount;
+    }
+
+    /**
+     * Sets the azimuth of the light for the first and the last frame.
+     *
+     * @param start Azimuth of the first frame in degrees.
+     * @param end Azimuth of the last frame in degrees.
+     */
+    public void setAzimuth(double start, double end) {
+        azimuthStart = start;
+        azimuthEnd = end;
+    }
+
+    /**
+     * Sets the zenith angle of the light for the first and the last frame.
+     *
+     * @param start Zenith angle of the first frame in degrees.
+     * @param end Zenith angle of the last frame in degrees.
+     */
+    public void setZenith(double start, double end) {
+        zenithStart = start;
+        zenithEnd = end;
+    }
+
+    /**
+     * Sets the generalization details for the first and the last frame. The
+     * generalized grid and the normals are recomputed for each frame.
+     *
+     * @param start Details of the first frame between -1 and 1.
+     * @param end Details of the last frame between -1 and 1.
+     */
+    public void setGeneralizationDetails(double start, double end) {
+        if (!(start >= -1 && start <= 1 && end >= -1 && end <= 1)) {
+            throw new IllegalArgumentException("invalid generalization details");
+        }
+        detailsStart = start;
+        detailsEnd = end;
+    }
+
+    /**
+     * Sets whether the end values are reached by the last frame. By default,
+     * the animation loops, and the last frame is one step before the end
+     * values.
+     *
+     * @param loop If true, the end values are not reached.
+     */
+    public void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Sets the scale of the frames relative to the generalized grid.
+     *
+     * @param scale The frames are this many times larger than the grid.
+     */
+    public void setScale(double scale) {
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("invalid scale");
+        }
+        this.scale = scale;
+    }
+
+    /**
+     * Sets the number of threads encoding PNG images concurrently.
+     *
+     * @param encoderThreads The number of threads, at least 1.
+     */
+    public void setEncoderThreads(int encoderThreads) {
+        if (encoderThreads < 1) {
+            throw new IllegalArgumentException("invalid number of threads");
+        }
+        this.encoderThreads = encoderThreads;
+    }
+
+    /**
+     * Sets the compression level of the PNG images.
+     *
+     * @param compressionLevel The level between 0 (fastest) and 9 (smallest
+     * files), or -1 for the default level.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Sets a token that is checked while rendering.
+     *
+     * @param token The token. Can be null.
+     */
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    /**
+     * Returns the file of a frame.
+     *
+     * @param basePath The path of the frames without frame number and
+     * extension.
+     * @param frame The index of the frame.
+     * @return The file.
+     */
+    public static File getFrameFile(String basePath, int frame) {
+        return new File(String.format(Locale.US, "%s_%04d.png", basePath, frame));
+    }
+
+    /**
+     * Renders all frames and writes them as PNG images.
+     *
+     * @param basePath The path of the frames without frame number and
+     * extension.
+     * @return Statistics about the rendering speed.
+     * @throws IOException If a frame cannot be written.
+     * @throws CancellationException If the token is cancelled.
+     */
+    public Statistics render(String basePath) throws IOException {
+        final double details = model.getGeneralizationDetails();
+        final boolean generalize = !Double.isNaN(detailsStart);
+        final int level = compressionLevel;
+
+        Grid grid = model.getGeneralizedGrid();
+        final int width = (int) Math.max(1, Math.round(grid.getCols() * scale));
+        final int height = (int) Math.max(1, Math.round(grid.getRows() * scale));
+        // frames waiting for encoding or being encoded
+        final Semaphore pendingFrames = new Semaphore(encoderThreads * 2);
+        ExecutorService encoder = Executors.newFixedThreadPool(encoderThreads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Animation Encoder " + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        List<Future<Void>> encoded = new ArrayList<>();
+        long start = System.nanoTime();
+        long renderNanos = 0;
+        try {
+            NormalVectorField normals = null;
+            for (int frame = 0; frame < framesCount; frame++) {
+                double t = loop ? (double) frame / framesCount
+                        : framesCount == 1 ? 0 : (double) frame / (framesCount - 1);
+                // the light direction is not rounded to the whole degrees of
+                // the model, so that slow movements are smooth
+                double azimuth = azimuthStart + t * (azimuthEnd - azimuthStart);
+                double zenith = zenithStart + t * (zenithEnd - zenithStart);
+                if (generalize) {
+                    model.setGeneralizationDetails(detailsStart + t * (detailsEnd - detailsStart));
+                    model.updateGeneralizedGrid();
+                    normals = null;
+                }
+                if (normals == null) {
+                    normals = model.setupShaderOperator().computeNormalField(
+                            model.getGeneralizedGrid(), cancellationToken);
+                }
+
+                // wait for an encoder before allocating the next frame
+                try {
+                    pendingFrames.acquire();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new CancellationException("animation interrupted");
+                }
+                long renderStart = System.nanoTime();
+                final int[] pixels;
+                try {
+                    pixels = renderFrame(normals, azimuth, zenith, width, height);
+                } catch (RuntimeException exc) {
+                    pendingFrames.release();
+                    throw exc;
+                }
+                renderNanos += System.nanoTime() - renderStart;
+
+                final File file = getFrameFile(basePath, frame);
+                encoded.add(encoder.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        try (PNGStripWriter writer = new PNGStripWriter(file, width, height, level)) {
+                            writer.writeStrip(pixels, height);
+                        } finally {
+                            pendingFrames.release();
+                        }
+                        return null;
+                    }
+                }));
+                throwIfFailed(encoded, false);
+            }
+            throwIfFailed(encoded, true);
+        } finally {
+            encoder.shutdownNow();
+            if (generalize) {
+                model.setGeneralizationDetails(details);
+                model.updateGeneralizedGrid();
+            }
+        }
+        return new Statistics(framesCount, System.nanoTime() - start, renderNanos);
+    }
+
+    /**
+     * Renders a frame with bands of rows in parallel.
+     */
+    private int[] renderFrame(NormalVectorField normals, double azimuth,
+            double zenith, final int width, int height) {
+        final CancellationToken token = cancellationToken;
+        final CompositeRenderer renderer = new CompositeRenderer(model, normals,
+                azimuth, zenith, true, true, token);
+        final int[] pixels = new int[width * height];
+        SharedExecutor.forEachBand(height, BAND_ROWS, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int firstRow, int endRow) {
+                renderer.renderBlock(scale, 0, firstRow, width, endRow - firstRow,
+                        pixels, firstRow * width, width);
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return CancellationToken.isCancelled(token);
+            }
+        });
+        CancellationToken.throwIfCancelled(token);
+        return pixels;
+    }
+
+    /**
+     * Throws the exception of the first failed encoder task.
+     *
+     * @param encoded The encoder tasks.
+     * @param wait If true, waits for all tasks to finish.
+     */
+    private static void throwIfFailed(List<Future<Void>> encoded, boolean wait)
+            throws IOException {
+        for (Future<Void> future : encoded) {
+            if (!wait && !future.isDone()) {
+                continue;
+            }
+            try {
+                future.get();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("animation interrupted");
+            } catch (ExecutionException exc) {
+                Throwable cause = exc.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
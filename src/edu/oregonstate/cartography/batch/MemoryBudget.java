@@ -0,0 +1,74 @@
+package edu.oregonstate.cartography.batch;
+
+/**
+ * Limits the memory used by concurrent jobs. A job reserves its estimated
+ * memory before it starts and releases it when it has finished. A job that
+ * needs more memory than the budget is admitted when no other job is running,
+ * so that it can still be processed.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class MemoryBudget {
+
+    private final long totalBytes;
+
+    /**
+     * The number of reserved bytes. Access is synchronized on this budget.
+     */
+    private long reservedBytes = 0;
+
+    /**
+     * Creates a budget.
+     *
+     * @param totalBytes The number of bytes that can be reserved concurrently.
+     */
+    public MemoryBudget(long totalBytes) {
+        if (totalBytes <= 0) {
+            throw new IllegalArgumentException("invalid memory budget");
+        }
+        this.totalBytes = totalBytes;
+    }
+
+    /**
+     * Waits until the requested memory is available and reserves it.
+     *
+     * @param bytes The number of bytes to reserve.
+     * @throws InterruptedException If the thread is interrupted while
+     * waiting.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (reservedBytes > 0 && reservedBytes + bytes > totalBytes) {
+            wait();
+        }
+        reservedBytes += bytes;
+    }
+
+    /**
+     * Releases memory reserved with acquire().
+     *
+     * @param bytes The number of bytes to release.
+     */
+    public synchronized void release(long bytes) {
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of bytes that can be reserved concurrently.
+     *
+     * @return The total number of bytes.
+     */
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Returns the number of currently reserved bytes.
+     *
+     * @return The reserved bytes.
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+}
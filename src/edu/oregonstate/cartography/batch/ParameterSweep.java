@@ -0,0 +1,350 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.CompositeImageExporter;
+import edu.oregonstate.cartography.grid.CompositeRenderer;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.ModelSettings;
+import edu.oregonstate.cartography.grid.NormalVectorField;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.image.PNGStripWriter;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Renders variants of a grid for all combinations of a set of parameter
+ * values, and writes an image for each variant and a contact sheet with
+ * thumbnails of all variants.
+ *
+ * Intermediate results are computed once and shared by variants: the
+ * pyramids are computed once per grid, the generalized grid once per
+ * combination of generalization settings, and the normal vectors once per
+ * vertical exaggeration. Variants are ordered such that these settings change
+ * as rarely as possible. Only shading, coloring and contour lines are
+ * rendered for each variant, with blocks rendered in parallel.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class ParameterSweep {
+
+    /**
+     * The maximum width and height of thumbnails on the contact sheet.
+     */
+    private static final int THUMBNAIL_SIZE = 256;
+
+    /**
+     * The height of the label below each thumbnail.
+     */
+    private static final int LABEL_HEIGHT = 16;
+
+    /**
+     * Gap between thumbnails.
+     */
+    private static final int GAP = 8;
+
+    /**
+     * The number of thumbnail rows rendered as one block.
+     */
+    private static final int THUMBNAIL_BAND_ROWS = 8;
+
+    private static final String EXAGGERATION_KEY = "shading.verticalExaggeration";
+
+    private final RenderRecipe recipe;
+
+    /**
+     * Values for each swept setting, in the order in which parameters were
+     * added.
+     */
+    private final Map<String, List<String>> parameters = new LinkedHashMap<>();
+
+    /**
+     * Creates a sweep.
+     *
+     * @param recipe The settings shared by all variants, and the format and
+     * scale of images.
+     */
+    public ParameterSweep(RenderRecipe recipe) {
+        this.recipe = recipe;
+    }
+
+    /**
+     * Adds a setting with values to sweep. Values are validated by applying
+     * them to a model.
+     *
+     * @param key A key of ModelSettings.
+     * @param values The values.
+     * @throws IllegalArgumentException If the key is not a key of
+     * ModelSettings, there are no values, or a value is invalid.
+     */
+    public void addParameter(String key, List<String> values) {
+        if (!ModelSettings.isKey(key)) {
+            throw new IllegalArgumentException("Unknown setting: " + key);
+        }
+        if (values.isEmpty()) {
+            throw new IllegalArgumentException("No values for " + key);
+        }
+        for (String value : values) {
+            Properties p = recipe.getSettings();
+            Properties variant = new Properties();
+            variant.setProperty(key, value);
+            ModelSettings.override(p, variant);
+            ModelSettings.apply(p, new Model());
+        }
+        parameters.put(key, new ArrayList<>(values));
+    }
+
+    /**
+     * Parses a list of values. Values are separated by commas. A value of the
+     * form start:end:step is expanded to a range of numbers including start
+     * and end.
+     *
+     * @param s The list.
+     * @return The values.
+     * @throws IllegalArgumentException If a range is invalid.
+     */
+    public static List<String> parseValues(String s) {
+        List<String> values = new ArrayList<>();
+        for (String token : s.split(",")) {
+            token = token.trim();
+            String[] range = token.split(":");
+            if (range.length != 3) {
+                if (!token.isEmpty()) {
+                    values.add(token);
+                }
+                continue;
+            }
+            BigDecimal start, end, step;
+            try {
+                start = new BigDecimal(range[0].trim());
+                end = new BigDecimal(range[1].trim());
+                step = new BigDecimal(range[2].trim());
+            } catch (NumberFormatException exc) {
+                throw new IllegalArgumentException("Invalid range: " + token);
+            }
+            if (step.signum() <= 0 || start.compareTo(end) > 0) {
+                throw new IllegalArgumentException("Invalid range: " + token);
+            }
+            // decimal arithmetic avoids accumulated rounding errors in names
+            for (BigDecimal v = start; v.compareTo(end) <= 0; v = v.add(step)) {
+                values.add(v.toPlainString());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the number of variants.
+     *
+     * @return The product of the numbers of values of all parameters.
+     */
+    public int getVariantsCount() {
+        int n = 1;
+        for (List<String> values : parameters.values()) {
+            n *= values.size();
+        }
+        return n;
+    }
+
+    /**
+     * Returns the swept settings ordered such that settings with expensive
+     * intermediate results change least often: generalization first, then
+     * vertical exaggeration, then all other settings.
+     */
+    private List<String> orderedKeys() {
+        List<String> keys = new ArrayList<>();
+        for (String key : parameters.keySet()) {
+            if (key.startsWith("generalization.")) {
+                keys.add(key);
+            }
+        }
+        if (parameters.containsKey(EXAGGERATION_KEY)) {
+            keys.add(EXAGGERATION_KEY);
+        }
+        for (String key : parameters.keySet()) {
+            if (!keys.contains(key)) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Renders all variants of a grid and writes an image with a world file
+     * for each variant, and a contact sheet.
+     *
+     * @param grid The grid.
+     * @param basePath The path of the output files without suffix and
+     * extension.
+     * @param token Checked while computing. Can be null.
+     * @return The written images. The contact sheet is the last file.
+     * @throws IOException If a file cannot be written.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public List<File> render(Grid grid, String basePath, CancellationToken token)
+            throws IOException {
+        // the pyramids are computed once for all variants
+        Model model = recipe.createModel(grid, token);
+        List<String> keys = orderedKeys();
+        int n = getVariantsCount();
+        List<File> files = new ArrayList<>();
+        List<int[]> thumbnails = new ArrayList<>();
+        List<String> labels = new ArrayList<>();
+        NormalVectorField normals = null;
+        for (int variant = 0; variant < n; variant++) {
+            // the last key changes fastest
+            Properties variantSettings = new Properties();
+            StringBuilder name = new StringBuilder();
+            StringBuilder label = new StringBuilder();
+            int index = variant;
+            for (int k = keys.size() - 1; k >= 0; k--) {
+                String key = keys.get(k);
+                List<String> values = parameters.get(key);
+                String value = values.get(index % values.size());
+                index /= values.size();
+                variantSettings.setProperty(key, value);
+                name.insert(0, "_" + shortName(key) + sanitize(value));
+                label.insert(0, (k > 0 ? " " : "") + shortName(key) + "=" + value);
+            }
+
+            // a swept color ramp name replaces the colors of the base settings
+            Properties settings = recipe.getSettings();
+            ModelSettings.override(settings, variantSettings);
+
+            // recomputes the generalized grid only if generalization changed
+            Grid generalized = model.getGeneralizedGrid();
+            ModelSettings.apply(settings, model);
+            if (normals == null || generalized != model.getGeneralizedGrid()
+                    || normals.getVerticalExaggeration() != model.shadingVerticalExaggeration) {
+                // release the previous normals before computing new ones
+                normals = null;
+                normals = model.setupShaderOperator().computeNormalField(
+                        model.getGeneralizedGrid(), token);
+            }
+
+            File file = recipe.getFile(basePath + name, RenderRecipe.Output.COMPOSITE);
+            CompositeImageExporter exporter = new CompositeImageExporter(model, recipe.getScale());
+            exporter.setNormalField(normals);
+            exporter.setCancellationToken(token);
+            exporter.setCompressionLevel(recipe.getCompressionLevel());
+            exporter.setTIFFCompression(recipe.getTIFFCompression());
+            exporter.export(file, recipe.getFormat());
+            files.add(file);
+            thumbnails.add(renderThumbnail(model, normals, token));
+            labels.add(label.toString());
+        }
+        File sheet = new File(basePath + "_sweep.png");
+        writeContactSheet(sheet, model.getGeneralizedGrid(), thumbnails, labels);
+        files.add(sheet);
+        return files;
+    }
+
+    /**
+     * Returns the last part of a key, or the first part for names.
+     */
+    private static String shortName(String key) {
+        String[] parts = key.split("\\.");
+        String last = parts[parts.length - 1];
+        return "name".equals(last) ? parts[0] : last;
+    }
+
+    /**
+     * Replaces characters that are not safe in file names.
+     */
+    private static String sanitize(String value) {
+        return value.trim().replaceAll("[^A-Za-z0-9.+-]+", "-");
+    }
+
+    private static int thumbnailWidth(Grid grid) {
+        return (int) Math.max(1, Math.round(grid.getCols() * thumbnailScale(grid)));
+    }
+
+    private static int thumbnailHeight(Grid grid) {
+        return (int) Math.max(1, Math.round(grid.getRows() * thumbnailScale(grid)));
+    }
+
+    private static double thumbnailScale(Grid grid) {
+        return Math.min(1d, (double) THUMBNAIL_SIZE
+                / Math.max(grid.getCols(), grid.getRows()));
+    }
+
+    /**
+     * Renders a thumbnail of a variant. Bands of rows are rendered in
+     * parallel.
+     */
+    private static int[] renderThumbnail(Model model, NormalVectorField normals,
+            final CancellationToken token) {
+        Grid grid = model.getGeneralizedGrid();
+        final double scale = thumbnailScale(grid);
+        final int w = thumbnailWidth(grid);
+        final int h = thumbnailHeight(grid);
+        final int[] pixels = new int[w * h];
+        final CompositeRenderer renderer = new CompositeRenderer(model, normals,
+                true, true, token);
+        SharedExecutor.forEachBand(h, THUMBNAIL_BAND_ROWS, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int firstRow, int endRow) {
+                renderer.renderBlock(scale, 0, firstRow, w, endRow - firstRow,
+                        pixels, firstRow * w, w);
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return CancellationToken.isCancelled(token);
+            }
+        });
+        CancellationToken.throwIfCancelled(token);
+        return pixels;
+    }
+
+    /**
+     * Writes a PNG image with thumbnails arranged in rows and a label below
+     * each thumbnail.
+     */
+    private void writeContactSheet(File file, Grid grid,
+            List<int[]> thumbnails, List<String> labels) throws IOException {
+        int w = thumbnailWidth(grid);
+        int h = thumbnailHeight(grid);
+        int n = thumbnails.size();
+        int columns = (int) Math.ceil(Math.sqrt(n));
+        int rows = (n + columns - 1) / columns;
+        int cellWidth = Math.max(w, THUMBNAIL_SIZE / 2) + GAP;
+        int cellHeight = h + LABEL_HEIGHT + GAP;
+        int width = columns * cellWidth + GAP;
+        int height = rows * cellHeight + GAP;
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2d = image.createGraphics();
+        try {
+            g2d.setColor(Color.WHITE);
+            g2d.fillRect(0, 0, width, height);
+            g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING,
+                    RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g2d.setFont(g2d.getFont().deriveFont(10f));
+            g2d.setColor(Color.BLACK);
+            for (int i = 0; i < n; i++) {
+                int x = GAP + (i % columns) * cellWidth;
+                int y = GAP + (i / columns) * cellHeight;
+                BufferedImage thumbnail = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
+                thumbnail.setRGB(0, 0, w, h, thumbnails.get(i), 0, w);
+                g2d.drawImage(thumbnail, x, y, null);
+                g2d.drawString(labels.get(i), x, y + h + LABEL_HEIGHT - 4);
+            }
+        } finally {
+            g2d.dispose();
+        }
+        PNGStripWriter.write(image, file, recipe.getCompressionLevel());
+    }
+}
@@ -0,0 +1,557 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.GeoTIFFGridReader;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridReader;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.ModelSettings;
+import edu.oregonstate.cartography.tiles.DirectoryTileSink;
+import edu.oregonstate.cartography.tiles.TileArchiveReader;
+import edu.oregonstate.cartography.tiles.TileArchiveWriter;
+import edu.oregonstate.cartography.tiles.TilePyramidExporter;
+import edu.oregonstate.cartography.tiles.TileRenderer;
+import edu.oregonstate.cartography.tiles.TileServer;
+import edu.oregonstate.cartography.tiles.TileSink;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Renders grids from the command line without a graphical user interface.
+ * Settings are read from a properties file with the keys described in
+ * ModelSettings and RenderRecipe. No Swing classes are used, so this can run
+ * with java.awt.headless=true.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class PyramidShaderCLI {
+
+    private static final String USAGE
+            = "Usage: PyramidShaderCLI [options] grid.asc|grid.asc.gz|grid.flt|grid.tif|directory ...\n"
+            + "Options:\n"
+            + "  -settings <file>        settings and output properties\n"
+            + "  -set <key>=<value>      overrides a setting, can be repeated\n"
+            + "  -out <directory>        output directory (default: grid directory)\n"
+            + "  -manifest <file>        text file with one grid path per line\n"
+            + "  -jobs <n>               number of grids rendered concurrently\n"
+            + "  -io-threads <n>         number of grids read concurrently (default: 2)\n"
+            + "  -memory <MB>            memory for concurrent grids (default: 80% of heap)\n"
+            + "  -sweep <key>=<values>   renders variants for comma separated values or\n"
+            + "                          start:end:step ranges, can be repeated\n"
+            + "  -animate <frames>       renders frames of an animation with a moving light\n"
+            + "  -azimuth <from>:<to>    light azimuth of the animation (default: one turn)\n"
+            + "  -zenith <from>:<to>     light zenith of the animation\n"
+            + "  -details <from>:<to>    generalization details of the animation\n"
+            + "  -workers <n>            renders tiles with n local worker processes\n"
+            + "  -worker-port <port>     accepts TileWorker processes on this local port\n"
+            + "  -worker-memory <MB>     maximum heap of each worker process\n"
+            + "  -tile-size <cells>      size of tiles for worker processes (default: "
+            + TileCoordinator.DEFAULT_TILE_SIZE + ")\n"
+            + "  -tiles <directory>      renders a z/x/y tile pyramid of each grid into a\n"
+            + "                          subdirectory named after the grid\n"
+            + "  -minzoom <z>            lowest zoom level of tiles (default: 0)\n"
+            + "  -maxzoom <z>            highest zoom level of tiles (default: one pixel\n"
+            + "                          per grid cell)\n"
+            + "  -tile-archive           writes each tile pyramid to a single archive file\n"
+            + "                          named after the grid instead of a subdirectory\n"
+            + "  -serve <archive>        serves the tiles of an archive to a web browser\n"
+            + "  -port <port>            port of the tile server (default: "
+            + TileServer.DEFAULT_PORT + ")\n"
+            + "  -write-settings <file>  writes the default settings and exits\n"
+            + "Output properties:\n"
+            + "  output.layers=composite,background,contours,generalized,local\n"
+            + "  output.format=png|tif\n"
+            + "  output.scale=<factor>\n"
+            + "  output.compression=<0..9>\n"
+            + "  output.tiffCompression=none|lzw|deflate\n"
+            + "  output.decimals=<0..9>\n"
+            + "  output.gridFormat=asc|flt|tif\n";
+
+    private PyramidShaderCLI() {
+    }
+
+    /**
+     * Main method for rendering grids without a graphical user interface.
+     *
+     * @param args the command line arguments
+     */
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        try {
+            System.exit(run(args));
+        } catch (IllegalArgumentException exc) {
+            System.err.println(exc.getMessage());
+            System.err.print(USAGE);
+            System.exit(2);
+        } catch (IOException exc) {
+            System.err.println("Error: " + exc.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses the arguments and renders the grids.
+     *
+     * @param args the command line arguments
+     * @return The exit status.
+     * @throws IOException If a file cannot be read or written.
+     * @throws IllegalArgumentException If the arguments are invalid.
+     */
+    static int run(String[] args) throws IOException {
+        Properties properties = new Properties();
+        Properties overrides = new Properties();
+        Map<String, String> sweeps = new LinkedHashMap<>();
+        int frames = 0;
+        double[] azimuth = null;
+        double[] zenith = null;
+        double[] details = null;
+        int workers = -1;
+        int workerPort = -1;
+        int workerMemory = 0;
+        int tileSize = TileCoordinator.DEFAULT_TILE_SIZE;
+        File tilesDirectory = null;
+        int minZoom = 0;
+        int maxZoom = -1;
+        boolean tileArchive = false;
+        File serveArchive = null;
+        int port = TileServer.DEFAULT_PORT;
+        File outDirectory = null;
+        List<File> gridFiles = new ArrayList<>();
+        int jobs = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int ioThreads = 2;
+        long memoryBytes = Runtime.getRuntime().maxMemory() / 10 * 8;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-settings":
+                    properties.putAll(ModelSettings.read(new File(value(args, ++i))));
+                    break;
+                case "-set":
+                    String s = value(args, ++i);
+                    int eq = s.indexOf('=');
+                    if (eq < 1) {
+                        throw new IllegalArgumentException("Invalid setting: " + s);
+                    }
+                    String key = s.substring(0, eq).trim();
+                    if (!RenderRecipe.isKey(key)) {
+                        throw new IllegalArgumentException("Unknown setting: " + key);
+                    }
+                    overrides.setProperty(key, s.substring(eq + 1));
+                    break;
+                case "-out":
+                    outDirectory = new File(value(args, ++i));
+                    break;
+                case "-sweep":
+                    String sweep = value(args, ++i);
+                    int sweepEq = sweep.indexOf('=');
+                    if (sweepEq < 1) {
+                        throw new IllegalArgumentException("Invalid sweep: " + sweep);
+                    }
+                    sweeps.put(sweep.substring(0, sweepEq).trim(), sweep.substring(sweepEq + 1));
+                    break;
+                case "-animate":
+                    frames = positiveInt(args, ++i);
+                    break;
+                case "-azimuth":
+                    azimuth = range(args, ++i);
+                    break;
+                case "-zenith":
+                    zenith = range(args, ++i);
+                    break;
+                case "-details":
+                    details = range(args, ++i);
+                    break;
+                case "-workers":
+                    workers = value(args, ++i).equals("0") ? 0 : positiveInt(args, i);
+                    break;
+                case "-worker-port":
+                    workerPort = positiveInt(args, ++i);
+                    break;
+                case "-worker-memory":
+                    workerMemory = positiveInt(args, ++i);
+                    break;
+                case "-tile-size":
+                    tileSize = positiveInt(args, ++i);
+                    break;
+                case "-tiles":
+                    tilesDirectory = new File(value(args, ++i));
+                    break;
+                case "-minzoom":
+                    minZoom = nonNegativeInt(args, ++i);
+                    break;
+                case "-maxzoom":
+                    maxZoom = nonNegativeInt(args, ++i);
+                    break;
+                case "-tile-archive":
+                    tileArchive = true;
+                    break;
+                case "-serve":
+                    serveArchive = new File(value(args, ++i));
+                    break;
+                case "-port":
+                    port = positiveInt(args, ++i);
+                    break;
+                case "-manifest":
+                    readManifest(new File(value(args, ++i)), gridFiles);
+                    break;
+                case "-jobs":
+                    jobs = positiveInt(args, ++i);
+                    break;
+                case "-io-threads":
+                    ioThreads = positiveInt(args, ++i);
+                    break;
+                case "-memory":
+                    memoryBytes = positiveInt(args, ++i) * 1024L * 1024L;
+                    break;
+                case "-write-settings":
+                    ModelSettings.write(new Model(), new File(value(args, ++i)));
+                    return 0;
+                case "-h":
+                case "-help":
+                    System.out.print(USAGE);
+                    return 0;
+                default:
+                    if (args[i].startsWith("-")) {
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
+                    }
+                    addGridFile(new File(args[i]), gridFiles);
+            }
+        }
+        if (serveArchive != null) {
+            return serve(serveArchive, port);
+        }
+        if (gridFiles.isEmpty()) {
+            throw new IllegalArgumentException("No grid file");
+        }
+        if (outDirectory != null && !outDirectory.isDirectory() && !outDirectory.mkdirs()) {
+            throw new IOException("Cannot create directory " + outDirectory);
+        }
+        checkBasePaths(gridFiles, tilesDirectory != null ? tilesDirectory : outDirectory);
+        ModelSettings.override(properties, overrides);
+        RenderRecipe recipe = new RenderRecipe(properties);
+        if (tilesDirectory != null) {
+            return exportTiles(recipe, gridFiles, tilesDirectory, minZoom, maxZoom,
+                    tileArchive);
+        }
+        if (workers >= 0 || workerPort > 0) {
+            try (TileCoordinator coordinator = new TileCoordinator(recipe, Math.max(0, workerPort))) {
+                coordinator.setTileSize(tileSize);
+                coordinator.setWorkerMemory(workerMemory);
+                coordinator.launchWorkers(Math.max(0, workers));
+                if (workers <= 0) {
+                    System.out.println("Waiting for workers on port " + coordinator.getPort());
+                }
+                for (File gridFile : gridFiles) {
+                    long start = System.nanoTime();
+                    Grid grid = GridReader.read(gridFile.getPath());
+                    File dir = outDirectory != null ? outDirectory : gridFile.getAbsoluteFile().getParentFile();
+                    List<File> files = coordinator.process(grid, basePath(dir, gridFile), null);
+                    long ms = (System.nanoTime() - start) / 1000 / 1000;
+                    System.out.println(gridFile.getName() + ": " + files.size()
+                            + " files in " + ms + " ms with "
+                            + coordinator.getConnectedWorkersCount() + " workers");
+                }
+            }
+            return 0;
+        }
+        if (frames > 0) {
+            for (File gridFile : gridFiles) {
+                Grid grid = GridReader.read(gridFile.getPath());
+                LightAnimation animation = new LightAnimation(recipe.createModel(grid, null));
+                animation.setFramesCount(frames);
+                animation.setScale(recipe.getScale());
+                animation.setCompressionLevel(recipe.getCompressionLevel());
+                if (azimuth != null) {
+                    animation.setAzimuth(azimuth[0], azimuth[1]);
+                }
+                if (zenith != null) {
+                    animation.setZenith(zenith[0], zenith[1]);
+                }
+                if (details != null) {
+                    animation.setGeneralizationDetails(details[0], details[1]);
+                }
+                File dir = outDirectory != null ? outDirectory : gridFile.getAbsoluteFile().getParentFile();
+                LightAnimation.Statistics statistics = animation.render(basePath(dir, gridFile));
+                System.out.println(gridFile.getName() + ": " + statistics);
+            }
+            return 0;
+        }
+        if (!sweeps.isEmpty()) {
+            ParameterSweep parameterSweep = new ParameterSweep(recipe);
+            for (Map.Entry<String, String> entry : sweeps.entrySet()) {
+                parameterSweep.addParameter(entry.getKey(),
+                        ParameterSweep.parseValues(entry.getValue()));
+            }
+            return sweep(parameterSweep, gridFiles, outDirectory);
+        }
+
+        long start = System.nanoTime();
+        BatchProcessor processor = new BatchProcessor(recipe, outDirectory,
+                memoryBytes, jobs, ioThreads);
+        int failures;
+        try {
+            failures = processor.process(gridFiles);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } finally {
+            processor.shutdown();
+        }
+        long ms = (System.nanoTime() - start) / 1000 / 1000;
+        System.out.println((gridFiles.size() - failures) + " of " + gridFiles.size()
+                + " grids in " + ms + " ms");
+        return failures == 0 ? 0 : 1;
+    }
+
+    /**
+     * Renders the variants of a parameter sweep for each grid.
+     *
+     * @param sweep The sweep.
+     * @param gridFiles The grid files.
+     * @param outDirectory The output directory or null.
+     * @return The exit status.
+     * @throws IOException If a file cannot be read or written.
+     */
+    private static int sweep(ParameterSweep sweep, List<File> gridFiles,
+            File outDirectory) throws IOException {
+        for (File gridFile : gridFiles) {
+            long start = System.nanoTime();
+            Grid grid = GridReader.read(gridFile.getPath());
+            File dir = outDirectory != null ? outDirectory : gridFile.getAbsoluteFile().getParentFile();
+            List<File> files = sweep.render(grid, basePath(dir, gridFile), null);
+            long ms = (System.nanoTime() - start) / 1000 / 1000;
+            System.out.println(gridFile.getName() + ": " + sweep.getVariantsCount()
+                    + " variants, " + files.size() + " files in " + ms + " ms");
+        }
+        return 0;
+    }
+
+    /**
+     * Renders a tile pyramid for each grid. Tiles of a directory exported
+     * earlier are only rewritten if their content has changed. An archive is
+     * always written from scratch, and identical tiles are stored once.
+     *
+     * @param recipe The settings for rendering.
+     * @param gridFiles The grid files.
+     * @param tilesDirectory The directory containing a directory or an
+     * archive for each grid.
+     * @param minZoom The lowest zoom level.
+     * @param maxZoom The highest zoom level, or -1 for the highest zoom level
+     * of each grid.
+     * @param archive If true, an archive file is written for each grid.
+     * @return The exit status.
+     * @throws IOException If a file cannot be read or written.
+     */
+    private static int exportTiles(RenderRecipe recipe, List<File> gridFiles,
+            File tilesDirectory, int minZoom, int maxZoom, boolean archive)
+            throws IOException {
+        if (archive && !tilesDirectory.isDirectory() && !tilesDirectory.mkdirs()) {
+            throw new IOException("Cannot create directory " + tilesDirectory);
+        }
+        for (File gridFile : gridFiles) {
+            long start = System.nanoTime();
+            Grid grid = GridReader.read(gridFile.getPath());
+            TileRenderer renderer = new TileRenderer(recipe.createModel(grid, null), null);
+            TilePyramidExporter exporter = new TilePyramidExporter(renderer);
+            exporter.setZoomRange(minZoom, maxZoom < 0 ? renderer.getMaxZoom() : maxZoom);
+            String path = basePath(tilesDirectory, gridFile);
+            try (TileSink sink = archive
+                    ? new TileArchiveWriter(new File(path + ".pstiles"), renderer)
+                    : new DirectoryTileSink(new File(path))) {
+                exporter.export(sink);
+            }
+            long ms = (System.nanoTime() - start) / 1000 / 1000;
+            System.out.println(gridFile.getName() + ": " + exporter.getWrittenCount()
+                    + " tiles written, " + exporter.getUnchangedCount() + " unchanged, "
+                    + exporter.getEmptyCount() + " empty in " + ms + " ms");
+        }
+        return 0;
+    }
+
+    /**
+     * Serves the tiles of an archive until the process is stopped.
+     *
+     * @param file The archive file.
+     * @param port The port of the server.
+     * @return The exit status.
+     * @throws IOException If the archive cannot be read or the port cannot be
+     * used.
+     */
+    private static int serve(File file, int port) throws IOException {
+        try (TileArchiveReader archive = new TileArchiveReader(file)) {
+            TileServer server = new TileServer(archive, port);
+            server.start();
+            System.out.println(file.getName() + ": " + archive.getTilesCount()
+                    + " tiles at " + server.getURL());
+            try {
+                Thread.currentThread().join();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } finally {
+                server.stop();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds a grid file, or all grids in a directory in alphabetical order.
+     * TIFF files in a directory are only added if they are GeoTIFF grids and
+     * not images.
+     *
+     * @param file A grid file or a directory.
+     * @param gridFiles The list to add to.
+     * @throws IOException If the directory cannot be read.
+     */
+    private static void addGridFile(File file, List<File> gridFiles) throws IOException {
+        if (!file.isDirectory()) {
+            gridFiles.add(file);
+            return;
+        }
+        File[] files = file.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                if (GeoTIFFGridReader.isGeoTIFF(name)) {
+                    return GeoTIFFGridReader.canRead(new File(dir, name).getPath());
+                }
+                return GridReader.isGridFile(name);
+            }
+        });
+        if (files == null) {
+            throw new IOException("Cannot read directory " + file);
+        }
+        Arrays.sort(files);
+        gridFiles.addAll(Arrays.asList(files));
+    }
+
+    /**
+     * Reads a manifest with one grid file or directory per line. Empty lines
+     * and lines starting with # are ignored. Relative paths are relative to
+     * the directory of the manifest.
+     *
+     * @param manifest The manifest file.
+     * @param gridFiles The list to add to.
+     * @throws IOException If the manifest cannot be read.
+     */
+    private static void readManifest(File manifest, List<File> gridFiles) throws IOException {
+        File dir = manifest.getAbsoluteFile().getParentFile();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(manifest), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                File file = new File(line);
+                addGridFile(file.isAbsolute() ? file : new File(dir, line), gridFiles);
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the output files for a grid, without suffix and
+     * extension. The .gz or .zip extension of compressed grids is removed
+     * together with the grid extension.
+     *
+     * @param dir The output directory.
+     * @param gridFile The grid file.
+     * @return The path.
+     */
+    static String basePath(File dir, File gridFile) {
+        String name = gridFile.getName();
+        String lowerCaseName = name.toLowerCase(Locale.US);
+        if (lowerCaseName.endsWith(".gz") || lowerCaseName.endsWith(".zip")) {
+            name = name.substring(0, name.lastIndexOf('.'));
+        }
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot);
+        }
+        return new File(dir, name).getPath();
+    }
+
+    /**
+     * Verifies that no two grids write to the same output files, which
+     * happens for grids with the same name and different extensions, such as
+     * g.asc and g.tif, and for grids listed twice. The files would otherwise
+     * be overwritten, and concurrent jobs would write to the same files.
+     *
+     * @param gridFiles The grid files.
+     * @param dir The output directory, or null for the directories of the
+     * grids.
+     * @throws IllegalArgumentException If two grids have the same output
+     * path.
+     */
+    private static void checkBasePaths(List<File> gridFiles, File dir) {
+        Map<String, File> basePaths = new HashMap<>();
+        for (File gridFile : gridFiles) {
+            File d = dir != null ? dir : gridFile.getAbsoluteFile().getParentFile();
+            String path = new File(basePath(d, gridFile)).getAbsolutePath();
+            // ignore case, as file systems on Windows and Mac OS X do
+            File other = basePaths.put(path.toLowerCase(Locale.US), gridFile);
+            if (other != null) {
+                throw new IllegalArgumentException("Grids " + other + " and "
+                        + gridFile + " would write to the same files " + path + "*");
+            }
+        }
+    }
+
+    private static double[] range(String[] args, int i) {
+        String s = value(args, i);
+        String[] tokens = s.split(":");
+        try {
+            if (tokens.length == 2) {
+                return new double[]{Double.parseDouble(tokens[0]), Double.parseDouble(tokens[1])};
+            }
+        } catch (NumberFormatException exc) {
+        }
+        throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + s);
+    }
+
+    private static int positiveInt(String[] args, int i) {
+        String s = value(args, i);
+        try {
+            int n = Integer.parseInt(s);
+            if (n > 0) {
+                return n;
+            }
+        } catch (NumberFormatException exc) {
+        }
+        throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + s);
+    }
+
+    private static int nonNegativeInt(String[] args, int i) {
+        String s = value(args, i);
+        try {
+            int n = Integer.parseInt(s);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException exc) {
+        }
+        throw new IllegalArgumentException("Invalid value for " + args[i - 1] + ": " + s);
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[i - 1]);
+        }
+        return args[i];
+    }
+}
@@ -0,0 +1,392 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.CompositeImageExporter;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridWriter;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.ModelSettings;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.image.TIFFStripWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Settings for rendering a grid without a graphical user interface. A recipe
+ * consists of the model settings read by ModelSettings and the following
+ * output settings:
+ *
+ * <pre>
+ * output.layers   comma separated list of composite, background, contours,
+ *                 generalized and local (default: composite)
+ * output.format   png or tif (default: png)
+ * output.scale    the images are this many times larger than the grid
+ *                 (default: 1)
+ * output.compression
+ *                 PNG compression level between 0 (fastest) and 9 (smallest
+ *                 files), or -1 for the default level (default: -1)
+ * output.tiffCompression
+ *                 none, lzw or deflate (default: none)
+ * output.decimals number of decimals of grid values between 0 and 9, or -1
+ *                 for the shortest exact representation (default: -1)
+ * output.gridFormat
+ *                 asc, flt or tif for ESRI ASCII grids, ESRI binary float
+ *                 grids or GeoTIFF files (default: asc)
+ * </pre>
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class RenderRecipe {
+
+    /**
+     * The files that can be written for a grid.
+     */
+    public enum Output {
+
+        /**
+         * Background visualization with contour lines.
+         */
+        COMPOSITE("_composite"),
+        /**
+         * Background visualization without contour lines.
+         */
+        BACKGROUND("_background"),
+        /**
+         * Contour lines on a transparent background.
+         */
+        CONTOURS("_contours"),
+        /**
+         * The generalized grid.
+         */
+        GENERALIZED("_generalized"),
+        /**
+         * The locally filtered grid for local hypsometric colors.
+         */
+        LOCAL("_local");
+
+        private final String suffix;
+
+        private Output(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * Returns true if this output is an image.
+         *
+         * @return True for images, false for grids.
+         */
+        public boolean isImage() {
+            return this == COMPOSITE || this == BACKGROUND || this == CONTOURS;
+        }
+    }
+
+    /**
+     * The maximum number of pixels in a strip of an exported image.
+     */
+    private static final long STRIP_PIXELS = 16 * 1024 * 1024;
+
+    /**
+     * The keys of the output settings.
+     */
+    private static final List<String> OUTPUT_KEYS = Arrays.asList(
+            "output.layers",
+            "output.format",
+            "output.scale",
+            "output.compression",
+            "output.tiffCompression",
+            "output.decimals",
+            "output.gridFormat");
+
+    private final Properties settings;
+    private final EnumSet<Output> outputs;
+    private final String format;
+    private final double scale;
+    private final int compressionLevel;
+    private final TIFFStripWriter.Compression tiffCompression;
+    private final int decimals;
+    private final String gridFormat;
+
+    /**
+     * True if contour lines are rendered.
+     */
+    private final boolean contours;
+
+    /**
+     * True if the locally filtered grid is computed.
+     */
+    private final boolean localGrid;
+
+    /**
+     * Returns whether a key is an output setting or a model setting.
+     *
+     * @param key The key.
+     * @return True if the key is a setting of a recipe.
+     */
+    public static boolean isKey(String key) {
+        return OUTPUT_KEYS.contains(key) || ModelSettings.isKey(key);
+    }
+
+    /**
+     * Creates a recipe from properties.
+     *
+     * @param properties The model and output settings.
+     * @throws IllegalArgumentException If an output setting is invalid.
+     */
+    public RenderRecipe(Properties properties) {
+        settings = new Properties();
+        settings.putAll(properties);
+        outputs = EnumSet.noneOf(Output.class);
+        for (String s : properties.getProperty("output.layers", "composite").split(",")) {
+            if (s.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                outputs.add(Output.valueOf(s.trim().toUpperCase(Locale.US)));
+            } catch (IllegalArgumentException exc) {
+                throw new IllegalArgumentException("Invalid value for output.layers: " + s);
+            }
+        }
+        format = properties.getProperty("output.format", "png").trim().toLowerCase(Locale.US);
+        if (!format.equals("png") && !format.equals("tif")) {
+            throw new IllegalArgumentException("Invalid value for output.format: " + format);
+        }
+        try {
+            scale = Double.parseDouble(properties.getProperty("output.scale", "1").trim());
+        } catch (NumberFormatException exc) {
+            throw new IllegalArgumentException("Invalid value for output.scale: "
+                    + properties.getProperty("output.scale"));
+        }
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("Invalid value for output.scale: " + scale);
+        }
+        try {
+            compressionLevel = Integer.parseInt(properties.getProperty("output.compression", "-1").trim());
+        } catch (NumberFormatException exc) {
+            throw new IllegalArgumentException("Invalid value for output.compression: "
+                    + properties.getProperty("output.compression"));
+        }
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Invalid value for output.compression: "
+                    + compressionLevel);
+        }
+        String tiff = properties.getProperty("output.tiffCompression", "none").trim();
+        try {
+            tiffCompression = TIFFStripWriter.Compression.valueOf(tiff.toUpperCase(Locale.US));
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("Invalid value for output.tiffCompression: " + tiff);
+        }
+        try {
+            decimals = Integer.parseInt(properties.getProperty("output.decimals", "-1").trim());
+        } catch (NumberFormatException exc) {
+            throw new IllegalArgumentException("Invalid value for output.decimals: "
+                    + properties.getProperty("output.decimals"));
+        }
+        if (decimals < -1 || decimals > 9) {
+            throw new IllegalArgumentException("Invalid value for output.decimals: " + decimals);
+        }
+        gridFormat = properties.getProperty("output.gridFormat", "asc").trim().toLowerCase(Locale.US);
+        if (!gridFormat.equals("asc") && !gridFormat.equals("flt") && !gridFormat.equals("tif")) {
+            throw new IllegalArgumentException("Invalid value for output.gridFormat: " + gridFormat);
+        }
+        // validate model settings before any grid is loaded
+        Model model = new Model();
+        ModelSettings.apply(settings, model);
+        boolean images = outputs.contains(Output.COMPOSITE)
+                || outputs.contains(Output.BACKGROUND)
+                || outputs.contains(Output.CONTOURS);
+        contours = model.foregroundVisualization != Model.ForegroundVisualization.NONE
+                && (outputs.contains(Output.COMPOSITE) || outputs.contains(Output.CONTOURS));
+        localGrid = outputs.contains(Output.LOCAL)
+                || (images && model.backgroundVisualization.isLocal());
+    }
+
+    /**
+     * Reads a recipe from a properties file.
+     *
+     * @param file The file.
+     * @return The recipe.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a setting is invalid.
+     */
+    public static RenderRecipe read(File file) throws IOException {
+        return new RenderRecipe(ModelSettings.read(file));
+    }
+
+    /**
+     * Returns the files written for each grid.
+     *
+     * @return The outputs.
+     */
+    public EnumSet<Output> getOutputs() {
+        return EnumSet.copyOf(outputs);
+    }
+
+    /**
+     * Returns the model settings of this recipe.
+     *
+     * @return A copy of the settings.
+     */
+    public Properties getSettings() {
+        Properties copy = new Properties();
+        copy.putAll(settings);
+        return copy;
+    }
+
+    /**
+     * Returns the format of images.
+     *
+     * @return "png" or "tif".
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the compression level of PNG images.
+     *
+     * @return The level between 0 and 9, or -1 for the default level.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Returns the compression of TIFF images.
+     *
+     * @return The compression of TIFF strips.
+     */
+    public TIFFStripWriter.Compression getTIFFCompression() {
+        return tiffCompression;
+    }
+
+    /**
+     * Returns the number of decimals of values in grid files.
+     *
+     * @return The number of decimals between 0 and 9, or -1 for the shortest
+     * exact representation.
+     */
+    public int getDecimals() {
+        return decimals;
+    }
+
+    /**
+     * Returns the format of grid files.
+     *
+     * @return "asc", "flt" or "tif".
+     */
+    public String getGridFormat() {
+        return gridFormat;
+    }
+
+    /**
+     * Returns the scale factor of images.
+     *
+     * @return The images are this many times larger than the grid.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Estimates the memory required for creating a model and writing the
+     * outputs for a grid. The estimate counts the grid, the Gaussian and
+     * Laplacian pyramids, the generalized and slope grids, the aspect vectors
+     * for contour lines, the grids for local hypsometric colors, and a strip
+     * of an image.
+     *
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @return The estimated memory in bytes.
+     */
+    public long estimateMemoryBytes(int cols, int rows) {
+        // grid, two pyramids with 4/3 of the grid each, generalized, slope
+        double grids = 1 + 8d / 3 + 2;
+        if (contours) {
+            // aspect vectors with two components, blurred temporary grid
+            grids += 3;
+        }
+        if (localGrid) {
+            // low pass, standard deviation, filtered and temporary grid
+            grids += 4;
+        }
+        long cells = (long) cols * rows;
+        long imagePixels = (long) Math.ceil(cells * scale * scale);
+        return (long) (grids * cells * 4) + Math.min(imagePixels, STRIP_PIXELS) * 4;
+    }
+
+    /**
+     * Creates a model with the settings of this recipe for a grid.
+     *
+     * @param grid The grid.
+     * @param token Checked while computing. Can be null.
+     * @return The new model.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public Model createModel(Grid grid, CancellationToken token) {
+        Model model = new Model();
+        // apply settings first, so the generalized grid is only computed once
+        ModelSettings.apply(settings, model);
+        model.setGrid(grid, token);
+        return model;
+    }
+
+    /**
+     * Returns the file for an output.
+     *
+     * @param basePath The path of the output files without suffix and
+     * extension.
+     * @param output The output.
+     * @return The file.
+     */
+    public File getFile(String basePath, Output output) {
+        String ext = output.isImage() ? format : gridFormat;
+        return new File(basePath + output.suffix + "." + ext);
+    }
+
+    /**
+     * Renders images and writes images, world files and grids.
+     *
+     * @param model The model with a grid.
+     * @param basePath The path of the output files without suffix and
+     * extension.
+     * @param token Checked while rendering. Can be null.
+     * @return The written images and grids.
+     * @throws IOException If a file cannot be written.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public List<File> writeOutputs(Model model, String basePath,
+            CancellationToken token) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (Output output : outputs) {
+            File file = getFile(basePath, output);
+            switch (output) {
+                case COMPOSITE:
+                case BACKGROUND:
+                case CONTOURS:
+                    CompositeImageExporter exporter = new CompositeImageExporter(model, scale);
+                    exporter.setLayers(output != Output.CONTOURS, output != Output.BACKGROUND);
+                    exporter.setCancellationToken(token);
+                    exporter.setCompressionLevel(compressionLevel);
+                    exporter.setTIFFCompression(tiffCompression);
+                    exporter.export(file, format);
+                    break;
+                case GENERALIZED:
+                    GridWriter.write(model.getGeneralizedGrid(), file.getPath(), decimals);
+                    break;
+                case LOCAL:
+                    GridWriter.write(model.getLocalGrid(), file.getPath(), decimals);
+                    break;
+            }
+            files.add(file);
+        }
+        return files;
+    }
+}
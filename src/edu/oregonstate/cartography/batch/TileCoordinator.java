@@ -0,0 +1,675 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridTileSummary;
+import edu.oregonstate.cartography.grid.GridWriter;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.ModelSettings;
+import edu.oregonstate.cartography.grid.WorldFileExporter;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.grid.operators.GridScaleToRangeOperator;
+import edu.oregonstate.cartography.image.ImageStripWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generalizes and renders a grid that is too large for a single process by
+ * distributing tiles to worker processes. Workers are TileWorker processes
+ * that are either launched by the coordinator on the local machine, or that
+ * connect to the port of the coordinator on the loopback interface.
+ *
+ * Processing has two phases. First, tiles of the grid are generalized. Each
+ * tile is extended by a halo that grows with the number of generalized
+ * pyramid levels, and the tile origin is aligned with the cells of the
+ * coarsest generalized pyramid level, such that the pyramid levels of a tile
+ * are identical to the levels of the entire grid inside the tile. Pyramid
+ * levels that are not generalized sum to the Gaussian pyramid level, which
+ * only depends on the halo. The generalized tiles are stitched without
+ * seams, and the stitched grid is scaled to the range of the original grid.
+ * Grids with void values are generalized as a single tile, because the
+ * pyramids fill void areas with values that can come from outside the halo.
+ * Second, tiles of the generalized grid with a small halo for normals,
+ * slope and the smoothed aspect of contour lines are rendered, and the
+ * rendered tiles are written to an image one row of tiles after the other.
+ *
+ * A tile that fails, or that was assigned to a worker that disconnects, is
+ * sent to another worker until the number of retries is exceeded. Launched
+ * worker processes that exit are replaced.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TileCoordinator implements Closeable {
+
+    /**
+     * The default width and height of tiles in cells, without halo.
+     */
+    public static final int DEFAULT_TILE_SIZE = 1024;
+
+    private final RenderRecipe recipe;
+
+    /**
+     * A model with the settings of the recipe and without a grid.
+     */
+    private final Model settings = new Model();
+
+    /**
+     * The image scale, which must be an integer so that tiles of the image
+     * are aligned with cells.
+     */
+    private final int scale;
+
+    private final ServerSocket serverSocket;
+
+    /**
+     * Jobs waiting for a worker.
+     */
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+
+    /**
+     * Launched worker processes. Access is synchronized on the list.
+     */
+    private final List<Process> processes = new ArrayList<>();
+
+    /**
+     * The number of replaced worker processes. Access is synchronized on
+     * processes.
+     */
+    private int replacedProcesses = 0;
+
+    private final AtomicInteger connectedWorkers = new AtomicInteger();
+    private final AtomicInteger jobIds = new AtomicInteger();
+
+    private int tileSize = DEFAULT_TILE_SIZE;
+    private int maxRetries = 3;
+
+    /**
+     * The maximum heap of launched workers in megabytes, or 0 for the default
+     * heap.
+     */
+    private int workerMemory = 0;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Messages about failed tiles are printed to this stream. Access is
+     * synchronized on the stream.
+     */
+    private PrintStream log = System.out;
+
+    /**
+     * The jobs of one step. The step is complete when all jobs have
+     * succeeded, or when a job has failed too often.
+     */
+    private static final class Phase {
+
+        private final CountDownLatch remaining;
+        private volatile String error;
+
+        Phase(int jobs) {
+            remaining = new CountDownLatch(jobs);
+        }
+    }
+
+    /**
+     * A tile sent to a worker. The interior is the part of the tile without
+     * halo.
+     */
+    private abstract class Job {
+
+        final int id = jobIds.incrementAndGet();
+        final Phase phase;
+        final Grid tile;
+        final int interiorCol, interiorRow, interiorCols, interiorRows;
+        int attempts = 0;
+
+        Job(Phase phase, Grid tile, int col0, int row0, int cols, int rows) {
+            this.phase = phase;
+            this.tile = tile;
+            this.interiorCol = col0;
+            this.interiorRow = row0;
+            this.interiorCols = cols;
+            this.interiorRows = rows;
+        }
+
+        void write(DataOutputStream out, byte type) throws IOException {
+            out.writeByte(type);
+            out.writeInt(id);
+            TileProtocol.writeGrid(out, tile);
+            out.writeInt(interiorCol);
+            out.writeInt(interiorRow);
+            out.writeInt(interiorCols);
+            out.writeInt(interiorRows);
+        }
+
+        abstract void write(DataOutputStream out) throws IOException;
+
+        abstract void read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Creates a coordinator that accepts workers on a port of the loopback
+     * interface.
+     *
+     * @param recipe The settings. Only composite images and generalized grids
+     * are supported, and the image scale must be an integer.
+     * @param port The port, or 0 for any free port.
+     * @throws IOException If the port cannot be opened.
+     * @throws IllegalArgumentException If the recipe is not supported.
+     */
+    public TileCoordinator(RenderRecipe recipe, int port) throws IOException {
+        EnumSet<RenderRecipe.Output> supported = EnumSet.of(
+                RenderRecipe.Output.COMPOSITE, RenderRecipe.Output.GENERALIZED);
+        if (!supported.containsAll(recipe.getOutputs())) {
+            throw new IllegalArgumentException("Only composite and generalized "
+                    + "outputs are supported with workers");
+        }
+        if (recipe.getScale() != Math.rint(recipe.getScale())) {
+            throw new IllegalArgumentException("output.scale must be an integer "
+                    + "with workers");
+        }
+        ModelSettings.apply(recipe.getSettings(), settings);
+        if (settings.backgroundVisualization.isLocal()) {
+            throw new IllegalArgumentException("Local hypsometric colors are not "
+                    + "supported with workers");
+        }
+        this.recipe = recipe;
+        this.scale = (int) recipe.getScale();
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptWorkers();
+            }
+        }, "Tile Coordinator");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    /**
+     * Returns the port that workers connect to.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the number of currently connected workers.
+     *
+     * @return The number of workers.
+     */
+    public int getConnectedWorkersCount() {
+        return connectedWorkers.get();
+    }
+
+    /**
+     * Sets the width and height of tiles without halo. Tiles are enlarged to
+     * be aligned with the coarsest generalized pyramid level.
+     *
+     * @param tileSize The size in cells.
+     */
+    public void setTileSize(int tileSize) {
+        if (tileSize < 16) {
+            throw new IllegalArgumentException("tile size too small");
+        }
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Sets how often a failed tile is sent to a worker again.
+     *
+     * @param maxRetries The number of retries.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = Math.max(0, maxRetries);
+    }
+
+    /**
+     * Sets the maximum heap of launched worker processes.
+     *
+     * @param megabytes The heap in megabytes, or 0 for the default heap.
+     */
+    public void setWorkerMemory(int megabytes) {
+        this.workerMemory = Math.max(0, megabytes);
+    }
+
+    /**
+     * Sets the stream for messages about failed tiles.
+     *
+     * @param log The stream.
+     */
+    public void setLog(PrintStream log) {
+        this.log = log;
+    }
+
+    /**
+     * Launches worker processes on the local machine with the class path of
+     * this process.
+     *
+     * @param count The number of processes.
+     * @throws IOException If a process cannot be started.
+     */
+    public void launchWorkers(int count) throws IOException {
+        synchronized (processes) {
+            for (int i = 0; i < count; i++) {
+                processes.add(startWorker());
+            }
+        }
+    }
+
+    private Process startWorker() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin"
+                + File.separator + "java");
+        command.add("-Djava.awt.headless=true");
+        if (workerMemory > 0) {
+            command.add("-Xmx" + workerMemory + "m");
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(TileWorker.class.getName());
+        command.add(serverSocket.getInetAddress().getHostAddress());
+        command.add(Integer.toString(getPort()));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        return builder.start();
+    }
+
+    private static boolean hasExited(Process process) {
+        try {
+            process.exitValue();
+            return true;
+        } catch (IllegalThreadStateException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Replaces launched worker processes that have exited.
+     *
+     * @throws IOException If processes exited too often.
+     */
+    private void replaceExitedWorkers() throws IOException {
+        synchronized (processes) {
+            for (int i = 0; i < processes.size(); i++) {
+                if (hasExited(processes.get(i))) {
+                    if (replacedProcesses >= (maxRetries + 1) * processes.size()) {
+                        throw new IOException("Worker processes exit repeatedly");
+                    }
+                    replacedProcesses++;
+                    print("worker process exited with status "
+                            + processes.get(i).exitValue() + ", starting a new one");
+                    processes.set(i, startWorker());
+                }
+            }
+        }
+    }
+
+    private void print(String message) {
+        synchronized (log) {
+            log.println(message);
+        }
+    }
+
+    private void acceptWorkers() {
+        while (!closed) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException exc) {
+                return;
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveWorker(socket);
+                }
+            }, "Tile Coordinator Worker");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Sends jobs to a worker until this coordinator is closed or the
+     * connection fails.
+     */
+    private void serveWorker(Socket socket) {
+        Job job = null;
+        connectedWorkers.incrementAndGet();
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    s.getOutputStream(), 64 * 1024));
+            if (in.readInt() != TileProtocol.MAGIC) {
+                return;
+            }
+            out.writeInt(TileProtocol.MAGIC);
+            TileProtocol.writeProperties(out, recipe.getSettings());
+            out.flush();
+            while (!closed) {
+                job = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (job == null) {
+                    continue;
+                }
+                job.write(out);
+                out.flush();
+                if (in.readInt() != job.id) {
+                    throw new IOException("Unexpected job");
+                }
+                if (in.readByte() == TileProtocol.OK) {
+                    job.read(in);
+                    job.phase.remaining.countDown();
+                } else {
+                    retry(job, in.readUTF());
+                }
+                job = null;
+            }
+            out.writeByte(TileProtocol.QUIT);
+            out.flush();
+        } catch (IOException exc) {
+            if (job != null) {
+                retry(job, "worker disconnected: " + exc);
+            }
+        } catch (InterruptedException exc) {
+            if (job != null) {
+                retry(job, "interrupted");
+            }
+        } finally {
+            connectedWorkers.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queues a failed job again, or fails its phase if the job failed too
+     * often.
+     */
+    private void retry(Job job, String message) {
+        job.attempts++;
+        if (job.attempts > maxRetries) {
+            print("tile " + job.id + " failed: " + message);
+            job.phase.error = "Tile " + job.id + " failed " + job.attempts
+                    + " times: " + message;
+            job.phase.remaining.countDown();
+        } else {
+            print("tile " + job.id + " failed: " + message + ", retrying");
+            queue.add(job);
+        }
+    }
+
+    /**
+     * Waits until all jobs of a phase have completed.
+     */
+    private void await(Phase phase, CancellationToken token) throws IOException {
+        try {
+            while (!phase.remaining.await(500, TimeUnit.MILLISECONDS)) {
+                if (phase.error != null) {
+                    break;
+                }
+                if (CancellationToken.isCancelled(token) || closed) {
+                    queue.clear();
+                    throw new CancellationException("tiled rendering canceled");
+                }
+                replaceExitedWorkers();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            queue.clear();
+            throw new CancellationException("tiled rendering interrupted");
+        }
+        if (phase.error != null) {
+            queue.clear();
+            throw new IOException(phase.error);
+        }
+    }
+
+    /**
+     * Generalizes and renders a grid with workers and writes the outputs of
+     * the recipe.
+     *
+     * @param grid The grid.
+     * @param basePath The path of the output files without suffix and
+     * extension.
+     * @param token Checked while waiting for workers. Can be null.
+     * @return The written files.
+     * @throws IOException If a tile fails too often, or a file cannot be
+     * written.
+     * @throws CancellationException If the token is cancelled.
+     */
+    public List<File> process(Grid grid, String basePath, CancellationToken token)
+            throws IOException {
+        float[] minMax = grid.getMinMax();
+        Grid generalized = settings.isGeneralizing() ? generalize(grid, minMax, token) : grid;
+        List<File> files = new ArrayList<>();
+        for (RenderRecipe.Output output : recipe.getOutputs()) {
+            File file = recipe.getFile(basePath, output);
+            if (output == RenderRecipe.Output.GENERALIZED) {
+                GridWriter.write(generalized, file.getPath(), recipe.getDecimals());
+            } else {
+                render(generalized, minMax, file, token);
+            }
+            files.add(file);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the number of levels of the Gaussian pyramid of a grid.
+     */
+    private static int pyramidLevels(int cols, int rows) {
+        int levels = 1;
+        while (cols / 2 > 2 && rows / 2 > 2) {
+            cols = (cols + 1) / 2;
+            rows = (rows + 1) / 2;
+            levels++;
+        }
+        return levels;
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return (value + multiple - 1) / multiple * multiple;
+    }
+
+    /**
+     * Returns whether a grid contains void values.
+     */
+    private static boolean hasVoid(Grid grid) {
+        GridTileSummary summary = grid.getTileSummary();
+        for (int tileRow = 0; tileRow < summary.getTileRows(); tileRow++) {
+            for (int tileCol = 0; tileCol < summary.getTileCols(); tileCol++) {
+                if (summary.getVoidCount(tileCol, tileRow) > 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copies a rectangular part of a grid.
+     */
+    private static Grid extract(Grid grid, int c0, int r0, int c1, int r1) {
+        Grid tile = new Grid(c1 - c0, r1 - r0, grid.getCellSize());
+        tile.setWest(grid.getWest() + c0 * grid.getCellSize());
+        tile.setSouth(grid.getSouth() + (grid.getRows() - r1) * grid.getCellSize());
+        float[][] src = grid.getGrid();
+        float[][] dst = tile.getGrid();
+        for (int r = r0; r < r1; r++) {
+            System.arraycopy(src[r], c0, dst[r - r0], 0, c1 - c0);
+        }
+        return tile;
+    }
+
+    /**
+     * Generalizes tiles with workers and stitches them.
+     */
+    private Grid generalize(Grid grid, float[] minMax, CancellationToken token)
+            throws IOException {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final int levels = pyramidLevels(cols, rows);
+        int size, halo;
+        if (settings.generalizationMaxLevels > levels - 1 || hasVoid(grid)) {
+            // all levels are weighted, or void values are filled with values
+            // of neighboring cells when the pyramids are computed, which
+            // reaches beyond any halo in large void areas. Tiles cannot be
+            // generalized independently.
+            size = Math.max(cols, rows);
+            halo = 0;
+        } else {
+            int align = 1 << Math.max(0, settings.generalizationMaxLevels);
+            size = roundUp(tileSize, align);
+            halo = roundUp(4 * align + 8, align);
+        }
+
+        final Grid stitched = new Grid(cols, rows, grid.getCellSize());
+        stitched.setWest(grid.getWest());
+        stitched.setSouth(grid.getSouth());
+        List<Job> jobs = new ArrayList<>();
+        Phase phase = new Phase(((cols + size - 1) / size) * ((rows + size - 1) / size));
+        for (int r0 = 0; r0 < rows; r0 += size) {
+            for (int c0 = 0; c0 < cols; c0 += size) {
+                int r1 = Math.min(rows, r0 + size);
+                int c1 = Math.min(cols, c0 + size);
+                int hr0 = Math.max(0, r0 - halo);
+                int hc0 = Math.max(0, c0 - halo);
+                Grid tile = extract(grid, hc0, hr0,
+                        Math.min(cols, c1 + halo), Math.min(rows, r1 + halo));
+                final int gridCol = c0;
+                final int gridRow = r0;
+                jobs.add(new Job(phase, tile, c0 - hc0, r0 - hr0, c1 - c0, r1 - r0) {
+                    @Override
+                    void write(DataOutputStream out) throws IOException {
+                        write(out, TileProtocol.GENERALIZE);
+                    }
+
+                    @Override
+                    void read(DataInputStream in) throws IOException {
+                        float[][] dst = stitched.getGrid();
+                        for (int r = 0; r < interiorRows; r++) {
+                            TileProtocol.readFloats(in, dst[gridRow + r], gridCol, interiorCols);
+                        }
+                    }
+                });
+            }
+        }
+        queue.addAll(jobs);
+        await(phase, token);
+
+        // the same scaling as Model applies to the entire generalized grid
+        new GridScaleToRangeOperator(minMax).operate(stitched, stitched);
+        return stitched;
+    }
+
+    /**
+     * Renders tiles of the generalized grid with workers and writes them to
+     * an image, one row of tiles after the other.
+     */
+    private void render(Grid generalized, float[] minMax, File file,
+            CancellationToken token) throws IOException {
+        final int cols = generalized.getCols();
+        final int rows = generalized.getRows();
+        // normals and slope use neighbors, contour lines use smoothed aspect
+        int halo = 8 + (int) Math.ceil(4 * settings.contoursAspectGaussBlur);
+        final int width = cols * scale;
+        final float min = minMax[0];
+        final float max = minMax[1];
+        try (ImageStripWriter writer = ImageStripWriter.create(file,
+                recipe.getFormat(), width, rows * scale, recipe.getCompressionLevel(),
+                recipe.getTIFFCompression())) {
+            for (int r0 = 0; r0 < rows; r0 += tileSize) {
+                int r1 = Math.min(rows, r0 + tileSize);
+                final int[] strip = new int[width * (r1 - r0) * scale];
+                Phase phase = new Phase((cols + tileSize - 1) / tileSize);
+                List<Job> jobs = new ArrayList<>();
+                for (int c0 = 0; c0 < cols; c0 += tileSize) {
+                    int c1 = Math.min(cols, c0 + tileSize);
+                    int hr0 = Math.max(0, r0 - halo);
+                    int hc0 = Math.max(0, c0 - halo);
+                    Grid tile = extract(generalized, hc0, hr0,
+                            Math.min(cols, c1 + halo), Math.min(rows, r1 + halo));
+                    final int x0 = c0 * scale;
+                    jobs.add(new Job(phase, tile, c0 - hc0, r0 - hr0, c1 - c0, r1 - r0) {
+                        @Override
+                        void write(DataOutputStream out) throws IOException {
+                            write(out, TileProtocol.RENDER);
+                            out.writeFloat(min);
+                            out.writeFloat(max);
+                            out.writeInt(scale);
+                        }
+
+                        @Override
+                        void read(DataInputStream in) throws IOException {
+                            int w = interiorCols * scale;
+                            for (int y = 0; y < interiorRows * scale; y++) {
+                                TileProtocol.readInts(in, strip, y * width + x0, w);
+                            }
+                        }
+                    });
+                }
+                queue.addAll(jobs);
+                await(phase, token);
+                writer.writeStrip(strip, (r1 - r0) * scale);
+            }
+        }
+
+        // the first pixel is centered on the western and northern border of
+        // the grid
+        double pixelSize = generalized.getCellSize() / scale;
+        WorldFileExporter.writeWorldFile(WorldFileExporter.constructPath(file.getPath()),
+                pixelSize, generalized.getWest() - pixelSize / 2,
+                generalized.getNorth() + pixelSize / 2);
+    }
+
+    /**
+     * Stops the workers and closes the port.
+     *
+     * @throws IOException If the port cannot be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        queue.clear();
+        try {
+            serverSocket.close();
+        } catch (SocketException exc) {
+            // already closed
+        }
+        synchronized (processes) {
+            for (Process process : processes) {
+                try {
+                    // workers exit after QUIT
+                    process.waitFor();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    process.destroy();
+                }
+            }
+            processes.clear();
+        }
+    }
+}
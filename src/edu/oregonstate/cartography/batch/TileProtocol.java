@@ -0,0 +1,121 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.Grid;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Messages exchanged between TileCoordinator and TileWorker over a socket.
+ * All values are big endian.
+ *
+ * <pre>
+ * worker:      MAGIC
+ * coordinator: MAGIC, settings
+ * coordinator: GENERALIZE, job id, tile grid, interior
+ * worker:      job id, OK, interior values
+ * coordinator: RENDER, job id, tile grid, interior, min, max, scale
+ * worker:      job id, OK, interior pixels
+ * worker:      job id, FAILED, message
+ * coordinator: QUIT
+ * </pre>
+ *
+ * The interior is the part of the tile without the halo, given by first
+ * column, first row, number of columns and number of rows.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class TileProtocol {
+
+    /**
+     * Sent by both sides when a connection is opened.
+     */
+    static final int MAGIC = 0x50535457;
+
+    static final byte QUIT = 0;
+    static final byte GENERALIZE = 1;
+    static final byte RENDER = 2;
+
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+
+    private TileProtocol() {
+    }
+
+    static void writeProperties(DataOutputStream out, Properties properties)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        properties.store(bytes, null);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+    static Properties readProperties(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        Properties properties = new Properties();
+        properties.load(new ByteArrayInputStream(bytes));
+        return properties;
+    }
+
+    /**
+     * Writes the size, position and values of a grid.
+     */
+    static void writeGrid(DataOutputStream out, Grid grid) throws IOException {
+        out.writeInt(grid.getCols());
+        out.writeInt(grid.getRows());
+        out.writeDouble(grid.getCellSize());
+        out.writeDouble(grid.getWest());
+        out.writeDouble(grid.getSouth());
+        float[][] g = grid.getGrid();
+        for (float[] row : g) {
+            writeFloats(out, row, 0, row.length);
+        }
+    }
+
+    static Grid readGrid(DataInputStream in) throws IOException {
+        int cols = in.readInt();
+        int rows = in.readInt();
+        Grid grid = new Grid(cols, rows, in.readDouble());
+        grid.setWest(in.readDouble());
+        grid.setSouth(in.readDouble());
+        float[][] g = grid.getGrid();
+        for (float[] row : g) {
+            readFloats(in, row, 0, row.length);
+        }
+        return grid;
+    }
+
+    static void writeFloats(DataOutputStream out, float[] values, int offset,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length * 4);
+        buffer.asFloatBuffer().put(values, offset, length);
+        out.write(buffer.array());
+    }
+
+    static void readFloats(DataInputStream in, float[] values, int offset,
+            int length) throws IOException {
+        byte[] bytes = new byte[length * 4];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asFloatBuffer().get(values, offset, length);
+    }
+
+    static void writeInts(DataOutputStream out, int[] values, int offset,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length * 4);
+        buffer.asIntBuffer().put(values, offset, length);
+        out.write(buffer.array());
+    }
+
+    static void readInts(DataInputStream in, int[] values, int offset,
+            int length) throws IOException {
+        byte[] bytes = new byte[length * 4];
+        in.readFully(bytes);
+        ByteBuffer.wrap(bytes).asIntBuffer().get(values, offset, length);
+    }
+}
@@ -0,0 +1,150 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.CompositeRenderer;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.ModelSettings;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A worker process for TileCoordinator. The worker connects to the
+ * coordinator, receives the model settings, and then generalizes and renders
+ * tiles until the coordinator sends QUIT or closes the connection. A tile that
+ * cannot be processed is reported to the coordinator, which retries it.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TileWorker {
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Model model = new Model();
+
+    private TileWorker(Socket socket) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+    }
+
+    /**
+     * Connects to a coordinator and processes tiles.
+     *
+     * @param args host and port of the coordinator
+     */
+    public static void main(String[] args) {
+        if (System.getProperty("java.awt.headless") == null) {
+            System.setProperty("java.awt.headless", "true");
+        }
+        if (args.length != 2) {
+            System.err.println("Usage: TileWorker <host> <port>");
+            System.exit(2);
+        }
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            socket.setTcpNoDelay(true);
+            new TileWorker(socket).run();
+            System.exit(0);
+        } catch (IOException | NumberFormatException exc) {
+            System.err.println("Tile worker: " + exc.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private void run() throws IOException {
+        out.writeInt(TileProtocol.MAGIC);
+        out.flush();
+        if (in.readInt() != TileProtocol.MAGIC) {
+            throw new IOException("Not a tile coordinator");
+        }
+        ModelSettings.apply(TileProtocol.readProperties(in), model);
+        for (;;) {
+            byte type;
+            try {
+                type = in.readByte();
+            } catch (EOFException exc) {
+                return;
+            }
+            if (type == TileProtocol.QUIT) {
+                return;
+            }
+            int jobId = in.readInt();
+            Grid tile = TileProtocol.readGrid(in);
+            int col0 = in.readInt();
+            int row0 = in.readInt();
+            int cols = in.readInt();
+            int rows = in.readInt();
+            switch (type) {
+                case TileProtocol.GENERALIZE:
+                    generalize(jobId, tile, col0, row0, cols, rows);
+                    break;
+                case TileProtocol.RENDER:
+                    float[] minMax = {in.readFloat(), in.readFloat()};
+                    int scale = in.readInt();
+                    render(jobId, tile, col0, row0, cols, rows, minMax, scale);
+                    break;
+                default:
+                    throw new IOException("Unknown message " + type);
+            }
+            out.flush();
+        }
+    }
+
+    private void failed(int jobId, Throwable exc) throws IOException {
+        out.writeInt(jobId);
+        out.writeByte(TileProtocol.FAILED);
+        out.writeUTF(String.valueOf(exc));
+    }
+
+    private void generalize(int jobId, Grid tile, int col0, int row0,
+            int cols, int rows) throws IOException {
+        Grid generalized;
+        try {
+            generalized = model.generalizeTile(tile, null);
+        } catch (RuntimeException | OutOfMemoryError exc) {
+            failed(jobId, exc);
+            return;
+        }
+        out.writeInt(jobId);
+        out.writeByte(TileProtocol.OK);
+        float[][] g = generalized.getGrid();
+        for (int row = row0; row < row0 + rows; row++) {
+            TileProtocol.writeFloats(out, g[row], col0, cols);
+        }
+    }
+
+    private void render(int jobId, Grid tile, final int col0, final int row0,
+            int cols, int rows, float[] minMax, final int scale) throws IOException {
+        final int w = cols * scale;
+        final int h = rows * scale;
+        final int[] pixels;
+        try {
+            model.setElevationRange(minMax);
+            final CompositeRenderer renderer = new CompositeRenderer(model, tile, tile, null);
+            pixels = new int[w * h];
+            SharedExecutor.forEachBand(h, 32, new SharedExecutor.BandTask() {
+                @Override
+                protected void run(int firstRow, int endRow) {
+                    renderer.renderBlock(scale, col0 * scale, row0 * scale + firstRow,
+                            w, endRow - firstRow, pixels, firstRow * w, w);
+                }
+
+                @Override
+                protected boolean isCancelled() {
+                    return false;
+                }
+            });
+        } catch (RuntimeException | OutOfMemoryError exc) {
+            failed(jobId, exc);
+            return;
+        }
+        out.writeInt(jobId);
+        out.writeByte(TileProtocol.OK);
+        TileProtocol.writeInts(out, pixels, 0, pixels.length);
+    }
+}
@@ -0,0 +1,116 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.grid.operators.GridGaussLowPassOperator;
+
+/**
+ * Caches unit aspect vectors of a low-pass filtered version of the generalized
+ * grid. Illuminated contours use these vectors for aspect angles that are free
+ * of speckles. The vectors only depend on the generalized grid and the
+ * standard deviation of the Gaussian blur, so they do not need to be
+ * recomputed when other contour parameters change.
+ *
+ * The cached field is identified by the version of the generalized grid and
+ * the standard deviation. Thread-safe.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+class AspectFieldCache {
+
+    /**
+     * The cached aspect vectors, or null.
+     */
+    private AspectVectorField aspectField;
+
+    /**
+     * The version of the generalized grid used for aspectField.
+     */
+    private long gridVersion = -1;
+
+    /**
+     * The standard deviation of the Gaussian blur used for aspectField.
+     */
+    private double std = Double.NaN;
+
+    /**
+     * The number of times the aspect vectors were computed.
+     */
+    private long missesCount = 0;
+
+    /**
+     * The number of times the cached aspect vectors were returned.
+     */
+    private long hitsCount = 0;
+
+    public AspectFieldCache() {
+    }
+
+    /**
+     * Returns unit aspect vectors of a smoothed version of a grid. The vectors
+     * are only computed if the cached vectors were computed for a different
+     * grid version or standard deviation.
+     *
+     * @param grid The grid to smooth.
+     * @param gridVersion The version of the grid.
+     * @param std The standard deviation of the Gaussian blur.
+     * @param token Checked while computing. Can be null.
+     * @return The aspect vectors. Must not be modified.
+     */
+    public synchronized AspectVectorField getAspectField(Grid grid, long gridVersion,
+            double std, CancellationToken token) {
+        if (aspectField != null && this.gridVersion == gridVersion && this.std == std) {
+            ++hitsCount;
+            return aspectField;
+        }
+
+        // release the outdated field before allocating a new one
+        invalidate();
+        GridGaussLowPassOperator op = new GridGaussLowPassOperator(std);
+        op.setCancellationToken(token);
+        Grid smoothed = op.operate(grid);
+        AspectVectorField field = new AspectVectorField(smoothed, token);
+        ++missesCount;
+
+        aspectField = field;
+        this.gridVersion = gridVersion;
+        this.std = std;
+        return field;
+    }
+
+    /**
+     * Discards the cached aspect vectors.
+     */
+    public synchronized void invalidate() {
+        aspectField = null;
+        gridVersion = -1;
+        std = Double.NaN;
+    }
+
+    /**
+     * Returns the approximate memory used by the cached aspect vectors.
+     *
+     * @return The size of the cached vectors in bytes.
+     */
+    public synchronized long getMemoryBytes() {
+        return aspectField == null ? 0 : aspectField.getMemoryBytes();
+    }
+
+    /**
+     * Returns the number of times the cached aspect vectors were reused.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitsCount() {
+        return hitsCount;
+    }
+
+    /**
+     * Returns the number of times the aspect vectors were computed.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissesCount() {
+        return missesCount;
+    }
+}
@@ -0,0 +1,133 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+
+/**
+ * Unit vectors pointing in the direction of aspect for each cell of a grid.
+ * The vectors point downhill, that is, in the direction of the aspect angle
+ * plus 180 degrees as returned by Grid.getAspect(). Comparing the aspect with
+ * a direction then only requires a dot product instead of trigonometric
+ * functions.
+ *
+ * The x and y components are stored in two grids with the same size and
+ * position as the source grid. Components are NaN where the aspect is
+ * undefined because of void values.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class AspectVectorField {
+
+    /**
+     * Horizontal components of the unit vectors.
+     */
+    private final Grid xGrid;
+
+    /**
+     * Vertical components of the unit vectors. Positive values point north.
+     */
+    private final Grid yGrid;
+
+    /**
+     * Computes unit aspect vectors for a grid. Bands of rows are computed in
+     * parallel.
+     *
+     * @param grid The grid.
+     * @param token Checked while computing. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public AspectVectorField(final Grid grid, final CancellationToken token) {
+        xGrid = createGrid(grid);
+        yGrid = createGrid(grid);
+        final int rows = grid.getRows();
+        final int cols = grid.getCols();
+        final float[][] src = grid.getGrid();
+        final float[][] xs = xGrid.getGrid();
+        final float[][] ys = yGrid.getGrid();
+        SharedExecutor.forEachBand(rows, SharedExecutor.bandRows(rows, 64),
+                new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int firstRow, int endRow) {
+                        for (int row = firstRow; row < endRow; row++) {
+                            float[] n = src[Math.max(0, row - 1)];
+                            float[] s = src[Math.min(rows - 1, row + 1)];
+                            float[] r = src[row];
+                            float[] xRow = xs[row];
+                            float[] yRow = ys[row];
+                            for (int col = 0; col < cols; col++) {
+                                float w = r[Math.max(0, col - 1)];
+                                float e = r[Math.min(cols - 1, col + 1)];
+                                // rotated by 180 degrees relative to atan2(n - s, e - w)
+                                double dx = w - e;
+                                double dy = s[col] - n[col];
+                                double length = Math.sqrt(dx * dx + dy * dy);
+                                if (length > 0) {
+                                    xRow[col] = (float) (dx / length);
+                                    yRow[col] = (float) (dy / length);
+                                } else if (length == 0) {
+                                    // atan2(0, 0) is 0, which is rotated to west
+                                    xRow[col] = -1f;
+                                    yRow[col] = 0f;
+                                } else {
+                                    xRow[col] = Float.NaN;
+                                    yRow[col] = Float.NaN;
+                                }
+                            }
+                        }
+                    }
+
+                    @Override
+                    protected boolean isCancelled() {
+                        return CancellationToken.isCancelled(token);
+                    }
+                });
+        CancellationToken.throwIfCancelled(token);
+    }
+
+    private static Grid createGrid(Grid template) {
+        Grid g = new Grid(template.getCols(), template.getRows(), template.getCellSize());
+        g.setWest(template.getWest());
+        g.setSouth(template.getSouth());
+        return g;
+    }
+
+    /**
+     * Returns the grid with the horizontal components of the unit vectors.
+     *
+     * @return The grid, which must not be modified.
+     */
+    public Grid getXGrid() {
+        return xGrid;
+    }
+
+    /**
+     * Returns the grid with the vertical components of the unit vectors.
+     * Positive values point north.
+     *
+     * @return The grid, which must not be modified.
+     */
+    public Grid getYGrid() {
+        return yGrid;
+    }
+
+    /**
+     * Returns whether this field was computed for a grid of the same size.
+     *
+     * @param grid The grid to compare with.
+     * @return True if the size is identical.
+     */
+    public boolean isIdenticalInSize(Grid grid) {
+        return xGrid.isIdenticalInSize(grid);
+    }
+
+    /**
+     * Returns the approximate memory used by this field.
+     *
+     * @return The memory in bytes.
+     */
+    public long getMemoryBytes() {
+        return 2L * xGrid.getCols() * xGrid.getRows() * 4;
+    }
+}
@@ -0,0 +1,326 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses a gzip file that consists of many members, each with its
+ * compressed size in a "BC" subfield of the extra header field, as written by
+ * bgzip and other block gzip compressors. As the size of members is known
+ * without decompressing, groups of members are decompressed in parallel.
+ *
+ * If a member without a size is found, the rest of the file is decompressed
+ * sequentially.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+class BlockGzipInputStream extends InputStream {
+
+    /**
+     * The approximate number of compressed bytes decompressed in parallel.
+     */
+    private static final int GROUP_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The maximum number of decompressed bytes of a member.
+     */
+    private static final int MAX_MEMBER_SIZE = 64 * 1024 * 1024;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final InputStream in;
+
+    /**
+     * Decompressed members that have not been read completely.
+     */
+    private final ArrayDeque<byte[]> members = new ArrayDeque<>();
+
+    /**
+     * The position in the first member.
+     */
+    private int position = 0;
+
+    /**
+     * Decompresses members without a size.
+     */
+    private InputStream sequentialStream = null;
+
+    private boolean endOfFile = false;
+
+    /**
+     * Creates a stream.
+     *
+     * @param in The gzip stream. Should be buffered, as headers are read byte
+     * by byte.
+     */
+    BlockGzipInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Returns whether the beginning of a gzip file has a member with a size.
+     *
+     * @param header The first bytes of the file.
+     * @param length The number of bytes in header.
+     * @return True if the first member has a "BC" subfield.
+     */
+    static boolean isBlockGzip(byte[] header, int length) {
+        if (length < 12 || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B
+                || header[2] != 8 || (header[3] & FEXTRA) == 0) {
+            return false;
+        }
+        int extraLength = (header[10] & 0xFF) | (header[11] & 0xFF) << 8;
+        return findBlockSize(header, 12, Math.min(length, 12 + extraLength)) >= 0;
+    }
+
+    /**
+     * Searches the subfields of an extra header field for the size of a
+     * member.
+     *
+     * @return The size of the member minus 1, or -1 if not found.
+     */
+    private static int findBlockSize(byte[] extra, int start, int end) {
+        int i = start;
+        while (i + 4 <= end) {
+            int subfieldLength = (extra[i + 2] & 0xFF) | (extra[i + 3] & 0xFF) << 8;
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && subfieldLength == 2 && i + 6 <= end) {
+                return (extra[i + 4] & 0xFF) | (extra[i + 5] & 0xFF) << 8;
+            }
+            i += 4 + subfieldLength;
+        }
+        return -1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            byte[] member = members.peekFirst();
+            if (member != null) {
+                int n = Math.min(len, member.length - position);
+                System.arraycopy(member, position, b, off, n);
+                position += n;
+                if (position == member.length) {
+                    members.removeFirst();
+                    position = 0;
+                }
+                if (n > 0) {
+                    return n;
+                }
+            } else if (sequentialStream != null) {
+                return sequentialStream.read(b, off, len);
+            } else if (endOfFile) {
+                return -1;
+            } else {
+                readGroup();
+            }
+        }
+    }
+
+    /**
+     * Reads a group of members and decompresses them in parallel.
+     */
+    private void readGroup() throws IOException {
+        final List<byte[]> compressed = new ArrayList<>();
+        long groupBytes = 0;
+        while (groupBytes < GROUP_BYTES) {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+            int first = in.read();
+            if (first < 0) {
+                endOfFile = true;
+                break;
+            }
+            header.write(first);
+            for (int i = 0; i < 9; i++) {
+                header.write(readByte());
+            }
+            byte[] h = header.toByteArray();
+            if ((h[0] & 0xFF) != 0x1F || (h[1] & 0xFF) != 0x8B || h[2] != 8) {
+                // trailing bytes after the last member are ignored, as with
+                // GZIPInputStream
+                endOfFile = true;
+                break;
+            }
+            int flags = h[3];
+            int blockSize = -1;
+            if ((flags & FEXTRA) != 0) {
+                int lo = readByte();
+                int hi = readByte();
+                header.write(lo);
+                header.write(hi);
+                byte[] extra = new byte[lo | hi << 8];
+                readFully(extra);
+                header.write(extra);
+                blockSize = findBlockSize(extra, 0, extra.length);
+            }
+            if (blockSize < 0) {
+                // the remaining members are decompressed sequentially
+                InputStream rest = new SequenceInputStream(
+                        new ByteArrayInputStream(header.toByteArray()), in);
+                sequentialStream = new GZIPInputStream(rest, 64 * 1024);
+                break;
+            }
+            int headerLength = header.size();
+            if ((flags & FNAME) != 0) {
+                headerLength += skipString();
+            }
+            if ((flags & FCOMMENT) != 0) {
+                headerLength += skipString();
+            }
+            if ((flags & FHCRC) != 0) {
+                readByte();
+                readByte();
+                headerLength += 2;
+            }
+            // the member consists of the header, the deflate data, the CRC-32
+            // and the size of the decompressed data
+            int dataLength = blockSize + 1 - headerLength;
+            if (dataLength < 8) {
+                throw new IOException("Corrupt gzip file");
+            }
+            byte[] data = new byte[dataLength];
+            readFully(data);
+            compressed.add(data);
+            groupBytes += blockSize + 1;
+        }
+
+        final byte[][] decompressed = new byte[compressed.size()][];
+        final AtomicReference<IOException> exception = new AtomicReference<>();
+        SharedExecutor.forEachBand(compressed.size(), 1, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int first, int end) {
+                for (int i = first; i < end; i++) {
+                    try {
+                        decompressed[i] = inflate(compressed.get(i));
+                    } catch (IOException exc) {
+                        exception.compareAndSet(null, exc);
+                    }
+                }
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return exception.get() != null;
+            }
+        });
+        if (exception.get() != null) {
+            throw exception.get();
+        }
+        for (byte[] member : decompressed) {
+            members.addLast(member);
+        }
+    }
+
+    /**
+     * Decompresses the deflate data of a member and verifies the size and the
+     * checksum.
+     */
+    private static byte[] inflate(byte[] data) throws IOException {
+        int n = data.length;
+        long crc = (data[n - 8] & 0xFFL) | (data[n - 7] & 0xFFL) << 8
+                | (data[n - 6] & 0xFFL) << 16 | (data[n - 5] & 0xFFL) << 24;
+        long size = (data[n - 4] & 0xFFL) | (data[n - 3] & 0xFFL) << 8
+                | (data[n - 2] & 0xFFL) << 16 | (data[n - 1] & 0xFFL) << 24;
+        if (size > MAX_MEMBER_SIZE) {
+            throw new IOException("Corrupt gzip file");
+        }
+        byte[] out = new byte[(int) size];
+        Inflater inflater = new Inflater(true);
+        try {
+            // an extra byte after the deflate data is required by the inflater
+            // without zlib header, the first byte of the CRC-32 serves
+            inflater.setInput(data, 0, n - 7);
+            int length = 0;
+            while (length < out.length) {
+                int k = inflater.inflate(out, length, out.length - length);
+                if (k == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                length += k;
+            }
+            if (length == out.length && !inflater.finished()) {
+                // process the end of the deflate data
+                length += inflater.inflate(new byte[1]);
+            }
+            if (length != out.length || !inflater.finished()) {
+                throw new IOException("Corrupt gzip file");
+            }
+        } catch (DataFormatException exc) {
+            throw new IOException("Corrupt gzip file", exc);
+        } finally {
+            inflater.end();
+        }
+        CRC32 crc32 = new CRC32();
+        crc32.update(out, 0, out.length);
+        if (crc32.getValue() != crc) {
+            throw new IOException("Corrupt gzip file: CRC error");
+        }
+        return out;
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of gzip file");
+        }
+        return b;
+    }
+
+    private void readFully(byte[] b) throws IOException {
+        int n = 0;
+        while (n < b.length) {
+            int k = in.read(b, n, b.length - n);
+            if (k < 0) {
+                throw new EOFException("Unexpected end of gzip file");
+            }
+            n += k;
+        }
+    }
+
+    /**
+     * Skips a zero-terminated string of a header.
+     *
+     * @return The number of bytes skipped.
+     */
+    private int skipString() throws IOException {
+        int n = 1;
+        while (readByte() != 0) {
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (sequentialStream != null) {
+            sequentialStream.close();
+        }
+        in.close();
+    }
+}
@@ -0,0 +1,267 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.grid.operators.ProgressAggregator;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import edu.oregonstate.cartography.image.ImageStripWriter;
+import edu.oregonstate.cartography.image.TIFFStripWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.zip.Deflater;
+
+/**
+ * Exports the background visualization and the contour lines of a model to an
+ * image that is an arbitrary number of times larger than the generalized
+ * grid. The scale factor can be fractional.
+ *
+ * The image is rendered in horizontal strips, which are written to the file
+ * one after the other, such that the required memory is bounded by the size
+ * of a strip. Each strip is divided into square blocks, which are rendered in
+ * parallel by a CompositeRenderer.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class CompositeImageExporter {
+
+    /**
+     * The width and height of blocks that are rendered in parallel.
+     */
+    private static final int BLOCK_SIZE = 256;
+
+    /**
+     * The maximum number of pixels in a strip.
+     */
+    private static final long STRIP_PIXELS = 16 * 1024 * 1024;
+
+    private final Model model;
+
+    /**
+     * The image is this many times larger than the generalized grid.
+     */
+    private final double scale;
+
+    private final int width;
+    private final int height;
+
+    /**
+     * If true, the background visualization is rendered.
+     */
+    private boolean backgroundVisible = true;
+
+    /**
+     * If true, the contour lines of the foreground visualization are
+     * rendered.
+     */
+    private boolean contoursVisible = true;
+
+    /**
+     * Precomputed normal vectors of the generalized grid. Can be null.
+     */
+    private NormalVectorField normals;
+
+    /**
+     * The deflate compression level of PNG images.
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * The compression of TIFF images.
+     */
+    private TIFFStripWriter.Compression tiffCompression = TIFFStripWriter.Compression.NONE;
+
+    /**
+     * Checked while rendering. Can be null.
+     */
+    private CancellationToken cancellationToken;
+
+    /**
+     * Informed about progress after each block. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
+    /**
+     * Creates an exporter.
+     *
+     * @param model The model with the generalized grid and the settings for
+     * the visualization.
+     * @param scale The image will be this many times larger than the
+     * generalized grid.
+     * @throws IllegalArgumentException If the model has no grid, or the image
+     * would be too large.
+     */
+    public CompositeImageExporter(Model model, double scale) {
+        Grid grid = model.getGeneralizedGrid();
+        if (grid == null) {
+            throw new IllegalArgumentException("no grid");
+        }
+        if (!(scale > 0)) {
+            throw new IllegalArgumentException("invalid scale");
+        }
+        long w = Math.max(1, Math.round(grid.getCols() * scale));
+        long h = Math.max(1, Math.round(grid.getRows() * scale));
+        if (w > Integer.MAX_VALUE / 4 || h > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("image too large");
+        }
+        this.model = model;
+        this.scale = scale;
+        this.width = (int) w;
+        this.height = (int) h;
+    }
+
+    /**
+     * Returns the width of the image.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Selects the layers that are rendered. By default, the background
+     * visualization and the contour lines are rendered.
+     *
+     * @param background If true, the background visualization is rendered.
+     * Otherwise, pixels without contour lines are transparent.
+     * @param contours If true, the contour lines of the foreground
+     * visualization are rendered.
+     */
+    public void setLayers(boolean background, boolean contours) {
+        this.backgroundVisible = background;
+        this.contoursVisible = contours;
+    }
+
+    /**
+     * Sets precomputed normal vectors of the generalized grid, which replace
+     * the vertical exaggeration of the model.
+     *
+     * @param normals The normals. If null, normals are computed while
+     * rendering.
+     */
+    public void setNormalField(NormalVectorField normals) {
+        this.normals = normals;
+    }
+
+    /**
+     * Sets the compression level of PNG images.
+     *
+     * @param compressionLevel The level between 0 (fastest) and 9 (smallest
+     * files), or -1 for the default level.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Sets the compression of TIFF images. By default, TIFF images are not
+     * compressed.
+     *
+     * @param tiffCompression The compression of TIFF strips.
+     */
+    public void setTIFFCompression(TIFFStripWriter.Compression tiffCompression) {
+        this.tiffCompression = tiffCompression;
+    }
+
+    /**
+     * Sets a token that is checked before each block is rendered.
+     *
+     * @param token The token. Can be null.
+     */
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    /**
+     * Sets a progress indicator that is informed after each block.
+     *
+     * @param progressIndicator The progress indicator. Can be null.
+     */
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Renders the image and writes it to a file, and writes a world file.
+     *
+     * @param file The image file.
+     * @param format "png" or "tif".
+     * @throws IOException If an error occurs while writing.
+     * @throws CancellationException If the token is cancelled or the progress
+     * indicator is aborted.
+     */
+    public void export(File file, String format) throws IOException {
+        final CancellationToken token = cancellationToken;
+        final Grid grid = model.getGeneralizedGrid();
+        final CompositeRenderer renderer = new CompositeRenderer(model, normals,
+                backgroundVisible, contoursVisible, token);
+
+        // strips consist of complete rows of blocks if possible
+        int stripHeight = (int) Math.max(1, Math.min(height, STRIP_PIXELS / width));
+        if (stripHeight > BLOCK_SIZE) {
+            stripHeight -= stripHeight % BLOCK_SIZE;
+        }
+        final int[] strip = new int[stripHeight * width];
+        final int blockCols = (width + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        long totalBlocks = (long) blockCols * ((height + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        final ProgressAggregator progress = progressIndicator == null
+                ? null : new ProgressAggregator(progressIndicator, totalBlocks);
+
+        try (ImageStripWriter writer = ImageStripWriter.create(file, format,
+                width, height, compressionLevel, tiffCompression)) {
+            for (int stripY = 0; stripY < height; stripY += stripHeight) {
+                final int y0 = stripY;
+                final int h = Math.min(stripHeight, height - stripY);
+                final int blockRows = (h + BLOCK_SIZE - 1) / BLOCK_SIZE;
+                SharedExecutor.forEachBand(blockCols * blockRows, 1, new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int firstBlock, int endBlock) {
+                        for (int block = firstBlock; block < endBlock; block++) {
+                            int bx = (block % blockCols) * BLOCK_SIZE;
+                            int by = (block / blockCols) * BLOCK_SIZE;
+                            int bw = Math.min(BLOCK_SIZE, width - bx);
+                            int bh = Math.min(BLOCK_SIZE, h - by);
+                            int offset = by * width + bx;
+                            renderer.renderBlock(scale, bx, y0 + by, bw, bh,
+                                    strip, offset, width);
+                            if (progress != null) {
+                                progress.addWork(1);
+                            }
+                        }
+                    }
+
+                    @Override
+                    protected boolean isCancelled() {
+                        return CancellationToken.isCancelled(token)
+                                || (progress != null && progress.isAborted());
+                    }
+                });
+                if (CancellationToken.isCancelled(token)
+                        || (progress != null && progress.isAborted())) {
+                    throw new CancellationException("image export canceled");
+                }
+                writer.writeStrip(strip, h);
+            }
+        }
+
+        // the first pixel is centered on the western and northern border of
+        // the grid
+        double pixelSize = grid.getCellSize() / scale;
+        WorldFileExporter.writeWorldFile(WorldFileExporter.constructPath(file.getPath()),
+                pixelSize, grid.getWest() - pixelSize / 2, grid.getNorth() + pixelSize / 2);
+    }
+}
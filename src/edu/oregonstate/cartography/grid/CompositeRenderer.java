@@ -0,0 +1,326 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.grid.operators.ColorizerOperator;
+import edu.oregonstate.cartography.grid.operators.ColorizerOperator.ColorVisualization;
+import edu.oregonstate.cartography.grid.operators.GridSlopeOperator;
+import edu.oregonstate.cartography.grid.operators.IlluminatedContoursOperator;
+import edu.oregonstate.cartography.grid.operators.ShaderOperator;
+import java.util.Arrays;
+
+/**
+ * Renders blocks of an image with the background visualization and the
+ * contour lines of a model. The image can be an arbitrary number of times
+ * larger or smaller than the grid. Blocks are rendered independently of each
+ * other and can be rendered concurrently.
+ *
+ * For each block, normal vectors of the covered grid cells are computed and
+ * then interpolated for each pixel, and contour lines are rendered by
+ * interpolating between cells. No intermediate grid at the scale of the image
+ * is created.
+ *
+ * The settings of the model are copied when the renderer is created. Later
+ * changes to the model do not affect the renderer.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class CompositeRenderer {
+
+    private final Grid grid;
+    private final Grid slopeGrid;
+
+    /**
+     * Grid with elevation values for hypsometric colors.
+     */
+    private final Grid terrainGrid;
+
+    /**
+     * True if the background visualization is rendered. Otherwise, pixels
+     * without contour lines are transparent.
+     */
+    private final boolean backgroundVisible;
+
+    /**
+     * True if the background is filled with a single color.
+     */
+    private final boolean continuous;
+
+    /**
+     * The background color if continuous is true.
+     */
+    private final int backgroundColor;
+
+    /**
+     * Precomputed normal vectors of the grid. If null, normals are computed
+     * for each block.
+     */
+    private final NormalVectorField normals;
+
+    private final ShaderOperator shader;
+    private final ColorizerOperator colorizer;
+
+    /**
+     * Renders contour lines. Null if no contours are rendered.
+     */
+    private final IlluminatedContoursOperator contoursOp;
+
+    /**
+     * Creates a renderer for the generalized grid of a model. Cached slope
+     * and aspect grids of the model are used.
+     *
+     * @param model The model.
+     * @param token Checked while computing grids. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public CompositeRenderer(Model model, CancellationToken token) {
+        this(model, true, true, token);
+    }
+
+    /**
+     * Creates a renderer for some layers of the generalized grid of a model.
+     * Cached slope and aspect grids of the model are used.
+     *
+     * @param model The model.
+     * @param background If true, the background visualization is rendered.
+     * @param contours If true, the contour lines of the foreground
+     * visualization are rendered.
+     * @param token Checked while computing grids. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public CompositeRenderer(Model model, boolean background, boolean contours,
+            CancellationToken token) {
+        this(model, null, background, contours, token);
+    }
+
+    /**
+     * Creates a renderer for some layers of the generalized grid of a model
+     * with precomputed normal vectors. Renderers with different light
+     * directions can share the normals. The vertical exaggeration of the
+     * model is ignored.
+     *
+     * @param model The model.
+     * @param normals Normal vectors of the generalized grid. If null,
+     * normals are computed with the vertical exaggeration of the model.
+     * @param background If true, the background visualization is rendered.
+     * @param contours If true, the contour lines of the foreground
+     * visualization are rendered.
+     * @param token Checked while computing grids. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public CompositeRenderer(Model model, NormalVectorField normals,
+            boolean background, boolean contours, CancellationToken token) {
+        this(model, normals, model.azimuth, model.zenith, background, contours, token);
+    }
+
+    /**
+     * Creates a renderer for some layers of the generalized grid of a model
+     * with precomputed normal vectors and a light direction that can differ
+     * from the model's. The light direction can have fractions of degrees,
+     * for example for smoothly moving the light in an animation.
+     *
+     * @param model The model.
+     * @param normals Normal vectors of the generalized grid. If null,
+     * normals are computed with the vertical exaggeration of the model.
+     * @param lightAzimuth Azimuth of the light in degrees.
+     * @param lightZenith Zenith angle of the light in degrees.
+     * @param background If true, the background visualization is rendered.
+     * @param contours If true, the contour lines of the foreground
+     * visualization are rendered.
+     * @param token Checked while computing grids. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public CompositeRenderer(Model model, NormalVectorField normals,
+            double lightAzimuth, double lightZenith, boolean background,
+            boolean contours, CancellationToken token) {
+        this(model, model.getGeneralizedGrid(), model.getGeneralizedSlopeGrid(),
+                background ? model.getBackgroundTerrainGrid(token) : null,
+                contours ? model.getContoursAspectField(token) : null,
+                normals, lightAzimuth, lightZenith, background, contours, token);
+    }
+
+    /**
+     * Creates a renderer for a grid with a different resolution than the
+     * generalized grid of a model, for example a level of a Gaussian pyramid.
+     * The settings of the model are used, and slope and aspect are computed
+     * for the passed grid.
+     *
+     * @param model The model with the settings.
+     * @param grid Grid with elevation values.
+     * @param terrainGrid Grid with elevation values for hypsometric colors.
+     * Must have the same size as grid.
+     * @param token Checked while computing grids. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public CompositeRenderer(Model model, Grid grid, Grid terrainGrid,
+            CancellationToken token) {
+        this(model, grid, slopeGrid(grid, token), terrainGrid, null, null,
+                model.azimuth, model.zenith, true, true, token);
+    }
+
+    private CompositeRenderer(Model model, Grid grid, Grid slopeGrid,
+            Grid terrainGrid, AspectVectorField aspectField,
+            NormalVectorField normals, double lightAzimuth, double lightZenith,
+            boolean background, boolean contours, CancellationToken token) {
+        if (grid == null) {
+            throw new IllegalArgumentException("no grid");
+        }
+        if (normals != null && !normals.isIdenticalInSize(grid)) {
+            throw new IllegalArgumentException("normals of different size");
+        }
+        this.normals = normals;
+        this.grid = grid;
+        this.slopeGrid = slopeGrid;
+        this.terrainGrid = terrainGrid;
+        backgroundVisible = background;
+        continuous = model.backgroundVisualization == ColorVisualization.CONTINUOUS;
+        backgroundColor = model.solidColor.getRGB();
+        shader = model.setupShaderOperator();
+        shader.setIlluminationDirection(lightAzimuth, lightZenith);
+        colorizer = model.setupColorizerOperator();
+        if (contours && model.foregroundVisualization != Model.ForegroundVisualization.NONE) {
+            boolean illuminated = model.foregroundVisualization
+                    == Model.ForegroundVisualization.ILLUMINATED_CONTOURS;
+            contoursOp = model.setupIlluminatedContoursOperator(illuminated, lightAzimuth);
+            contoursOp.setCancellationToken(token);
+            contoursOp.setAspectField(aspectField);
+            contoursOp.prepareScaledBlocks(grid, slopeGrid);
+        } else {
+            contoursOp = null;
+        }
+    }
+
+    private static Grid slopeGrid(Grid grid, CancellationToken token) {
+        GridSlopeOperator slopeOp = new GridSlopeOperator();
+        slopeOp.setCancellationToken(token);
+        return slopeOp.operate(grid);
+    }
+
+    /**
+     * Returns the grid with elevation values.
+     *
+     * @return The grid.
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Renders a block of an image that is scale times larger than the grid.
+     * Pixel (x, y) of the image samples the grid at column x / scale and row
+     * y / scale.
+     *
+     * @param scale The image is this many times larger than the grid.
+     * @param x0 The horizontal position of the block in the image.
+     * @param y0 The vertical position of the block in the image.
+     * @param w The width of the block in pixels.
+     * @param h The height of the block in pixels.
+     * @param pixels Receives ARGB pixels.
+     * @param offset Index of the top-left pixel of the block in pixels.
+     * @param stride The distance between two rows in pixels.
+     */
+    public void renderBlock(double scale, int x0, int y0, int w, int h,
+            int[] pixels, int offset, int stride) {
+        if (!backgroundVisible) {
+            for (int j = 0; j < h; j++) {
+                Arrays.fill(pixels, offset + j * stride, offset + j * stride + w, 0);
+            }
+        } else if (continuous) {
+            for (int j = 0; j < h; j++) {
+                Arrays.fill(pixels, offset + j * stride, offset + j * stride + w, backgroundColor);
+            }
+        } else {
+            float[] gray = new float[w * h];
+            if (normals != null) {
+                shader.shadeScaledBlock(normals, scale, x0, y0, w, h, gray);
+            } else {
+                shader.shadeScaledBlock(grid, scale, x0, y0, w, h, gray);
+            }
+            for (int j = 0; j < h; j++) {
+                double gy = (y0 + j) / scale;
+                int rowStart = offset + j * stride;
+                for (int i = 0; i < w; i++) {
+                    double gx = (x0 + i) / scale;
+                    float elevation = interpolate(terrainGrid, gx, gy);
+                    pixels[rowStart + i] = colorizer.getColor(gray[j * w + i], elevation);
+                }
+            }
+        }
+        if (contoursOp != null) {
+            contoursOp.renderScaledBlock(grid, slopeGrid, scale, x0, y0, w, h,
+                    pixels, offset, stride);
+        }
+    }
+
+    /**
+     * Returns whether a block would only contain transparent pixels, because
+     * all covered grid cells are void, or because the block is outside of the
+     * grid. Uses the tile summary of the grid and does not render the block.
+     *
+     * @param scale The image is this many times larger than the grid.
+     * @param x0 The horizontal position of the block in the image.
+     * @param y0 The vertical position of the block in the image.
+     * @param w The width of the block in pixels.
+     * @param h The height of the block in pixels.
+     * @return True if the block is empty.
+     */
+    public boolean isEmptyBlock(double scale, int x0, int y0, int w, int h) {
+        int lastCol = grid.getCols() - 1;
+        int lastRow = grid.getRows() - 1;
+        // interpolated pixels reach into the next cell
+        int firstCol = (int) (x0 / scale);
+        int firstRow = (int) (y0 / scale);
+        int endCol = Math.min(lastCol, (int) ((x0 + w - 1) / scale) + 1);
+        int endRow = Math.min(lastRow, (int) ((y0 + h - 1) / scale) + 1);
+        if (firstCol > lastCol || firstRow > lastRow) {
+            return true;
+        }
+        if (backgroundVisible && continuous) {
+            return false;
+        }
+        GridTileSummary summary = grid.getTileSummary();
+        for (int tr = firstRow >> GridTileSummary.TILE_SHIFT; tr <= endRow >> GridTileSummary.TILE_SHIFT; tr++) {
+            for (int tc = firstCol >> GridTileSummary.TILE_SHIFT; tc <= endCol >> GridTileSummary.TILE_SHIFT; tc++) {
+                if (!summary.isVoid(tc, tr)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bilinear interpolation of a grid value. Positions are clamped to the
+     * grid, and void values only spread to positions between cell centers.
+     *
+     * @param grid The grid.
+     * @param col Horizontal position in columns.
+     * @param row Vertical position in rows.
+     * @return The interpolated value.
+     */
+    private static float interpolate(Grid grid, double col, double row) {
+        float[][] g = grid.getGrid();
+        int c = Math.min((int) col, grid.getCols() - 2);
+        int r = Math.min((int) row, grid.getRows() - 2);
+        double u = Math.min(1, col - c);
+        double t = Math.min(1, row - r);
+        double top = lerp(g[r][c], g[r][c + 1], u);
+        double bottom = lerp(g[r + 1][c], g[r + 1][c + 1], u);
+        return (float) lerp(top, bottom, t);
+    }
+
+    private static double lerp(double a, double b, double t) {
+        if (t == 0) {
+            return a;
+        }
+        if (t == 1) {
+            return b;
+        }
+        return a + (b - a) * t;
+    }
+}
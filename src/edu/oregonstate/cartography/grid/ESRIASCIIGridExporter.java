@@ -6,56 +6,338 @@
  */
 package edu.oregonstate.cartography.grid;
 
-import java.io.*;
+import edu.oregonstate.cartography.app.SharedExecutor;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 
 /**
  * Export for Esri Arc Ascii grid file format.
+ *
+ * Rows are formatted in parallel into byte buffers, which are written in
+ * order to a FileChannel. Values are written with the shortest decimal
+ * representation that is read back as the same float, or optionally with a
+ * fixed number of decimals.
+ *
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich.
  */
 public class ESRIASCIIGridExporter {
 
+    /**
+     * The number of rows formatted as one band.
+     */
+    private static final int BAND_ROWS = 16;
+
+    /**
+     * The approximate number of bytes formatted before they are written.
+     */
+    private static final int GROUP_BYTES = 32 * 1024 * 1024;
+
+    /**
+     * Powers of ten that are exact double values.
+     */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12
+    };
+
     private ESRIASCIIGridExporter() {
     }
 
+    /**
+     * Writes a grid with the shortest representation of values.
+     *
+     * @param geoGrid The grid to write.
+     * @param filePath The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
     public static void export(Grid geoGrid, String filePath) throws IOException {
+        export(geoGrid, filePath, -1);
+    }
 
-        PrintWriter writer = null;
-        try {
-            writer = new PrintWriter(new BufferedWriter(new FileWriter(filePath)));
-            String voidValueStr = Float.toString(findVoidValue(geoGrid));
-            String lineSeparator = System.getProperty("line.separator");
-            writer.write("ncols " + geoGrid.getCols() + lineSeparator);
-            writer.write("nrows " + geoGrid.getRows() + lineSeparator);
-            writer.write("xllcorner " + geoGrid.getWest() + lineSeparator);
-            writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
-            writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
-            writer.write("nodata_value " + voidValueStr + lineSeparator);
-            float[][] grid = geoGrid.getGrid();
-            for (int r = 0; r < grid.length; ++r) {
-                for (int c = 0; c < grid[0].length; ++c) {
-                    float v = grid[r][c];
-                    if (Float.isNaN(v)) {
-                        writer.write(voidValueStr);
-                    } else {
-                        writer.write(Float.toString(v));
+    /**
+     * Writes a grid.
+     *
+     * @param geoGrid The grid to write.
+     * @param filePath The path of the file.
+     * @param decimals The number of decimals between 0 and 9, or -1 for the
+     * shortest representation that is read back as the same value.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void export(Grid geoGrid, String filePath, final int decimals)
+            throws IOException {
+        if (decimals < -1 || decimals > 9) {
+            throw new IllegalArgumentException("invalid number of decimals");
+        }
+        TextBuffer voidValue = new TextBuffer(16);
+        voidValue.append(findVoidValue(geoGrid, decimals), -1);
+        final byte[] voidValueBytes = voidValue.toByteArray();
+        String voidValueStr = new String(voidValueBytes, StandardCharsets.US_ASCII);
+        String lineSeparator = System.getProperty("line.separator");
+        final byte[] lineSeparatorBytes = lineSeparator.getBytes(StandardCharsets.US_ASCII);
+        String header = "ncols " + geoGrid.getCols() + lineSeparator
+                + "nrows " + geoGrid.getRows() + lineSeparator
+                + "xllcorner " + geoGrid.getWest() + lineSeparator
+                + "yllcorner " + geoGrid.getSouth() + lineSeparator
+                + "cellsize " + geoGrid.getCellSize() + lineSeparator
+                + "nodata_value " + voidValueStr + lineSeparator;
+
+        final float[][] grid = geoGrid.getGrid();
+        final int cols = geoGrid.getCols();
+        final int rows = geoGrid.getRows();
+        // about 10 bytes per value
+        int groupRows = Math.max(BAND_ROWS, GROUP_BYTES / Math.max(1, cols * 10));
+        groupRows -= groupRows % BAND_ROWS;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, new ByteBuffer[]{
+                ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII))});
+            for (int groupRow = 0; groupRow < rows; groupRow += groupRows) {
+                final int firstRow = groupRow;
+                final int endRow = Math.min(rows, groupRow + groupRows);
+                final ByteBuffer[] bands = new ByteBuffer[(endRow - firstRow + BAND_ROWS - 1) / BAND_ROWS];
+                SharedExecutor.forEachBand(bands.length, 1, new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int firstBand, int endBand) {
+                        for (int band = firstBand; band < endBand; band++) {
+                            int r0 = firstRow + band * BAND_ROWS;
+                            int r1 = Math.min(endRow, r0 + BAND_ROWS);
+                            TextBuffer text = new TextBuffer((r1 - r0) * cols * 10);
+                            for (int r = r0; r < r1; r++) {
+                                float[] row = grid[r];
+                                for (int c = 0; c < cols; c++) {
+                                    float v = row[c];
+                                    if (Float.isNaN(v)) {
+                                        text.append(voidValueBytes);
+                                    } else {
+                                        text.append(v, decimals);
+                                    }
+                                    text.append((byte) ' ');
+                                }
+                                text.append(lineSeparatorBytes);
+                            }
+                            bands[band] = text.toByteBuffer();
+                        }
                     }
-                    writer.write(" ");
-                }
-                writer.write(lineSeparator);
-            }
-        } finally {
-            if (writer != null) {
-                writer.close();
+                });
+                write(channel, bands);
             }
         }
     }
-    
-    private static float findVoidValue(Grid grid) {
-        float min = grid.getMinMax()[0];
+
+    /**
+     * Writes buffers in order.
+     */
+    private static void write(FileChannel channel, ByteBuffer[] buffers) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Returns a void value that is smaller than all values of the grid.
+     */
+    static float findVoidValue(Grid grid) {
+        return findVoidValue(grid, -1);
+    }
+
+    /**
+     * Returns a void value that is smaller than all values of the grid after
+     * they are rounded to a number of decimals. A value can otherwise be
+     * rounded to the void value, for example -99998.7 to -99999.
+     *
+     * @param grid The grid.
+     * @param decimals The number of decimals, or -1 for values that are not
+     * rounded.
+     */
+    static float findVoidValue(Grid grid, int decimals) {
+        // the minimum is computed from the values, as the tile summary of the
+        // grid is outdated if values were written to the array of the grid
+        float min = Float.MAX_VALUE;
+        for (float[] row : grid.getGrid()) {
+            for (float v : row) {
+                if (v < min) {
+                    min = v;
+                }
+            }
+        }
+        if (decimals >= 0 && !Float.isNaN(min) && !Float.isInfinite(min)) {
+            TextBuffer text = new TextBuffer(32);
+            text.append(min, decimals);
+            float rounded = Float.parseFloat(new String(text.toByteArray(), StandardCharsets.US_ASCII));
+            min = Math.min(min, rounded);
+        }
         String voidValue = "-9999";
         while (Float.parseFloat(voidValue) >= min) {
             voidValue += "9";
         }
         return Float.parseFloat(voidValue);
     }
+
+    /**
+     * A growing array of ASCII characters.
+     */
+    private static final class TextBuffer {
+
+        private byte[] bytes;
+        private int length = 0;
+
+        TextBuffer(int capacity) {
+            bytes = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensureCapacity(int n) {
+            if (length + n > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + n, bytes.length * 2));
+            }
+        }
+
+        void append(byte b) {
+            ensureCapacity(1);
+            bytes[length++] = b;
+        }
+
+        void append(byte[] b) {
+            ensureCapacity(b.length);
+            System.arraycopy(b, 0, bytes, length, b.length);
+            length += b.length;
+        }
+
+        private void append(String s) {
+            append(s.getBytes(StandardCharsets.US_ASCII));
+        }
+
+        /**
+         * Appends a value.
+         *
+         * @param v The value, not NaN.
+         * @param decimals The number of decimals, or -1 for the shortest
+         * representation.
+         */
+        void append(float v, int decimals) {
+            if (Float.isInfinite(v)) {
+                append(Float.toString(v));
+                return;
+            }
+            if (v < 0) {
+                append((byte) '-');
+                v = -v;
+            }
+            double d = v;
+            if (decimals >= 0) {
+                double scaled = d * POW10[decimals];
+                if (scaled < 1e18) {
+                    appendDecimal(Math.round(scaled), decimals, false);
+                } else {
+                    append(new BigDecimal(d).setScale(decimals, RoundingMode.HALF_UP).toPlainString());
+                }
+                return;
+            }
+            if (v == 0) {
+                append((byte) '0');
+                return;
+            }
+            if (d >= 1e-3 && d < 1e7) {
+                // decimal exponent of the first significant digit
+                int e10 = 6;
+                while (e10 > 0 && d < POW10[e10]) {
+                    e10--;
+                }
+                while (e10 <= 0 && d * POW10[-e10] < 1) {
+                    e10--;
+                }
+                // try an increasing number of significant digits
+                for (int n = 1; n <= 9; n++) {
+                    int k = n - 1 - e10;
+                    long m;
+                    double decimal;
+                    if (k >= 0) {
+                        m = Math.round(d * POW10[k]);
+                        decimal = m / POW10[k];
+                    } else {
+                        m = Math.round(d / POW10[-k]);
+                        decimal = m * POW10[-k];
+                    }
+                    if (isReadAs(decimal, v)) {
+                        if (k >= 0) {
+                            appendDecimal(m, k, true);
+                        } else {
+                            appendDecimal(m * (long) POW10[-k], 0, true);
+                        }
+                        return;
+                    }
+                }
+            }
+            append(Float.toString(v));
+        }
+
+        /**
+         * Returns whether a decimal number is converted to a float. The
+         * decimal is the double closest to the decimal number, as computed
+         * with a single correctly rounded multiplication or division. If the
+         * double is not exactly halfway between two floats, converting it to
+         * a float gives the same result as converting the decimal number.
+         */
+        private static boolean isReadAs(double decimal, float v) {
+            if ((float) decimal != v) {
+                return false;
+            }
+            // for normal floats, a halfway double has a 1 followed by zeros
+            // after the 24 significant bits of floats
+            long bits = Double.doubleToRawLongBits(decimal);
+            return (bits & ((1L << 29) - 1)) != (1L << 28);
+        }
+
+        /**
+         * Appends m / 10^k with k digits after the decimal point.
+         *
+         * @param m The digits.
+         * @param k The number of decimals.
+         * @param trim If true, trailing zeros of decimals are removed.
+         */
+        private void appendDecimal(long m, int k, boolean trim) {
+            if (trim) {
+                while (k > 0 && m % 10 == 0) {
+                    m /= 10;
+                    k--;
+                }
+            }
+            ensureCapacity(20 + k + 2);
+            // digits in reverse order, with leading zeros for decimals
+            int start = length;
+            int digits = 0;
+            do {
+                bytes[length++] = (byte) ('0' + m % 10);
+                m /= 10;
+                digits++;
+                if (digits == k) {
+                    bytes[length++] = '.';
+                }
+            } while (m > 0 || digits <= k);
+            for (int i = start, j = length - 1; i < j; i++, j--) {
+                byte tmp = bytes[i];
+                bytes[i] = bytes[j];
+                bytes[j] = tmp;
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, length);
+        }
+
+        ByteBuffer toByteBuffer() {
+            return ByteBuffer.wrap(bytes, 0, length);
+        }
+    }
 }
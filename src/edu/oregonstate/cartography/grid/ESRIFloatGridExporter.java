@@ -0,0 +1,102 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Export for the ESRI binary float grid format. A .flt file with little
+ * endian 32 bit floating point values and a .hdr text file are written.
+ * Bands of rows are converted and written in parallel with positional writes
+ * to a FileChannel.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class ESRIFloatGridExporter {
+
+    /**
+     * The number of rows written as one band.
+     */
+    private static final int BAND_ROWS = 64;
+
+    private ESRIFloatGridExporter() {
+    }
+
+    /**
+     * Writes a grid to a .flt file and a .hdr file.
+     *
+     * @param geoGrid The grid to write.
+     * @param filePath The path of the .flt file.
+     * @throws IOException If a file cannot be written.
+     */
+    public static void export(Grid geoGrid, String filePath) throws IOException {
+        if (!EsriFloatGridReader.isFloatGrid(filePath)) {
+            throw new IllegalArgumentException("The file extension must be .flt");
+        }
+        File file = new File(filePath);
+        final float voidValue = ESRIASCIIGridExporter.findVoidValue(geoGrid);
+        String lineSeparator = System.getProperty("line.separator");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(
+                EsriFloatGridReader.getHeaderFile(file)), StandardCharsets.US_ASCII)) {
+            writer.write("ncols " + geoGrid.getCols() + lineSeparator);
+            writer.write("nrows " + geoGrid.getRows() + lineSeparator);
+            writer.write("xllcorner " + geoGrid.getWest() + lineSeparator);
+            writer.write("yllcorner " + geoGrid.getSouth() + lineSeparator);
+            writer.write("cellsize " + geoGrid.getCellSize() + lineSeparator);
+            writer.write("NODATA_value " + voidValue + lineSeparator);
+            writer.write("byteorder LSBFIRST" + lineSeparator);
+        }
+
+        final float[][] grid = geoGrid.getGrid();
+        final int cols = geoGrid.getCols();
+        int rows = geoGrid.getRows();
+        try (final FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final AtomicReference<IOException> exception = new AtomicReference<>();
+            SharedExecutor.forEachBand(rows, SharedExecutor.bandRows(rows, BAND_ROWS),
+                    new SharedExecutor.BandTask() {
+                @Override
+                protected void run(int firstRow, int endRow) {
+                    ByteBuffer buffer = ByteBuffer.allocate((endRow - firstRow) * cols * 4);
+                    buffer.order(ByteOrder.LITTLE_ENDIAN);
+                    FloatBuffer floats = buffer.asFloatBuffer();
+                    for (int r = firstRow; r < endRow; r++) {
+                        float[] row = grid[r];
+                        for (int c = 0; c < cols; c++) {
+                            float v = row[c];
+                            floats.put(Float.isNaN(v) ? voidValue : v);
+                        }
+                    }
+                    long position = 4L * cols * firstRow;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            channel.write(buffer, position + buffer.position());
+                        }
+                    } catch (IOException exc) {
+                        exception.compareAndSet(null, exc);
+                    }
+                }
+
+                @Override
+                protected boolean isCancelled() {
+                    return exception.get() != null;
+                }
+            });
+            if (exception.get() != null) {
+                throw exception.get();
+            }
+        }
+    }
+}
@@ -1,21 +1,60 @@
 package edu.oregonstate.cartography.grid;
 
 import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.StringTokenizer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
+/**
+ * Reads ESRI ASCII grids. Files can be compressed with gzip, or can be the
+ * first .asc file in a zip file. The compression is detected from the first
+ * bytes of the file.
+ *
+ * A producer thread reads and decompresses the file into large byte chunks,
+ * which are parsed by the calling thread. Gzip files consisting of members
+ * with known sizes, as written by bgzip, are decompressed in parallel.
+ */
 public class EsriASCIIGridReader {
 
+    /**
+     * The number of bytes in a chunk passed from the producer to the parser.
+     */
+    private static final int CHUNK_BYTES = 1024 * 1024;
+
+    /**
+     * The number of chunks that can be waiting to be parsed.
+     */
+    private static final int QUEUE_CHUNKS = 8;
+
+    /**
+     * The size of buffers for reading and decompressing.
+     */
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    /**
+     * Powers of ten that are exact double values.
+     */
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
     volatile private Exception producerConsumerException = null;
-    
+
     private EsriASCIIGridReader() {
     }
 
@@ -29,34 +68,84 @@ public class EsriASCIIGridReader {
             GridHeaderImporter header = new GridHeaderImporter();
             header.readHeader(br, true);
             return header.isValid();
-        } catch (IOException exc) {
+        } catch (IOException | RuntimeException exc) {
             return false;
         }
     }
 
     /**
-     * Returns whether a file references valid data that can be rea
+     * Returns whether a file references valid data that can be read. The file
+     * can be compressed with gzip or zip.
      * @param filePath
-     * @return 
+     * @return
      */
     public static boolean canRead(String filePath) {
-        BufferedReader br = null;
-        try {
-            File file = new File(filePath);
-            FileInputStream fis = new FileInputStream(file.getAbsolutePath());
-            InputStreamReader in = new InputStreamReader(fis);
-            br = new BufferedReader(in);
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(
+                openInput(new File(filePath))))) {
             return EsriASCIIGridReader.canRead(br);
-        } catch (FileNotFoundException exc) {
+        } catch (IOException exc) {
             return false;
-        } finally {
-            if (br != null) {
-                try {
-                    br.close();
-                } catch (Throwable exc) {
+        }
+    }
+
+    /**
+     * Opens a file and decompresses it if it is compressed with gzip or zip.
+     * Members of gzip files are decompressed sequentially.
+     *
+     * @param file The file.
+     * @return The stream with uncompressed data.
+     * @throws IOException If the file cannot be opened.
+     */
+    static InputStream openInput(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return decompress(new BufferedInputStream(input, BUFFER_BYTES), false);
+        } catch (IOException exc) {
+            input.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Returns a stream that decompresses gzip or zip data, or the passed
+     * stream for uncompressed data.
+     *
+     * @param input The stream, positioned at the start of the data.
+     * @param parallel If true, gzip members with known sizes are
+     * decompressed in parallel.
+     * @return The stream with uncompressed data.
+     * @throws IOException If the data cannot be read, or if a zip file does
+     * not contain a grid.
+     */
+    private static InputStream decompress(BufferedInputStream input, boolean parallel)
+            throws IOException {
+        byte[] magic = new byte[64];
+        input.mark(magic.length);
+        int n = 0;
+        int k;
+        while (n < magic.length && (k = input.read(magic, n, magic.length - n)) >= 0) {
+            n += k;
+        }
+        input.reset();
+
+        if (n >= 2 && (magic[0] & 0xFF) == 0x1F && (magic[1] & 0xFF) == 0x8B) {
+            if (parallel && BlockGzipInputStream.isBlockGzip(magic, n)) {
+                return new BlockGzipInputStream(input);
+            }
+            return new GZIPInputStream(input, BUFFER_BYTES);
+        }
+        if (n >= 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+            ZipInputStream zip = new ZipInputStream(input);
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                String name = entry.getName().toLowerCase(Locale.US);
+                if (!entry.isDirectory() && name.endsWith(".asc")) {
+                    return zip;
                 }
             }
+            throw new IOException("The zip file does not contain an .asc file.");
         }
+        return input;
     }
 
     /** Read a Grid from a file in ESRI ASCII format.
@@ -68,7 +157,9 @@ public class EsriASCIIGridReader {
         return EsriASCIIGridReader.read(filePath, null);
     }
 
-    /** Read a Grid from a file in ESRI ASCII format.
+    /** Read a Grid from a file in ESRI ASCII format. The file can be
+     * compressed with gzip or zip. Progress is measured by the number of
+     * bytes read from the file.
      * @param filePath The path to the file to be read.
      * @param progressIndicator A WorkerProgress to inform about the progress.
      * @return The read grid.
@@ -78,9 +169,10 @@ public class EsriASCIIGridReader {
             throws java.io.IOException {
 
         File file = new File(filePath);
-        InputStream fis = new FileInputStream(file.getAbsolutePath());
+        CountingInputStream input = new CountingInputStream(
+                new FileInputStream(file.getAbsolutePath()));
         EsriASCIIGridReader esriReader = new EsriASCIIGridReader();
-        Grid grid = esriReader.read(fis, progressIndicator);
+        Grid grid = esriReader.read(input, input, file.length(), progressIndicator);
         if (progressIndicator != null && progressIndicator.isAborted()) {
             return null;
         }
@@ -95,7 +187,7 @@ public class EsriASCIIGridReader {
      */
     public static Grid readStream(InputStream input, ProgressIndicator progressIndicator)
             throws IOException {
-        
+
         EsriASCIIGridReader esriReader = new EsriASCIIGridReader();
         Grid grid = esriReader.read(input, progressIndicator);
         if (progressIndicator != null && progressIndicator.isAborted()) {
@@ -105,187 +197,526 @@ public class EsriASCIIGridReader {
 
     }
 
-    /** Read a grid from a stream in ESRI ASCII format.
+    /** Read a grid from a stream in ESRI ASCII format. The stream can be
+     * compressed with gzip or zip.
      * @param input The stream to read from. The stream is closed at the end.
      * @param progressIndicator A WorkerProgress to inform about the progress.
-     * @return The read grid.
+     * @return The read grid, or null if the progress indicator is aborted.
      * @throws java.io.IOException
      */
     public Grid read(InputStream input, ProgressIndicator progressIndicator)
             throws IOException {
+        return read(input, null, 0, progressIndicator);
+    }
+
+    /**
+     * Read a grid from a stream.
+     *
+     * @param input The stream to read from. The stream is closed at the end.
+     * @param counter Counts the bytes read from the file. Can be null.
+     * @param totalBytes The size of the file for reporting progress, or 0 to
+     * report progress by rows.
+     * @param progressIndicator Informed about progress. Can be null.
+     * @return The read grid, or null if the progress indicator is aborted.
+     */
+    private Grid read(InputStream input, CountingInputStream counter,
+            long totalBytes, ProgressIndicator progressIndicator) throws IOException {
 
         // initialize the progress monitor at the beginning
         if (progressIndicator != null) {
             progressIndicator.start();
         }
 
-        BufferedReader br = null;
-
+        InputStream in = input;
+        Thread producerThread = null;
         try {
-            InputStreamReader in = new InputStreamReader(input);
-            br = new BufferedReader(in);
-            GridHeaderImporter header = new GridHeaderImporter();
-            String firstGridLine = header.readHeader(br, true);
-            Grid grid = new Grid(header.getCols(), header.getRows(), header.getCellSize());
-            grid.setWest(header.getWest());
-            grid.setSouth(header.getSouth());
-
-            // http://www.java2s.com/Code/Java/Threads/ProducerconsumerforJ2SE15usingconcurrent.htm
-            // a limited capacity of around 64 works fastest on the system used
-            // for development with large grids
-            BlockingQueue<String> q = new LinkedBlockingQueue<>(64);
-            q.put(firstGridLine);
-            
-            Producer producer = new Producer(q, br);
-            Thread producerThread = new Thread(producer);
-            producerThread.start();
-            
-            Consumer consumer = new Consumer(q, grid, header.getNoDataValue(), progressIndicator);
-            Thread consumerThread = new Thread(consumer);
-            consumerThread.start();
-            
-            try {
-                producerThread.join();
-            } catch (InterruptedException ex) {
-                consumerThread.interrupt();
+            in = decompress(new BufferedInputStream(input, BUFFER_BYTES), true);
+
+            // chunks are recycled to avoid allocating large arrays
+            BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(QUEUE_CHUNKS + 1);
+            BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+            for (int i = 0; i < QUEUE_CHUNKS; i++) {
+                free.add(new Chunk(CHUNK_BYTES));
             }
-            consumerThread.join();
-            
-            return grid;
+            Producer producer = new Producer(in, counter, filled, free);
+            producerThread = new Thread(producer);
+            producerThread.start();
+
+            return parse(filled, free, totalBytes, progressIndicator);
         } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
             return null;
+        } catch (NumberFormatException ex) {
+            throw new IOException("invalid Esri Ascii grid file", ex);
         } finally {
-            try {
-                if (br != null) {
-                    br.close();
+            // the parser stops early when the user cancels. The producer
+            // might then be blocked by the full queue and is interrupted.
+            if (producerThread != null) {
+                producerThread.interrupt();
+                try {
+                    producerThread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
                 }
+            }
+            try {
+                in.close();
             } catch (IOException exc) {
             }
-            
+
             if (producerConsumerException != null) {
                 throw new IOException(producerConsumerException);
             }
         }
+    }
+
+    /**
+     * Parses the header and the values in chunks passed by the producer.
+     */
+    private Grid parse(BlockingQueue<Chunk> filled, BlockingQueue<Chunk> free,
+            long totalBytes, ProgressIndicator progressIndicator)
+            throws IOException, InterruptedException {
+        GridHeaderImporter header = new GridHeaderImporter();
+        ByteArrayOutputStream headerLine = new ByteArrayOutputStream();
+        ValueParser parser = null;
+        Grid grid = null;
+        while (true) {
+            Chunk chunk = filled.take();
+            if (chunk == Chunk.END_OF_FILE) {
+                break;
+            }
+            byte[] bytes = chunk.data;
+            int start = 0;
+
+            // header lines are collected and parsed by the header importer
+            while (parser == null && start < chunk.length) {
+                byte b = bytes[start];
+                boolean lineStart = headerLine.size() == 0;
+                if (lineStart && isValueStart(b)) {
+                    // the first line of values starts in this chunk
+                    grid = createGrid(header);
+                    parser = new ValueParser(grid, header.getNoDataValue());
+                } else if (b == '\n' || b == '\r') {
+                    if (readHeaderLine(header, headerLine)) {
+                        start++;
+                    } else {
+                        // the first line of values, which does not start
+                        // with a digit. The line separator is parsed next.
+                        grid = createGrid(header);
+                        parser = new ValueParser(grid, header.getNoDataValue());
+                        parser.parse(headerLine.toByteArray(), 0, headerLine.size());
+                    }
+                    headerLine.reset();
+                } else if (!lineStart || (b != ' ' && b != '\t')) {
+                    headerLine.write(b);
+                    start++;
+                } else {
+                    start++;
+                }
+            }
+
+            if (parser != null) {
+                parser.parse(bytes, start, chunk.length);
+            }
+            long compressedBytes = chunk.compressedBytes;
+            free.put(chunk);
+
+            // update progress info
+            if (progressIndicator != null && parser != null) {
+                int perc;
+                if (totalBytes > 0 && compressedBytes >= 0) {
+                    perc = (int) (100d * compressedBytes / totalBytes);
+                } else {
+                    perc = (int) ((double) (parser.getRowsRead() + 1) / grid.getRows() * 100);
+                }
+                if (!progressIndicator.progress(Math.min(100, perc))) {
+                    return null;
+                }
+            }
+            if (parser != null && parser.isDone()) {
+                return grid;
+            }
+        }
+
+        // end of file
+        if (parser == null && headerLine.size() > 0 && !readHeaderLine(header, headerLine)) {
+            grid = createGrid(header);
+            parser = new ValueParser(grid, header.getNoDataValue());
+            parser.parse(headerLine.toByteArray(), 0, headerLine.size());
+        }
+        if (parser == null || producerConsumerException != null) {
+            throw new IOException("invalid Esri Ascii grid file");
+        }
+        parser.finish();
+        return grid;
+    }
 
+    /**
+     * Returns whether a byte at the start of a line is the start of a number,
+     * and not of a header keyword.
+     */
+    private static boolean isValueStart(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.';
     }
 
     /**
-     * Indicates end of file.
+     * Passes a line to the header importer.
+     *
+     * @return True if the line is part of the header.
      */
-    private static final String EOF = "END_OF_FILE";
-    
+    private static boolean readHeaderLine(GridHeaderImporter header,
+            ByteArrayOutputStream line) throws IOException {
+        try {
+            return header.readHeaderLine(new String(line.toByteArray(), StandardCharsets.US_ASCII));
+        } catch (RuntimeException exc) {
+            throw new IOException("invalid Esri Ascii grid header", exc);
+        }
+    }
+
+    private static Grid createGrid(GridHeaderImporter header) throws IOException {
+        if (!header.isValid()) {
+            throw new IOException("invalid Esri Ascii grid header");
+        }
+        Grid grid = new Grid(header.getCols(), header.getRows(), header.getCellSize());
+        grid.setWest(header.getWest());
+        grid.setSouth(header.getSouth());
+        return grid;
+    }
+
     /**
-     * Reads the grid body line by line.
+     * Bytes passed from the producer to the parser.
+     */
+    private static final class Chunk {
+
+        /**
+         * Indicates end of file.
+         */
+        static final Chunk END_OF_FILE = new Chunk(0);
+
+        final byte[] data;
+        int length;
+
+        /**
+         * The number of bytes read from the file at the end of this chunk,
+         * or -1 if unknown.
+         */
+        long compressedBytes;
+
+        Chunk(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    /**
+     * Reads and decompresses the grid body chunk by chunk.
      */
     private class Producer implements Runnable {
 
-        private final BlockingQueue<String> queue;
-        private final BufferedReader reader;
+        private final InputStream input;
+        private final CountingInputStream counter;
+        private final BlockingQueue<Chunk> filled;
+        private final BlockingQueue<Chunk> free;
 
-        Producer(BlockingQueue<String> queue, BufferedReader reader) {
-            this.queue = queue;
-            this.reader = reader;
+        Producer(InputStream input, CountingInputStream counter,
+                BlockingQueue<Chunk> filled, BlockingQueue<Chunk> free) {
+            this.input = input;
+            this.counter = counter;
+            this.filled = filled;
+            this.free = free;
         }
 
         @Override
         public void run() {
             try {
-                // read file line by line and store read lines in blocking queue
-                String line;
-                while ((line = reader.readLine()) != null
-                        // check whether this thread has been interrupted
-                        && !Thread.currentThread().isInterrupted()
-                        // check whether consumer thread has encountered an exception
-                        && producerConsumerException == null) {
-                    queue.put(line);
+                try {
+                    boolean endOfFile = false;
+                    while (!endOfFile && !Thread.currentThread().isInterrupted()) {
+                        Chunk chunk = free.take();
+                        int n = 0;
+                        while (n < chunk.data.length) {
+                            int k = input.read(chunk.data, n, chunk.data.length - n);
+                            if (k < 0) {
+                                endOfFile = true;
+                                break;
+                            }
+                            n += k;
+                        }
+                        chunk.length = n;
+                        chunk.compressedBytes = counter == null ? -1 : counter.getCount();
+                        filled.put(chunk);
+                    }
+                } catch (IOException ex) {
+                    // store the exception for the main thread
+                    producerConsumerException = ex;
                 }
-                
                 // add end-of-file object
-                queue.put(EOF);
-            } catch (IOException | InterruptedException ex) {
-                // store the exception for the main thread
-                producerConsumerException = ex;
+                filled.put(Chunk.END_OF_FILE);
+            } catch (InterruptedException ex) {
+                // the parser has stopped and no more chunks are needed
             }
         }
     }
 
     /**
-     * Parses grid lines.
+     * Parses values and stores them in a grid.
      */
-    private class Consumer implements Runnable {
+    private static final class ValueParser {
 
-        private final BlockingQueue<String> queue;
+        private final float[][] grid;
+        private final int cols;
+        private final int rows;
         private final float noDataValue;
-        private final Grid grid;
-        private final ProgressIndicator progressIndicator;
-        private int counter = 0;
+        private int row = 0;
+        private int col = 0;
+        private float[] currentRow;
+
+        /**
+         * True when all values have been read.
+         */
+        private boolean complete = false;
 
-        Consumer(BlockingQueue<String> queue, Grid grid, float noDataValue, ProgressIndicator progressIndicator) {
-            this.queue = queue;
-            this.grid = grid;
+        /**
+         * True when the line with the last value has ended.
+         */
+        private boolean done = false;
+
+        /**
+         * A token that started in the previous chunk.
+         */
+        private byte[] token = new byte[64];
+        private int tokenLength = 0;
+
+        ValueParser(Grid grid, float noDataValue) {
+            this.grid = grid.getGrid();
+            this.cols = grid.getCols();
+            this.rows = grid.getRows();
             this.noDataValue = noDataValue;
-            this.progressIndicator = progressIndicator;
+            currentRow = this.grid[0];
         }
 
-        @Override
-        public void run() {
-            try {
-                final int nCols = grid.getCols();
-                final int nRows = grid.getRows();
-                final int nbrValues = nRows * nCols;
-                do {
-                    String str = queue.take();
-                    
-                    // test for end of file
-                    if (EOF.equals(str)) {
-                        // make sure the correct number of values has been read
-                        if (counter != nbrValues) {
-                            throw new IOException("invalid Esri Ascii grid file");
-                        }
-                        break;
+        /**
+         * Parses bytes. Tokens are separated by spaces, tabs and line
+         * separators.
+         */
+        void parse(byte[] b, int start, int end) throws IOException {
+            int i = start;
+            if (tokenLength > 0) {
+                int tokenEnd = i;
+                while (tokenEnd < end && !isSeparator(b[tokenEnd])) {
+                    tokenEnd++;
+                }
+                appendToken(b, i, tokenEnd);
+                if (tokenEnd == end) {
+                    return;
+                }
+                addValue(token, 0, tokenLength);
+                tokenLength = 0;
+                i = tokenEnd;
+            }
+            while (i < end && !done) {
+                byte c = b[i];
+                if (c == ' ' || c == '\t') {
+                    i++;
+                } else if (c == '\n' || c == '\r') {
+                    // values after the line with the last value are ignored
+                    done = complete;
+                    i++;
+                } else {
+                    int tokenStart = i;
+                    while (i < end && !isSeparator(b[i])) {
+                        i++;
                     }
-                    
-                    // split each line in tokens and parse the tokens for a float.
-                    // One row in the grid might not correspond to a grid row.
-                    // StringTokenizer is faster than String.split()
-                    // About 50% of the time in this spent with tokenizing the string,
-                    // and 50% is spent with Float.parseFloat().
-                    StringTokenizer tokenizer = new StringTokenizer(str, " \t");
-                    while (tokenizer.hasMoreTokens()
-                            // check whether this thread has been interrupted
-                            && !Thread.currentThread().isInterrupted()
-                            // check whether producer thread has encountered an exception
-                            && producerConsumerException == null) {
-                        int col = counter % nCols;
-                        int row = counter / nCols;
-                        ++counter;
-                        
-                        // make sure we do not read too many cell values
-                        if (counter > nbrValues) {
-                            throw new IOException("corrupt Esri Ascii grid file");
-                        }
-                        float v = Float.parseFloat(tokenizer.nextToken());
-                        grid.setValue(v == noDataValue ? Float.NaN : v, col, row);
+                    if (i == end) {
+                        appendToken(b, tokenStart, end);
+                        return;
                     }
-                    
-                    // update progress info
-                    if (progressIndicator != null) {
-                        int row = counter / nCols;
-                        int perc = (int) ((double) (row + 1) / nRows * 100);
-                        if (!progressIndicator.progress(perc)) {
-                            counter = nbrValues;
-                            break;
-                        }
+                    addValue(b, tokenStart, i);
+                }
+            }
+        }
+
+        /**
+         * Parses the last token and verifies that all values have been read.
+         */
+        void finish() throws IOException {
+            if (tokenLength > 0) {
+                addValue(token, 0, tokenLength);
+                tokenLength = 0;
+            }
+            if (!complete) {
+                throw new IOException("invalid Esri Ascii grid file");
+            }
+        }
+
+        boolean isDone() {
+            return done;
+        }
+
+        int getRowsRead() {
+            return row;
+        }
+
+        private static boolean isSeparator(byte c) {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+        }
+
+        private void appendToken(byte[] b, int start, int end) {
+            int n = end - start;
+            if (tokenLength + n > token.length) {
+                token = Arrays.copyOf(token, Math.max(tokenLength + n, token.length * 2));
+            }
+            System.arraycopy(b, start, token, tokenLength, n);
+            tokenLength += n;
+        }
+
+        private void addValue(byte[] b, int start, int end) throws IOException {
+            // make sure we do not read too many cell values
+            if (complete) {
+                throw new IOException("corrupt Esri Ascii grid file");
+            }
+            float v = parseFloat(b, start, end);
+            currentRow[col] = v == noDataValue ? Float.NaN : v;
+            if (++col == cols) {
+                col = 0;
+                if (++row == rows) {
+                    complete = true;
+                } else {
+                    currentRow = grid[row];
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses a decimal number without creating a String. The result is
+     * identical to Float.parseFloat, which is used for numbers that cannot
+     * be converted exactly with a single double operation.
+     *
+     * @param b The characters.
+     * @param start The first character of the number.
+     * @param end The end of the number.
+     * @return The value.
+     */
+    static float parseFloat(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b[i] == '-' || b[i] == '+')) {
+            negative = b[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean hasDigits = false;
+        while (i < end && b[i] >= '0' && b[i] <= '9') {
+            if (significantDigits < 18) {
+                mantissa = mantissa * 10 + (b[i] - '0');
+                if (mantissa != 0) {
+                    significantDigits++;
+                }
+            } else {
+                exponent++;
+            }
+            hasDigits = true;
+            i++;
+        }
+        if (i < end && b[i] == '.') {
+            i++;
+            while (i < end && b[i] >= '0' && b[i] <= '9') {
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + (b[i] - '0');
+                    if (mantissa != 0) {
+                        significantDigits++;
                     }
-                } while (counter < nbrValues
-                        // check whether this thread has been interrupted
-                        && !Thread.currentThread().isInterrupted()
-                        // check whether producer thread has encountered an exception
-                        && producerConsumerException == null);
-            } catch (IOException | InterruptedException | NumberFormatException ex) {
-                // store the exception for the main thread
-                producerConsumerException = ex;
+                    exponent--;
+                }
+                hasDigits = true;
+                i++;
+            }
+        }
+        if (hasDigits && i < end && (b[i] == 'e' || b[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (b[i] == '-' || b[i] == '+')) {
+                negativeExponent = b[i] == '-';
+                i++;
+            }
+            int e = 0;
+            int exponentStart = i;
+            while (i < end && b[i] >= '0' && b[i] <= '9' && e < 10000) {
+                e = e * 10 + (b[i] - '0');
+                i++;
+            }
+            if (i == exponentStart) {
+                hasDigits = false;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        // fast path: the mantissa and the power of ten are exact doubles, so
+        // the double is correctly rounded. Converting it to a float gives the
+        // correctly rounded float, unless the double is exactly halfway
+        // between two floats or the float is subnormal.
+        if (hasDigits && i == end && significantDigits <= 15) {
+            if (mantissa == 0) {
+                return negative ? -0f : 0f;
+            }
+            if (exponent >= -22 && exponent <= 22) {
+                double d = exponent >= 0 ? mantissa * POW10[exponent]
+                        : mantissa / POW10[-exponent];
+                long bits = Double.doubleToRawLongBits(d);
+                if (d >= Float.MIN_NORMAL && (bits & ((1L << 29) - 1)) != (1L << 28)) {
+                    float f = (float) d;
+                    return negative ? -f : f;
+                }
+            }
+        }
+        return Float.parseFloat(new String(b, start, end - start, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Counts the bytes read from a stream.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private volatile long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count++;
             }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
         }
     }
 }
@@ -0,0 +1,175 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.ProgressAggregator;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads an ESRI binary float grid, which consists of a .flt file with 32 bit
+ * floating point values and a .hdr text file with the size and position of
+ * the grid, the void value and the byte order. The header keywords are the
+ * same as in ESRI ASCII grids, plus BYTEORDER.
+ *
+ * Bands of rows are read in parallel with positional reads from a
+ * FileChannel.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class EsriFloatGridReader {
+
+    /**
+     * The number of rows read as one band.
+     */
+    private static final int BAND_ROWS = 64;
+
+    private EsriFloatGridReader() {
+    }
+
+    /**
+     * Returns whether a file name has the extension of a binary float grid.
+     *
+     * @param fileName The file name or path.
+     * @return True if the extension is .flt.
+     */
+    public static boolean isFloatGrid(String fileName) {
+        return fileName.toLowerCase(Locale.US).endsWith(".flt");
+    }
+
+    /**
+     * Returns the .hdr file of a .flt file. The extension has the same case
+     * as the extension of the .flt file.
+     *
+     * @param fltFile The .flt file.
+     * @return The header file.
+     */
+    public static File getHeaderFile(File fltFile) {
+        String path = fltFile.getPath();
+        String base = path.substring(0, path.length() - 4);
+        boolean upperCase = path.endsWith(".FLT");
+        return new File(base + (upperCase ? ".HDR" : ".hdr"));
+    }
+
+    /**
+     * Returns whether a file is a binary float grid with a valid header.
+     *
+     * @param filePath The path of the .flt file.
+     * @return True if the file can be read.
+     */
+    public static boolean canRead(String filePath) {
+        if (!isFloatGrid(filePath)) {
+            return false;
+        }
+        try {
+            GridHeaderImporter.read(new File(filePath));
+            return new File(filePath).isFile();
+        } catch (IOException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a grid from a binary float grid file.
+     *
+     * @param filePath The path of the .flt file.
+     * @return The grid.
+     * @throws IOException If the header or the values cannot be read.
+     */
+    public static Grid read(String filePath) throws IOException {
+        return read(filePath, null);
+    }
+
+    /**
+     * Reads a grid from a binary float grid file.
+     *
+     * @param filePath The path of the .flt file.
+     * @param progressIndicator Informed about progress. Can be null.
+     * @return The grid, or null if the progress indicator has been aborted.
+     * @throws IOException If the header or the values cannot be read.
+     */
+    public static Grid read(String filePath, ProgressIndicator progressIndicator)
+            throws IOException {
+        if (progressIndicator != null) {
+            progressIndicator.start();
+        }
+        File file = new File(filePath);
+        GridHeaderImporter header = GridHeaderImporter.read(file);
+        final int cols = header.getCols();
+        final int rows = header.getRows();
+        // ESRI writes little endian files if the byte order is not specified
+        final ByteOrder byteOrder = header.getByteOrder() == null
+                ? ByteOrder.LITTLE_ENDIAN : header.getByteOrder();
+        final float noDataValue = header.getNoDataValue();
+
+        final Grid grid = new Grid(cols, rows, header.getCellSize());
+        grid.setWest(header.getWest());
+        grid.setSouth(header.getSouth());
+        final float[][] g = grid.getGrid();
+
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long expectedSize = 4L * cols * rows;
+            if (channel.size() < expectedSize) {
+                throw new IOException("The file " + file.getName() + " has "
+                        + channel.size() + " bytes, but " + expectedSize
+                        + " bytes are required for " + cols + " x " + rows + " values.");
+            }
+            final AtomicReference<IOException> exception = new AtomicReference<>();
+            final ProgressAggregator progress = new ProgressAggregator(progressIndicator, rows);
+            final int bandRows = SharedExecutor.bandRows(rows, BAND_ROWS);
+            SharedExecutor.forEachBand(rows, bandRows, new SharedExecutor.BandTask() {
+                @Override
+                protected void run(int firstRow, int endRow) {
+                    ByteBuffer buffer = ByteBuffer.allocate((endRow - firstRow) * cols * 4);
+                    buffer.order(byteOrder);
+                    long position = 4L * cols * firstRow;
+                    try {
+                        while (buffer.hasRemaining()) {
+                            int n = channel.read(buffer, position + buffer.position());
+                            if (n < 0) {
+                                throw new IOException("Unexpected end of file");
+                            }
+                        }
+                    } catch (IOException exc) {
+                        exception.compareAndSet(null, exc);
+                        return;
+                    }
+                    buffer.flip();
+                    FloatBuffer floats = buffer.asFloatBuffer();
+                    for (int r = firstRow; r < endRow; r++) {
+                        float[] row = g[r];
+                        floats.get(row);
+                        if (!Float.isNaN(noDataValue)) {
+                            for (int c = 0; c < cols; c++) {
+                                if (row[c] == noDataValue) {
+                                    row[c] = Float.NaN;
+                                }
+                            }
+                        }
+                    }
+                    progress.addWork(endRow - firstRow);
+                }
+
+                @Override
+                protected boolean isCancelled() {
+                    return exception.get() != null || progress.isAborted();
+                }
+            });
+            if (exception.get() != null) {
+                throw exception.get();
+            }
+            if (progress.isAborted()) {
+                return null;
+            }
+        }
+        return grid;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.oregonstate.cartography.grid;
 
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import java.util.ArrayList;
 
 /**
@@ -21,6 +22,25 @@ public class GaussianPyramid {
     public static Grid[] createPyramid(Grid geoGrid,
             int maxLevelsCount,
             int minCellCount) {
+        return GaussianPyramid.createPyramid(geoGrid, maxLevelsCount,
+                minCellCount, null);
+    }
+
+    /**
+     * Creates the levels of a Gaussian pyramid.
+     *
+     * @param geoGrid The full resolution grid.
+     * @param maxLevelsCount The maximum number of levels.
+     * @param minCellCount The minimum number of cells of the smallest level.
+     * @param token Checked before each level is computed. Can be null.
+     * @return The levels, starting with the passed full resolution grid.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public static Grid[] createPyramid(Grid geoGrid,
+            int maxLevelsCount,
+            int minCellCount,
+            CancellationToken token) {
 
         ArrayList<Grid> pyramid = new ArrayList<>();
         pyramid.add(geoGrid);
@@ -37,6 +57,7 @@ public class GaussianPyramid {
                     || pyramid.size() == maxLevelsCount) {
                 break;
             }
+            CancellationToken.throwIfCancelled(token);
             geoGrid = conv.convolveToHalfSize(geoGrid);
             pyramid.add(geoGrid);
         }
@@ -47,6 +68,19 @@ public class GaussianPyramid {
         this.pyramid = GaussianPyramid.createPyramid(geoGrid, 9999);
     }
 
+    /**
+     * Creates a Gaussian pyramid with as many levels as possible.
+     *
+     * @param geoGrid The full resolution grid.
+     * @param token Checked before each level is computed. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public GaussianPyramid(Grid geoGrid, CancellationToken token) {
+        this.pyramid = GaussianPyramid.createPyramid(geoGrid, 9999,
+                MIN_SIDE_LENGTH * MIN_SIDE_LENGTH, token);
+    }
+
     public GaussianPyramid(Grid geoGrid, int maxLevelsCount) {
         this.pyramid = GaussianPyramid.createPyramid(geoGrid, maxLevelsCount);
     }
@@ -0,0 +1,217 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.image.LZWCodec;
+import edu.oregonstate.cartography.image.TIFFDirectory;
+import edu.oregonstate.cartography.image.TIFFStripWriter.Compression;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Export for GeoTIFF files with 32 bit floating point values. The position
+ * and cell size are written to the ModelTiepoint and ModelPixelScale tags,
+ * and the void value to the GDAL_NODATA tag. No coordinate reference system
+ * is written.
+ *
+ * Strips are compressed in parallel and appended to the file with a
+ * FileChannel. Compressed strips use the floating point predictor. A BigTIFF
+ * file is written if the file could be larger than 4 GB.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class GeoTIFFGridExporter {
+
+    /**
+     * The approximate number of bytes in a strip before compression.
+     */
+    private static final int STRIP_BYTES = 256 * 1024;
+
+    /**
+     * The maximum number of strips compressed before they are written.
+     */
+    private static final int GROUP_STRIPS = 64;
+
+    private GeoTIFFGridExporter() {
+    }
+
+    /**
+     * Writes a grid with deflate compression.
+     *
+     * @param geoGrid The grid to write.
+     * @param filePath The path of the file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void export(Grid geoGrid, String filePath) throws IOException {
+        export(geoGrid, filePath, Compression.DEFLATE);
+    }
+
+    /**
+     * Writes a grid.
+     *
+     * @param geoGrid The grid to write.
+     * @param filePath The path of the file.
+     * @param compression The compression of strips.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void export(Grid geoGrid, String filePath,
+            final Compression compression) throws IOException {
+        final float[][] grid = geoGrid.getGrid();
+        final int cols = geoGrid.getCols();
+        final int rows = geoGrid.getRows();
+        final float voidValue = ESRIASCIIGridExporter.findVoidValue(geoGrid);
+        final int rowsPerStrip = Math.max(1, Math.min(rows, STRIP_BYTES / (cols * 4)));
+        int nStrips = (rows + rowsPerStrip - 1) / rowsPerStrip;
+        long[] stripOffsets = new long[nStrips];
+        long[] stripByteCounts = new long[nStrips];
+
+        // the largest possible file: LZW codes can have up to 12 bits for 8
+        // bit input bytes, and the directory has less than 1 KB plus offsets
+        // and byte counts of strips
+        long maxBytes = 4L * cols * rows;
+        if (compression == Compression.LZW) {
+            maxBytes = maxBytes * 3 / 2 + 16L * nStrips;
+        } else if (compression == Compression.DEFLATE) {
+            maxBytes += maxBytes / 1000 + 64L * nStrips;
+        }
+        boolean bigTIFF = 1024 + 8L * nStrips + maxBytes > TIFFDirectory.MAX_FILE_SIZE;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = TIFFDirectory.header(bigTIFF);
+            long position = header.remaining();
+            write(channel, header, 0);
+
+            for (int groupStrip = 0; groupStrip < nStrips; groupStrip += GROUP_STRIPS) {
+                final int firstStrip = groupStrip;
+                final ByteBuffer[] strips = new ByteBuffer[Math.min(GROUP_STRIPS, nStrips - groupStrip)];
+                SharedExecutor.forEachBand(strips.length, 1, new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int first, int end) {
+                        for (int i = first; i < end; i++) {
+                            int firstRow = (firstStrip + i) * rowsPerStrip;
+                            int endRow = Math.min(rows, firstRow + rowsPerStrip);
+                            strips[i] = encodeStrip(grid, firstRow, endRow, cols,
+                                    voidValue, compression);
+                        }
+                    }
+                });
+                for (int i = 0; i < strips.length; i++) {
+                    stripOffsets[firstStrip + i] = position;
+                    stripByteCounts[firstStrip + i] = strips[i].remaining();
+                    position += strips[i].remaining();
+                    if (!bigTIFF && position > TIFFDirectory.MAX_FILE_SIZE) {
+                        throw new IOException("Grid too large for TIFF");
+                    }
+                    write(channel, strips[i], stripOffsets[firstStrip + i]);
+                }
+            }
+
+            double cellSize = geoGrid.getCellSize();
+            double north = geoGrid.getSouth() + rows * cellSize;
+            TIFFDirectory directory = new TIFFDirectory(bigTIFF);
+            directory.addLong(TIFFDirectory.IMAGE_WIDTH, cols);
+            directory.addLong(TIFFDirectory.IMAGE_LENGTH, rows);
+            directory.addShorts(TIFFDirectory.BITS_PER_SAMPLE, 32);
+            directory.addShorts(TIFFDirectory.COMPRESSION, compression.getTagValue());
+            // black is zero
+            directory.addShorts(TIFFDirectory.PHOTOMETRIC_INTERPRETATION, 1);
+            directory.addOffsets(TIFFDirectory.STRIP_OFFSETS, stripOffsets);
+            directory.addShorts(TIFFDirectory.SAMPLES_PER_PIXEL, 1);
+            directory.addLong(TIFFDirectory.ROWS_PER_STRIP, rowsPerStrip);
+            directory.addOffsets(TIFFDirectory.STRIP_BYTE_COUNTS, stripByteCounts);
+            directory.addShorts(TIFFDirectory.PLANAR_CONFIGURATION, 1);
+            if (compression != Compression.NONE) {
+                // floating point predictor
+                directory.addShorts(TIFFDirectory.PREDICTOR, 3);
+            }
+            // floating point values
+            directory.addShorts(TIFFDirectory.SAMPLE_FORMAT, 3);
+            directory.addDoubles(TIFFDirectory.MODEL_PIXEL_SCALE, cellSize, cellSize, 0);
+            directory.addDoubles(TIFFDirectory.MODEL_TIEPOINT, 0, 0, 0,
+                    geoGrid.getWest(), north, 0);
+            // version 1.1.0 with one key: the raster type is PixelIsArea
+            directory.addShorts(TIFFDirectory.GEO_KEY_DIRECTORY, 1, 1, 0, 1, 1025, 0, 1, 1);
+            directory.addASCII(TIFFDirectory.GDAL_NODATA, Float.toString(voidValue));
+            directory.write(channel, position);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Converts rows to big endian bytes, applies the floating point predictor
+     * and compresses the bytes.
+     */
+    private static ByteBuffer encodeStrip(float[][] grid, int firstRow, int endRow,
+            int cols, float voidValue, Compression compression) {
+        int rowSize = cols * 4;
+        ByteBuffer buffer = ByteBuffer.allocate((endRow - firstRow) * rowSize);
+        byte[] bytes = buffer.array();
+        for (int r = firstRow; r < endRow; r++) {
+            float[] row = grid[r];
+            int rowStart = (r - firstRow) * rowSize;
+            if (compression == Compression.NONE) {
+                for (int c = 0; c < cols; c++) {
+                    float v = row[c];
+                    buffer.putFloat(Float.isNaN(v) ? voidValue : v);
+                }
+                continue;
+            }
+            // floating point predictor: the bytes of values are stored in
+            // four planes with the most significant bytes first, and
+            // consecutive bytes are differenced
+            for (int c = 0; c < cols; c++) {
+                float v = row[c];
+                int bits = Float.floatToRawIntBits(Float.isNaN(v) ? voidValue : v);
+                int i = rowStart + c;
+                bytes[i] = (byte) (bits >>> 24);
+                bytes[i + cols] = (byte) (bits >>> 16);
+                bytes[i + 2 * cols] = (byte) (bits >>> 8);
+                bytes[i + 3 * cols] = (byte) bits;
+            }
+            for (int i = rowStart + rowSize - 1; i > rowStart; i--) {
+                bytes[i] -= bytes[i - 1];
+            }
+        }
+        switch (compression) {
+            case LZW:
+                return ByteBuffer.wrap(LZWCodec.encode(bytes));
+            case DEFLATE:
+                return ByteBuffer.wrap(deflate(bytes));
+            default:
+                buffer.flip();
+                return buffer;
+        }
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length + bytes.length / 1000 + 64];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                n += deflater.deflate(buffer, n, buffer.length - n);
+            }
+            return Arrays.copyOf(buffer, n);
+        } finally {
+            deflater.end();
+        }
+    }
+}
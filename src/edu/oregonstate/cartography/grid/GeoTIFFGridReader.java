@@ -0,0 +1,632 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.ProgressAggregator;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import edu.oregonstate.cartography.image.LZWCodec;
+import edu.oregonstate.cartography.image.TIFFDirectory;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a digital elevation model from a GeoTIFF file with a single band of
+ * 32 bit floating point or 16 bit integer samples. Classic TIFF and BigTIFF
+ * files with strips or tiles in either byte order can be read. Strips and
+ * tiles can be uncompressed or compressed with LZW, deflate or PackBits, with
+ * horizontal differencing or the floating point predictor.
+ *
+ * Strips and tiles are read in parallel with positional reads from a
+ * FileChannel, and are decompressed directly into the rows of the grid,
+ * without creating an image.
+ *
+ * The position and cell size are read from the ModelTiepoint and
+ * ModelPixelScale tags, and the void value from the GDAL_NODATA tag. Files
+ * without these tags are read with a cell size of 1 and the lower left corner
+ * at 0/0.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class GeoTIFFGridReader {
+
+    /**
+     * The approximate number of bytes read at once from uncompressed strips.
+     */
+    private static final int UNCOMPRESSED_CHUNK_BYTES = 1024 * 1024;
+
+    /**
+     * The maximum number of strips or tiles processed as one band.
+     */
+    private static final int BAND_CHUNKS = 16;
+
+    // compression tag values
+    private static final int NO_COMPRESSION = 1;
+    private static final int LZW = 5;
+    private static final int DEFLATE = 8;
+    private static final int PACKBITS = 32773;
+    private static final int OLD_DEFLATE = 32946;
+
+    // predictor tag values
+    private static final int NO_PREDICTOR = 1;
+    private static final int HORIZONTAL_PREDICTOR = 2;
+    private static final int FLOATING_POINT_PREDICTOR = 3;
+
+    // sample format tag values
+    private static final int UNSIGNED_INTEGER = 1;
+    private static final int SIGNED_INTEGER = 2;
+    private static final int FLOATING_POINT = 3;
+
+    /**
+     * The GeoTIFF key for the raster type, and the value for rasters with
+     * values at cell centers.
+     */
+    private static final int GT_RASTER_TYPE_GEO_KEY = 1025;
+    private static final int RASTER_PIXEL_IS_POINT = 2;
+
+    /**
+     * A strip, a tile, or a band of rows of an uncompressed strip.
+     */
+    private static final class Chunk {
+
+        final long offset;
+        final long byteCount;
+
+        /**
+         * The position of the first value in the image.
+         */
+        final int firstRow;
+        final int firstCol;
+
+        /**
+         * The number of rows stored in the file. Tiles can extend beyond the
+         * bottom of the image.
+         */
+        final int rows;
+
+        Chunk(long offset, long byteCount, int firstRow, int firstCol, int rows) {
+            this.offset = offset;
+            this.byteCount = byteCount;
+            this.firstRow = firstRow;
+            this.firstCol = firstCol;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * The size, position and sample layout of a GeoTIFF file.
+     */
+    private static final class Layout {
+
+        int cols;
+        int rows;
+        double west;
+        double south;
+        double cellSize;
+        float noDataValue = Float.NaN;
+
+        ByteOrder byteOrder;
+        int compression;
+        int predictor;
+        int sampleFormat;
+        int bytesPerSample;
+
+        /**
+         * The number of values in a row of a strip or a tile.
+         */
+        int chunkWidth;
+        final List<Chunk> chunks = new ArrayList<>();
+    }
+
+    private GeoTIFFGridReader() {
+    }
+
+    /**
+     * Returns whether a file name has the extension of a TIFF file.
+     *
+     * @param fileName The file name or path.
+     * @return True if the extension is .tif or .tiff.
+     */
+    public static boolean isGeoTIFF(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        return name.endsWith(".tif") || name.endsWith(".tiff");
+    }
+
+    /**
+     * Returns whether a file is a GeoTIFF file that can be read.
+     *
+     * @param filePath The path of the file.
+     * @return True if the file can be read.
+     */
+    public static boolean canRead(String filePath) {
+        try {
+            readHeader(new File(filePath));
+            return true;
+        } catch (IOException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the size and position of the grid without reading the grid
+     * values.
+     *
+     * @param file The GeoTIFF file.
+     * @return The header.
+     * @throws IOException If the file cannot be read or is not supported.
+     */
+    static GridHeaderImporter readHeader(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Layout layout = readLayout(channel);
+            return new GridHeaderImporter(layout.cols, layout.rows, layout.west,
+                    layout.south, layout.cellSize, layout.noDataValue);
+        }
+    }
+
+    /**
+     * Reads a grid from a GeoTIFF file.
+     *
+     * @param filePath The path of the file.
+     * @return The grid.
+     * @throws IOException If the file cannot be read or is not supported.
+     */
+    public static Grid read(String filePath) throws IOException {
+        return read(filePath, null);
+    }
+
+    /**
+     * Reads a grid from a GeoTIFF file.
+     *
+     * @param filePath The path of the file.
+     * @param progressIndicator Informed about progress. Can be null.
+     * @return The grid, or null if the progress indicator has been aborted.
+     * @throws IOException If the file cannot be read or is not supported.
+     */
+    public static Grid read(String filePath, ProgressIndicator progressIndicator)
+            throws IOException {
+        if (progressIndicator != null) {
+            progressIndicator.start();
+        }
+        File file = new File(filePath);
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final Layout layout = readLayout(channel);
+            final Grid grid = new Grid(layout.cols, layout.rows, layout.cellSize);
+            grid.setWest(layout.west);
+            grid.setSouth(layout.south);
+
+            final List<Chunk> chunks = layout.chunks;
+            final AtomicReference<IOException> exception = new AtomicReference<>();
+            final ProgressAggregator progress = new ProgressAggregator(progressIndicator, chunks.size());
+            int bandChunks = SharedExecutor.bandRows(chunks.size(), BAND_CHUNKS);
+            SharedExecutor.forEachBand(chunks.size(), bandChunks, new SharedExecutor.BandTask() {
+                @Override
+                protected void run(int firstChunk, int endChunk) {
+                    // buffers are reused for the chunks of a band
+                    byte[] compressed = new byte[0];
+                    byte[] raw = new byte[0];
+                    try {
+                        for (int i = firstChunk; i < endChunk && !isCancelled(); i++) {
+                            Chunk chunk = chunks.get(i);
+                            int rawSize = chunk.rows * layout.chunkWidth * layout.bytesPerSample;
+                            if (raw.length < rawSize) {
+                                raw = new byte[rawSize];
+                            }
+                            if (chunk.byteCount == 0) {
+                                // sparse files have no data for void tiles
+                                fillVoid(layout, chunk, grid.getGrid());
+                            } else if (layout.compression == NO_COMPRESSION) {
+                                readFully(channel, chunk.offset, raw, rawSize);
+                                copyToGrid(layout, chunk, raw, grid.getGrid());
+                            } else {
+                                if (compressed.length < chunk.byteCount) {
+                                    compressed = new byte[(int) chunk.byteCount];
+                                }
+                                readFully(channel, chunk.offset, compressed, (int) chunk.byteCount);
+                                decompress(layout.compression, compressed,
+                                        (int) chunk.byteCount, raw, rawSize);
+                                copyToGrid(layout, chunk, raw, grid.getGrid());
+                            }
+                            progress.addWork(1);
+                        }
+                    } catch (IOException exc) {
+                        exception.compareAndSet(null, exc);
+                    }
+                }
+
+                @Override
+                protected boolean isCancelled() {
+                    return exception.get() != null || progress.isAborted();
+                }
+            });
+            if (exception.get() != null) {
+                throw exception.get();
+            }
+            if (progress.isAborted()) {
+                return null;
+            }
+            return grid;
+        }
+    }
+
+    /**
+     * Reads the first image file directory and computes the position of
+     * strips or tiles.
+     */
+    private static Layout readLayout(FileChannel channel) throws IOException {
+        TIFFDirectory dir = TIFFDirectory.read(channel);
+        Layout layout = new Layout();
+        layout.byteOrder = dir.getByteOrder();
+        long cols = dir.getLong(TIFFDirectory.IMAGE_WIDTH, 0);
+        long rows = dir.getLong(TIFFDirectory.IMAGE_LENGTH, 0);
+        if (cols <= 0 || rows <= 0 || cols > Integer.MAX_VALUE || rows > Integer.MAX_VALUE) {
+            throw new IOException("Invalid TIFF image size");
+        }
+        layout.cols = (int) cols;
+        layout.rows = (int) rows;
+
+        if (dir.getLong(TIFFDirectory.SAMPLES_PER_PIXEL, 1) != 1) {
+            throw new IOException("Only GeoTIFF files with a single band are supported");
+        }
+        int bitsPerSample = (int) dir.getLong(TIFFDirectory.BITS_PER_SAMPLE, 1);
+        layout.sampleFormat = (int) dir.getLong(TIFFDirectory.SAMPLE_FORMAT, UNSIGNED_INTEGER);
+        boolean float32 = layout.sampleFormat == FLOATING_POINT && bitsPerSample == 32;
+        boolean int16 = (layout.sampleFormat == UNSIGNED_INTEGER
+                || layout.sampleFormat == SIGNED_INTEGER) && bitsPerSample == 16;
+        if (!float32 && !int16) {
+            throw new IOException("Only GeoTIFF files with 32 bit floating point "
+                    + "or 16 bit integer values are supported");
+        }
+        layout.bytesPerSample = bitsPerSample / 8;
+
+        layout.compression = (int) dir.getLong(TIFFDirectory.COMPRESSION, NO_COMPRESSION);
+        switch (layout.compression) {
+            case NO_COMPRESSION:
+            case LZW:
+            case DEFLATE:
+            case OLD_DEFLATE:
+            case PACKBITS:
+                break;
+            default:
+                throw new IOException("Unsupported TIFF compression " + layout.compression);
+        }
+        layout.predictor = (int) dir.getLong(TIFFDirectory.PREDICTOR, NO_PREDICTOR);
+        if (layout.predictor != NO_PREDICTOR && layout.predictor != HORIZONTAL_PREDICTOR
+                && !(layout.predictor == FLOATING_POINT_PREDICTOR && float32)) {
+            throw new IOException("Unsupported TIFF predictor " + layout.predictor);
+        }
+
+        if (dir.contains(TIFFDirectory.TILE_WIDTH)) {
+            readTiles(dir, layout);
+        } else {
+            readStrips(dir, layout);
+        }
+        readGeoreference(dir, layout);
+        return layout;
+    }
+
+    private static void readTiles(TIFFDirectory dir, Layout layout) throws IOException {
+        long tileWidth = dir.getLong(TIFFDirectory.TILE_WIDTH, 0);
+        long tileHeight = dir.getLong(TIFFDirectory.TILE_LENGTH, 0);
+        long[] offsets = dir.getLongs(TIFFDirectory.TILE_OFFSETS);
+        long[] byteCounts = dir.getLongs(TIFFDirectory.TILE_BYTE_COUNTS);
+        if (tileWidth <= 0 || tileHeight <= 0
+                || tileWidth * tileHeight * layout.bytesPerSample > Integer.MAX_VALUE) {
+            throw new IOException("Invalid TIFF tile size");
+        }
+        long tilesAcross = (layout.cols + tileWidth - 1) / tileWidth;
+        long tilesDown = (layout.rows + tileHeight - 1) / tileHeight;
+        if (offsets == null || byteCounts == null
+                || offsets.length != tilesAcross * tilesDown
+                || byteCounts.length != offsets.length) {
+            throw new IOException("Invalid TIFF tile offsets");
+        }
+        layout.chunkWidth = (int) tileWidth;
+        for (int i = 0; i < offsets.length; i++) {
+            int firstRow = (int) (i / tilesAcross * tileHeight);
+            int firstCol = (int) (i % tilesAcross * tileWidth);
+            layout.chunks.add(new Chunk(offsets[i], byteCounts[i], firstRow,
+                    firstCol, (int) tileHeight));
+        }
+    }
+
+    private static void readStrips(TIFFDirectory dir, Layout layout) throws IOException {
+        long rowsPerStrip = Math.min(layout.rows,
+                dir.getLong(TIFFDirectory.ROWS_PER_STRIP, layout.rows));
+        long[] offsets = dir.getLongs(TIFFDirectory.STRIP_OFFSETS);
+        long[] byteCounts = dir.getLongs(TIFFDirectory.STRIP_BYTE_COUNTS);
+        int rowSize = layout.cols * layout.bytesPerSample;
+        if (rowsPerStrip <= 0 || offsets == null
+                || offsets.length != (layout.rows + rowsPerStrip - 1) / rowsPerStrip
+                || (byteCounts != null && byteCounts.length != offsets.length)
+                || (byteCounts == null && layout.compression != NO_COMPRESSION)) {
+            throw new IOException("Invalid TIFF strip offsets");
+        }
+        layout.chunkWidth = layout.cols;
+        for (int i = 0; i < offsets.length; i++) {
+            int firstRow = (int) (i * rowsPerStrip);
+            int stripRows = (int) Math.min(rowsPerStrip, layout.rows - firstRow);
+            if (layout.compression == NO_COMPRESSION) {
+                // uncompressed strips are split into bands of rows, such that
+                // large strips can be read in parallel
+                int bandRows = Math.max(1, UNCOMPRESSED_CHUNK_BYTES / rowSize);
+                for (int r = 0; r < stripRows; r += bandRows) {
+                    int n = Math.min(bandRows, stripRows - r);
+                    layout.chunks.add(new Chunk(offsets[i] + (long) r * rowSize,
+                            (long) n * rowSize, firstRow + r, 0, n));
+                }
+            } else {
+                if ((long) stripRows * rowSize > Integer.MAX_VALUE
+                        || byteCounts[i] > Integer.MAX_VALUE) {
+                    throw new IOException("TIFF strips are too large");
+                }
+                layout.chunks.add(new Chunk(offsets[i], byteCounts[i], firstRow, 0, stripRows));
+            }
+        }
+    }
+
+    /**
+     * Reads the cell size and the position of the grid, and the void value.
+     */
+    private static void readGeoreference(TIFFDirectory dir, Layout layout) throws IOException {
+        double[] scale = dir.getDoubles(TIFFDirectory.MODEL_PIXEL_SCALE);
+        double[] tiepoint = dir.getDoubles(TIFFDirectory.MODEL_TIEPOINT);
+        double cellSizeX = 1;
+        double cellSizeY = 1;
+        if (scale != null && scale.length >= 2) {
+            cellSizeX = scale[0];
+            cellSizeY = scale[1];
+        }
+        if (!(cellSizeX > 0) || Math.abs(cellSizeX - cellSizeY) > cellSizeX * 1e-6) {
+            throw new IOException("Only GeoTIFF files with square cells are supported");
+        }
+
+        // upper left corner of the upper left cell
+        double west = 0;
+        double north = layout.rows * cellSizeY;
+        if (tiepoint != null && tiepoint.length >= 6) {
+            west = tiepoint[3] - tiepoint[0] * cellSizeX;
+            north = tiepoint[4] + tiepoint[1] * cellSizeY;
+        }
+        if (isPixelIsPoint(dir)) {
+            // the tiepoint is at the center of the cell
+            west -= cellSizeX / 2;
+            north += cellSizeY / 2;
+        }
+        layout.cellSize = cellSizeX;
+        layout.west = west;
+        layout.south = north - layout.rows * cellSizeY;
+
+        String noData = dir.getASCII(TIFFDirectory.GDAL_NODATA);
+        if (noData != null) {
+            try {
+                layout.noDataValue = Float.parseFloat(noData.trim());
+            } catch (NumberFormatException exc) {
+                // ignore an invalid void value
+            }
+        }
+    }
+
+    /**
+     * Returns whether the GeoKeyDirectory specifies that values are at cell
+     * centers.
+     */
+    private static boolean isPixelIsPoint(TIFFDirectory dir) throws IOException {
+        long[] keys = dir.getLongs(TIFFDirectory.GEO_KEY_DIRECTORY);
+        if (keys == null || keys.length < 4) {
+            return false;
+        }
+        // header of 4 values, followed by keys with 4 values each: key ID,
+        // location of the value (0 for values stored in the key), count and
+        // value
+        int nKeys = (int) keys[3];
+        for (int i = 0; i < nKeys && 4 + i * 4 + 3 < keys.length; i++) {
+            int k = 4 + i * 4;
+            if (keys[k] == GT_RASTER_TYPE_GEO_KEY && keys[k + 1] == 0) {
+                return keys[k + 3] == RASTER_PIXEL_IS_POINT;
+            }
+        }
+        return false;
+    }
+
+    private static void readFully(FileChannel channel, long position, byte[] dst,
+            int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(dst, 0, length);
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of TIFF file");
+            }
+        }
+    }
+
+    /**
+     * Decompresses a strip or tile.
+     */
+    private static void decompress(int compression, byte[] src, int srcLength,
+            byte[] dst, int dstLength) throws IOException {
+        int n;
+        switch (compression) {
+            case LZW:
+                n = LZWCodec.decode(src, srcLength, dst, dstLength);
+                break;
+            case DEFLATE:
+            case OLD_DEFLATE:
+                n = inflate(src, srcLength, dst, dstLength);
+                break;
+            case PACKBITS:
+                n = unpackBits(src, srcLength, dst, dstLength);
+                break;
+            default:
+                throw new IOException("Unsupported TIFF compression " + compression);
+        }
+        if (n < dstLength) {
+            throw new IOException("Corrupt TIFF strip or tile");
+        }
+    }
+
+    private static int inflate(byte[] src, int srcLength, byte[] dst, int dstLength)
+            throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(src, 0, srcLength);
+            int n = 0;
+            while (n < dstLength) {
+                int k = inflater.inflate(dst, n, dstLength - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput()
+                        || inflater.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            return n;
+        } catch (DataFormatException exc) {
+            throw new IOException("Corrupt deflate data in TIFF file", exc);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int unpackBits(byte[] src, int srcLength, byte[] dst, int dstLength) {
+        int n = 0;
+        int i = 0;
+        while (i < srcLength && n < dstLength) {
+            int header = src[i++];
+            if (header >= 0) {
+                // copy the next header + 1 bytes
+                int count = Math.min(Math.min(header + 1, srcLength - i), dstLength - n);
+                System.arraycopy(src, i, dst, n, count);
+                i += header + 1;
+                n += count;
+            } else if (header != -128 && i < srcLength) {
+                // repeat the next byte 1 - header times
+                int count = Math.min(1 - header, dstLength - n);
+                byte b = src[i++];
+                for (int k = 0; k < count; k++) {
+                    dst[n++] = b;
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Sets the cells of a strip or tile to NaN.
+     */
+    private static void fillVoid(Layout layout, Chunk chunk, float[][] grid) {
+        int rows = Math.min(chunk.rows, layout.rows - chunk.firstRow);
+        int cols = Math.min(layout.chunkWidth, layout.cols - chunk.firstCol);
+        for (int r = 0; r < rows; r++) {
+            Arrays.fill(grid[chunk.firstRow + r], chunk.firstCol,
+                    chunk.firstCol + cols, Float.NaN);
+        }
+    }
+
+    /**
+     * Undoes the predictor and copies the values of a decompressed strip or
+     * tile to the grid.
+     */
+    private static void copyToGrid(Layout layout, Chunk chunk, byte[] raw, float[][] grid) {
+        int chunkWidth = layout.chunkWidth;
+        int rows = Math.min(chunk.rows, layout.rows - chunk.firstRow);
+        int cols = Math.min(chunkWidth, layout.cols - chunk.firstCol);
+        ByteBuffer buffer = ByteBuffer.wrap(raw).order(layout.byteOrder);
+        int[] ints = null;
+        short[] shorts = null;
+        for (int r = 0; r < rows; r++) {
+            float[] row = grid[chunk.firstRow + r];
+            int rowStart = r * chunkWidth;
+            int col0 = chunk.firstCol;
+            if (layout.bytesPerSample == 4) {
+                if (layout.predictor == NO_PREDICTOR) {
+                    FloatBuffer floats = buffer.asFloatBuffer();
+                    floats.position(rowStart);
+                    floats.get(row, col0, cols);
+                } else {
+                    if (ints == null) {
+                        ints = new int[chunkWidth];
+                    }
+                    if (layout.predictor == HORIZONTAL_PREDICTOR) {
+                        IntBuffer intBuffer = buffer.asIntBuffer();
+                        intBuffer.position(rowStart);
+                        intBuffer.get(ints);
+                        for (int c = 1; c < chunkWidth; c++) {
+                            ints[c] += ints[c - 1];
+                        }
+                    } else {
+                        floatingPointPredictor(raw, rowStart * 4, chunkWidth, ints);
+                    }
+                    for (int c = 0; c < cols; c++) {
+                        row[col0 + c] = Float.intBitsToFloat(ints[c]);
+                    }
+                }
+            } else {
+                if (shorts == null) {
+                    shorts = new short[chunkWidth];
+                }
+                ShortBuffer shortBuffer = buffer.asShortBuffer();
+                shortBuffer.position(rowStart);
+                shortBuffer.get(shorts);
+                if (layout.predictor == HORIZONTAL_PREDICTOR) {
+                    for (int c = 1; c < chunkWidth; c++) {
+                        shorts[c] += shorts[c - 1];
+                    }
+                }
+                if (layout.sampleFormat == SIGNED_INTEGER) {
+                    for (int c = 0; c < cols; c++) {
+                        row[col0 + c] = shorts[c];
+                    }
+                } else {
+                    for (int c = 0; c < cols; c++) {
+                        row[col0 + c] = shorts[c] & 0xFFFF;
+                    }
+                }
+            }
+            float noDataValue = layout.noDataValue;
+            if (!Float.isNaN(noDataValue)) {
+                for (int c = col0; c < col0 + cols; c++) {
+                    if (row[c] == noDataValue) {
+                        row[c] = Float.NaN;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Undoes the floating point predictor for a row of 32 bit values: bytes
+     * are horizontally differenced, and the bytes of values are stored in
+     * four planes, with the most significant bytes first, regardless of the
+     * byte order of the file.
+     *
+     * @param raw The bytes. The bytes of the row are modified.
+     * @param start The start of the row in raw.
+     * @param width The number of values in the row.
+     * @param ints Receives the bits of the values.
+     */
+    private static void floatingPointPredictor(byte[] raw, int start, int width, int[] ints) {
+        int end = start + width * 4;
+        for (int i = start + 1; i < end; i++) {
+            raw[i] += raw[i - 1];
+        }
+        for (int c = 0; c < width; c++) {
+            int i = start + c;
+            ints[c] = (raw[i] & 0xFF) << 24
+                    | (raw[i + width] & 0xFF) << 16
+                    | (raw[i + 2 * width] & 0xFF) << 8
+                    | (raw[i + 3 * width] & 0xFF);
+        }
+    }
+}
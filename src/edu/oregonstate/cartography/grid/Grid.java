@@ -6,6 +6,7 @@
  */
 package edu.oregonstate.cartography.grid;
 
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import java.text.DecimalFormat;
 
 /**
@@ -35,6 +36,12 @@ public final class Grid {
      */
     private double south = 0;
 
+    /**
+     * Minimum, maximum and void count of tiles. Created when first needed, and
+     * discarded when values change. Null if not created yet.
+     */
+    private volatile GridTileSummary tileSummary;
+
     /**
      * Copy constructor
      * @param template
@@ -50,6 +57,7 @@ public final class Grid {
         for (int row = 0; row < nRows; row++) {
             System.arraycopy(template.grid[row], 0, grid[row], 0, nCols);
         }
+        tileSummary = template.tileSummary;
     }
 
     /**
@@ -109,6 +117,9 @@ public final class Grid {
      */
     public final void setValue(float value, int col, int row) {
         grid[row][col] = value;
+        if (tileSummary != null) {
+            tileSummary = null;
+        }
     }
 
     /**
@@ -120,7 +131,7 @@ public final class Grid {
      * @param row The horizontal row for which a value must be set.
      */
     public void setValue(double value, int col, int row) {
-        grid[row][col] = (float) value;
+        setValue((float) value, col, row);
     }
 
     /**
@@ -167,28 +178,55 @@ public final class Grid {
     }
 
     /**
-     * Returns the minimum and the maximum value in the grid.
+     * Returns the minimum and the maximum value in the grid. Void values are
+     * ignored. The values are taken from the tile summary, which is computed
+     * if it does not exist.
      *
      * @return Returns an array with two elements. The first element is the
      * minimum value in the grid, the second value is the maximum value in the
      * grid.
      */
     public float[] getMinMax() {
-        int cols = this.getCols();
-        int rows = this.getRows();
-        float min = Float.MAX_VALUE;
-        float max = -Float.MAX_VALUE;
-        for (int r = 0; r < rows; ++r) {
-            for (int c = 0; c < cols; ++c) {
-                if (grid[r][c] < min) {
-                    min = grid[r][c];
-                }
-                if (grid[r][c] > max) {
-                    max = grid[r][c];
-                }
-            }
+        return getTileSummary().getMinMax();
+    }
+
+    /**
+     * Returns the summary with minimum, maximum and number of void values for
+     * tiles of this grid. The summary is computed if it does not exist and is
+     * cached until invalidateTileSummary() is called.
+     *
+     * @return The summary.
+     */
+    public GridTileSummary getTileSummary() {
+        return getTileSummary(null);
+    }
+
+    /**
+     * Returns the summary with minimum, maximum and number of void values for
+     * tiles of this grid. The summary is computed if it does not exist and is
+     * cached until invalidateTileSummary() is called.
+     *
+     * @param token Checked while computing the summary. Can be null.
+     * @return The summary.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public GridTileSummary getTileSummary(CancellationToken token) {
+        GridTileSummary summary = tileSummary;
+        if (summary == null) {
+            summary = new GridTileSummary(this, token);
+            tileSummary = summary;
         }
-        return new float[]{min, max};
+        return summary;
+    }
+
+    /**
+     * Discards the tile summary. Must be called after values in the array
+     * returned by getGrid() have been changed. setValue() calls this method,
+     * and ThreadedGridOperator calls it for its destination grids.
+     */
+    public void invalidateTileSummary() {
+        tileSummary = null;
     }
 
     /**
@@ -218,6 +256,13 @@ public final class Grid {
         return cellSize;
     }
 
+    /**
+     * Returns the array with the grid values. Callers that change values in
+     * the array must call invalidateTileSummary() afterwards, otherwise
+     * getMinMax() and getTileSummary() return outdated values.
+     *
+     * @return The grid values, indexed by row and column.
+     */
     public float[][] getGrid() {
         return grid;
     }
@@ -1,7 +1,12 @@
 package edu.oregonstate.cartography.grid;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteOrder;
 import java.util.StringTokenizer;
 
 /**
@@ -17,6 +22,27 @@ public class GridHeaderImporter {
     private double cellSize = Double.NaN;
     private float noDataValue = Float.NaN;
 
+    /**
+     * The byte order of binary float grids, null if not specified.
+     */
+    private ByteOrder byteOrder = null;
+
+    public GridHeaderImporter() {
+    }
+
+    /**
+     * Creates a header for a grid format with a binary header.
+     */
+    GridHeaderImporter(int cols, int rows, double west, double south,
+            double cellSize, float noDataValue) {
+        this.cols = cols;
+        this.rows = rows;
+        this.west = west;
+        this.south = south;
+        this.cellSize = cellSize;
+        this.noDataValue = noDataValue;
+    }
+
     /*
      * returns whether valid values have been found
      */
@@ -25,36 +51,97 @@ public class GridHeaderImporter {
         // noDataValue is optional
     }
 
+    /**
+     * Reads the header of an ESRI ASCII grid file without reading the grid
+     * values, for example to estimate the memory required for the grid. ESRI
+     * ASCII grids can be compressed with gzip or zip. For an ESRI binary
+     * float grid, the .hdr file is read. For a GeoTIFF file,
+     * the image file directory is read.
+     *
+     * @param file The grid file.
+     * @return The header.
+     * @throws IOException If the file cannot be read or has no valid header.
+     */
+    public static GridHeaderImporter read(File file) throws IOException {
+        if (GeoTIFFGridReader.isGeoTIFF(file.getName())) {
+            return GeoTIFFGridReader.readHeader(file);
+        }
+        // the header of a binary float grid is in a separate file
+        boolean floatGrid = EsriFloatGridReader.isFloatGrid(file.getName());
+        if (floatGrid) {
+            file = EsriFloatGridReader.getHeaderFile(file);
+        }
+        GridHeaderImporter header = new GridHeaderImporter();
+        InputStream input = floatGrid ? new FileInputStream(file)
+                : EsriASCIIGridReader.openInput(file);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                input, "US-ASCII"))) {
+            header.readHeader(reader, !floatGrid);
+        } catch (RuntimeException exc) {
+            throw new IOException("Invalid grid header in " + file.getName(), exc);
+        }
+        if (!header.isValid()) {
+            throw new IOException("Invalid grid header in " + file.getName());
+        }
+        return header;
+    }
+
     String readHeader(BufferedReader reader, boolean stopOnFirstUnknownLine) throws IOException {
         cols = rows = 0;
         west = south = cellSize = Double.NaN;
         noDataValue = Float.NaN;
+        byteOrder = null;
         String line;
         while ((line = reader.readLine()) != null) {
-            StringTokenizer tokenizer = new StringTokenizer(line, " \t,;");
-            String str = tokenizer.nextToken().trim().toLowerCase();
-            if (str.equals("ncols")) {
-                cols = Integer.parseInt(tokenizer.nextToken());
-            } else if (str.equals("nrows")) {
-                rows = Integer.parseInt(tokenizer.nextToken());
-            } else if (str.equals("xllcenter") || str.equals("xllcorner")) {
-                west = Double.parseDouble(tokenizer.nextToken());
-            } else if (str.equals("yllcenter") || str.equals("yllcorner")) {
-                south = Double.parseDouble(tokenizer.nextToken());
-            } else if (str.equals("cellsize")) {
-                cellSize = Double.parseDouble(tokenizer.nextToken());
-            } else if (str.startsWith("nodata")) {
-                noDataValue = Float.parseFloat(tokenizer.nextToken());
-            } else {
+            if (!readHeaderLine(line) && stopOnFirstUnknownLine) {
                 // done reading the header
-                if (stopOnFirstUnknownLine) {
-                    return line;
-                }
+                return line;
             }
         }
         return null;
     }
 
+    /**
+     * Reads a line of a header.
+     *
+     * @param line The line.
+     * @return True if the line is empty or has a header keyword, false
+     * otherwise.
+     */
+    boolean readHeaderLine(String line) {
+        StringTokenizer tokenizer = new StringTokenizer(line, " \t,;");
+        if (!tokenizer.hasMoreTokens()) {
+            return true;
+        }
+        String str = tokenizer.nextToken().trim().toLowerCase();
+        if (str.equals("ncols")) {
+            cols = Integer.parseInt(tokenizer.nextToken());
+        } else if (str.equals("nrows")) {
+            rows = Integer.parseInt(tokenizer.nextToken());
+        } else if (str.equals("xllcenter") || str.equals("xllcorner")) {
+            west = Double.parseDouble(tokenizer.nextToken());
+        } else if (str.equals("yllcenter") || str.equals("yllcorner")) {
+            south = Double.parseDouble(tokenizer.nextToken());
+        } else if (str.equals("cellsize")) {
+            cellSize = Double.parseDouble(tokenizer.nextToken());
+        } else if (str.startsWith("nodata")) {
+            noDataValue = Float.parseFloat(tokenizer.nextToken());
+        } else if (str.equals("byteorder")) {
+            // LSBFIRST or I for Intel, MSBFIRST or M for Motorola
+            String order = tokenizer.nextToken().toUpperCase();
+            if (order.startsWith("LSB") || order.equals("I")) {
+                byteOrder = ByteOrder.LITTLE_ENDIAN;
+            } else if (order.startsWith("MSB") || order.equals("M")) {
+                byteOrder = ByteOrder.BIG_ENDIAN;
+            } else {
+                throw new IllegalArgumentException("Unknown byte order " + order);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
     /**
      * @return the cols
      */
@@ -96,4 +183,11 @@ public class GridHeaderImporter {
     public float getNoDataValue() {
         return noDataValue;
     }
+
+    /**
+     * @return the byte order of a binary float grid, or null if not specified
+     */
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
 }
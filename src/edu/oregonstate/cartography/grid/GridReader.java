@@ -0,0 +1,64 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Reads a grid with the reader for the file extension. Files with the .flt
+ * extension are read as ESRI binary float grids, files with the .tif or .tiff
+ * extension as GeoTIFF files, all other files as ESRI ASCII grids. ESRI
+ * ASCII grids can be compressed with gzip or zip.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class GridReader {
+
+    private GridReader() {
+    }
+
+    /**
+     * Returns whether a file name has the extension of a supported grid
+     * format.
+     *
+     * @param fileName The file name or path.
+     * @return True for .asc, .asc.gz, .asc.zip, .flt, .tif and .tiff files.
+     */
+    public static boolean isGridFile(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        return name.endsWith(".asc") || name.endsWith(".asc.gz") || name.endsWith(".asc.zip")
+                || EsriFloatGridReader.isFloatGrid(fileName)
+                || GeoTIFFGridReader.isGeoTIFF(fileName);
+    }
+
+    /**
+     * Reads a grid.
+     *
+     * @param filePath The path of the grid file.
+     * @return The grid.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Grid read(String filePath) throws IOException {
+        return read(filePath, null);
+    }
+
+    /**
+     * Reads a grid.
+     *
+     * @param filePath The path of the grid file.
+     * @param progressIndicator Informed about progress. Can be null.
+     * @return The grid, or null if the progress indicator has been aborted.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Grid read(String filePath, ProgressIndicator progressIndicator)
+            throws IOException {
+        if (EsriFloatGridReader.isFloatGrid(filePath)) {
+            return EsriFloatGridReader.read(filePath, progressIndicator);
+        }
+        if (GeoTIFFGridReader.isGeoTIFF(filePath)) {
+            return GeoTIFFGridReader.read(filePath, progressIndicator);
+        }
+        return EsriASCIIGridReader.read(filePath, progressIndicator);
+    }
+}
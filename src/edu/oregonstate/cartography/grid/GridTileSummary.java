@@ -0,0 +1,218 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+
+/**
+ * Minimum, maximum and number of void (NaN) values for square tiles of a grid.
+ * Operators use this summary to skip tiles that do not need to be processed,
+ * for example tiles that only contain void values, or tiles with an elevation
+ * range that is not crossed by any contour line. Tiles along the eastern and
+ * southern borders of the grid may be smaller than TILE_SIZE.
+ *
+ * A summary is not updated when grid values change. It is created and cached
+ * by Grid.getTileSummary() and discarded by Grid.invalidateTileSummary().
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class GridTileSummary {
+
+    /**
+     * The number of columns and rows in a tile.
+     */
+    public static final int TILE_SIZE = 64;
+
+    /**
+     * Shift to convert between grid columns or rows and tile columns or rows.
+     */
+    public static final int TILE_SHIFT = 6;
+
+    private final int tileCols;
+    private final int tileRows;
+    private final int gridCols;
+    private final int gridRows;
+
+    /**
+     * Smallest value in each tile, row by row. Float.MAX_VALUE for tiles that
+     * only contain void values.
+     */
+    private final float[] min;
+
+    /**
+     * Largest value in each tile, row by row. -Float.MAX_VALUE for tiles that
+     * only contain void values.
+     */
+    private final float[] max;
+
+    /**
+     * The number of void values in each tile, row by row.
+     */
+    private final int[] voidCount;
+
+    /**
+     * Computes the summary for a grid. Rows of tiles are computed in parallel.
+     *
+     * @param grid The grid.
+     * @param token Checked while computing. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    GridTileSummary(Grid grid, final CancellationToken token) {
+        gridCols = grid.getCols();
+        gridRows = grid.getRows();
+        tileCols = (gridCols + TILE_SIZE - 1) >> TILE_SHIFT;
+        tileRows = (gridRows + TILE_SIZE - 1) >> TILE_SHIFT;
+        min = new float[tileCols * tileRows];
+        max = new float[tileCols * tileRows];
+        voidCount = new int[tileCols * tileRows];
+        final float[][] g = grid.getGrid();
+        SharedExecutor.forEachBand(tileRows, 1, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int firstTileRow, int endTileRow) {
+                for (int tileRow = firstTileRow; tileRow < endTileRow; tileRow++) {
+                    summarizeTileRow(g, tileRow);
+                }
+            }
+
+            @Override
+            protected boolean isCancelled() {
+                return CancellationToken.isCancelled(token);
+            }
+        });
+        CancellationToken.throwIfCancelled(token);
+    }
+
+    /**
+     * Computes minimum, maximum and void count for a row of tiles.
+     */
+    private void summarizeTileRow(float[][] g, int tileRow) {
+        final int firstRow = tileRow << TILE_SHIFT;
+        final int endRow = Math.min(gridRows, firstRow + TILE_SIZE);
+        final int tileOffset = tileRow * tileCols;
+        for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+            min[tileOffset + tileCol] = Float.MAX_VALUE;
+            max[tileOffset + tileCol] = -Float.MAX_VALUE;
+        }
+        for (int row = firstRow; row < endRow; row++) {
+            final float[] r = g[row];
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                final int firstCol = tileCol << TILE_SHIFT;
+                final int endCol = Math.min(gridCols, firstCol + TILE_SIZE);
+                float tileMin = min[tileOffset + tileCol];
+                float tileMax = max[tileOffset + tileCol];
+                int voids = 0;
+                for (int col = firstCol; col < endCol; col++) {
+                    final float v = r[col];
+                    if (v < tileMin) {
+                        tileMin = v;
+                    }
+                    if (v > tileMax) {
+                        tileMax = v;
+                    }
+                    if (v != v) {
+                        ++voids;
+                    }
+                }
+                min[tileOffset + tileCol] = tileMin;
+                max[tileOffset + tileCol] = tileMax;
+                voidCount[tileOffset + tileCol] += voids;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of tile columns.
+     *
+     * @return The number of tiles in horizontal direction.
+     */
+    public int getTileCols() {
+        return tileCols;
+    }
+
+    /**
+     * Returns the number of tile rows.
+     *
+     * @return The number of tiles in vertical direction.
+     */
+    public int getTileRows() {
+        return tileRows;
+    }
+
+    /**
+     * Returns the smallest value in a tile.
+     *
+     * @param tileCol The tile column.
+     * @param tileRow The tile row.
+     * @return The smallest value, or Float.MAX_VALUE if the tile only contains
+     * void values.
+     */
+    public float getMin(int tileCol, int tileRow) {
+        return min[tileRow * tileCols + tileCol];
+    }
+
+    /**
+     * Returns the largest value in a tile.
+     *
+     * @param tileCol The tile column.
+     * @param tileRow The tile row.
+     * @return The largest value, or -Float.MAX_VALUE if the tile only contains
+     * void values.
+     */
+    public float getMax(int tileCol, int tileRow) {
+        return max[tileRow * tileCols + tileCol];
+    }
+
+    /**
+     * Returns the number of void values in a tile.
+     *
+     * @param tileCol The tile column.
+     * @param tileRow The tile row.
+     * @return The number of NaN values.
+     */
+    public int getVoidCount(int tileCol, int tileRow) {
+        return voidCount[tileRow * tileCols + tileCol];
+    }
+
+    /**
+     * Returns the number of cells in a tile.
+     *
+     * @param tileCol The tile column.
+     * @param tileRow The tile row.
+     * @return The number of cells, which is smaller than TILE_SIZE * TILE_SIZE
+     * for tiles along the eastern and southern borders.
+     */
+    public int getCellCount(int tileCol, int tileRow) {
+        int w = Math.min(gridCols - (tileCol << TILE_SHIFT), TILE_SIZE);
+        int h = Math.min(gridRows - (tileRow << TILE_SHIFT), TILE_SIZE);
+        return w * h;
+    }
+
+    /**
+     * Returns whether a tile only contains void values.
+     *
+     * @param tileCol The tile column.
+     * @param tileRow The tile row.
+     * @return True if all values in the tile are NaN.
+     */
+    public boolean isVoid(int tileCol, int tileRow) {
+        return getVoidCount(tileCol, tileRow) == getCellCount(tileCol, tileRow);
+    }
+
+    /**
+     * Returns the minimum and maximum of all tiles.
+     *
+     * @return An array with the minimum and the maximum value. Like
+     * Grid.getMinMax(), Float.MAX_VALUE and -Float.MAX_VALUE are returned if
+     * the grid only contains void values.
+     */
+    public float[] getMinMax() {
+        float gridMin = Float.MAX_VALUE;
+        float gridMax = -Float.MAX_VALUE;
+        for (int i = 0; i < min.length; i++) {
+            gridMin = Math.min(gridMin, min[i]);
+            gridMax = Math.max(gridMax, max[i]);
+        }
+        return new float[]{gridMin, gridMax};
+    }
+}
@@ -0,0 +1,37 @@
+package edu.oregonstate.cartography.grid;
+
+import java.io.IOException;
+
+/**
+ * Writes a grid with the exporter for the file extension. Files with the .flt
+ * extension are written as ESRI binary float grids, files with the .tif or
+ * .tiff extension as GeoTIFF files, all other files as ESRI ASCII grids.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class GridWriter {
+
+    private GridWriter() {
+    }
+
+    /**
+     * Writes a grid.
+     *
+     * @param grid The grid to write.
+     * @param filePath The path of the file.
+     * @param decimals The number of decimals for ESRI ASCII grids between 0
+     * and 9, or -1 for the shortest representation that is read back as the
+     * same value. Ignored by binary formats.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Grid grid, String filePath, int decimals) throws IOException {
+        if (EsriFloatGridReader.isFloatGrid(filePath)) {
+            ESRIFloatGridExporter.export(grid, filePath);
+        } else if (GeoTIFFGridReader.isGeoTIFF(filePath)) {
+            GeoTIFFGridExporter.export(grid, filePath);
+        } else {
+            ESRIASCIIGridExporter.export(grid, filePath, decimals);
+        }
+    }
+}
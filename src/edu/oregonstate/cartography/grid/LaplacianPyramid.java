@@ -1,5 +1,6 @@
 package edu.oregonstate.cartography.grid;
 
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import edu.oregonstate.cartography.grid.operators.GridScaleOperator;
 import java.util.Arrays;
 
@@ -16,6 +17,19 @@ public class LaplacianPyramid {
     private static final float wc = 0.05f;
 
     public void createPyramid(Grid[] gaussianPyramid) {
+        createPyramid(gaussianPyramid, null);
+    }
+
+    /**
+     * Computes the levels of this pyramid from the levels of a Gaussian
+     * pyramid.
+     *
+     * @param gaussianPyramid The levels of the Gaussian pyramid.
+     * @param token Checked before each level is computed. Can be null.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public void createPyramid(Grid[] gaussianPyramid, CancellationToken token) {
 
         levels = new Grid[gaussianPyramid.length];
 
@@ -25,6 +39,7 @@ public class LaplacianPyramid {
         // compute the levels of this Laplacian pyramid by computing differences
         // between the levels of the Gaussian pyramid.
         for (int i = gaussianPyramid.length - 1; i > 0; i--) {
+            CancellationToken.throwIfCancelled(token);
 
             Grid nextLargerGrid = gaussianPyramid[i - 1];
 
@@ -311,6 +326,7 @@ public class LaplacianPyramid {
                 lowFreqSum.setValue(g1row[c] + g2row[c] * scale, c, r);
             }
         }
+        lowFreqSum.invalidateTileSummary();
     }
 
     /**
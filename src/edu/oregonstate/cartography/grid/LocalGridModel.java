@@ -1,5 +1,6 @@
 package edu.oregonstate.cartography.grid;
 
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import edu.oregonstate.cartography.grid.operators.GridDiffDivOperator;
 import edu.oregonstate.cartography.grid.operators.GridGaussLowPassOperator;
 import edu.oregonstate.cartography.grid.operators.GridScaleToRangeOperator;
@@ -10,6 +11,9 @@ import edu.oregonstate.cartography.grid.operators.GridStandardDeviationOperator;
  * hypsometric tints. See:
  * http://cartographicperspectives.org/index.php/journal/article/view/cp74-huffman-patterson/623
  *
+ * The filtered grid is computed when first needed, possibly by a rendering
+ * thread, so access is synchronized.
+ *
  * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
  * University
  */
@@ -30,33 +34,62 @@ class LocalGridModel {
     public LocalGridModel() {
     }
 
-    public void setGrid(Grid grid, float[] minMax, LaplacianPyramid laplacianPyramid) {
+    public synchronized void setGrid(Grid grid, float[] minMax, LaplacianPyramid laplacianPyramid) {
         originalGrid = grid;
         originalGridMinMax = minMax;
         originalGridLaplacianPyramid = laplacianPyramid;
     }
 
-    public Grid getFilteredGrid() {
+    /**
+     * Copies the settings and the grids to another model. The grids are
+     * shared, as they are replaced rather than modified.
+     *
+     * @param copy The model to copy to.
+     */
+    public synchronized void copyTo(LocalGridModel copy) {
+        synchronized (copy) {
+            copy.filteredGrid = filteredGrid;
+            copy.localGridLowPassStd = localGridLowPassStd;
+            copy.localGridStandardDeviationLevels = localGridStandardDeviationLevels;
+            copy.originalGrid = originalGrid;
+            copy.originalGridMinMax = originalGridMinMax;
+            copy.originalGridLaplacianPyramid = originalGridLaplacianPyramid;
+            copy.lowPassGrid = lowPassGrid;
+            copy.stdGrid = stdGrid;
+        }
+    }
+
+    /**
+     * Returns the filtered grid, which is computed if it does not exist yet.
+     *
+     * @param token Checked while computing. Can be null.
+     * @return The filtered grid.
+     */
+    public synchronized Grid getFilteredGrid(CancellationToken token) {
         if (filteredGrid == null) {
-            updateFilteredGrid();
+            updateFilteredGrid(token);
         }
         return filteredGrid;
     }
 
-    private void updateLowPassGrid() {
+    private void updateLowPassGrid(CancellationToken token) {
         if (originalGrid != null) {
             //long startTime = System.nanoTime();
             //System.out.println("low pass: start");
-            lowPassGrid = new GridGaussLowPassOperator(localGridLowPassStd).operate(originalGrid);
+            GridGaussLowPassOperator op = new GridGaussLowPassOperator(localGridLowPassStd);
+            op.setCancellationToken(token);
+            lowPassGrid = op.operate(originalGrid);
             //System.out.println("low pass: end " + (System.nanoTime() - startTime) / 1000 / 1000 + "ms");
         }
     }
 
-    private void updateStdGrid() {
+    private void updateStdGrid(CancellationToken token) {
         if (originalGrid != null) {
             //long startTime = System.nanoTime();
             //System.out.println("std dev: start");
-            stdGrid = new GridStandardDeviationOperator(localGridStandardDeviationLevels, originalGridLaplacianPyramid).operate(originalGrid);
+            GridStandardDeviationOperator op = new GridStandardDeviationOperator(localGridStandardDeviationLevels, originalGridLaplacianPyramid);
+            op.setCancellationToken(token);
+            stdGrid = op.operate(originalGrid);
             //System.out.println("std dev: end " + (System.nanoTime() - startTime) / 1000 / 1000 + "ms");
         }
     }
@@ -67,43 +100,48 @@ class LocalGridModel {
      * as introduced by Huffman & Patterson, see
      * http://cartographicperspectives.org/index.php/journal/article/view/cp74-huffman-patterson/623
      */
-    private void updateFilteredGrid() {
+    private void updateFilteredGrid(CancellationToken token) {
         if (originalGrid == null) {
             return;
         }
         if (lowPassGrid == null) {
-            updateLowPassGrid();
+            updateLowPassGrid(token);
         }
         if (stdGrid == null) {
-            updateStdGrid();
+            updateStdGrid(token);
         }
         //long startTime = System.nanoTime();
         //System.out.println("local grid: start");
-        filteredGrid = new GridDiffDivOperator().operate(originalGrid, lowPassGrid, stdGrid);
-        new GridScaleToRangeOperator(originalGridMinMax).operate(filteredGrid, filteredGrid);
+        GridDiffDivOperator diffDivOp = new GridDiffDivOperator();
+        diffDivOp.setCancellationToken(token);
+        Grid filtered = diffDivOp.operate(originalGrid, lowPassGrid, stdGrid);
+        GridScaleToRangeOperator scaleOp = new GridScaleToRangeOperator(originalGridMinMax);
+        scaleOp.setCancellationToken(token);
+        scaleOp.operate(filtered, filtered);
+        filteredGrid = filtered;
         //System.out.println("local grid: end " + (System.nanoTime() - startTime) / 1000 / 1000 + "ms");
     }
 
     /**
      * @return the localGridLowPassStd
      */
-    public double getLocalGridLowPassStd() {
+    public synchronized double getLocalGridLowPassStd() {
         return localGridLowPassStd;
     }
 
     /**
      * @param localGridLowPassStd the localGridLowPassStd to set
      */
-    public void setLocalGridLowPassStd(double localGridLowPassStd) {
+    public synchronized void setLocalGridLowPassStd(double localGridLowPassStd) {
         this.localGridLowPassStd = localGridLowPassStd;
-        updateLowPassGrid();
-        updateFilteredGrid();
+        updateLowPassGrid(null);
+        updateFilteredGrid(null);
     }
 
     /**
      * @return the localGridStandardDeviationLevels
      */
-    public int getLocalGridStandardDeviationLevels() {
+    public synchronized int getLocalGridStandardDeviationLevels() {
         return localGridStandardDeviationLevels;
     }
 
@@ -111,10 +149,10 @@ class LocalGridModel {
      * @param localGridStandardDeviationFilterSize the
      * localGridStandardDeviationFilterSize to set
      */
-    public void setLocalGridStandardDeviationLevels(int levels) {
+    public synchronized void setLocalGridStandardDeviationLevels(int levels) {
         this.localGridStandardDeviationLevels = levels;
-        updateStdGrid();
-        updateFilteredGrid();
+        updateStdGrid(null);
+        updateFilteredGrid(null);
     }
 
 }
@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid;
 
 import static edu.oregonstate.cartography.grid.Model.ForegroundVisualization.ILLUMINATED_CONTOURS;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator.ColorVisualization;
 import edu.oregonstate.cartography.grid.operators.GridAddOperator;
@@ -79,6 +80,12 @@ public class Model implements Cloneable {
      */
     private Grid generalizedGrid;
 
+    /**
+     * incremented whenever generalizedGrid is replaced. Identifies grids
+     * derived from the generalized grid in caches.
+     */
+    private long generalizedGridVersion = 0;
+
     /**
      * slope values of generalized grid.
      */
@@ -198,7 +205,19 @@ public class Model implements Cloneable {
      */
     private final LocalGridModel localGridModel = new LocalGridModel();
 
+    /**
+     * unit aspect vectors of the low-pass filtered generalized grid for
+     * illuminated contours. Recomputed when the generalized grid or
+     * contoursAspectGaussBlur change.
+     */
+    private final AspectFieldCache contoursAspectFieldCache;
+
     public Model() {
+        this(new AspectFieldCache());
+    }
+
+    private Model(AspectFieldCache contoursAspectFieldCache) {
+        this.contoursAspectFieldCache = contoursAspectFieldCache;
         predefinedColorRamps = new ArrayList<>();
 
         float[] pos = new float[]{0.0F, 1.0F};
@@ -308,24 +327,83 @@ public class Model implements Cloneable {
         }
 
         //long start = System.nanoTime();
+        Grid generalized = generalizeGrid(grid, gridMinMax, laplacianPyramid, null);
+        generalizedSlopeGrid = new GridSlopeOperator().operate(generalized);
+        generalizedGrid = generalized;
+        ++generalizedGridVersion;
+        //System.out.println((System.nanoTime() - start) / 1000 / 1000 + "ms");
+    }
+
+    /**
+     * Computes a generalized grid with the current generalization parameters.
+     *
+     * @param grid The original grid.
+     * @param minMax The minimum and maximum values of the original grid. If
+     * null, the generalized grid is not scaled to this range.
+     * @param pyramid The Laplacian pyramid of the original grid.
+     * @param token Checked while computing. Can be null.
+     * @return A new generalized grid.
+     */
+    private Grid generalizeGrid(Grid grid, float[] minMax,
+            LaplacianPyramid pyramid, CancellationToken token) {
+        Grid generalized;
         if (isGeneralizing()) {
             // compute weights for summing levels in Laplacian pyramid
-            float[] w = new float[laplacianPyramid.getLevels().length];
+            float[] w = new float[pyramid.getLevels().length];
             for (int i = 0; i < w.length; i++) {
                 w[i] = getPyramidLevelWeight(i);
             }
 
             // sum the Laplacian pyramids
-            generalizedGrid = laplacianPyramid.sumLevels(w);
+            generalized = pyramid.sumLevels(w);
+            CancellationToken.throwIfCancelled(token);
 
             // scale the minimum and maximum values of the output generalized grid to 
             // the same range as the input grid.
-            new GridScaleToRangeOperator(gridMinMax).operate(generalizedGrid, generalizedGrid);
+            if (minMax != null) {
+                GridScaleToRangeOperator scaleOp = new GridScaleToRangeOperator(minMax);
+                scaleOp.setCancellationToken(token);
+                scaleOp.operate(generalized, generalized);
+            }
         } else {
-            generalizedGrid = new GridCopyOperator().operate(grid);
+            GridCopyOperator copyOp = new GridCopyOperator();
+            copyOp.setCancellationToken(token);
+            generalized = copyOp.operate(grid);
         }
-        generalizedSlopeGrid = new GridSlopeOperator().operate(generalizedGrid);
-        //System.out.println((System.nanoTime() - start) / 1000 / 1000 + "ms");
+        return generalized;
+    }
+
+    /**
+     * Generalizes a tile of a larger grid with the current generalization
+     * settings. The pyramids of the tile are computed, but this model is not
+     * changed. Unlike the generalized grid of this model, the generalized tile
+     * is not scaled to the range of the original values, because the range
+     * of the entire grid is only known when all tiles have been generalized.
+     * The tile must extend beyond the cells that are used by a margin that
+     * grows with the number of generalized pyramid levels.
+     *
+     * @param tile The tile.
+     * @param token Checked while computing. Can be null.
+     * @return A new generalized grid with the size of the tile.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public Grid generalizeTile(Grid tile, CancellationToken token) {
+        GaussianPyramid gaussianPyramid = new GaussianPyramid(tile, token);
+        LaplacianPyramid pyramid = new LaplacianPyramid();
+        pyramid.createPyramid(gaussianPyramid.getPyramid(), token);
+        return generalizeGrid(tile, null, pyramid, token);
+    }
+
+    /**
+     * Sets the range of elevation values used for hypsometric colors and
+     * contour lines without setting a grid. Used for rendering tiles of a
+     * larger grid with the range of the entire grid.
+     *
+     * @param minMax The minimum and maximum values of the entire grid.
+     */
+    public void setElevationRange(float[] minMax) {
+        gridMinMax = minMax.clone();
     }
 
     /**
@@ -356,6 +434,20 @@ public class Model implements Cloneable {
      * @return
      */
     public BufferedImage renderBackgroundImage(BufferedImage destinationImage) {
+        return renderBackgroundImage(destinationImage, null);
+    }
+
+    /**
+     * Render background image, such as shading or hypsometric tinting.
+     *
+     * @param destinationImage The background image will be rendered to this
+     * image.
+     * @param token Rendering stops with a CancellationException when this
+     * token is cancelled. Can be null.
+     * @return
+     */
+    public BufferedImage renderBackgroundImage(BufferedImage destinationImage,
+            CancellationToken token) {
         if (generalizedGrid == null || destinationImage == null) {
             return null;
         }
@@ -369,24 +461,18 @@ public class Model implements Cloneable {
             graphics.dispose();
         } else {
             // shading
-            ShaderOperator shader = new ShaderOperator();
-            shader.setIlluminationAzimuth(azimuth);
-            shader.setIlluminationZenith(zenith);
-            shader.setVerticalExaggeration(shadingVerticalExaggeration);
+            ShaderOperator shader = setupShaderOperator();
+            shader.setCancellationToken(token);
             Grid reliefComposite = shader.operate(generalizedGrid);
 
             // coloring
-            ColorizerOperator colorizer = new ColorizerOperator(backgroundVisualization);
-            colorizer.setColors(colorRamp.colors, colorRamp.colorPositions);
-
-            Grid terrainGrid;
-            if (backgroundVisualization.isLocal()) {
-                terrainGrid = localGridModel.getFilteredGrid();
-            } else {
-                terrainGrid = generalizedGrid;
-            }
+            ColorizerOperator colorizer = setupColorizerOperator();
+            colorizer.setCancellationToken(token);
+            Grid terrainGrid = getBackgroundTerrainGrid(token);
+            // the summary of the generalized grid was computed by the shader
             colorizer.operate(reliefComposite, terrainGrid, destinationImage,
-                    gridMinMax[0], gridMinMax[1]);
+                    gridMinMax[0], gridMinMax[1],
+                    generalizedGrid.getTileSummary(token));
         }
         return destinationImage;
     }
@@ -399,11 +485,26 @@ public class Model implements Cloneable {
      * @return
      */
     public BufferedImage renderForegroundImage(BufferedImage destinationImage) {
+        return renderForegroundImage(destinationImage, null);
+    }
+
+    /**
+     * Render foreground visualization: illuminated contours
+     *
+     * @param destinationImage The foreground image will be rendered to this
+     * image.
+     * @param token Rendering stops with a CancellationException when this
+     * token is cancelled. Can be null.
+     * @return
+     */
+    public BufferedImage renderForegroundImage(BufferedImage destinationImage,
+            CancellationToken token) {
         if (foregroundVisualization != ForegroundVisualization.NONE) {
             boolean illuminated = (foregroundVisualization == ILLUMINATED_CONTOURS);
             IlluminatedContoursOperator op = setupIlluminatedContoursOperator(illuminated);
-            op.renderToImage(destinationImage, generalizedGrid,
-                    generalizedSlopeGrid, null);
+            op.setCancellationToken(token);
+            op.setAspectField(getContoursAspectField(token));
+            op.renderToImage(destinationImage, generalizedGrid, generalizedSlopeGrid);
         }
         return destinationImage;
     }
@@ -414,23 +515,88 @@ public class Model implements Cloneable {
      * @param grid The new grid.
      */
     public void setGrid(Grid grid) {
-        this.grid = grid;
+        setGrid(grid, null);
+    }
 
+    /**
+     * Set the elevation grid and compute the pyramids and the generalized
+     * grid. If the token is cancelled, a CancellationException is thrown and
+     * this model is not changed.
+     *
+     * @param grid The new grid.
+     * @param token Checked while computing. Can be null.
+     */
+    public void setGrid(Grid grid, CancellationToken token) {
         // find minimum and maximum values in grid
-        gridMinMax = grid.getMinMax();
+        float[] minMax = grid.getMinMax();
 
         // create a Gaussian pyramids
-        GaussianPyramid gaussianPyramid = new GaussianPyramid(grid);
+        GaussianPyramid gaussianPyramid = new GaussianPyramid(grid, token);
 
         // create the Laplacian pyramid 
-        laplacianPyramid = new LaplacianPyramid();
-        laplacianPyramid.createPyramid(gaussianPyramid.getPyramid());
+        LaplacianPyramid pyramid = new LaplacianPyramid();
+        pyramid.createPyramid(gaussianPyramid.getPyramid(), token);
 
-        updateGeneralizedGrid();
+        Grid generalized = generalizeGrid(grid, minMax, pyramid, token);
+        GridSlopeOperator slopeOp = new GridSlopeOperator();
+        slopeOp.setCancellationToken(token);
+        Grid slopeGrid = slopeOp.operate(generalized);
 
+        // all computations succeeded, replace the current grid
+        this.grid = grid;
+        gridMinMax = minMax;
+        laplacianPyramid = pyramid;
+        generalizedGrid = generalized;
+        generalizedSlopeGrid = slopeGrid;
+        ++generalizedGridVersion;
+        contoursAspectFieldCache.invalidate();
         localGridModel.setGrid(generalizedGrid, gridMinMax, laplacianPyramid);
     }
 
+    /**
+     * Returns a copy of this model that can be rendered by other threads while
+     * this model changes. The settings are copied, and the grids are shared,
+     * because grids are replaced rather than modified when settings change.
+     * The cached aspect vectors for contours are shared as well. Copying does
+     * not compute any grids, so this method can be called on the event
+     * dispatching thread. It must be called by the thread that changes this
+     * model.
+     *
+     * @return The copy.
+     */
+    public Model createSnapshot() {
+        Model copy = new Model(contoursAspectFieldCache);
+        copy.grid = grid;
+        copy.gridMinMax = gridMinMax;
+        copy.laplacianPyramid = laplacianPyramid;
+        copy.generalizedGrid = generalizedGrid;
+        copy.generalizedGridVersion = generalizedGridVersion;
+        copy.generalizedSlopeGrid = generalizedSlopeGrid;
+        copy.generalizationMaxLevels = generalizationMaxLevels;
+        copy.generalizationDetails = generalizationDetails;
+        copy.azimuth = azimuth;
+        copy.zenith = zenith;
+        copy.shadingVerticalExaggeration = shadingVerticalExaggeration;
+        copy.backgroundVisualization = backgroundVisualization;
+        copy.foregroundVisualization = foregroundVisualization;
+        copy.colorRamp = copy.new ColorRamp(colorRamp.name,
+                colorRamp.colors.clone(), colorRamp.colorPositions.clone());
+        copy.solidColor = solidColor;
+        copy.contoursInterval = contoursInterval;
+        copy.contoursIlluminatedWidthLow = contoursIlluminatedWidthLow;
+        copy.contoursIlluminatedWidthHigh = contoursIlluminatedWidthHigh;
+        copy.contoursShadowWidthLow = contoursShadowWidthLow;
+        copy.contoursShadowWidthHigh = contoursShadowWidthHigh;
+        copy.contoursMinWidth = contoursMinWidth;
+        copy.contoursTanaka = contoursTanaka;
+        copy.contoursGradientAngle = contoursGradientAngle;
+        copy.contoursIllluminatedGray = contoursIllluminatedGray;
+        copy.contoursAspectGaussBlur = contoursAspectGaussBlur;
+        copy.contoursTransitionAngle = contoursTransitionAngle;
+        localGridModel.copyTo(copy.localGridModel);
+        return copy;
+    }
+
     /**
      * Returns the original ungeneralized grid.
      *
@@ -455,7 +621,62 @@ public class Model implements Cloneable {
      * @return the locally filtered grid.
      */
     public Grid getLocalGrid() {
-        return localGridModel.getFilteredGrid();
+        return localGridModel.getFilteredGrid(null);
+    }
+
+    /**
+     * Returns unit aspect vectors for illuminated contours. The vectors are
+     * computed from the generalized grid filtered with a Gaussian blur with a
+     * standard deviation of contoursAspectGaussBlur. The vectors are cached
+     * and only computed when the generalized grid or the standard deviation
+     * change.
+     *
+     * @param token Checked while computing. Can be null.
+     * @return The aspect vectors, which must not be modified, or null if there
+     * is no generalized grid.
+     */
+    public AspectVectorField getContoursAspectField(CancellationToken token) {
+        if (generalizedGrid == null) {
+            return null;
+        }
+        return contoursAspectFieldCache.getAspectField(generalizedGrid,
+                generalizedGridVersion, contoursAspectGaussBlur, token);
+    }
+
+    /**
+     * Returns the approximate memory used by cached grids that are derived
+     * from the generalized grid.
+     *
+     * @return The memory in bytes.
+     */
+    public long getCachedGridsMemoryBytes() {
+        return contoursAspectFieldCache.getMemoryBytes();
+    }
+
+    /**
+     * Discards cached grids to reduce memory use. The grids are recomputed
+     * when needed.
+     */
+    public void flushCachedGrids() {
+        contoursAspectFieldCache.invalidate();
+    }
+
+    /**
+     * Returns the number of times cached grids were reused.
+     *
+     * @return The number of cache hits.
+     */
+    public long getCachedGridsHitsCount() {
+        return contoursAspectFieldCache.getHitsCount();
+    }
+
+    /**
+     * Returns the number of times cached grids had to be computed.
+     *
+     * @return The number of cache misses.
+     */
+    public long getCachedGridsMissesCount() {
+        return contoursAspectFieldCache.getMissesCount();
     }
 
     /**
@@ -467,6 +688,50 @@ public class Model implements Cloneable {
         return generalizedSlopeGrid;
     }
 
+    /**
+     * Initializes a ShaderOperator with the current model settings.
+     *
+     * @return The new operator.
+     */
+    public ShaderOperator setupShaderOperator() {
+        ShaderOperator shader = new ShaderOperator();
+        shader.setIlluminationAzimuth(azimuth);
+        shader.setIlluminationZenith(zenith);
+        shader.setVerticalExaggeration(shadingVerticalExaggeration);
+        return shader;
+    }
+
+    /**
+     * Initializes a ColorizerOperator for the background visualization with
+     * the current model settings.
+     *
+     * @return The new operator.
+     */
+    public ColorizerOperator setupColorizerOperator() {
+        ColorizerOperator colorizer = new ColorizerOperator(backgroundVisualization);
+        colorizer.setColors(colorRamp.colors, colorRamp.colorPositions);
+        if (gridMinMax != null) {
+            colorizer.setElevationRange(gridMinMax[0], gridMinMax[1]);
+        }
+        return colorizer;
+    }
+
+    /**
+     * Returns the grid with elevation values used for hypsometric colors of
+     * the background visualization.
+     *
+     * @param token Checked while computing a locally filtered grid. Can be
+     * null.
+     * @return The locally filtered grid or the generalized grid.
+     */
+    public Grid getBackgroundTerrainGrid(CancellationToken token) {
+        if (backgroundVisualization.isLocal()) {
+            return localGridModel.getFilteredGrid(token);
+        } else {
+            return generalizedGrid;
+        }
+    }
+
     /**
      * Initializes an illuminatedIlluminatedContoursOperator with the current
      * model settings.
@@ -477,6 +742,21 @@ public class Model implements Cloneable {
      */
     public IlluminatedContoursOperator setupIlluminatedContoursOperator(
             boolean illuminated) {
+        return setupIlluminatedContoursOperator(illuminated, azimuth);
+    }
+
+    /**
+     * Initializes an IlluminatedContoursOperator with the current model
+     * settings and a light azimuth that can differ from the azimuth of the
+     * model.
+     *
+     * @param illuminated If true illuminated contours are created, otherwise
+     * shaded contours are created.
+     * @param lightAzimuth Azimuth of the light in degrees.
+     * @return The new operator.
+     */
+    public IlluminatedContoursOperator setupIlluminatedContoursOperator(
+            boolean illuminated, double lightAzimuth) {
         return new IlluminatedContoursOperator(
                 illuminated,
                 contoursShadowWidthLow,
@@ -485,7 +765,7 @@ public class Model implements Cloneable {
                 contoursIlluminatedWidthHigh,
                 contoursMinWidth,
                 contoursTanaka,
-                azimuth,
+                lightAzimuth,
                 contoursInterval,
                 contoursGradientAngle,
                 contoursIllluminatedGray,
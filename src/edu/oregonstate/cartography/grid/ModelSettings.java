@@ -0,0 +1,361 @@
+package edu.oregonstate.cartography.grid;
+
+import edu.oregonstate.cartography.grid.Model.ForegroundVisualization;
+import edu.oregonstate.cartography.grid.operators.ColorizerOperator.ColorVisualization;
+import java.awt.Color;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Converts the rendering settings of a model to and from Properties, such
+ * that settings can be stored in a text file and applied to a model without a
+ * graphical user interface. Keys that are missing from the properties do not
+ * change the model. If colorRamp.colors and colorRamp.positions are present,
+ * they replace the predefined color ramp selected with colorRamp.name. They
+ * are only written for color ramps that differ from the predefined ramp with
+ * the same name.
+ *
+ * <pre>
+ * generalization.details            -1 (no generalization) to 1
+ * generalization.maxLevels          number of pyramid levels to generalize
+ * light.azimuth                     degrees
+ * light.zenith                      degrees
+ * shading.verticalExaggeration
+ * background.visualization          name of a ColorVisualization
+ * background.solidColor             #rrggbb
+ * colorRamp.name                    name of a predefined color ramp
+ * colorRamp.colors                  comma separated #rrggbb colors
+ * colorRamp.positions               comma separated positions between 0 and 1
+ * foreground.visualization          NONE, ILLUMINATED_CONTOURS or SHADED_CONTOURS
+ * contours.interval
+ * contours.illuminatedWidthLow
+ * contours.illuminatedWidthHigh
+ * contours.shadowWidthLow
+ * contours.shadowWidthHigh
+ * contours.minWidth
+ * contours.tanaka                   true or false
+ * contours.gradientAngle            degrees
+ * contours.illuminatedGray          0 to 255
+ * contours.aspectGaussBlur
+ * contours.transitionAngle          degrees
+ * localGrid.lowPassStd
+ * localGrid.standardDeviationLevels
+ * </pre>
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class ModelSettings {
+
+    /**
+     * All keys of the settings.
+     */
+    private static final List<String> KEYS = Arrays.asList(
+            "generalization.details",
+            "generalization.maxLevels",
+            "light.azimuth",
+            "light.zenith",
+            "shading.verticalExaggeration",
+            "background.visualization",
+            "background.solidColor",
+            "colorRamp.name",
+            "colorRamp.colors",
+            "colorRamp.positions",
+            "foreground.visualization",
+            "contours.interval",
+            "contours.illuminatedWidthLow",
+            "contours.illuminatedWidthHigh",
+            "contours.shadowWidthLow",
+            "contours.shadowWidthHigh",
+            "contours.minWidth",
+            "contours.tanaka",
+            "contours.gradientAngle",
+            "contours.illuminatedGray",
+            "contours.aspectGaussBlur",
+            "contours.transitionAngle",
+            "localGrid.lowPassStd",
+            "localGrid.standardDeviationLevels");
+
+    private ModelSettings() {
+    }
+
+    /**
+     * Returns whether a key is one of the settings. Keys that are not settings
+     * are ignored by apply(), so misspelled keys can be detected with this
+     * method.
+     *
+     * @param key The key.
+     * @return True if the key is a setting.
+     */
+    public static boolean isKey(String key) {
+        return KEYS.contains(key);
+    }
+
+    /**
+     * Reads settings from a properties file.
+     *
+     * @param file The file.
+     * @return The settings.
+     * @throws IOException If the file cannot be read.
+     */
+    public static Properties read(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        return properties;
+    }
+
+    /**
+     * Writes the settings of a model to a properties file.
+     *
+     * @param model The model.
+     * @param file The file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(Model model, File file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            toProperties(model).store(out, "Pyramid Shader settings");
+        }
+    }
+
+    /**
+     * Returns the settings of a model.
+     *
+     * @param model The model.
+     * @return The settings.
+     */
+    public static Properties toProperties(Model model) {
+        Properties p = new Properties();
+        p.setProperty("generalization.details", Double.toString(model.getGeneralizationDetails()));
+        p.setProperty("generalization.maxLevels", Integer.toString(model.generalizationMaxLevels));
+        p.setProperty("light.azimuth", Integer.toString(model.azimuth));
+        p.setProperty("light.zenith", Integer.toString(model.zenith));
+        p.setProperty("shading.verticalExaggeration", Float.toString(model.shadingVerticalExaggeration));
+        p.setProperty("background.visualization", model.backgroundVisualization.name());
+        p.setProperty("background.solidColor", toHex(model.solidColor));
+        p.setProperty("colorRamp.name", model.colorRamp.name);
+        if (!isPredefinedColorRamp(model.colorRamp)) {
+            StringBuilder colors = new StringBuilder();
+            StringBuilder positions = new StringBuilder();
+            for (int i = 0; i < model.colorRamp.colors.length; i++) {
+                if (i > 0) {
+                    colors.append(',');
+                    positions.append(',');
+                }
+                colors.append(toHex(model.colorRamp.colors[i]));
+                positions.append(model.colorRamp.colorPositions[i]);
+            }
+            p.setProperty("colorRamp.colors", colors.toString());
+            p.setProperty("colorRamp.positions", positions.toString());
+        }
+        p.setProperty("foreground.visualization", model.foregroundVisualization.name());
+        p.setProperty("contours.interval", Double.toString(model.contoursInterval));
+        p.setProperty("contours.illuminatedWidthLow", Double.toString(model.contoursIlluminatedWidthLow));
+        p.setProperty("contours.illuminatedWidthHigh", Double.toString(model.contoursIlluminatedWidthHigh));
+        p.setProperty("contours.shadowWidthLow", Double.toString(model.contoursShadowWidthLow));
+        p.setProperty("contours.shadowWidthHigh", Double.toString(model.contoursShadowWidthHigh));
+        p.setProperty("contours.minWidth", Double.toString(model.contoursMinWidth));
+        p.setProperty("contours.tanaka", Boolean.toString(model.contoursTanaka));
+        p.setProperty("contours.gradientAngle", Integer.toString(model.contoursGradientAngle));
+        p.setProperty("contours.illuminatedGray", Integer.toString(model.contoursIllluminatedGray));
+        p.setProperty("contours.aspectGaussBlur", Double.toString(model.contoursAspectGaussBlur));
+        p.setProperty("contours.transitionAngle", Integer.toString(model.contoursTransitionAngle));
+        p.setProperty("localGrid.lowPassStd", Double.toString(model.getLocalGridLowPassStandardDeviation()));
+        p.setProperty("localGrid.standardDeviationLevels", Integer.toString(model.getLocalGridStandardDeviationLevels()));
+        return p;
+    }
+
+    /**
+     * Applies settings to a model. Settings that are not contained in the
+     * properties are not changed. If the model has a grid and the
+     * generalization settings change, the generalized grid is recomputed.
+     *
+     * @param p The settings.
+     * @param model The model.
+     * @throws IllegalArgumentException If a value is invalid. The message
+     * contains the key of the invalid value.
+     */
+    public static void apply(Properties p, Model model) {
+        double details = getDouble(p, "generalization.details", model.getGeneralizationDetails());
+        int maxLevels = getInt(p, "generalization.maxLevels", model.generalizationMaxLevels);
+        boolean generalizationChanged = details != model.getGeneralizationDetails()
+                || maxLevels != model.generalizationMaxLevels;
+        try {
+            model.setGeneralizationDetails(details);
+        } catch (IllegalArgumentException exc) {
+            throw invalid("generalization.details", Double.toString(details));
+        }
+        model.generalizationMaxLevels = maxLevels;
+
+        model.azimuth = getInt(p, "light.azimuth", model.azimuth);
+        model.zenith = getInt(p, "light.zenith", model.zenith);
+        model.shadingVerticalExaggeration = (float) getDouble(p,
+                "shading.verticalExaggeration", model.shadingVerticalExaggeration);
+
+        String s = p.getProperty("background.visualization");
+        if (s != null) {
+            try {
+                model.backgroundVisualization = ColorVisualization.valueOf(s.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException exc) {
+                throw invalid("background.visualization", s);
+            }
+        }
+        model.solidColor = getColor(p, "background.solidColor", model.solidColor);
+
+        s = p.getProperty("colorRamp.name");
+        String colors = p.getProperty("colorRamp.colors");
+        String positions = p.getProperty("colorRamp.positions");
+        if (s != null && (colors == null || positions == null)) {
+            boolean found = false;
+            for (Model.ColorRamp colorRamp : model.predefinedColorRamps) {
+                found |= colorRamp.name.equals(s.trim());
+            }
+            if (!found) {
+                throw invalid("colorRamp.name", s);
+            }
+            model.selectColorRamp(s.trim());
+        }
+        if (colors != null && positions != null) {
+            String[] colorTokens = colors.split(",");
+            String[] positionTokens = positions.split(",");
+            if (colorTokens.length != positionTokens.length || colorTokens.length == 0) {
+                throw invalid("colorRamp.positions", positions);
+            }
+            Color[] c = new Color[colorTokens.length];
+            float[] pos = new float[colorTokens.length];
+            for (int i = 0; i < c.length; i++) {
+                c[i] = parseColor("colorRamp.colors", colorTokens[i]);
+                pos[i] = (float) parseDouble("colorRamp.positions", positionTokens[i]);
+            }
+            String name = p.getProperty("colorRamp.name", "Custom").trim();
+            model.colorRamp = model.new ColorRamp(name, c, pos);
+        }
+
+        s = p.getProperty("foreground.visualization");
+        if (s != null) {
+            try {
+                model.foregroundVisualization = ForegroundVisualization.valueOf(s.trim().toUpperCase(Locale.US));
+            } catch (IllegalArgumentException exc) {
+                throw invalid("foreground.visualization", s);
+            }
+        }
+        model.contoursInterval = getDouble(p, "contours.interval", model.contoursInterval);
+        if (!(model.contoursInterval > 0)) {
+            throw invalid("contours.interval", Double.toString(model.contoursInterval));
+        }
+        model.contoursIlluminatedWidthLow = getDouble(p, "contours.illuminatedWidthLow", model.contoursIlluminatedWidthLow);
+        model.contoursIlluminatedWidthHigh = getDouble(p, "contours.illuminatedWidthHigh", model.contoursIlluminatedWidthHigh);
+        model.contoursShadowWidthLow = getDouble(p, "contours.shadowWidthLow", model.contoursShadowWidthLow);
+        model.contoursShadowWidthHigh = getDouble(p, "contours.shadowWidthHigh", model.contoursShadowWidthHigh);
+        model.contoursMinWidth = getDouble(p, "contours.minWidth", model.contoursMinWidth);
+        s = p.getProperty("contours.tanaka");
+        if (s != null) {
+            model.contoursTanaka = Boolean.parseBoolean(s.trim());
+        }
+        model.contoursGradientAngle = getInt(p, "contours.gradientAngle", model.contoursGradientAngle);
+        model.contoursIllluminatedGray = getInt(p, "contours.illuminatedGray", model.contoursIllluminatedGray);
+        model.contoursAspectGaussBlur = getDouble(p, "contours.aspectGaussBlur", model.contoursAspectGaussBlur);
+        model.contoursTransitionAngle = getInt(p, "contours.transitionAngle", model.contoursTransitionAngle);
+
+        double lowPassStd = getDouble(p, "localGrid.lowPassStd", model.getLocalGridLowPassStandardDeviation());
+        if (lowPassStd != model.getLocalGridLowPassStandardDeviation()) {
+            model.setLocalGridLowPassStd(lowPassStd);
+        }
+        int stdLevels = getInt(p, "localGrid.standardDeviationLevels", model.getLocalGridStandardDeviationLevels());
+        if (stdLevels != model.getLocalGridStandardDeviationLevels()) {
+            model.setLocalGridStandardDeviationLevels(stdLevels);
+        }
+
+        if (generalizationChanged && model.getGrid() != null) {
+            model.updateGeneralizedGrid();
+        }
+    }
+
+    /**
+     * Adds settings that override other settings. If the overriding settings
+     * select a color ramp by name without defining its colors, the colors
+     * and positions of the overridden settings are removed, such that the
+     * named color ramp is used.
+     *
+     * @param settings The settings to change.
+     * @param overrides The overriding settings.
+     */
+    public static void override(Properties settings, Properties overrides) {
+        if (overrides.containsKey("colorRamp.name")) {
+            settings.remove("colorRamp.colors");
+            settings.remove("colorRamp.positions");
+        }
+        settings.putAll(overrides);
+    }
+
+    /**
+     * Returns whether a color ramp has the name, colors and positions of a
+     * predefined color ramp. The colors of the predefined ramps of a model can
+     * be edited, so the ramps of a new model are compared.
+     */
+    private static boolean isPredefinedColorRamp(Model.ColorRamp colorRamp) {
+        for (Model.ColorRamp predefined : new Model().predefinedColorRamps) {
+            if (predefined.name.equals(colorRamp.name)
+                    && Arrays.equals(predefined.colors, colorRamp.colors)
+                    && Arrays.equals(predefined.colorPositions, colorRamp.colorPositions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static IllegalArgumentException invalid(String key, String value) {
+        return new IllegalArgumentException("Invalid value for " + key + ": " + value);
+    }
+
+    private static double parseDouble(String key, String s) {
+        try {
+            return Double.parseDouble(s.trim());
+        } catch (NumberFormatException exc) {
+            throw invalid(key, s);
+        }
+    }
+
+    private static double getDouble(Properties p, String key, double defaultValue) {
+        String s = p.getProperty(key);
+        return s == null ? defaultValue : parseDouble(key, s);
+    }
+
+    private static int getInt(Properties p, String key, int defaultValue) {
+        String s = p.getProperty(key);
+        if (s == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException exc) {
+            throw invalid(key, s);
+        }
+    }
+
+    private static Color parseColor(String key, String s) {
+        try {
+            return Color.decode(s.trim());
+        } catch (NumberFormatException exc) {
+            throw invalid(key, s);
+        }
+    }
+
+    private static Color getColor(Properties p, String key, Color defaultValue) {
+        String s = p.getProperty(key);
+        return s == null ? defaultValue : parseColor(key, s);
+    }
+
+    private static String toHex(Color color) {
+        return String.format("#%06x", color.getRGB() & 0xFFFFFF);
+    }
+}
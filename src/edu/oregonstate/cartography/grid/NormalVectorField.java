@@ -0,0 +1,101 @@
+package edu.oregonstate.cartography.grid;
+
+/**
+ * Unit normal vectors of the surface of a grid, computed with a vertical
+ * exaggeration by ShaderOperator.computeNormalField(). Normals do not depend
+ * on the direction of the light, so shaded reliefs with different light
+ * directions can share the same field.
+ *
+ * The x, y and z components are stored in three grids with the same size and
+ * position as the source grid. Components are NaN for void cells.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class NormalVectorField {
+
+    private final Grid xGrid;
+    private final Grid yGrid;
+    private final Grid zGrid;
+
+    /**
+     * The vertical exaggeration used for computing the normals.
+     */
+    private final double verticalExaggeration;
+
+    /**
+     * Creates a field from grids with normal components.
+     *
+     * @param xGrid Horizontal components.
+     * @param yGrid Vertical components.
+     * @param zGrid Components perpendicular to the grid.
+     * @param verticalExaggeration The vertical exaggeration used for
+     * computing the normals.
+     */
+    public NormalVectorField(Grid xGrid, Grid yGrid, Grid zGrid,
+            double verticalExaggeration) {
+        if (!xGrid.isIdenticalInSize(yGrid) || !xGrid.isIdenticalInSize(zGrid)) {
+            throw new IllegalArgumentException("grids of different size");
+        }
+        this.xGrid = xGrid;
+        this.yGrid = yGrid;
+        this.zGrid = zGrid;
+        this.verticalExaggeration = verticalExaggeration;
+    }
+
+    /**
+     * Returns the grid with the horizontal components of the normals.
+     *
+     * @return The grid, which must not be modified.
+     */
+    public Grid getXGrid() {
+        return xGrid;
+    }
+
+    /**
+     * Returns the grid with the vertical components of the normals.
+     *
+     * @return The grid, which must not be modified.
+     */
+    public Grid getYGrid() {
+        return yGrid;
+    }
+
+    /**
+     * Returns the grid with the components of the normals that are
+     * perpendicular to the grid.
+     *
+     * @return The grid, which must not be modified.
+     */
+    public Grid getZGrid() {
+        return zGrid;
+    }
+
+    /**
+     * Returns the vertical exaggeration used for computing the normals.
+     *
+     * @return The vertical exaggeration.
+     */
+    public double getVerticalExaggeration() {
+        return verticalExaggeration;
+    }
+
+    /**
+     * Returns whether this field was computed for a grid of the same size.
+     *
+     * @param grid The grid to compare with.
+     * @return True if the size is identical.
+     */
+    public boolean isIdenticalInSize(Grid grid) {
+        return xGrid.isIdenticalInSize(grid);
+    }
+
+    /**
+     * Returns the approximate memory used by this field.
+     *
+     * @return The memory in bytes.
+     */
+    public long getMemoryBytes() {
+        return 3L * xGrid.getCols() * xGrid.getRows() * 4;
+    }
+}
@@ -0,0 +1,78 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import java.util.concurrent.CancellationException;
+
+/**
+ * A token that is passed to long-running operations. Operators check the
+ * token regularly and stop as soon as possible after cancel() has been called.
+ * Derived classes can override isCancelled() to link the token to another
+ * cancellation mechanism, for example a SwingWorker.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class CancellationToken {
+
+    /**
+     * Set to true by cancel(). Volatile, as the token is checked by multiple
+     * threads.
+     */
+    private volatile boolean cancelled = false;
+
+    /**
+     * Creates a new token that is not cancelled.
+     */
+    public CancellationToken() {
+    }
+
+    /**
+     * Request operations using this token to stop. Can be called from any
+     * thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Returns whether operations using this token should stop.
+     *
+     * @return True if cancel() has been called.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Throws a CancellationException if this token has been cancelled.
+     *
+     * @throws CancellationException If the token has been cancelled.
+     */
+    public void throwIfCancelled() throws CancellationException {
+        if (isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    /**
+     * Returns whether a token has been cancelled.
+     *
+     * @param token The token to test. Can be null.
+     * @return True if the token is not null and has been cancelled.
+     */
+    public static boolean isCancelled(CancellationToken token) {
+        return token != null && token.isCancelled();
+    }
+
+    /**
+     * Throws a CancellationException if a token has been cancelled.
+     *
+     * @param token The token to test. Can be null.
+     * @throws CancellationException If the token is not null and has been
+     * cancelled.
+     */
+    public static void throwIfCancelled(CancellationToken token) throws CancellationException {
+        if (token != null) {
+            token.throwIfCancelled();
+        }
+    }
+}
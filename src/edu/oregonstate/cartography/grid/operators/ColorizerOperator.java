@@ -1,6 +1,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridTileSummary;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
@@ -83,6 +84,9 @@ public class ColorizerOperator extends ThreadedGridOperator {
     // colored image output
     private BufferedImage dstImage;
 
+    // tile summary of the shading grid, used to fill void tiles
+    private GridTileSummary tileSummary;
+
     // the type of visualization created
     private ColorVisualization colorVisualization = ColorVisualization.GRAY_SHADING;
 
@@ -207,15 +211,43 @@ public class ColorizerOperator extends ThreadedGridOperator {
      */
     public BufferedImage operate(Grid grayShadingGrid, Grid elevationGrid,
             BufferedImage image, float minElev, float maxElev) {
+        return operate(grayShadingGrid, elevationGrid, image, minElev, maxElev,
+                grayShadingGrid.getTileSummary(getCancellationToken()));
+    }
+
+    /**
+     * Compute the color image. The void tiles are taken from a summary that
+     * already exists, which avoids an additional pass over the shading grid.
+     * ShaderOperator fills void tiles of its source grid with void values, so
+     * the summary of the grid that was shaded can be passed.
+     *
+     * @param grayShadingGrid Grid with shading values between 0 and 255
+     * @param elevationGrid Grid with elevation values.
+     * @param image Image to write pixels to. Can be null.
+     * @param minElev Lowest elevation in elevationGrid
+     * @param maxElev Highest elevation in elevationGrid
+     * @param voidTiles Summary with tiles that only contain void values in
+     * grayShadingGrid.
+     * @return An image with new pixels. This can be identical to the passed
+     * image.
+     */
+    public BufferedImage operate(Grid grayShadingGrid, Grid elevationGrid,
+            BufferedImage image, float minElev, float maxElev,
+            GridTileSummary voidTiles) {
         dstImage = image;
-        this.minElev = minElev;
-        this.maxElev = maxElev;
-        super.operate(grayShadingGrid, elevationGrid);
+        setElevationRange(minElev, maxElev);
+        tileSummary = voidTiles;
+        try {
+            super.operate(grayShadingGrid, elevationGrid);
+        } finally {
+            tileSummary = null;
+        }
         return dstImage;
     }
 
     /**
-     * Compute a colored chunk of this image.
+     * Compute a colored chunk of this image. Tiles of the shading grid that
+     * only contain void values are filled with VOID_COLOR.
      *
      * @param grayShadingGrid Grid with shaded values between 0 and 255
      * @param elevationGrid Grid with elevation values.
@@ -224,47 +256,95 @@ public class ColorizerOperator extends ThreadedGridOperator {
      */
     @Override
     protected void operate(Grid grayShadingGrid, Grid elevationGrid, int startRow, int endRow) {
-        int argb = 0;
-        float elev;
         int nCols = dstImage.getWidth();
         int[] imageBuffer = ((DataBufferInt) (dstImage.getRaster().getDataBuffer())).getData();
+        int tileCols = tileSummary.getTileCols();
         for (int row = startRow; row < endRow; ++row) {
-            for (int col = 0; col < nCols; ++col) {
-                //Get the height or gray shading value of the current cell
-                float gray = grayShadingGrid.getValue(col, row);
-                if (Float.isNaN(gray)) {
-                    imageBuffer[row * nCols + col] = VOID_COLOR;
-                    continue;
-                }
-                switch (colorVisualization) {
-                    case GRAY_SHADING:
-                        // convert the shaded gray value to an ARGB pixel value
-                        int g = (int) gray;
-                        argb = g | (g << 8) | (g << 16) | 0xFF000000;
-                        break;
-                    case EXPOSITION:
-                        // apply a color ramp to the shaded gray value 
-                        argb = getLinearRGB(gray, 0, 255, 1f);
-                        break;
-                    case HYPSOMETRIC_SHADING:
-                    case LOCAL_HYPSOMETRIC_SHADING:
-                        // apply a color ramp to the elevation value
-                        elev = elevationGrid.getValue(col, row);
-                        // multiply the elevation color with the gray value of the shading
-                        argb = getLinearRGB(elev, minElev, maxElev, gray / 255f);
-                        break;
-                    case HYPSOMETRIC:
-                    case LOCAL_HYPSOMETRIC:
-                        // apply a color ramp to the elevation value
-                        elev = elevationGrid.getValue(col, row);
-                        argb = getLinearRGB(elev, minElev, maxElev, 1);
-                        break;
+            int tileRow = row >> GridTileSummary.TILE_SHIFT;
+            int rowStart = row * nCols;
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                int firstCol = tileCol << GridTileSummary.TILE_SHIFT;
+                int endCol = Math.min(nCols, firstCol + GridTileSummary.TILE_SIZE);
+                if (tileSummary.isVoid(tileCol, tileRow)) {
+                    Arrays.fill(imageBuffer, rowStart + firstCol, rowStart + endCol, VOID_COLOR);
+                } else {
+                    for (int col = firstCol; col < endCol; ++col) {
+                        imageBuffer[rowStart + col] = colorize(grayShadingGrid, elevationGrid, col, row);
+                    }
                 }
-                imageBuffer[row * nCols + col] = argb;
             }
         }
     }
 
+    /**
+     * Compute the color of a single cell.
+     *
+     * @param grayShadingGrid Grid with shaded values between 0 and 255
+     * @param elevationGrid Grid with elevation values.
+     * @param col Column of the cell.
+     * @param row Row of the cell.
+     * @return The ARGB pixel value.
+     */
+    private int colorize(Grid grayShadingGrid, Grid elevationGrid, int col, int row) {
+        //Get the height or gray shading value of the current cell
+        float gray = grayShadingGrid.getValue(col, row);
+        return getColor(gray, elevationGrid.getValue(col, row));
+    }
+
+    /**
+     * Set the range of elevation values that is mapped to the color ramp.
+     * Must be called before getColor() is used.
+     *
+     * @param minElev Lowest elevation
+     * @param maxElev Highest elevation
+     */
+    public void setElevationRange(float minElev, float maxElev) {
+        this.minElev = minElev;
+        this.maxElev = maxElev;
+    }
+
+    /**
+     * Compute the color for a shading value and an elevation.
+     *
+     * @param gray Shading value between 0 and 255, or NaN.
+     * @param elev Elevation, only used for hypsometric colors.
+     * @return The ARGB pixel value.
+     */
+    public int getColor(float gray, float elev) {
+        if (Float.isNaN(gray)) {
+            return VOID_COLOR;
+        }
+        switch (colorVisualization) {
+            case GRAY_SHADING:
+                // convert the shaded gray value to an ARGB pixel value
+                int g = (int) gray;
+                return g | (g << 8) | (g << 16) | 0xFF000000;
+            case EXPOSITION:
+                // apply a color ramp to the shaded gray value 
+                return getLinearRGB(gray, 0, 255, 1f);
+            case HYPSOMETRIC_SHADING:
+            case LOCAL_HYPSOMETRIC_SHADING:
+                // apply a color ramp to the elevation value
+                // multiply the elevation color with the gray value of the shading
+                return getLinearRGB(elev, minElev, maxElev, gray / 255f);
+            case HYPSOMETRIC:
+            case LOCAL_HYPSOMETRIC:
+                // apply a color ramp to the elevation value
+                return getLinearRGB(elev, minElev, maxElev, 1);
+        }
+        return 0;
+    }
+
+    /**
+     * The elevation grid passed as destination grid is not changed.
+     *
+     * @return False
+     */
+    @Override
+    protected boolean isDestinationWritten() {
+        return false;
+    }
+
     @Override
     public String getName() {
         return "Colorizer";
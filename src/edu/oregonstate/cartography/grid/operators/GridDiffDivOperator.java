@@ -1,11 +1,14 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
 
 // FIXME should be multi-threaded
 
 public class GridDiffDivOperator implements GridOperator{
     
+    private CancellationToken cancellationToken;
+    
     public GridDiffDivOperator() {
     }
   
@@ -30,6 +33,7 @@ public class GridDiffDivOperator implements GridOperator{
         float[][] dstGrid = newGrid.getGrid();
         
         for (int row = 0; row < nrows; ++row) {
+            CancellationToken.throwIfCancelled(cancellationToken);
             float[] srcRow1 = srcGrid1[row];
             float[] srcRow2 = srcGrid2[row];
             float[] srcRow3 = srcGrid3[row];
@@ -47,4 +51,14 @@ public class GridDiffDivOperator implements GridOperator{
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    @Override
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        // this operator is fast and does not report progress
+    }
+
 }
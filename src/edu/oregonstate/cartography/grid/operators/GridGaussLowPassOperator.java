@@ -5,6 +5,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
 
 
 
@@ -45,6 +46,16 @@ public class GridGaussLowPassOperator implements GridOperator{
      */
     private int relativeFilterSize = 8;
 
+    /**
+     * Checked while filtering. Can be null.
+     */
+    private CancellationToken cancellationToken;
+
+    /**
+     * Informed about progress of the two filter passes. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
     /**
      * Applies horizontal Gaussian convolution and stores results in a
      * transposed grid.
@@ -234,10 +245,22 @@ public class GridGaussLowPassOperator implements GridOperator{
         }
         
         HorizontalTransposedConvolution hop = new HorizontalTransposedConvolution();
+        hop.setCancellationToken(cancellationToken);
+        hop.setProgressIndicator(progressIndicator);
         Grid transposedGrid = hop.operate(src);
         return hop.operate(transposedGrid, dst);
     }
 
+    @Override
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    @Override
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
     /**
      * Get the standard deviation of the Gaussian distribution.
      * @return the standard deviation
@@ -8,6 +8,7 @@
 package edu.oregonstate.cartography.grid.operators;
 
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
 
 
 /**
@@ -29,4 +30,19 @@ public interface GridOperator {
      */
     public Grid operate (Grid grid);
     
+    /**
+     * Sets a token that is regularly checked while operating. When the token
+     * is cancelled, the operator stops as soon as possible and throws a
+     * java.util.concurrent.CancellationException.
+     * @param token The token, or null if the operation cannot be cancelled.
+     */
+    public void setCancellationToken(CancellationToken token);
+    
+    /**
+     * Sets a progress indicator that is informed about the progress of the
+     * operation. The operator also stops if the indicator is aborted.
+     * @param progressIndicator The indicator, or null.
+     */
+    public void setProgressIndicator(ProgressIndicator progressIndicator);
+    
 }
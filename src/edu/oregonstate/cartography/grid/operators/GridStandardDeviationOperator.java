@@ -1,7 +1,10 @@
 package edu.oregonstate.cartography.grid.operators;
 
+import edu.oregonstate.cartography.app.SharedExecutor;
 import edu.oregonstate.cartography.grid.Grid;
 import edu.oregonstate.cartography.grid.LaplacianPyramid;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.util.concurrent.CancellationException;
 
 // FIXME filter is square instead of circular
 
@@ -17,6 +20,10 @@ public final class GridStandardDeviationOperator implements /*Threaded*/GridOper
     
     private LaplacianPyramid laplacianPyramid;
 
+    private CancellationToken cancellationToken;
+
+    private ProgressIndicator progressIndicator;
+
     private GridStandardDeviationOperator() {
     }
 
@@ -52,7 +59,6 @@ public final class GridStandardDeviationOperator implements /*Threaded*/GridOper
         newGrid.setWest(grid.getWest());
         newGrid.setSouth(grid.getSouth());
 
-        float[][] srcGrid = grid.getGrid();
         float[][] dstGrid = newGrid.getGrid();
 
         // extract high-pass band from Laplacian pyramid
@@ -87,30 +93,60 @@ public final class GridStandardDeviationOperator implements /*Threaded*/GridOper
             }
         }
 
-        // interior of grid
+        // interior of grid, computed in parallel bands of rows
         // FIXME adjust npts to number of NaNs
         final float npts = filterSize * filterSize;
-        for (int row = halfFilterSize; row < rows - halfFilterSize; row++) {
-            float[] dstRow = dstGrid[row];
-            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
-                float sqDif = 0;
-                for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
-                    float[] srcRow = srcGrid[r];
-                    for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
-                        // FIXME avoid function call
-                        float dif = highPassGrid.getValue(c, r);
-                        // FIXME test for NaN
-                        // FIXME apply weighting with Gaussian bell
-                        sqDif += dif * dif;
+        final Grid hpGrid = highPassGrid;
+        final float[][] dst = dstGrid;
+        final int interiorRows = Math.max(0, rows - 2 * halfFilterSize);
+        final ProgressAggregator progress
+                = new ProgressAggregator(progressIndicator, interiorRows);
+        SharedExecutor.forEachBand(interiorRows, SharedExecutor.bandRows(interiorRows, 16),
+                new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int firstRow, int endRow) {
+                        for (int row = firstRow + halfFilterSize; row < endRow + halfFilterSize; row++) {
+                            float[] dstRow = dst[row];
+                            for (int col = halfFilterSize; col < cols - halfFilterSize; col++) {
+                                float sqDif = 0;
+                                for (int r = row - halfFilterSize; r <= row + halfFilterSize; r++) {
+                                    for (int c = col - halfFilterSize; c <= col + halfFilterSize; c++) {
+                                        // FIXME avoid function call
+                                        float dif = hpGrid.getValue(c, r);
+                                        // FIXME test for NaN
+                                        // FIXME apply weighting with Gaussian bell
+                                        sqDif += dif * dif;
+                                    }
+                                }
+                                float std = (float) Math.sqrt(sqDif / npts);
+                                dstRow[col] = std;
+                            }
+                        }
+                        progress.addWork(endRow - firstRow);
                     }
-                }
-                float std = (float) Math.sqrt(sqDif / npts);
-                dstRow[col] = std;
-            }
+
+                    @Override
+                    protected boolean isCancelled() {
+                        return CancellationToken.isCancelled(cancellationToken)
+                                || progress.isAborted();
+                    }
+                });
+        if (CancellationToken.isCancelled(cancellationToken) || progress.isAborted()) {
+            throw new CancellationException(getName() + " canceled");
         }
         return newGrid;
     }
 
+    @Override
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    @Override
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
     private void operateBorder(Grid src, Grid dst, int col, int row, Grid highPassGrid) {
 
         // make sure filterSize is odd number
@@ -1,10 +1,10 @@
 package edu.oregonstate.cartography.grid.operators;
 
+import edu.oregonstate.cartography.grid.AspectVectorField;
 import edu.oregonstate.cartography.grid.Grid;
-import edu.oregonstate.cartography.gui.SwingWorkerWithProgressIndicator;
+import edu.oregonstate.cartography.grid.GridTileSummary;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
-import javax.swing.SwingWorker;
 
 /**
  * Computes illuminated contour lines from a digital elevation model.
@@ -16,9 +16,6 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
 
     public final int CONTOURS_TRANSPARENT = -1;
 
-    // a SwingWorker for communicating progress and for checking cancel events
-    private SwingWorker progress;
-
     // this image will receive the computed contour lines
     private BufferedImage image;
 
@@ -56,9 +53,9 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
     // standard deviation of Gaussian blur filter applied to grid to create smoothGrid
     private final double aspectGaussBlur;
 
-    // a low-pass version of the source grid. Created with standard deviation
-    // of aspectGaussBlur
-    private Grid smoothGrid;
+    // unit aspect vectors of a low-pass version of the source grid. Created
+    // with standard deviation of aspectGaussBlur
+    private AspectVectorField aspectField;
 
     // gray value of illuminated contours
     private final int illluminatedGray;
@@ -68,6 +65,9 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
 
     // pixel buffer to render to
     private int[] imageBuffer;
+
+    // the row in the grid that corresponds to the first row of the image
+    private int imageFirstRow;
     
     // lowest elevation in grid
     private final float gridMin;
@@ -75,6 +75,39 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
     // highest elevation in grid
     private final float gridMax;
 
+    // unit vector pointing towards the light, x points east, y points north
+    private final double lightX;
+    private final double lightY;
+
+    // cosine of the transition angle
+    private final double cosTransition;
+
+    // lines are black if the cosine of the angle between aspect and light is
+    // smaller than or equal to this value
+    private final double cosShaded;
+
+    // lines are illuminated if the cosine of the angle between aspect and light
+    // is larger than or equal to this value
+    private final double cosIlluminated;
+
+    // line widths multiplied by the cell size are linear functions of
+    // elevation: width = a + b * elevation
+    private final double shadowWidthA, shadowWidthB;
+    private final double illuminatedWidthA, illuminatedWidthB;
+
+    // 1 / interval
+    private final double inverseInterval;
+
+    // cell size of the elevation grid
+    private double cellSize = 1;
+
+    // flag for each tile of the elevation grid, row by row. True if no contour
+    // line crosses the tile.
+    private boolean[] emptyTiles;
+
+    // number of tile columns in the elevation grid
+    private int tileCols;
+
     /**
      *
      * @param illuminated
@@ -121,6 +154,31 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
         this.transitionAngle = transitionAngle;
         this.gridMin = gridMinMax[0];
         this.gridMax = gridMinMax[1];
+
+        // convert azimuth angle to geometric angle, from east counterclockwise
+        double illumination = Math.toRadians(90 - azimuth);
+        lightX = Math.cos(illumination);
+        lightY = Math.sin(illumination);
+
+        // angles between aspect and light are in [0, 180] degrees, where the
+        // cosine is monotonically decreasing. Comparisons of angles are
+        // therefore replaced by comparisons of cosines.
+        cosTransition = Math.cos(Math.toRadians(transitionAngle));
+        int shadedAngle = transitionAngle + gradientAngle;
+        int illuminatedAngle = transitionAngle - gradientAngle;
+        cosShaded = shadedAngle > 180 ? -2 : Math.cos(Math.toRadians(shadedAngle));
+        cosIlluminated = illuminatedAngle < 0 ? 2 : Math.cos(Math.toRadians(illuminatedAngle));
+
+        // w = (gridMax - elevation) / (gridMax - gridMin)
+        // width = widthLow * w + widthHigh * (1 - w)
+        double range = gridMax - gridMin;
+        double wA = range > 0 ? gridMax / range : 0;
+        double wB = range > 0 ? -1. / range : 0;
+        shadowWidthA = shadowWidthHigh + (shadowWidthLow - shadowWidthHigh) * wA;
+        shadowWidthB = (shadowWidthLow - shadowWidthHigh) * wB;
+        illuminatedWidthA = illuminatedWidthHigh + (illuminatedWidthLow - illuminatedWidthHigh) * wA;
+        illuminatedWidthB = (illuminatedWidthLow - illuminatedWidthHigh) * wB;
+        inverseInterval = 1. / interval;
     }
 
     /**
@@ -130,17 +188,236 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
      * grid.
      * @param grid Grid with elevation values.
      * @param slopeGrid Grid with slope values.
-     * @param progress Progress indicator. Not used when scale is 1.
+     * Rendering stops with a CancellationException when the cancellation token
+     * is cancelled. Progress is reported to the progress indicator.
      */
-    public void renderToImage(BufferedImage destinationImage, Grid grid, Grid slopeGrid, SwingWorker progress) {
-        if (destinationImage == null) {
+    public void renderToImage(BufferedImage destinationImage, Grid grid, Grid slopeGrid) {
+        renderToImage(destinationImage, grid, slopeGrid, 0, grid.getRows());
+    }
+
+    /**
+     * Renders contours for a horizontal strip of the grid to the passed image.
+     * The first row of the image corresponds to firstRow in the grid. Pixels
+     * without contour lines are not changed. Rendering a large image strip by
+     * strip limits the required memory.
+     *
+     * @param stripImage Image with a width that is scale times the number of
+     * columns of the grid, and a height that is scale times the number of rows
+     * in the strip.
+     * @param grid Grid with elevation values.
+     * @param slopeGrid Grid with slope values.
+     * @param firstRow The first row of the strip in the grid.
+     * @param endRow The first row after the strip.
+     * Rendering stops with a CancellationException when the cancellation token
+     * is cancelled. Progress is reported to the progress indicator.
+     */
+    public void renderToImage(BufferedImage stripImage, Grid grid, Grid slopeGrid,
+            int firstRow, int endRow) {
+        if (stripImage == null) {
             throw new IllegalArgumentException();
         }
-        this.image = destinationImage;
-        this.progress = progress;
+        int scale = stripImage.getWidth() / grid.getCols();
+        if (scale < 1 || stripImage.getHeight() < (endRow - firstRow) * scale) {
+            throw new IllegalArgumentException("image too small");
+        }
+        this.image = stripImage;
+        this.imageFirstRow = firstRow;
         this.imageBuffer = ((DataBufferInt) (image.getRaster().getDataBuffer())).getData();
-        this.smoothGrid = new GridGaussLowPassOperator(aspectGaussBlur).operate(grid);
-        super.operate(grid, slopeGrid);
+        prepare(grid, slopeGrid, scale > 1);
+        try {
+            super.operateOnRows(grid, slopeGrid, firstRow, endRow);
+        } finally {
+            emptyTiles = null;
+        }
+    }
+
+    /**
+     * Computes aspect vectors if they have not been set, and finds tiles
+     * without contour lines.
+     *
+     * @param grid Grid with elevation values.
+     * @param slopeGrid Grid with slope values.
+     * @param interpolated True if values are interpolated between cells.
+     */
+    private void prepare(Grid grid, Grid slopeGrid, boolean interpolated) {
+        this.cellSize = grid.getCellSize();
+        if (aspectField == null || !aspectField.isIdenticalInSize(grid)) {
+            GridGaussLowPassOperator gaussOp = new GridGaussLowPassOperator(aspectGaussBlur);
+            gaussOp.setCancellationToken(getCancellationToken());
+            Grid smoothGrid = gaussOp.operate(grid);
+            aspectField = new AspectVectorField(smoothGrid, getCancellationToken());
+        }
+        findEmptyTiles(grid.getTileSummary(getCancellationToken()),
+                slopeGrid.getTileSummary(getCancellationToken()), interpolated);
+    }
+
+    /**
+     * Prepares for rendering blocks with renderScaledBlock(). Must be called
+     * once before blocks are rendered.
+     *
+     * @param grid Grid with elevation values.
+     * @param slopeGrid Grid with slope values.
+     */
+    public void prepareScaledBlocks(Grid grid, Grid slopeGrid) {
+        prepare(grid, slopeGrid, true);
+    }
+
+    /**
+     * Renders contours for a block of an image that is scale times larger
+     * than the grid. Pixel (x, y) of the image samples the grid at column
+     * x / scale and row y / scale, and values are bilinearly interpolated
+     * between cells. The scale factor can be fractional. Pixels without
+     * contour lines are not changed. Blocks can be rendered concurrently after
+     * prepareScaledBlocks() has been called.
+     *
+     * @param grid Grid with elevation values.
+     * @param slopeGrid Grid with slope values.
+     * @param scale The image is this many times larger than the grid.
+     * @param x0 The horizontal position of the block in the image.
+     * @param y0 The vertical position of the block in the image.
+     * @param w The width of the block in pixels.
+     * @param h The height of the block in pixels.
+     * @param pixels Receives ARGB pixels.
+     * @param offset Index of the top-left pixel of the block in pixels.
+     * @param stride The distance between two rows in pixels.
+     */
+    public void renderScaledBlock(Grid grid, Grid slopeGrid, double scale,
+            int x0, int y0, int w, int h, int[] pixels, int offset, int stride) {
+        final int cols = grid.getCols();
+        final int rows = grid.getRows();
+        final float[][] elevation = grid.getGrid();
+        final float[][] slope = slopeGrid.getGrid();
+        final float[][] aspectX = aspectField.getXGrid().getGrid();
+        final float[][] aspectY = aspectField.getYGrid().getGrid();
+        for (int j = 0; j < h; j++) {
+            final double gy = (y0 + j) / scale;
+            final int row = (int) gy;
+            if (row < 1 || row >= rows - 2) {
+                continue;
+            }
+            final double t = gy - row;
+            final int tileRowStart = (row >> GridTileSummary.TILE_SHIFT) * tileCols;
+            final float[] elevationTop = elevation[row];
+            final float[] elevationBottom = elevation[row + 1];
+            final float[] slopeTop = slope[row];
+            final float[] slopeBottom = slope[row + 1];
+            final float[] aspectXTop = aspectX[row];
+            final float[] aspectXBottom = aspectX[row + 1];
+            final float[] aspectYTop = aspectY[row];
+            final float[] aspectYBottom = aspectY[row + 1];
+            for (int i = 0; i < w; i++) {
+                final double gx = (x0 + i) / scale;
+                final int col = (int) gx;
+                if (col < 1 || col >= cols - 1
+                        || emptyTiles[tileRowStart + (col >> GridTileSummary.TILE_SHIFT)]) {
+                    continue;
+                }
+                final double u = gx - col;
+                double e = bilinear(elevationTop, elevationBottom, col, u, t);
+                double s = bilinear(slopeTop, slopeBottom, col, u, t);
+                double ax = bilinear(aspectXTop, aspectXBottom, col, u, t);
+                double ay = bilinear(aspectYTop, aspectYBottom, col, u, t);
+                // interpolated unit vectors are shorter than 1
+                double length = Math.sqrt(ax * ax + ay * ay);
+                if (length > 0) {
+                    ax /= length;
+                    ay /= length;
+                }
+                int g = computeGray(e, ax, ay, s);
+                if (g != CONTOURS_TRANSPARENT) {
+                    pixels[offset + j * stride + i] = g | (g << 8) | (g << 16) | 0xFF000000;
+                }
+            }
+        }
+    }
+
+    /**
+     * Bilinear interpolation inside a cell.
+     *
+     * @param top The row with the top corners of the cell.
+     * @param bottom The row with the bottom corners of the cell.
+     * @param col The column of the left corners.
+     * @param u Horizontal position inside the cell between 0 and 1.
+     * @param t Vertical position inside the cell between 0 and 1.
+     * @return The interpolated value.
+     */
+    private static double bilinear(float[] top, float[] bottom, int col,
+            double u, double t) {
+        double left = top[col] + (bottom[col] - top[col]) * t;
+        double right = top[col + 1] + (bottom[col + 1] - top[col + 1]) * t;
+        return left + (right - left) * u;
+    }
+
+    /**
+     * Finds tiles that are not crossed by any contour line. A contour line is
+     * drawn where the distance between the elevation and the closest contour
+     * level is smaller than the line width, which is at most the largest
+     * width in the tile multiplied by the largest slope in the tile. A tile is
+     * empty if no contour level is within this distance of the range of
+     * elevations in the tile. Tiles with void values only are empty.
+     *
+     * @param elevationSummary Tile summary of the elevation grid.
+     * @param slopeSummary Tile summary of the slope grid.
+     * @param interpolated True if values are interpolated between cells.
+     */
+    private void findEmptyTiles(GridTileSummary elevationSummary,
+            GridTileSummary slopeSummary, boolean interpolated) {
+        tileCols = elevationSummary.getTileCols();
+        int tileRows = elevationSummary.getTileRows();
+        emptyTiles = new boolean[tileCols * tileRows];
+        if (!(interval > 0) || Double.isInfinite(interval)) {
+            return;
+        }
+
+        // for scaled images, the last column and row of a tile are
+        // interpolated with values of the neighboring tiles
+        int extension = interpolated ? 1 : 0;
+        for (int tileRow = 0; tileRow < tileRows; tileRow++) {
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                double lo = Double.MAX_VALUE;
+                double hi = -Double.MAX_VALUE;
+                double maxSlope = -Double.MAX_VALUE;
+                int lastRow = Math.min(tileRows - 1, tileRow + extension);
+                int lastCol = Math.min(tileCols - 1, tileCol + extension);
+                for (int r = tileRow; r <= lastRow; r++) {
+                    for (int c = tileCol; c <= lastCol; c++) {
+                        lo = Math.min(lo, elevationSummary.getMin(c, r));
+                        hi = Math.max(hi, elevationSummary.getMax(c, r));
+                        maxSlope = Math.max(maxSlope, slopeSummary.getMax(c, r));
+                    }
+                }
+                if (lo > hi || maxSlope < 0) {
+                    // void values only
+                    emptyTiles[tileRow * tileCols + tileCol] = true;
+                    continue;
+                }
+
+                // line widths are linear functions of elevation
+                double maxWidth = minWidth;
+                maxWidth = Math.max(maxWidth, shadowWidthA + shadowWidthB * lo);
+                maxWidth = Math.max(maxWidth, shadowWidthA + shadowWidthB * hi);
+                maxWidth = Math.max(maxWidth, illuminatedWidthA + illuminatedWidthB * lo);
+                maxWidth = Math.max(maxWidth, illuminatedWidthA + illuminatedWidthB * hi);
+                // add a small tolerance for rounding errors
+                double a = Math.max(0, maxWidth * maxSlope * cellSize) * 1.001 + interval * 1e-6;
+                if (Double.isNaN(a) || Double.isInfinite(a)) {
+                    continue;
+                }
+                double lowestLevel = Math.ceil((lo - a) * inverseInterval) * interval;
+                emptyTiles[tileRow * tileCols + tileCol] = lowestLevel > hi + a;
+            }
+        }
+    }
+
+    /**
+     * Sets unit aspect vectors of a low-pass version of the elevation grid
+     * that was filtered with a Gaussian blur with a standard deviation of
+     * aspectGaussBlur. If no vectors are set, renderToImage() computes them.
+     *
+     * @param aspectField The aspect vectors. Can be null.
+     */
+    public void setAspectField(AspectVectorField aspectField) {
+        this.aspectField = aspectField;
     }
 
     /**
@@ -155,171 +432,212 @@ public class IlluminatedContoursOperator extends ThreadedGridOperator {
     public void operate(Grid src, Grid slopeGrid, int startRow, int endRow) {
         startRow = Math.max(1, startRow);
         endRow = Math.min(src.getRows() - 2, endRow);
-        int cols = src.getCols();
 
         int scale = image.getWidth() / src.getCols();
-        if (scale == 1) {
-            for (int row = startRow; row < endRow; row++) {
-                for (int col = 1; col < cols - 1; col++) {
-                    illuminatedContours(src, col, row);
-                }
+        int cols = src.getCols();
+        for (int row = startRow; row < endRow; row++) {
+            // stop rendering if the user canceled
+            if (isCancelled()) {
+                return;
             }
-        } else {
-            // only report progress if this is the first chunk of the image
-            // all chunks are the same size, but are rendered in different threads.
-            boolean reportProgress = startRow == 1
-                    && progress instanceof SwingWorkerWithProgressIndicator;
-
-            for (int row = startRow; row < endRow; row++) {
-                // stop rendering if the user canceled
-                if (progress != null && progress.isCancelled()) {
-                    return;
-                }
-
-                // report progress made
-                if (reportProgress) {
-                    int percentage = Math.round(100f * row / (endRow - startRow));
-                    ((SwingWorkerWithProgressIndicator) progress).progress(percentage);
+            int tileRowStart = (row >> GridTileSummary.TILE_SHIFT) * tileCols;
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                if (emptyTiles[tileRowStart + tileCol]) {
+                    continue;
                 }
-
-                // destination has different size than source grid.
-                for (int col = 1; col < cols - 1; col++) {
-                    scaledIlluminatedContours(src, col, row, slopeGrid, scale);
+                int firstCol = Math.max(1, tileCol << GridTileSummary.TILE_SHIFT);
+                int endCol = Math.min(cols - 1, (tileCol + 1) << GridTileSummary.TILE_SHIFT);
+                if (scale == 1) {
+                    illuminatedContours(src, slopeGrid, row, firstCol, endCol);
+                } else {
+                    // destination has different size than source grid.
+                    scaledIlluminatedContours(src, slopeGrid, row, firstCol, endCol, scale);
                 }
             }
         }
     }
 
     /**
-     * Compute a single grid value with illuminated contours that has the same
-     * size as the source grid.
+     * Compute a section of a row of illuminated contours for an image that
+     * has the same size as the source grid.
      *
      * @param src The source terrain elevation grid.
-     * @param dst The destination grid with illuminated contour lines.
-     * @param col The column in the source grid.
+     * @param slopeGrid Slope grid.
      * @param row The row in the source grid.
+     * @param firstCol The first column in the source grid.
+     * @param endCol The first column after the section.
      */
-    private void illuminatedContours(Grid src, int col, int row) {
-        double elevation = src.getValue(col, row);
-        double smoothAspect = smoothGrid.getAspect(col, row);
-        smoothAspect = (smoothAspect + Math.PI) * 180 / Math.PI;
-        double slope = src.getSlope(col, row);
-        int g = computeGray(elevation, smoothAspect, slope, src.getCellSize());
-        if (g != CONTOURS_TRANSPARENT) {
-            int argb = (int) g | ((int) g << 8) | ((int) g << 16) | 0xFF000000;
-            imageBuffer[row * image.getWidth() + col] = argb;
+    private void illuminatedContours(Grid src, Grid slopeGrid, int row,
+            int firstCol, int endCol) {
+        final float[] elevationRow = src.getGrid()[row];
+        final float[] slopeRow = slopeGrid.getGrid()[row];
+        final float[] aspectXRow = aspectField.getXGrid().getGrid()[row];
+        final float[] aspectYRow = aspectField.getYGrid().getGrid()[row];
+        final int rowStart = (row - imageFirstRow) * image.getWidth();
+        for (int col = firstCol; col < endCol; col++) {
+            int g = computeGray(elevationRow[col], aspectXRow[col], aspectYRow[col],
+                    slopeRow[col]);
+            if (g != CONTOURS_TRANSPARENT) {
+                imageBuffer[rowStart + col] = g | (g << 8) | (g << 16) | 0xFF000000;
+            }
         }
     }
 
     /**
-     * Compute a grid values corresponding to one cell in the source grid. The
-     * destination grid has a different size than the source grid.
+     * Compute the image rows corresponding to a section of a row in the source
+     * grid. The
+     * destination image is scale times larger than the source grid. Values
+     * are bilinearly interpolated between the four corners of each cell. The
+     * image is rendered one sub-row at a time: for each cell, values at the
+     * left and right border of the sub-row are computed from the corner
+     * values, and then incremented from one sub-pixel to the next.
      *
      * @param src The source terrain elevation grid.
-     * @param col The column in the source grid.
+     * @param slopeGrid Slope grid.
      * @param row The row in the source grid.
+     * @param firstCol The first column in the source grid.
+     * @param endCol The first column after the section.
      * @param scale The image is this many times larger than the terrain model
      * grid.
      */
-    private void scaledIlluminatedContours(Grid src, int col, int row,
-            Grid slopeGrid, int scale) {
-        final double cellSize = src.getCellSize();
-        final double samplingDist = cellSize / scale;
-        final double west = src.getWest();
-        final double north = src.getNorth();
-
-        // render scale x scale subcells in the destination grid
+    private void scaledIlluminatedContours(Grid src, Grid slopeGrid, int row,
+            int firstCol, int endCol, int scale) {
+        final int imageWidth = image.getWidth();
+        final double inverseScale = 1d / scale;
+
+        // rows with cell corners at the top (row) and bottom (row + 1)
+        final float[] elevationTop = src.getGrid()[row];
+        final float[] elevationBottom = src.getGrid()[row + 1];
+        final float[] slopeTop = slopeGrid.getGrid()[row];
+        final float[] slopeBottom = slopeGrid.getGrid()[row + 1];
+        final float[] aspectXTop = aspectField.getXGrid().getGrid()[row];
+        final float[] aspectXBottom = aspectField.getXGrid().getGrid()[row + 1];
+        final float[] aspectYTop = aspectField.getYGrid().getGrid()[row];
+        final float[] aspectYBottom = aspectField.getYGrid().getGrid()[row + 1];
+
         for (int r = 0; r < scale; r++) {
-            for (int c = 0; c < scale; c++) {
-                // convert column and row to geographic coordinates
-                double x = west + ((col + (double) c / scale) * cellSize);
-                double y = north - ((row + (double) r / scale) * cellSize);
-                double elevation = src.getBilinearInterpol(x, y);
-                double smoothAspect = smoothGrid.getAspect(x, y, samplingDist);
-                smoothAspect = (smoothAspect + Math.PI) * 180 / Math.PI;
-                double slopeVal = slopeGrid.getBilinearInterpol(x, y);
-                int g = computeGray(elevation, smoothAspect, slopeVal, cellSize);
-                if (g != CONTOURS_TRANSPARENT) {
-                    int argb = (int) g | ((int) g << 8) | ((int) g << 16) | 0xFF000000;
-                    int imageCol = col * scale + c;
-                    int imageRow = row * scale + r;
-                    imageBuffer[imageRow * image.getWidth() + imageCol] = argb;
+            // vertical position inside the cell
+            final double t = r * inverseScale;
+            final int imageRowStart = ((row - imageFirstRow) * scale + r) * imageWidth;
+            for (int col = firstCol; col < endCol; col++) {
+                // values at the left and right border of the sub-row
+                double elevationL = elevationTop[col] + (elevationBottom[col] - elevationTop[col]) * t;
+                double elevationR = elevationTop[col + 1] + (elevationBottom[col + 1] - elevationTop[col + 1]) * t;
+                double slopeL = slopeTop[col] + (slopeBottom[col] - slopeTop[col]) * t;
+                double slopeR = slopeTop[col + 1] + (slopeBottom[col + 1] - slopeTop[col + 1]) * t;
+                double aspectXL = aspectXTop[col] + (aspectXBottom[col] - aspectXTop[col]) * t;
+                double aspectXR = aspectXTop[col + 1] + (aspectXBottom[col + 1] - aspectXTop[col + 1]) * t;
+                double aspectYL = aspectYTop[col] + (aspectYBottom[col] - aspectYTop[col]) * t;
+                double aspectYR = aspectYTop[col + 1] + (aspectYBottom[col + 1] - aspectYTop[col + 1]) * t;
+
+                // increments from one sub-pixel to the next
+                final double elevationStep = (elevationR - elevationL) * inverseScale;
+                final double slopeStep = (slopeR - slopeL) * inverseScale;
+                final double aspectXStep = (aspectXR - aspectXL) * inverseScale;
+                final double aspectYStep = (aspectYR - aspectYL) * inverseScale;
+
+                double elevation = elevationL;
+                double slope = slopeL;
+                double aspectX = aspectXL;
+                double aspectY = aspectYL;
+                int pixel = imageRowStart + col * scale;
+                for (int c = 0; c < scale; c++, pixel++) {
+                    // interpolated unit vectors are shorter than 1
+                    double length = Math.sqrt(aspectX * aspectX + aspectY * aspectY);
+                    double ax = aspectX, ay = aspectY;
+                    if (length > 0) {
+                        ax /= length;
+                        ay /= length;
+                    }
+                    int g = computeGray(elevation, ax, ay, slope);
+                    if (g != CONTOURS_TRANSPARENT) {
+                        imageBuffer[pixel] = g | (g << 8) | (g << 16) | 0xFF000000;
+                    }
+                    elevation += elevationStep;
+                    slope += slopeStep;
+                    aspectX += aspectXStep;
+                    aspectY += aspectYStep;
                 }
             }
         }
     }
 
-    @Override
-    public String getName() {
-        return "Illuminated Contours";
-    }
-
     /**
-     * Returns the smallest angle between two angles
+     * The slope grid passed as destination grid is not changed.
      *
-     * @param a angle from east counterclockwise in degrees
-     * @param b angle from east counterclockwise in degrees
-     * @return The minimum angle between the two angles in degrees
+     * @return False
      */
-    private static double smallestAngleDiff(double a, double b) {
-        final double d = Math.abs(a - b) % 360.;
-        return (d > 180.) ? 360. - d : d;
+    @Override
+    protected boolean isDestinationWritten() {
+        return false;
+    }
+
+    @Override
+    public String getName() {
+        return "Illuminated Contours";
     }
 
     /**
-     * Compute the gray value for the illuminated contour line image
+     * Compute the gray value for the illuminated contour line image. Instead
+     * of aspect angles, unit vectors are compared to the direction of
+     * illumination with a dot product. The angle is only computed for the
+     * gradient between illuminated and shaded lines.
      *
      * @param elevation Elevation of the point.
-     * @param aspect Aspect of the point
+     * @param aspectX Horizontal component of the unit aspect vector.
+     * @param aspectY Vertical component of the unit aspect vector, positive
+     * towards north.
      * @param slope Slope of the point.
-     * @param cellSize
-     * @return Gray value between 0 and 255.
+     * @return Gray value between 0 and 255, or CONTOURS_TRANSPARENT.
      */
-    public int computeGray(double elevation, double aspect, double slope, double cellSize) {
-        // convert azimuth angle to geometric angle, from east counterclockwise
-        double illumination = 90 - azimuth;
-        // calculate minumum angle between illumination angle and aspect
-        double angleDiff = smallestAngleDiff(illumination, aspect);
-        
-        // compute the line widths, which vary with elevation
-        double w = (gridMax - elevation) / (gridMax - gridMin);
-        //double gamma = 2;
-        //w = Math.pow(w, 1d / gamma);
-        double shadowWidth = shadowWidthLow * w  + shadowWidthHigh * (1d - w);
-        double illiminatedWidth = illuminatedWidthLow * w  + illuminatedWidthHigh * (1d - w);
-        
+    public int computeGray(double elevation, double aspectX, double aspectY, double slope) {
+        // cosine of the minimum angle between illumination angle and aspect
+        double cosDiff = aspectX * lightX + aspectY * lightY;
+
         // set 'a' based on the angle distance from the angle of illumination.
+        // The line widths vary with elevation.
+        final double slopeCellSize = slope * cellSize;
         double a;
-        if (angleDiff > transitionAngle) {
-            a = shadowWidth * slope * cellSize;
+        if (cosDiff < cosTransition) {
+            a = (shadowWidthA + shadowWidthB * elevation) * slopeCellSize;
         } else {
-            a = illiminatedWidth * slope * cellSize;
+            a = (illuminatedWidthA + illuminatedWidthB * elevation) * slopeCellSize;
         }
         if (tanaka) {
-            a *= Math.abs(Math.cos(angleDiff / 180 * Math.PI));
+            a *= Math.abs(cosDiff);
         }
 
         // make lines minimum width
-        a = Math.max(minWidth * slope * cellSize, a);
+        a = Math.max(minWidth * slopeCellSize, a);
 
         // Code regarding 'a' vs 'diff' ensures that the contour lines
         // have an equal width throughout the illuminated or shadowed line.
-        double dist = Math.abs(elevation) % interval;
+        double e = Math.abs(elevation);
+        double dist = e - Math.floor(e * inverseInterval) * interval;
+        if (dist < 0) {
+            dist += interval;
+        } else if (dist >= interval) {
+            dist -= interval;
+        }
         if (dist > a) {
             dist = interval - dist;
         }
 
         if (a > dist) {
-            if (angleDiff >= (transitionAngle + gradientAngle)) {
+            if (cosDiff <= cosShaded) {
                 // shaded side
                 return 0; // black
-            } else if (angleDiff <= (transitionAngle - gradientAngle)) {
+            } else if (cosDiff >= cosIlluminated) {
                 // illuminated side
                 return illuminated ? illluminatedGray : 0;
-            } else {
+            } else if (cosDiff == cosDiff) {
                 // gradient between shaded and illuminated side
+                double angleDiff = Math.toDegrees(Math.acos(Math.max(-1, Math.min(1, cosDiff))));
                 double d = transitionAngle + gradientAngle - angleDiff;
                 return (int) (d / (2. * gradientAngle) * 255.);
+            } else {
+                // undefined aspect
+                return 0;
             }
         }
         return CONTOURS_TRANSPARENT;
@@ -0,0 +1,91 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sums the work done by multiple threads and reports the total progress to a
+ * ProgressIndicator. Each percentage is reported once, by the thread that
+ * completes it. Thread-safe.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class ProgressAggregator {
+
+    /**
+     * The progress indicator to inform. Can be null.
+     */
+    private final ProgressIndicator progressIndicator;
+
+    /**
+     * Total amount of work.
+     */
+    private final long totalWork;
+
+    /**
+     * Amount of work that has been completed.
+     */
+    private final AtomicLong completedWork = new AtomicLong();
+
+    /**
+     * Last percentage that has been reported.
+     */
+    private final AtomicInteger reportedPercentage = new AtomicInteger(-1);
+
+    /**
+     * True if the progress indicator has been aborted.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     * Creates a new ProgressAggregator.
+     *
+     * @param progressIndicator The progress indicator to inform. Can be null.
+     * @param totalWork The total amount of work, for example, the number of
+     * rows in a grid.
+     */
+    public ProgressAggregator(ProgressIndicator progressIndicator, long totalWork) {
+        this.progressIndicator = progressIndicator;
+        this.totalWork = Math.max(1, totalWork);
+    }
+
+    /**
+     * Add work that has been completed. Can be called from any thread.
+     *
+     * @param work The amount of work completed since the last call.
+     */
+    public void addWork(long work) {
+        long completed = completedWork.addAndGet(work);
+        if (progressIndicator == null) {
+            return;
+        }
+        int percentage = (int) Math.min(100, completed * 100 / totalWork);
+        int reported = reportedPercentage.get();
+        if (percentage > reported
+                && reportedPercentage.compareAndSet(reported, percentage)) {
+            if (!progressIndicator.progress(percentage)) {
+                aborted = true;
+            }
+        }
+    }
+
+    /**
+     * Returns the completed work relative to the total work.
+     *
+     * @return A value between 0 and 1.
+     */
+    public double getProgress() {
+        return Math.min(1d, (double) completedWork.get() / totalWork);
+    }
+
+    /**
+     * Returns whether the progress indicator has been aborted.
+     *
+     * @return True if the progress indicator requested to stop.
+     */
+    public boolean isAborted() {
+        return aborted || (progressIndicator != null && progressIndicator.isAborted());
+    }
+}
@@ -1,7 +1,11 @@
 package edu.oregonstate.cartography.grid.operators;
 
+import edu.oregonstate.cartography.app.SharedExecutor;
 import edu.oregonstate.cartography.app.Vector3D;
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridTileSummary;
+import edu.oregonstate.cartography.grid.NormalVectorField;
+import java.util.Arrays;
 
 /**
  * This operator computes shaded relief from a terrain model.
@@ -20,13 +24,18 @@ public class ShaderOperator extends ThreadedGridOperator {
      * Azimuth of the light. Counted from north in counter-clock-wise direction.
      * Between 0 and 360 degrees.
      */
-    private int illuminationAzimuth = 315;
+    private double illuminationAzimuth = 315;
 
     /**
      * The vertical angle of the light direction from the zenith towards the
      * horizon. Between 0 and 90 degrees.
      */
-    private int illuminationZenith = 45;
+    private double illuminationZenith = 45;
+
+    /**
+     * Tile summary of the source grid, used to fill void tiles.
+     */
+    private GridTileSummary tileSummary;
 
     /**
      * Creates a new instance
@@ -111,6 +120,24 @@ public class ShaderOperator extends ThreadedGridOperator {
         }
     }
 
+    /**
+     * Compute a shading. Tiles of the source grid that only contain void
+     * values are filled with void values.
+     *
+     * @param src Source grid
+     * @param dst Destination grid
+     * @return The destination grid.
+     */
+    @Override
+    public Grid operate(Grid src, Grid dst) {
+        tileSummary = src.getTileSummary(getCancellationToken());
+        try {
+            return super.operate(src, dst);
+        } finally {
+            tileSummary = null;
+        }
+    }
+
     /**
      * Compute a shading for a chunk of the grid.
      *
@@ -130,31 +157,257 @@ public class ShaderOperator extends ThreadedGridOperator {
         Vector3D n = new Vector3D(0, 0, 0);
 
         // the cell size to calculate the horizontal components of vectors
-        double cellSize = src.getCellSize();
-        // convert degrees to meters on a sphere
-        if (cellSize < 0.1) {
-            cellSize = cellSize / 180 * Math.PI * 6371000;
-        }
+        double cellSize = metricCellSize(src);
 
         // Loop through each grid cell
         float[][] dstGrid = dst.getGrid();
+        int tileCols = tileSummary.getTileCols();
         for (int row = startRow; row < endRow; ++row) {
             float[] dstRow = dstGrid[row];
-            for (int col = 0; col < cols; col++) {
-                // compute the normal of the cell
-                computeTerrainNormal(col, row, src, n, cellSize);
+            int tileRow = row >> GridTileSummary.TILE_SHIFT;
+            for (int tileCol = 0; tileCol < tileCols; tileCol++) {
+                int firstCol = tileCol << GridTileSummary.TILE_SHIFT;
+                int endCol = Math.min(cols, firstCol + GridTileSummary.TILE_SIZE);
+                if (tileSummary.isVoid(tileCol, tileRow)) {
+                    // the normal of a void cell is undefined
+                    Arrays.fill(dstRow, firstCol, endCol, Float.NaN);
+                    continue;
+                }
+                for (int col = firstCol; col < endCol; col++) {
+                    // compute the normal of the cell
+                    computeTerrainNormal(col, row, src, n, cellSize);
+
+                    // compute the dot product of the normal and the light vector. This
+                    // gives a value between -1 (surface faces directly away from
+                    // light) and 1 (surface faces directly toward light)
+                    double dotProduct = n.dotProduct(light);
+
+                    // scale dot product from [-1, +1] to a gray value in [0, 255]
+                    dstRow[col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cell size to calculate the horizontal components of
+     * vectors. Cell sizes in degrees are converted to meters on a sphere.
+     */
+    private static double metricCellSize(Grid grid) {
+        double cellSize = grid.getCellSize();
+        if (cellSize < 0.1) {
+            cellSize = cellSize / 180 * Math.PI * 6371000;
+        }
+        return cellSize;
+    }
+
+    /**
+     * Linear interpolation that ignores b if t is 0, and a if t is 1, such
+     * that void values do not spread to positions on cell centers.
+     */
+    private static double lerp(double a, double b, double t) {
+        if (t == 0) {
+            return a;
+        }
+        if (t == 1) {
+            return b;
+        }
+        return a + (b - a) * t;
+    }
+
+    /**
+     * Compute shading for a block of an image that is scale times larger than
+     * the grid. Pixel (x, y) of the image samples the grid at column x / scale
+     * and row y / scale. The normal vectors of the cells covered by the block
+     * are computed first, and then bilinearly interpolated for each pixel.
+     * This avoids resampling the grid to the size of the image. The scale
+     * factor can be fractional.
+     *
+     * @param src Grid with elevation values.
+     * @param scale The image is this many times larger than the grid.
+     * @param x0 The horizontal position of the block in the image.
+     * @param y0 The vertical position of the block in the image.
+     * @param w The width of the block in pixels.
+     * @param h The height of the block in pixels.
+     * @param gray Receives shading values between 0 and 255, row by row, or
+     * NaN for void values. Must contain at least w * h values.
+     */
+    public void shadeScaledBlock(Grid src, double scale, int x0, int y0,
+            int w, int h, float[] gray) {
+        final int cols = src.getCols();
+        final int rows = src.getRows();
+        final double cellSize = metricCellSize(src);
+        final Vector3D n = new Vector3D(0, 0, 0);
+        final int[] cells = coveredCells(cols, rows, scale, x0, y0, w, h);
+        final int firstCol = cells[0];
+        final int firstRow = cells[1];
+        final int nCols = cells[2];
+        final int nRows = cells[3];
 
-                // compute the dot product of the normal and the light vector. This
-                // gives a value between -1 (surface faces directly away from
-                // light) and 1 (surface faces directly toward light)
-                double dotProduct = n.dotProduct(light);
+        // normals of the covered cells
+        final double[] nx = new double[nCols * nRows];
+        final double[] ny = new double[nCols * nRows];
+        final double[] nz = new double[nCols * nRows];
+        for (int r = 0; r < nRows; r++) {
+            for (int c = 0; c < nCols; c++) {
+                computeTerrainNormal(firstCol + c, firstRow + r, src, n, cellSize);
+                nx[r * nCols + c] = n.x;
+                ny[r * nCols + c] = n.y;
+                nz[r * nCols + c] = n.z;
+            }
+        }
+        shadeNormals(nx, ny, nz, cells, cols, rows, scale, x0, y0, w, h, gray);
+    }
+
+    /**
+     * Compute shading for a block of an image with normal vectors that have
+     * been computed with computeNormalField(). The vertical exaggeration of
+     * this operator is ignored, and the normals of the field are used
+     * instead. Otherwise identical to shadeScaledBlock(Grid, ...).
+     *
+     * @param normals Normal vectors of the grid.
+     * @param scale The image is this many times larger than the grid.
+     * @param x0 The horizontal position of the block in the image.
+     * @param y0 The vertical position of the block in the image.
+     * @param w The width of the block in pixels.
+     * @param h The height of the block in pixels.
+     * @param gray Receives shading values between 0 and 255, row by row, or
+     * NaN for void values. Must contain at least w * h values.
+     */
+    public void shadeScaledBlock(NormalVectorField normals, double scale,
+            int x0, int y0, int w, int h, float[] gray) {
+        final float[][] xs = normals.getXGrid().getGrid();
+        final float[][] ys = normals.getYGrid().getGrid();
+        final float[][] zs = normals.getZGrid().getGrid();
+        final int cols = normals.getXGrid().getCols();
+        final int rows = normals.getXGrid().getRows();
+        final int[] cells = coveredCells(cols, rows, scale, x0, y0, w, h);
+        final int firstCol = cells[0];
+        final int firstRow = cells[1];
+        final int nCols = cells[2];
+        final int nRows = cells[3];
+
+        final double[] nx = new double[nCols * nRows];
+        final double[] ny = new double[nCols * nRows];
+        final double[] nz = new double[nCols * nRows];
+        for (int r = 0; r < nRows; r++) {
+            for (int c = 0; c < nCols; c++) {
+                nx[r * nCols + c] = xs[firstRow + r][firstCol + c];
+                ny[r * nCols + c] = ys[firstRow + r][firstCol + c];
+                nz[r * nCols + c] = zs[firstRow + r][firstCol + c];
+            }
+        }
+        shadeNormals(nx, ny, nz, cells, cols, rows, scale, x0, y0, w, h, gray);
+    }
+
+    /**
+     * Returns the first column, the first row, the number of columns and the
+     * number of rows of the cells covered by a block of an image.
+     */
+    private static int[] coveredCells(int cols, int rows, double scale,
+            int x0, int y0, int w, int h) {
+        final int firstCol = Math.min(cols - 2, (int) (x0 / scale));
+        final int lastCol = Math.min(cols - 1, Math.max(firstCol, (int) ((x0 + w - 1) / scale)) + 1);
+        final int firstRow = Math.min(rows - 2, (int) (y0 / scale));
+        final int lastRow = Math.min(rows - 1, Math.max(firstRow, (int) ((y0 + h - 1) / scale)) + 1);
+        return new int[]{firstCol, firstRow, lastCol - firstCol + 1, lastRow - firstRow + 1};
+    }
 
+    /**
+     * Interpolates normal vectors of the cells covered by a block for each
+     * pixel and computes shading values.
+     */
+    private void shadeNormals(double[] nx, double[] ny, double[] nz, int[] cells,
+            int cols, int rows, double scale, int x0, int y0, int w, int h,
+            float[] gray) {
+        final Vector3D light = new Vector3D(illuminationAzimuth, illuminationZenith);
+        final int firstCol = cells[0];
+        final int firstRow = cells[1];
+        final int nCols = cells[2];
+        for (int j = 0; j < h; j++) {
+            final double gy = (y0 + j) / scale;
+            final int row = Math.min((int) gy, rows - 2);
+            final double fy = Math.min(1, gy - row);
+            final int top = (row - firstRow) * nCols;
+            final int bottom = top + nCols;
+            for (int i = 0; i < w; i++) {
+                final double gx = (x0 + i) / scale;
+                final int col = Math.min((int) gx, cols - 2);
+                final double fx = Math.min(1, gx - col);
+                final int c = col - firstCol;
+                double x = lerp(lerp(nx[top + c], nx[top + c + 1], fx),
+                        lerp(nx[bottom + c], nx[bottom + c + 1], fx), fy);
+                double y = lerp(lerp(ny[top + c], ny[top + c + 1], fx),
+                        lerp(ny[bottom + c], ny[bottom + c + 1], fx), fy);
+                double z = lerp(lerp(nz[top + c], nz[top + c + 1], fx),
+                        lerp(nz[bottom + c], nz[bottom + c + 1], fx), fy);
+                double length = Math.sqrt(x * x + y * y + z * z);
+                double dotProduct = (x * light.x + y * light.y + z * light.z) / length;
                 // scale dot product from [-1, +1] to a gray value in [0, 255]
-                dstRow[col] = (float) ((dotProduct + 1) / 2 * 255.0D);
+                gray[j * w + i] = (float) ((dotProduct + 1) / 2 * 255.0D);
             }
         }
     }
 
+    /**
+     * Computes the normal vectors of all cells of a grid with the vertical
+     * exaggeration of this operator. The normals do not depend on the
+     * direction of the light, so they can be shared by renderings with
+     * different light directions. Bands of rows are computed in parallel.
+     *
+     * @param src Grid with elevation values.
+     * @param token Checked while computing. Can be null.
+     * @return The normal vectors.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public NormalVectorField computeNormalField(final Grid src, final CancellationToken token) {
+        final Grid xGrid = createGrid(src);
+        final Grid yGrid = createGrid(src);
+        final Grid zGrid = createGrid(src);
+        final int cols = src.getCols();
+        final int rows = src.getRows();
+        final double cellSize = metricCellSize(src);
+        final GridTileSummary summary = src.getTileSummary(token);
+        SharedExecutor.forEachBand(rows, SharedExecutor.bandRows(rows, 64),
+                new SharedExecutor.BandTask() {
+                    @Override
+                    protected void run(int firstRow, int endRow) {
+                        Vector3D n = new Vector3D(0, 0, 0);
+                        for (int row = firstRow; row < endRow; row++) {
+                            float[] xRow = xGrid.getGrid()[row];
+                            float[] yRow = yGrid.getGrid()[row];
+                            float[] zRow = zGrid.getGrid()[row];
+                            int tileRow = row >> GridTileSummary.TILE_SHIFT;
+                            for (int col = 0; col < cols; col++) {
+                                if (summary.isVoid(col >> GridTileSummary.TILE_SHIFT, tileRow)) {
+                                    xRow[col] = yRow[col] = zRow[col] = Float.NaN;
+                                    continue;
+                                }
+                                computeTerrainNormal(col, row, src, n, cellSize);
+                                xRow[col] = (float) n.x;
+                                yRow[col] = (float) n.y;
+                                zRow[col] = (float) n.z;
+                            }
+                        }
+                    }
+
+                    @Override
+                    protected boolean isCancelled() {
+                        return CancellationToken.isCancelled(token);
+                    }
+                });
+        CancellationToken.throwIfCancelled(token);
+        return new NormalVectorField(xGrid, yGrid, zGrid, vertExaggeration);
+    }
+
+    private static Grid createGrid(Grid template) {
+        Grid g = new Grid(template.getCols(), template.getRows(), template.getCellSize());
+        g.setWest(template.getWest());
+        g.setSouth(template.getSouth());
+        return g;
+    }
+
     @Override
     public String getName() {
         return "Shading";
@@ -176,6 +429,20 @@ public class ShaderOperator extends ThreadedGridOperator {
         this.illuminationZenith = illuminationZenith;
     }
 
+    /**
+     * Sets the direction of the light with fractions of degrees, for example
+     * for smoothly moving the light in an animation.
+     *
+     * @param azimuth Counted from north in counter-clock-wise direction.
+     * Between 0 and 360 degrees.
+     * @param zenith The vertical angle of the light direction from the zenith
+     * towards the horizon. Between 0 and 90 degrees.
+     */
+    public void setIlluminationDirection(double azimuth, double zenith) {
+        illuminationAzimuth = azimuth;
+        illuminationZenith = zenith;
+    }
+
     /**
      * 
      * @param ve Vertical exaggeration factor applied to terrain values before computing 
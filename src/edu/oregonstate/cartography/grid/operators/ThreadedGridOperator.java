@@ -1,21 +1,45 @@
 package edu.oregonstate.cartography.grid.operators;
 
+import edu.oregonstate.cartography.app.SharedExecutor;
 import edu.oregonstate.cartography.grid.Grid;
-import java.util.ArrayList;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.util.concurrent.CancellationException;
 
 /**
- * A base class for multi-threaded grid operators. Allocates as many threads
- * for operating on the grid as CPU cores are available.
+ * A base class for multi-threaded grid operators. The grid is split into bands
+ * of rows, which are processed by the threads of the SharedExecutor. The
+ * cancellation token is checked before each band, and progress is reported
+ * after each band.
  * @author Bernhard Jenny, Institute of Cartography, ETH Zurich
  */
 public abstract class ThreadedGridOperator implements GridOperator {
 
+    /**
+     * The maximum number of rows in a band.
+     */
+    private static final int MAX_BAND_ROWS = 64;
+
+    /**
+     * Checked before each band is processed. Can be null.
+     */
+    private CancellationToken cancellationToken;
+
+    /**
+     * Informed about progress after each band. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
+    /**
+     * Aggregates progress of all threads for the current operation. Null if
+     * there is no progress indicator.
+     */
+    private volatile ProgressAggregator progressAggregator;
+
     /**
      * Operate row-wise on the passed source grid and store the result in the passed 
      * destination grid. The source and the destination can be the same object
-     * if isOverwrittingSupported() returns true.
+     * if isOverwrittingSupported() returns true. This method is called for
+     * each band of rows, possibly concurrently.
      * @param src The source grid.
      * @param dst The destination grid.
      * @param startRow The index of the first row to operate on.
@@ -35,6 +59,16 @@ public abstract class ThreadedGridOperator implements GridOperator {
         return true;
     }
     
+    /**
+     * Returns whether values are written to the destination grid. Defaults to
+     * true. Derived classes that use the destination grid as a second source
+     * grid return false, such that its tile summary is not discarded.
+     * @return True if the destination grid is changed by operate().
+     */
+    protected boolean isDestinationWritten() {
+        return true;
+    }
+
     /**
      * Creates a new grid that will store the results of the operator. This
      * method creates a new grid of the same size as the source grid. It must be
@@ -74,6 +108,19 @@ public abstract class ThreadedGridOperator implements GridOperator {
      * @return The passed dst grid is returned.
      */
     public Grid operate(Grid src, Grid dst) {
+        return operateOnRows(src, dst, 0, src == null ? 0 : src.getRows());
+    }
+
+    /**
+     * Apply the filter to a range of rows and store the result in the passed
+     * destination grid.
+     * @param src The source grid.
+     * @param dst The destination grid. May not be null.
+     * @param firstRow The first row to operate on.
+     * @param endRow The first row after the range.
+     * @return The passed dst grid is returned.
+     */
+    public Grid operateOnRows(Grid src, Grid dst, int firstRow, int endRow) {
         
         if (src == null || !src.isWellFormed()) {
             throw new IllegalArgumentException(getName() + ": invalid source grid");
@@ -85,54 +132,81 @@ public abstract class ThreadedGridOperator implements GridOperator {
             throw new IllegalArgumentException(getName() + ": overwriting source grid is not possible");
         }
         
-        int nRows = src.getRows();
-        int nThreads = Runtime.getRuntime().availableProcessors();
-        ArrayList<GridOperatorThread> threads = new ArrayList(nThreads);
-        int rowChunk = (nRows / nThreads) + 1;
-        for (int i = 0; i < nThreads; i++) {
-            int startRow = i * rowChunk;
-            int endRow = Math.min(nRows, startRow + rowChunk);
-            GridOperatorThread t = new GridOperatorThread(src, dst, startRow, endRow);
-            t.setName(this.getName() + " " + i);
-            threads.add(t);
-            t.start();
+        if (firstRow < 0 || endRow > src.getRows() || firstRow > endRow) {
+            throw new IllegalArgumentException(getName() + ": invalid rows");
         }
+        
+        final int rowOffset = firstRow;
+        final int nRows = endRow - firstRow;
+        final Grid srcGrid = src;
+        final Grid dstGrid = dst;
+        final ProgressAggregator progress = progressIndicator == null
+                ? null : new ProgressAggregator(progressIndicator, nRows);
+        progressAggregator = progress;
+        try {
+            SharedExecutor.forEachBand(nRows, SharedExecutor.bandRows(nRows, MAX_BAND_ROWS),
+                    new SharedExecutor.BandTask() {
+                        @Override
+                        protected void run(int startRow, int endRow) {
+                            operate(srcGrid, dstGrid, rowOffset + startRow, rowOffset + endRow);
+                            if (progress != null) {
+                                progress.addWork(endRow - startRow);
+                            }
+                        }
 
-        for (Thread t : threads) {
-            try {
-                t.join();
-            } catch (InterruptedException ex) {
-                Logger.getLogger(ThreadedGridOperator.class.getName()).log(Level.SEVERE, null, ex);
+                        @Override
+                        protected boolean isCancelled() {
+                            return ThreadedGridOperator.this.isCancelled();
+                        }
+                    });
+            if (isCancelled()) {
+                throw new CancellationException(getName() + " canceled");
+            }
+        } finally {
+            progressAggregator = null;
+            if (isDestinationWritten()) {
+                // values of the destination grid have changed
+                dst.invalidateTileSummary();
             }
         }
-
         return dst;
     }
 
     /**
-     * A private utility class for wrapping a thread.
+     * Returns whether the current operation should stop. Derived classes can
+     * call this method while operating on a band of rows that takes a long
+     * time to compute.
+     * @return True if the operation has been cancelled.
      */
-    private class GridOperatorThread extends Thread {
-
-        final Grid srcGrid;
-        final Grid dstGrid;
-        final int startRow;
-        final int endRow;
-
-        public GridOperatorThread(Grid srcGrid,
-                Grid dstGrid,
-                int startRow,
-                int endRow) {
-
-            this.srcGrid = srcGrid;
-            this.dstGrid = dstGrid;
-            this.startRow = startRow;
-            this.endRow = endRow;
-        }
+    protected boolean isCancelled() {
+        ProgressAggregator progress = progressAggregator;
+        return CancellationToken.isCancelled(cancellationToken)
+                || (progress != null && progress.isAborted());
+    }
 
-        @Override
-        public void run() {
-            operate(srcGrid, dstGrid, startRow, endRow);
-        }
+    @Override
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    /**
+     * Returns the token that is checked for cancellation.
+     * @return The token, or null.
+     */
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    @Override
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Returns the progress indicator.
+     * @return The progress indicator, or null.
+     */
+    public ProgressIndicator getProgressIndicator() {
+        return progressIndicator;
     }
 }
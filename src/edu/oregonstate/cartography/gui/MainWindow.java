@@ -1,25 +1,37 @@
 package edu.oregonstate.cartography.gui;
 
 import edu.oregonstate.cartography.app.FileUtils;
-import edu.oregonstate.cartography.grid.ESRIASCIIGridExporter;
-import edu.oregonstate.cartography.grid.EsriASCIIGridReader;
+import edu.oregonstate.cartography.grid.CompositeImageExporter;
+import edu.oregonstate.cartography.grid.EsriFloatGridReader;
+import edu.oregonstate.cartography.grid.GeoTIFFGridReader;
 import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridReader;
+import edu.oregonstate.cartography.grid.GridWriter;
 import edu.oregonstate.cartography.grid.Model;
 import static edu.oregonstate.cartography.grid.Model.ForegroundVisualization.ILLUMINATED_CONTOURS;
 import edu.oregonstate.cartography.grid.WorldFileExporter;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import edu.oregonstate.cartography.grid.operators.IlluminatedContoursOperator;
+import edu.oregonstate.cartography.image.ImageStripWriter;
+import edu.oregonstate.cartography.tiles.TileServer;
 import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.GraphicsDevice;
 import java.awt.GraphicsEnvironment;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.prefs.Preferences;
 import javax.imageio.ImageIO;
+import javax.swing.JCheckBoxMenuItem;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 
 /**
@@ -38,9 +50,19 @@ public class MainWindow extends javax.swing.JFrame {
             + "Computed shadings and contours will not be correct. <br>"
             + "Please first project the grid to a Cartesian coordinate system.</html>";
 
+    /**
+     * The maximum number of pixels in a strip of an exported contours image.
+     */
+    private static final long STRIP_PIXELS = 16 * 1024 * 1024;
+
     private final Model model;
     private SettingsDialog settingsDialog = null;
 
+    /**
+     * Serves tiles to a web browser. Null if the tile server is not running.
+     */
+    private TileServer tileServer = null;
+
     /**
      * Constructor for the JFrame. Initializes components and sets up the
      * default color gradient.
@@ -52,10 +74,89 @@ public class MainWindow extends javax.swing.JFrame {
 
         initComponents();  //Sets up the JFrame components with their properties
 
+        // the tile server menu item is not part of the form
+        final JCheckBoxMenuItem tileServerMenuItem = new JCheckBoxMenuItem("Serve Tiles to Web Browser");
+        tileServerMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                toggleTileServer(tileServerMenuItem);
+            }
+        });
+        viewMenu.addSeparator();
+        viewMenu.add(tileServerMenuItem);
+        JMenuItem renderStatisticsMenuItem = new JMenuItem("Rendering Statistics");
+        renderStatisticsMenuItem.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showRenderStatistics();
+            }
+        });
+        viewMenu.add(renderStatisticsMenuItem);
+
         // get menu keyboard events from owned dialogs
         DialogUtil.setupDialogActions(menuBar);
     }
 
+    /**
+     * Starts or stops the tile server.
+     *
+     * @param menuItem The menu item, which is deselected if the server cannot
+     * be started.
+     */
+    private void toggleTileServer(JCheckBoxMenuItem menuItem) {
+        if (tileServer != null) {
+            tileServer.stop();
+            tileServer = null;
+            menuItem.setSelected(false);
+            return;
+        }
+        try {
+            Preferences prefs = Preferences.userNodeForPackage(MainWindow.class);
+            int port = prefs.getInt("tile_server_port", TileServer.DEFAULT_PORT);
+            tileServer = new TileServer(model, port, TileServer.DEFAULT_CACHE_BYTES);
+            tileServer.start();
+            menuItem.setSelected(true);
+            String msg = "<html>Tiles are served at<br>" + tileServer.getURL() + "</html>";
+            JOptionPane.showMessageDialog(this, msg, "Tile Server", JOptionPane.INFORMATION_MESSAGE);
+        } catch (IOException ex) {
+            tileServer = null;
+            menuItem.setSelected(false);
+            ErrorDialog.showErrorDialog("Could not start the tile server.", "Error", ex, this);
+        }
+    }
+
+    /**
+     * Shows the number of rendered images that were displayed, the number
+     * of renderings that were cancelled or discarded because the settings
+     * changed while dragging a slider, and the use of cached grids.
+     */
+    private void showRenderStatistics() {
+        long completed = 0, dropped = 0;
+        if (settingsDialog != null) {
+            completed = settingsDialog.getSettingsPanel().getCompletedFrames();
+            dropped = settingsDialog.getSettingsPanel().getDroppedFrames();
+        }
+        String msg = "<html>Displayed images: " + completed
+                + "<br>Cancelled or discarded images: " + dropped
+                + "<br>Cached contour aspect grids: "
+                + model.getCachedGridsMemoryBytes() / 1024 / 1024 + " MB, reused "
+                + model.getCachedGridsHitsCount() + " times, computed "
+                + model.getCachedGridsMissesCount() + " times</html>";
+        JOptionPane.showMessageDialog(this, msg, "Rendering Statistics",
+                JOptionPane.INFORMATION_MESSAGE);
+    }
+
+    /**
+     * Informs the tile server that the settings or the grid of the model have
+     * changed, such that tiles are rendered with the new settings. Must be
+     * called on the event dispatching thread.
+     */
+    public void modelSettingsChanged() {
+        if (tileServer != null) {
+            tileServer.settingsChanged();
+        }
+    }
+
     /**
      * This method is called from within the constructor to initialize the form.
      * WARNING: Do NOT modify this code. The content of this method is always
@@ -91,6 +192,9 @@ public class MainWindow extends javax.swing.JFrame {
         javax.swing.JMenu saveContoursMenu = new javax.swing.JMenu();
         saveTIFFContoursMenuItem = new javax.swing.JMenuItem();
         savePNGContoursMenuItem = new javax.swing.JMenuItem();
+        javax.swing.JMenu exportCompositeImageMenu = new javax.swing.JMenu();
+        exportTIFFCompositeImageMenuItem = new javax.swing.JMenuItem();
+        exportPNGCompositeImageMenuItem = new javax.swing.JMenuItem();
         editMenu = new javax.swing.JMenu();
         scaleTerrainModelMenuItem = new javax.swing.JMenuItem();
         offsetTerrainModelMenuItem = new javax.swing.JMenuItem();
@@ -240,6 +344,26 @@ public class MainWindow extends javax.swing.JFrame {
 
         fileMenu.add(saveContoursMenu);
 
+        exportCompositeImageMenu.setText("Export High-Resolution Image");
+
+        exportTIFFCompositeImageMenuItem.setText("TIFF");
+        exportTIFFCompositeImageMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                exportTIFFCompositeImageMenuItemActionPerformed(evt);
+            }
+        });
+        exportCompositeImageMenu.add(exportTIFFCompositeImageMenuItem);
+
+        exportPNGCompositeImageMenuItem.setText("PNG");
+        exportPNGCompositeImageMenuItem.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                exportPNGCompositeImageMenuItemActionPerformed(evt);
+            }
+        });
+        exportCompositeImageMenu.add(exportPNGCompositeImageMenuItem);
+
+        fileMenu.add(exportCompositeImageMenu);
+
         menuBar.add(fileMenu);
 
         editMenu.setText("Edit");
@@ -380,6 +504,108 @@ public class MainWindow extends javax.swing.JFrame {
             }
         }
     }
+
+    /**
+     * Asks for a file and a scale factor, and renders the background and the
+     * contour lines to an image that can be larger than the displayed image.
+     *
+     * @param format "png" or "tif".
+     * @param message The title of the file dialog.
+     */
+    private void exportCompositeImage(String format, String message) {
+        String filePath = askFile(message, false);    //call up a save file dialog
+        //Make sure the choice is a valid file
+        if (filePath == null) {
+            return;
+        }
+        filePath = FileUtils.forceFileNameExtension(filePath, format);
+
+        // ask for the size of the image relative to the grid
+        String PREFS_NAME = "image_scale";
+        Preferences prefs = Preferences.userNodeForPackage(MainWindow.class);
+        String defaultScale = Double.toString(prefs.getDouble(PREFS_NAME, 1));
+        Object input = JOptionPane.showInputDialog(getContentPane(),
+                "Image size relative to the terrain model (for example 1, 2.5 or 8):",
+                "Image Resolution", JOptionPane.PLAIN_MESSAGE, null, null, defaultScale);
+        if (input == null) {
+            return;
+        }
+        double scale;
+        try {
+            scale = Double.parseDouble(input.toString().trim());
+        } catch (NumberFormatException exc) {
+            scale = Double.NaN;
+        }
+        if (!(scale > 0)) {
+            JOptionPane.showMessageDialog(getContentPane(), "The scale factor must be a positive number.",
+                    "Image Resolution", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        prefs.putDouble(PREFS_NAME, scale);
+        exportImage(filePath, format, scale);
+    }
+
+    /**
+     * Render the background and the contour lines to an image and write it to
+     * a file, while a progress dialog with a cancel button is displayed.
+     *
+     * @param filePath file to write to.
+     * @param imageFormat "png" or "tif".
+     * @param scale The image will be this many times larger than the terrain
+     * model. Can be fractional.
+     */
+    private void exportImage(final String filePath, final String imageFormat, final double scale) {
+        final CompositeImageExporter exporter;
+        try {
+            exporter = new CompositeImageExporter(model, scale);
+        } catch (IllegalArgumentException exc) {
+            ErrorDialog.showErrorDialog(SAVE_IMAGE_ERROR_MESSAGE, "Error", exc, this);
+            return;
+        }
+        SwingWorkerWithProgressIndicator<Void> worker;
+        worker = new SwingWorkerWithProgressIndicator<Void>(this, "Image Export", "", true) {
+            @Override
+            public void done() {
+                try {
+                    // a call to get() will throw an ExecutionException if an 
+                    // exception occured in doInBackground
+                    get();
+                } catch (ExecutionException e) {
+                    new File(filePath).delete();
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        ErrorDialog.showErrorDialog(SAVE_IMAGE_ERROR_MESSAGE, "Error",
+                                e.getCause(), getContentPane());
+                    }
+                } catch (InterruptedException | CancellationException e) {
+                    new File(filePath).delete();
+                } finally {
+                    // hide the progress dialog
+                    completeProgress();
+                }
+            }
+
+            @Override
+            protected Void doInBackground() throws Exception {
+                // initialize the progress dialog
+                start();
+                exporter.setCancellationToken(new CancellationToken() {
+                    @Override
+                    public boolean isCancelled() {
+                        return isAborted() || super.isCancelled();
+                    }
+                });
+                exporter.setProgressIndicator(this);
+                exporter.export(new File(filePath), imageFormat);
+                return null;
+            }
+        };
+
+        worker.setMaxTimeWithoutDialogMilliseconds(500);
+        worker.setIndeterminate(false);
+        worker.setMessage("Rendering image");
+        worker.execute();
+    }
+
     private void saveTIFFImageMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_saveTIFFImageMenuItemActionPerformed
         saveImage("tif", "Save TIFF Image");
     }//GEN-LAST:event_saveTIFFImageMenuItemActionPerformed
@@ -440,7 +666,9 @@ public class MainWindow extends javax.swing.JFrame {
 
     /**
      * Render an image and write it to a file, while a progress dialog with a
-     * cancel button is displayed.
+     * cancel button is displayed. The image is rendered in horizontal strips,
+     * which are written to the file one after the other, such that images
+     * larger than the available memory can be exported.
      *
      * @param filePath file to write to.
      * @param scale The final image will be this many times larger than the
@@ -460,17 +688,20 @@ public class MainWindow extends javax.swing.JFrame {
                     // create world file for image file
                     String worldFilePath = WorldFileExporter.constructPath(filePath);
                     Grid dem = model.getGeneralizedGrid();
-                    double cellSize = dem.getCellSize();
-                    double west = dem.getWest() - cellSize / 2;
-                    double north = dem.getNorth() + cellSize / 2;
-                    WorldFileExporter.writeWorldFile(worldFilePath, cellSize, west, north);
+                    double pixelSize = dem.getCellSize() / scale;
+                    double west = dem.getWest() - pixelSize / 2;
+                    double north = dem.getNorth() + pixelSize / 2;
+                    WorldFileExporter.writeWorldFile(worldFilePath, pixelSize, west, north);
                 } catch (ExecutionException e) {
                     // an exception was thrown in doInBackground
                     new File(filePath).delete();
-                    String msg = "An error occured when exporting the image.";
-                    String title = "Export Error";
-                    JOptionPane.showMessageDialog(getContentPane(), msg, title, JOptionPane.ERROR_MESSAGE);
+                    if (!(e.getCause() instanceof CancellationException)) {
+                        String msg = "An error occured when exporting the image.";
+                        String title = "Export Error";
+                        JOptionPane.showMessageDialog(getContentPane(), msg, title, JOptionPane.ERROR_MESSAGE);
+                    }
                 } catch (InterruptedException | CancellationException e) {
+                    new File(filePath).delete();
                 } catch (IOException exc) {
                     new File(filePath).delete();
                 } finally {
@@ -483,29 +714,44 @@ public class MainWindow extends javax.swing.JFrame {
             protected Void doInBackground() throws Exception {
                 // initialize the progress dialog
                 start();
-                // compute the image with illuminated contours
-                IlluminatedContoursOperator op;
                 boolean illuminated = (model.foregroundVisualization == ILLUMINATED_CONTOURS);
+                IlluminatedContoursOperator op = model.setupIlluminatedContoursOperator(illuminated);
+                op.setCancellationToken(new CancellationToken() {
+                    @Override
+                    public boolean isCancelled() {
+                        return isAborted() || super.isCancelled();
+                    }
+                });
+                op.setAspectField(model.getContoursAspectField(op.getCancellationToken()));
+
+                Grid grid = model.getGeneralizedGrid();
+                Grid slopeGrid = model.getGeneralizedSlopeGrid();
+                int cols = grid.getCols();
+                int rows = grid.getRows();
+                long w = (long) cols * scale;
+                long h = (long) rows * scale;
+                if (w > Integer.MAX_VALUE || h > Integer.MAX_VALUE) {
+                    throw new IOException("Image too large");
+                }
 
-                op = model.setupIlluminatedContoursOperator(illuminated);
-                int w = model.getGeneralizedGrid().getCols() * scale;
-                int h = model.getGeneralizedGrid().getRows() * scale;
-                BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-                Graphics g = image.getGraphics();
-                g.setColor(model.solidColor);
-                g.fillRect(0, 0, w, h);
-                g.dispose();
-                op.renderToImage(image, model.getGeneralizedGrid(),
-                        model.getGeneralizedSlopeGrid(), this);
-
-                if (!isCancelled()) {
-                    // writing to file cannot be canceled
-                    disableCancel();
-                    setIndeterminate(true);
-
-                    File file = new File(filePath);
-                    setMessage("Writing image to \"" + file.getName() + "\"");
-                    ImageIO.write(image, imageFormat, file);
+                // number of grid rows in a strip
+                int stripRows = (int) Math.max(1, Math.min(rows, STRIP_PIXELS / (w * scale)));
+                BufferedImage strip = new BufferedImage((int) w, stripRows * scale,
+                        BufferedImage.TYPE_INT_ARGB);
+                int[] stripBuffer = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+                int background = model.solidColor.getRGB();
+
+                File file = new File(filePath);
+                setMessage("Writing image to \"" + file.getName() + "\"");
+                try (ImageStripWriter writer = ImageStripWriter.create(file, imageFormat, (int) w, (int) h)) {
+                    for (int firstRow = 0; firstRow < rows; firstRow += stripRows) {
+                        int endRow = Math.min(rows, firstRow + stripRows);
+                        int imageRows = (endRow - firstRow) * scale;
+                        Arrays.fill(stripBuffer, 0, imageRows * (int) w, background);
+                        op.renderToImage(strip, grid, slopeGrid, firstRow, endRow);
+                        writer.writeStrip(stripBuffer, imageRows);
+                        progress((int) (100L * endRow / rows));
+                    }
                 }
                 return null;
             }
@@ -542,6 +788,14 @@ public class MainWindow extends javax.swing.JFrame {
         saveContours("Save PNG Contour Image", "png");
     }//GEN-LAST:event_savePNGContoursMenuItemActionPerformed
 
+    private void exportTIFFCompositeImageMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportTIFFCompositeImageMenuItemActionPerformed
+        exportCompositeImage("tif", "Export High-Resolution TIFF Image");
+    }//GEN-LAST:event_exportTIFFCompositeImageMenuItemActionPerformed
+
+    private void exportPNGCompositeImageMenuItemActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_exportPNGCompositeImageMenuItemActionPerformed
+        exportCompositeImage("png", "Export High-Resolution PNG Image");
+    }//GEN-LAST:event_exportPNGCompositeImageMenuItemActionPerformed
+
     private void fileMenuMenuSelected(javax.swing.event.MenuEvent evt) {//GEN-FIRST:event_fileMenuMenuSelected
         boolean gridLoaded = (model.getGrid() != null);
         boolean contoursVisible
@@ -550,6 +804,8 @@ public class MainWindow extends javax.swing.JFrame {
         saveLocalTerrainMenuItem.setEnabled(model.backgroundVisualization.isLocal());
         saveTIFFImageMenuItem.setEnabled(gridLoaded);
         savePNGImageMenuItem.setEnabled(gridLoaded);
+        exportTIFFCompositeImageMenuItem.setEnabled(gridLoaded);
+        exportPNGCompositeImageMenuItem.setEnabled(gridLoaded);
         saveTIFFContoursMenuItem.setEnabled(contoursVisible);
         savePNGContoursMenuItem.setEnabled(contoursVisible);
     }//GEN-LAST:event_fileMenuMenuSelected
@@ -644,7 +900,7 @@ public class MainWindow extends javax.swing.JFrame {
 
     public void openGrid() throws IOException {
         // ask the user for a file
-        String filePath = askFile("Select an Esri ASCII Grid", true);
+        String filePath = askFile("Select an Esri ASCII Grid, Binary Float Grid or GeoTIFF", true);
         if (filePath == null) {
             // user canceled
             return;
@@ -674,12 +930,19 @@ public class MainWindow extends javax.swing.JFrame {
                     completeProgress();
 
                 } catch (InterruptedException | CancellationException e) {
+                    // the user canceled, keep the current terrain model
+                    completeProgress();
+                    return;
                 } catch (Throwable e) {
+                    if (e.getCause() instanceof CancellationException) {
+                        completeProgress();
+                        return;
+                    }
                     // hide the progress dialog
                     completeProgress();
                     // an exception was thrown in doInBackground
                     String msg = "<html>An error occured when importing the terrain model."
-                            + "<br>The file must be in Esri ASCII Grid format.</html>";
+                            + "<br>The file must be in Esri ASCII Grid, Binary Float Grid or GeoTIFF format.</html>";
                     ErrorDialog.showErrorDialog(msg, "Error", e, getContentPane());
                     e.printStackTrace();
                 } finally {
@@ -725,11 +988,22 @@ public class MainWindow extends javax.swing.JFrame {
             @Override
             protected Void doInBackground() throws Exception {
                 start();
+                // release grids derived from the current terrain before the
+                // new grid is loaded; they are recomputed if loading fails
+                model.flushCachedGrids();
                 //import the DEM and create pyramids
-                Grid grid = EsriASCIIGridReader.read(filePath, this);
+                Grid grid = GridReader.read(filePath, this);
+                if (grid == null) {
+                    // the user canceled
+                    throw new CancellationException();
+                }
                 this.setIndeterminate(true);
-                this.disableCancel();
-                model.setGrid(grid);
+                model.setGrid(grid, new CancellationToken() {
+                    @Override
+                    public boolean isCancelled() {
+                        return isAborted() || super.isCancelled();
+                    }
+                });
                 return null;
             }
 
@@ -737,13 +1011,14 @@ public class MainWindow extends javax.swing.JFrame {
 
         worker.setMaxTimeWithoutDialogMilliseconds(2000);
         worker.setIndeterminate(false);
-        worker.disableCancel();
         worker.setMessage("Importing Terrain Model");
         worker.execute();
     }
 
     // Variables declaration - do not modify//GEN-BEGIN:variables
     private javax.swing.JMenu editMenu;
+    private javax.swing.JMenuItem exportPNGCompositeImageMenuItem;
+    private javax.swing.JMenuItem exportTIFFCompositeImageMenuItem;
     private javax.swing.JPanel imageResolutionPanel;
     private javax.swing.JSpinner imageResolutionSpinner;
     private javax.swing.JMenuItem infoMenuItem;
@@ -784,6 +1059,16 @@ public class MainWindow extends javax.swing.JFrame {
         return navigableImagePanel.getImage();
     }
 
+    /**
+     * Displays a new image of the same size as the current image, without
+     * changing the zoom level and position.
+     *
+     * @param image The new image.
+     */
+    public void replaceImage(BufferedImage image) {
+        navigableImagePanel.replaceImage(image);
+    }
+
     void setPreferredImageSize(Dimension dimension) {
         navigableImagePanel.setPreferredSize(dimension);
     }
@@ -799,9 +1084,12 @@ public class MainWindow extends javax.swing.JFrame {
         //call up a save file dialog
         String filePath = askFile("Save Terrain File", false);
         if (filePath != null) {
-            filePath = FileUtils.forceFileNameExtension(filePath, "asc");
             try {
-                ESRIASCIIGridExporter.export(grid, filePath);
+                if (!EsriFloatGridReader.isFloatGrid(filePath)
+                        && !GeoTIFFGridReader.isGeoTIFF(filePath)) {
+                    filePath = FileUtils.forceFileNameExtension(filePath, "asc");
+                }
+                GridWriter.write(grid, filePath, -1);
             } catch (IOException ex) {
                 ErrorDialog.showErrorDialog(SAVE_TERRAIN_ERROR_MESSAGE, "Error", ex, this);
             }
@@ -451,6 +451,27 @@ public class NavigableImagePanel extends JPanel {
         repaint();
     }
 
+    /**
+     * <p>
+     * Replaces the displayed image with an image of the same size. The zoom
+     * level and the position of the image are not changed. If the new image
+     * has a different size, the image is set with setImage().</p>
+     *
+     * @param image an image to be displayed in the panel
+     */
+    public void replaceImage(BufferedImage image) {
+        BufferedImage oldImage = this.image;
+        if (oldImage == null || image == null
+                || oldImage.getWidth() != image.getWidth()
+                || oldImage.getHeight() != image.getHeight()) {
+            setImage(image);
+            return;
+        }
+        this.image = image;
+        firePropertyChange(IMAGE_CHANGED_PROPERTY, (Image) oldImage, (Image) image);
+        repaint();
+    }
+
     public BufferedImage getImage() {
         return image;
     }
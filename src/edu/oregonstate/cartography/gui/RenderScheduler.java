@@ -0,0 +1,166 @@
+package edu.oregonstate.cartography.gui;
+
+import edu.oregonstate.cartography.gui.SettingsPanel.RenderSpeed;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+
+/**
+ * Schedules the rendering of the display image while the user adjusts
+ * settings. Requests are coalesced: at most one renderer is working at any
+ * time, and a new request cancels the renderer in progress. The renderer stops
+ * cooperatively by regularly checking SwingWorker.isCancelled(). Once it has
+ * stopped, only the most recent of all requests received in the meantime is
+ * rendered. A FAST preview therefore never has to wait for a REGULAR rendering
+ * to finish.
+ *
+ * Renderers must call rendererStopped() when their doInBackground() method
+ * exits, and may only deliver an image to the main window if isCurrent()
+ * returns true in done(). This guarantees that only images rendered with the
+ * newest parameters are ever displayed.
+ *
+ * All methods except rendererStopped() must be called from the event
+ * dispatching thread.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+abstract class RenderScheduler {
+
+    /**
+     * The renderer that was last started.
+     */
+    private SwingWorker<?, ?> latestRenderer;
+
+    /**
+     * True while the doInBackground() method of latestRenderer is running,
+     * even if the renderer has been cancelled.
+     */
+    private boolean rendering = false;
+
+    /**
+     * The request that will be rendered once the active renderer has stopped.
+     * Null if there is no pending request.
+     */
+    private RenderSpeed pendingRequest;
+
+    /**
+     * Identifies the newest request. Incremented with each request.
+     */
+    private long newestRequestID = 0;
+
+    /**
+     * The request rendered by latestRenderer.
+     */
+    private long activeRequestID = -1;
+
+    /**
+     * The number of frames that were rendered and passed to the main window.
+     */
+    private final AtomicLong completedFrames = new AtomicLong();
+
+    /**
+     * The number of frames that were cancelled or discarded because newer
+     * parameters were available.
+     */
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    /**
+     * Creates a new renderer. The renderer is not executed yet.
+     *
+     * @param renderSpeed The rendering speed.
+     * @return A new SwingWorker.
+     */
+    protected abstract SwingWorker<?, ?> createRenderer(RenderSpeed renderSpeed);
+
+    /**
+     * Request a new image. The request replaces any pending request and
+     * cancels the renderer that is currently working.
+     *
+     * @param renderSpeed The rendering speed.
+     */
+    public void requestRender(RenderSpeed renderSpeed) {
+        assert (SwingUtilities.isEventDispatchThread());
+
+        ++newestRequestID;
+        if (rendering) {
+            // replace pending request; only the newest parameters are rendered
+            pendingRequest = renderSpeed;
+            // the renderer stops at the next cancellation check
+            latestRenderer.cancel(false);
+        } else {
+            startRenderer(renderSpeed);
+        }
+    }
+
+    private void startRenderer(RenderSpeed renderSpeed) {
+        activeRequestID = newestRequestID;
+        latestRenderer = createRenderer(renderSpeed);
+        rendering = true;
+        latestRenderer.execute();
+    }
+
+    /**
+     * Renderers call this method when their doInBackground() method exits,
+     * whether or not they have been cancelled. Can be called from any thread.
+     *
+     * @param renderer The renderer that has stopped working.
+     */
+    public void rendererStopped(final SwingWorker<?, ?> renderer) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (renderer != latestRenderer) {
+                    return;
+                }
+                rendering = false;
+                if (pendingRequest != null) {
+                    RenderSpeed renderSpeed = pendingRequest;
+                    pendingRequest = null;
+                    startRenderer(renderSpeed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether a renderer may deliver its image to the main window.
+     * This is the case if it has not been cancelled and no newer request has
+     * been received since it was started. Updates the frame counters and must
+     * therefore be called exactly once by each renderer in done().
+     *
+     * @param renderer The renderer.
+     * @return True if the image of the renderer is current.
+     */
+    public boolean isCurrent(SwingWorker<?, ?> renderer) {
+        assert (SwingUtilities.isEventDispatchThread());
+
+        boolean current = !renderer.isCancelled()
+                && renderer == latestRenderer
+                && activeRequestID == newestRequestID;
+        if (current) {
+            completedFrames.incrementAndGet();
+        } else {
+            droppedFrames.incrementAndGet();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the number of frames that were passed to the main window.
+     *
+     * @return The number of completed frames.
+     */
+    public long getCompletedFrames() {
+        return completedFrames.get();
+    }
+
+    /**
+     * Returns the number of frames that were cancelled or discarded.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+}
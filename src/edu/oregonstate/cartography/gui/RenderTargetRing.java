@@ -0,0 +1,335 @@
+package edu.oregonstate.cartography.gui;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A ring of reusable images for interactive rendering. Allocating new images
+ * for each rendering creates large amounts of garbage for big grids, while
+ * reusing a single image causes flickering, because a renderer may overwrite
+ * an image that is being displayed.
+ *
+ * Each target has a background image, a foreground image if there is a
+ * foreground, and a display image. The renderer composites the background
+ * and foreground into the display image, which then replaces the image shown
+ * in the main window.
+ *
+ * A target is acquired on the event dispatching thread before a renderer is
+ * started. It has two users: the renderer, and its done() method or the main
+ * window while the display image is shown. The target returns to the ring once
+ * both have released it. At any time, one target is displayed, one is being
+ * rendered, and one waits for done() to be called, so three targets are
+ * sufficient. If all targets are in use, a temporary target is created that
+ * does not return to the ring.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+final class RenderTargetRing {
+
+    /**
+     * Images for one rendering.
+     */
+    static final class RenderTarget {
+
+        /**
+         * The background image, at the size of the grid.
+         */
+        private BufferedImage backgroundImage;
+
+        /**
+         * The foreground image, foregroundScale times larger than the grid.
+         * Null if there is no foreground. Only the image for the current
+         * scale is kept, as the images for previews and regular renderings
+         * together would take five times the memory of the background.
+         */
+        private BufferedImage foregroundImage;
+
+        /**
+         * The scale factor of the foreground image relative to the grid.
+         */
+        private int foregroundScale = 1;
+
+        /**
+         * The composited image that is displayed in the main window.
+         */
+        private BufferedImage displayImage;
+
+        /**
+         * The number of users that have not yet released this target.
+         * Guarded by the RenderTargetRing.
+         */
+        private int users = 0;
+
+        private RenderTarget() {
+        }
+
+        /**
+         * Allocates images if they do not exist or have a different size, and
+         * releases the foreground image if it is not needed.
+         */
+        private void ensureSize(int cols, int rows, boolean foreground, int scale,
+                int displayWidth, int displayHeight) {
+            if (backgroundImage == null
+                    || backgroundImage.getWidth() != cols
+                    || backgroundImage.getHeight() != rows) {
+                // release the old images before allocating new ones
+                backgroundImage = null;
+                foregroundImage = null;
+                backgroundImage = new BufferedImage(cols, rows, BufferedImage.TYPE_INT_ARGB);
+            }
+            if (!foreground || scale != foregroundScale) {
+                foregroundImage = null;
+            }
+            if (foreground && foregroundImage == null) {
+                foregroundImage = new BufferedImage(cols * scale, rows * scale,
+                        BufferedImage.TYPE_INT_ARGB);
+            }
+            foregroundScale = scale;
+            if (displayImage == null
+                    || displayImage.getWidth() != displayWidth
+                    || displayImage.getHeight() != displayHeight) {
+                displayImage = new BufferedImage(displayWidth, displayHeight,
+                        BufferedImage.TYPE_INT_ARGB);
+            }
+        }
+
+        /**
+         * Returns the background image.
+         *
+         * @return The image with the size of the grid.
+         */
+        BufferedImage getBackgroundImage() {
+            return backgroundImage;
+        }
+
+        /**
+         * Returns the foreground image. The foreground is rendered to a
+         * separate image, such that background and foreground can be rendered
+         * concurrently.
+         *
+         * @return The foreground image, or null if there is no foreground.
+         */
+        BufferedImage getForegroundImage() {
+            return foregroundImage;
+        }
+
+        /**
+         * Returns whether the foreground is composited over the background.
+         *
+         * @return False if there is no foreground.
+         */
+        boolean isForegroundVisible() {
+            return foregroundImage != null;
+        }
+
+        /**
+         * Returns the composited display image.
+         *
+         * @return The display image.
+         */
+        BufferedImage getDisplayImage() {
+            return displayImage;
+        }
+
+        /**
+         * Composites the background and foreground images into the display
+         * image. The background is placed over a white base and scaled to the
+         * display image with nearest neighbor sampling. The foreground is
+         * scaled with a box filter that averages all foreground pixels covered
+         * by a display pixel. Bands of rows are computed in parallel.
+         *
+         * @param token Checked before each band. Can be null.
+         * @throws CancellationException If the token is cancelled.
+         */
+        void composite(final CancellationToken token) {
+            final int[] bg = pixels(backgroundImage);
+            final int[] fg = foregroundImage != null ? pixels(foregroundImage) : null;
+            final int[] dst = pixels(displayImage);
+            final int bgW = backgroundImage.getWidth();
+            final int bgH = backgroundImage.getHeight();
+            final int fgW = fg == null ? 0 : foregroundImage.getWidth();
+            final int fgH = fg == null ? 0 : foregroundImage.getHeight();
+            final int dstW = displayImage.getWidth();
+            final int dstH = displayImage.getHeight();
+
+            // source columns for each display column
+            final int[] bgCols = new int[dstW];
+            final int[] fgCols = new int[dstW + 1];
+            for (int x = 0; x < dstW; x++) {
+                bgCols[x] = (int) ((long) x * bgW / dstW);
+                fgCols[x] = (int) ((long) x * fgW / dstW);
+            }
+            fgCols[dstW] = fgW;
+
+            SharedExecutor.forEachBand(dstH, SharedExecutor.bandRows(dstH, 32),
+                    new SharedExecutor.BandTask() {
+                        @Override
+                        protected void run(int firstRow, int endRow) {
+                            for (int y = firstRow; y < endRow; y++) {
+                                int bgRow = (int) ((long) y * bgH / dstH) * bgW;
+                                int fgRow0 = (int) ((long) y * fgH / dstH);
+                                int fgRow1 = Math.max(fgRow0 + 1, (int) ((long) (y + 1) * fgH / dstH));
+                                int dstRow = y * dstW;
+                                for (int x = 0; x < dstW; x++) {
+                                    int b = bg[bgRow + bgCols[x]];
+                                    if (fg == null) {
+                                        dst[dstRow + x] = overWhite(b);
+                                    } else {
+                                        int fgCol0 = fgCols[x];
+                                        int fgCol1 = Math.max(fgCol0 + 1, fgCols[x + 1]);
+                                        dst[dstRow + x] = blend(fg, fgW, fgCol0, fgCol1,
+                                                fgRow0, fgRow1, overWhite(b));
+                                    }
+                                }
+                            }
+                        }
+
+                        @Override
+                        protected boolean isCancelled() {
+                            return CancellationToken.isCancelled(token);
+                        }
+                    });
+            CancellationToken.throwIfCancelled(token);
+        }
+
+        /**
+         * Erases the foreground image to transparent pixels. Must be called by
+         * the renderer before rendering the foreground image, as contour lines
+         * are only written where there are lines.
+         */
+        void clearForeground() {
+            Arrays.fill(pixels(getForegroundImage()), 0);
+        }
+    }
+
+    /**
+     * Returns the pixel buffer of an image of type TYPE_INT_ARGB.
+     */
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Places a pixel over a white base.
+     *
+     * @param argb A non-premultiplied ARGB pixel.
+     * @return An opaque pixel.
+     */
+    private static int overWhite(int argb) {
+        int a = argb >>> 24;
+        if (a == 255) {
+            return argb;
+        }
+        int white = 255 * (255 - a);
+        int r = (((argb >> 16) & 0xFF) * a + white) / 255;
+        int g = (((argb >> 8) & 0xFF) * a + white) / 255;
+        int b = ((argb & 0xFF) * a + white) / 255;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Averages a block of foreground pixels and places the average over an
+     * opaque background pixel.
+     *
+     * @param fg The foreground pixels.
+     * @param fgW The width of the foreground image.
+     * @param col0 First column of the block.
+     * @param col1 First column after the block.
+     * @param row0 First row of the block.
+     * @param row1 First row after the block.
+     * @param background An opaque background pixel.
+     * @return An opaque pixel.
+     */
+    private static int blend(int[] fg, int fgW, int col0, int col1,
+            int row0, int row1, int background) {
+        int sumA = 0, sumR = 0, sumG = 0, sumB = 0;
+        for (int r = row0; r < row1; r++) {
+            int rowStart = r * fgW;
+            for (int c = col0; c < col1; c++) {
+                int argb = fg[rowStart + c];
+                int a = argb >>> 24;
+                if (a != 0) {
+                    sumA += a;
+                    sumR += ((argb >> 16) & 0xFF) * a;
+                    sumG += ((argb >> 8) & 0xFF) * a;
+                    sumB += (argb & 0xFF) * a;
+                }
+            }
+        }
+        if (sumA == 0) {
+            return background;
+        }
+        // sums of premultiplied components are divided by 255 * n
+        int n = (col1 - col0) * (row1 - row0);
+        int d = 255 * n;
+        int inverseAlpha = d - sumA;
+        int r = (sumR + ((background >> 16) & 0xFF) * inverseAlpha) / d;
+        int g = (sumG + ((background >> 8) & 0xFF) * inverseAlpha) / d;
+        int b = (sumB + (background & 0xFF) * inverseAlpha) / d;
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * The reusable targets.
+     */
+    private final RenderTarget[] ring = new RenderTarget[3];
+
+    /**
+     * Index of the target that is tested first by the next call to acquire().
+     */
+    private int next = 0;
+
+    RenderTargetRing() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new RenderTarget();
+        }
+    }
+
+    /**
+     * Returns a target that is not in use, with images for a grid of the
+     * passed size. The target must be released twice: by the renderer, and by
+     * its done() method or when the display image is no longer shown.
+     *
+     * @param cols The number of columns of the grid.
+     * @param rows The number of rows of the grid.
+     * @param foreground True if the target needs a foreground image.
+     * @param foregroundScale The scale factor of the foreground image.
+     * @param displayWidth The width of the display image.
+     * @param displayHeight The height of the display image.
+     * @return The target.
+     */
+    synchronized RenderTarget acquire(int cols, int rows, boolean foreground,
+            int foregroundScale, int displayWidth, int displayHeight) {
+        RenderTarget target = null;
+        for (int i = 0; i < ring.length && target == null; i++) {
+            RenderTarget t = ring[(next + i) % ring.length];
+            if (t.users == 0) {
+                target = t;
+                next = (next + i + 1) % ring.length;
+            }
+        }
+        if (target == null) {
+            target = new RenderTarget();
+        }
+        target.ensureSize(cols, rows, foreground, foregroundScale,
+                displayWidth, displayHeight);
+        target.users = 2;
+        return target;
+    }
+
+    /**
+     * Release a target. Can be called from any thread.
+     *
+     * @param target The target to release.
+     */
+    synchronized void release(RenderTarget target) {
+        if (target.users > 0) {
+            --target.users;
+        }
+    }
+}
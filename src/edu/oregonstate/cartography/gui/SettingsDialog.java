@@ -51,6 +51,15 @@ public class SettingsDialog extends javax.swing.JDialog {
         settingsPanel.setModel(model);
     }
     
+    /**
+     * Returns the settings panel, which renders the display image.
+     *
+     * @return The settings panel.
+     */
+    public SettingsPanel getSettingsPanel() {
+        return settingsPanel;
+    }
+
     public void modelChanged() {
         settingsPanel.updateImage(SettingsPanel.RenderSpeed.REGULAR);
     }
@@ -1,25 +1,21 @@
 package edu.oregonstate.cartography.gui;
 
 import com.bric.swing.MultiThumbSlider;
-import edu.oregonstate.cartography.app.ImageUtils;
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.Grid;
 import edu.oregonstate.cartography.grid.Model;
 import edu.oregonstate.cartography.grid.Model.ColorRamp;
 import edu.oregonstate.cartography.grid.Model.ForegroundVisualization;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator;
 import edu.oregonstate.cartography.grid.operators.ColorizerOperator.ColorVisualization;
 import static edu.oregonstate.cartography.gui.SettingsPanel.RenderSpeed.FAST;
 import static edu.oregonstate.cartography.gui.SettingsPanel.RenderSpeed.REGULAR;
 import java.awt.CardLayout;
 import java.awt.Color;
-import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.event.ItemEvent;
 import java.awt.image.BufferedImage;
 import java.text.DecimalFormat;
-import java.util.concurrent.ExecutionException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
@@ -44,76 +40,147 @@ public class SettingsPanel extends javax.swing.JPanel {
     // A SwingWorker for rendering the image when no progress dialog is required.
     class BackgroundRenderer extends SwingWorker<Void, Object> {
 
-        private final BufferedImage backgroundImage;
-        private final BufferedImage foregroundImage;
+        private final RenderTargetRing.RenderTarget target;
 
-        protected BackgroundRenderer(BufferedImage backgroundImage,
-                BufferedImage foregroundImage) {
-            this.backgroundImage = backgroundImage;
-            this.foregroundImage = foregroundImage;
+        // stops the grid operators when this renderer is cancelled
+        private final CancellationToken cancellationToken = new CancellationToken() {
+            @Override
+            public boolean isCancelled() {
+                return BackgroundRenderer.this.isCancelled();
+            }
+        };
+
+        protected BackgroundRenderer(RenderTargetRing.RenderTarget target) {
+            this.target = target;
         }
 
         @Override
         public Void doInBackground() {
-            if (model.getGeneralizedGrid() != null) {
-                model.renderBackgroundImage(backgroundImage);
-
-                // directly render to backround image if foreground and background
-                // images are the same size. This avoids a copy operation to
-                // combine the two images.
-                BufferedImage img = backgroundImage != foregroundImage ? foregroundImage : backgroundImage;
-                model.renderForegroundImage(img);
+            try {
+                if (model.getGeneralizedGrid() != null) {
+                    // the target has a foreground image if the foreground was
+                    // visible when the rendering was requested
+                    final boolean hasForeground = target.isForegroundVisible();
+
+                    // background and foreground only read the generalized grid
+                    // and write to different images, so they are rendered
+                    // concurrently
+                    SharedExecutor.runConcurrently(new Runnable() {
+                        @Override
+                        public void run() {
+                            model.renderBackgroundImage(target.getBackgroundImage(),
+                                    cancellationToken);
+                        }
+                    }, new Runnable() {
+                        @Override
+                        public void run() {
+                            if (hasForeground) {
+                                target.clearForeground();
+                                model.renderForegroundImage(target.getForegroundImage(),
+                                        cancellationToken);
+                            }
+                        }
+                    });
+
+                    // stop if a newer image has been requested in the meantime
+                    if (isCancelled()) {
+                        return null;
+                    }
+
+                    // combine background and foreground in the display image
+                    target.composite(cancellationToken);
+                }
+                return null;
+            } finally {
+                renderTargets.release(target);
+                renderScheduler.rendererStopped(this);
             }
-            return null;
         }
 
         @Override
         protected void done() {
-            Graphics g = null;
             MainWindow mainWindow = getOwnerWindow();
+            // only display images rendered with the newest settings
+            boolean current = renderScheduler.isCurrent(this);
+            boolean displayed = false;
             try {
-                if (!isCancelled() && mainWindow != null) {
+                if (current && mainWindow != null) {
                     get();
-
-                    BufferedImage displayImage = mainWindow.getImage();
-                    int w = displayImage.getWidth();
-                    int h = displayImage.getHeight();
-                    g = displayImage.getGraphics();
-
-                    // erase previous image
-                    g.setColor(Color.WHITE);
-                    g.fillRect(0, 0, displayImage.getWidth(), displayImage.getHeight());
-
-                    // copy background image into the display image
-                    g.drawImage(backgroundImage, 0, 0, w, h, null);
-
-                    // copy foreground image into the display image if required.
-                    if (backgroundImage != foregroundImage) {
-                        BufferedImage img = ImageUtils.getScaledInstance(foregroundImage,
-                                displayImage.getWidth(), displayImage.getHeight(),
-                                RenderingHints.VALUE_INTERPOLATION_BILINEAR, true);
-                        g.drawImage(img, 0, 0, w, h, null);
-                    }
+                    mainWindow.replaceImage(target.getDisplayImage());
+                    displayed = true;
                 }
             } catch (Exception ignore) {
             } finally {
-                if (g != null) {
-                    g.dispose();
-                }
-                if (!isCancelled() && mainWindow != null) {
-                    mainWindow.repaintImage();
+                if (displayed) {
+                    // the previously displayed image can be reused
+                    if (displayedTarget != null) {
+                        renderTargets.release(displayedTarget);
+                    }
+                    displayedTarget = target;
+                } else {
+                    // the renderer might still be working if it has been cancelled
+                    renderTargets.release(target);
                 }
             }
         }
     }
 
     private Model model;
-    private BackgroundRenderer renderer;
+
+    /**
+     * Reusable images for rendering. A renderer and the event dispatching
+     * thread never access the same images concurrently.
+     */
+    private final RenderTargetRing renderTargets = new RenderTargetRing();
+
+    /**
+     * The target with the image that is displayed in the main window. Only
+     * accessed by the event dispatching thread.
+     */
+    private RenderTargetRing.RenderTarget displayedTarget;
+
+    /**
+     * Coalesces rendering requests and cancels outdated renderers.
+     */
+    private final RenderScheduler renderScheduler = new RenderScheduler() {
+        @Override
+        protected SwingWorker<?, ?> createRenderer(RenderSpeed renderSpeed) {
+            Grid grid = model.getGeneralizedGrid();
+            boolean hasForeground
+                    = model.foregroundVisualization != ForegroundVisualization.NONE;
+            int foregroundScale = (renderSpeed == FAST ? 1 : 2);
+            BufferedImage displayImage = getOwnerWindow().getImage();
+            RenderTargetRing.RenderTarget target = renderTargets.acquire(
+                    grid.getCols(), grid.getRows(), hasForeground, foregroundScale,
+                    displayImage.getWidth(), displayImage.getHeight());
+            return new BackgroundRenderer(target);
+        }
+    };
 
     public SettingsPanel() {
         initComponents();
     }
 
+    /**
+     * Returns the number of rendered images that were displayed in the main
+     * window.
+     *
+     * @return The number of completed frames.
+     */
+    public long getCompletedFrames() {
+        return renderScheduler.getCompletedFrames();
+    }
+
+    /**
+     * Returns the number of renderings that were cancelled or discarded,
+     * because newer settings were available.
+     *
+     * @return The number of dropped frames.
+     */
+    public long getDroppedFrames() {
+        return renderScheduler.getDroppedFrames();
+    }
+
     /**
      * Adjusts the visibility of the GUI components for configuring the
      * different visualization types.
@@ -146,43 +213,26 @@ public class SettingsPanel extends javax.swing.JPanel {
         contoursBlankBackgroundButton.setEnabled(!isSolidColor);
     }
 
+    /**
+     * Renders a new image in a background thread. Does not block the event
+     * dispatching thread. A rendering in progress is cancelled, and only the
+     * image for the newest request is displayed.
+     *
+     * @param renderSpeed FAST for a quick preview while a slider is dragged.
+     */
     public void updateImage(RenderSpeed renderSpeed) {
         try {
             MainWindow mainWindow = getOwnerWindow();
             if (mainWindow == null || model == null) {
                 return;
             }
-
-            // if we are currently rendering an image, first cancel the current rendering
-            if (renderer != null && !renderer.isDone()) {
-                // FIXME
-                //renderer.cancel(false);
-            }
-
-            // block the event dispatching thread until the BackgroundRenderer worker thread
-            // is done. This is to avoid that two BackgroundRenderer threads write to 
-            // the same image.
-            try {
-                if (renderer != null) {
-                    renderer.get();
-                }
-            } catch (InterruptedException | ExecutionException ex) {
-                Logger.getLogger(SettingsPanel.class.getName()).log(Level.SEVERE, null, ex);
-            }
-
-            // create destination image
-            // note: it is not possible to reuse this image. Flickering artifacts
-            // will appear otherwise.
-            BufferedImage backgroundImage = model.createDestinationImage(1);
-            if (backgroundImage == null) {
+            // all changes of the settings and the grid pass through here,
+            // including previews for dragged sliders
+            mainWindow.modelSettingsChanged();
+            if (model.getGeneralizedGrid() == null) {
                 return;
             }
-            int foregroundScale = (renderSpeed == FAST ? 1 : 2);
-            BufferedImage foregroundImage = model.createDestinationImage(foregroundScale);
-
-            // create a new renderer and run it
-            renderer = new BackgroundRenderer(backgroundImage, foregroundImage);
-            renderer.execute();
+            renderScheduler.requestRender(renderSpeed);
         } catch (Throwable e) {
             String msg = "<html>An error occured when rendering the terrain.</html>";
             String title = "Error";
@@ -0,0 +1,196 @@
+package edu.oregonstate.cartography.image;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an image to a file in horizontal strips of rows, from top to bottom.
+ * Only the current strip needs to be held in memory, so that images can be
+ * written that are too large for a BufferedImage.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public abstract class ImageStripWriter implements Closeable {
+
+    /**
+     * The width of the image in pixels.
+     */
+    protected final int width;
+
+    /**
+     * The height of the image in pixels.
+     */
+    protected final int height;
+
+    /**
+     * The number of rows written so far.
+     */
+    private int rowsWritten = 0;
+
+    /**
+     * Creates a writer for an image of the passed size.
+     *
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     */
+    protected ImageStripWriter(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("invalid image size");
+        }
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Creates a writer for a file format.
+     *
+     * @param file The file to write to.
+     * @param format "png" or "tif".
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @return The new writer.
+     * @throws IOException If the file cannot be created or the format is not
+     * supported.
+     */
+    public static ImageStripWriter create(File file, String format,
+            int width, int height) throws IOException {
+        return create(file, format, width, height, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer for a file format with a compression level.
+     *
+     * @param file The file to write to.
+     * @param format "png" or "tif".
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param compressionLevel The deflate compression level between 0 and 9,
+     * or -1 for the default level. Ignored for TIFF files, which are not
+     * compressed.
+     * @return The new writer.
+     * @throws IOException If the file cannot be created or the format is not
+     * supported.
+     */
+    public static ImageStripWriter create(File file, String format,
+            int width, int height, int compressionLevel) throws IOException {
+        return create(file, format, width, height, compressionLevel,
+                TIFFStripWriter.Compression.NONE);
+    }
+
+    /**
+     * Creates a writer for a file format with compression settings.
+     *
+     * @param file The file to write to.
+     * @param format "png" or "tif".
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param compressionLevel The deflate compression level between 0 and 9,
+     * or -1 for the default level. Used for PNG files and TIFF files with
+     * deflate compression.
+     * @param tiffCompression The compression of TIFF strips.
+     * @return The new writer.
+     * @throws IOException If the file cannot be created or the format is not
+     * supported.
+     */
+    public static ImageStripWriter create(File file, String format,
+            int width, int height, int compressionLevel,
+            TIFFStripWriter.Compression tiffCompression) throws IOException {
+        switch (format.toLowerCase()) {
+            case "png":
+                return new PNGStripWriter(file, width, height, compressionLevel);
+            case "tif":
+            case "tiff":
+                return new TIFFStripWriter(file, width, height, tiffCompression,
+                        compressionLevel, true);
+            default:
+                throw new IOException("Unsupported image format: " + format);
+        }
+    }
+
+    /**
+     * Returns the pixel array of an image with int pixels if its rows are
+     * stored without gaps, starting at the first element.
+     *
+     * @param image The image.
+     * @param type The required type of the image, TYPE_INT_ARGB or
+     * TYPE_INT_RGB.
+     * @return The pixels, or null if the image has another type or layout.
+     */
+    static int[] directPixels(BufferedImage image, int type) {
+        if (image.getType() != type
+                || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+                || !(image.getSampleModel() instanceof SinglePixelPackedSampleModel)) {
+            return null;
+        }
+        SinglePixelPackedSampleModel sm = (SinglePixelPackedSampleModel) image.getSampleModel();
+        DataBufferInt buffer = (DataBufferInt) image.getRaster().getDataBuffer();
+        if (sm.getScanlineStride() != image.getWidth() || buffer.getOffset() != 0
+                || image.getRaster().getSampleModelTranslateX() != 0
+                || image.getRaster().getSampleModelTranslateY() != 0) {
+            return null;
+        }
+        return buffer.getData();
+    }
+
+    /**
+     * Writes the next strip of rows.
+     *
+     * @param argb Non-premultiplied ARGB pixels, row by row, starting at index
+     * 0. The array must contain at least rows * width pixels.
+     * @param rows The number of rows in the strip.
+     * @throws IOException If an error occurs while writing.
+     */
+    public final void writeStrip(int[] argb, int rows) throws IOException {
+        if (rows < 0 || rowsWritten + rows > height) {
+            throw new IllegalArgumentException("too many rows");
+        }
+        if (argb.length < (long) rows * width) {
+            throw new IllegalArgumentException("strip too small");
+        }
+        writeRows(argb, rows);
+        rowsWritten += rows;
+    }
+
+    /**
+     * Writes rows to the file. Called by writeStrip() after the size of the
+     * strip has been verified.
+     *
+     * @param argb Non-premultiplied ARGB pixels, row by row.
+     * @param rows The number of rows.
+     * @throws IOException If an error occurs while writing.
+     */
+    protected abstract void writeRows(int[] argb, int rows) throws IOException;
+
+    /**
+     * Returns whether all rows of the image have been written.
+     *
+     * @return True if the image is complete.
+     */
+    public boolean isComplete() {
+        return rowsWritten == height;
+    }
+
+    /**
+     * Returns the width of the image.
+     *
+     * @return The width in pixels.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the image.
+     *
+     * @return The height in pixels.
+     */
+    public int getHeight() {
+        return height;
+    }
+}
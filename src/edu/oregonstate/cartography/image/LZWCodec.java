@@ -0,0 +1,200 @@
+package edu.oregonstate.cartography.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * LZW compression as used by TIFF files: codes are written with the most
+ * significant bit first, and the code width increases one code early.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class LZWCodec {
+
+    private static final int CLEAR = 256;
+    private static final int EOI = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MAX_CODE = 4095;
+
+    /**
+     * Hash table size, a prime larger than twice the number of codes.
+     */
+    private static final int HASH_SIZE = 9001;
+
+    /**
+     * Keys are prefix code * 256 + byte + 1, zero for empty slots.
+     */
+    private final int[] hashKeys = new int[HASH_SIZE];
+    private final short[] hashCodes = new short[HASH_SIZE];
+
+    private byte[] out;
+    private int outLength;
+    private long bitBuffer;
+    private int bitCount;
+
+    private int nextCode;
+    private int codeWidth;
+
+    private LZWCodec() {
+    }
+
+    /**
+     * Compresses bytes.
+     *
+     * @param src The bytes to compress.
+     * @return The compressed bytes.
+     */
+    public static byte[] encode(byte[] src) {
+        return new LZWCodec().encodeBytes(src);
+    }
+
+    private byte[] encodeBytes(byte[] src) {
+        out = new byte[src.length / 2 + 64];
+        resetTable();
+        writeCode(CLEAR);
+        if (src.length > 0) {
+            int prefix = src[0] & 0xff;
+            for (int i = 1; i < src.length; i++) {
+                int c = src[i] & 0xff;
+                int key = (prefix << 8 | c) + 1;
+                int h = (prefix << 8 ^ c * 31) % HASH_SIZE;
+                while (hashKeys[h] != 0 && hashKeys[h] != key) {
+                    h = h == 0 ? HASH_SIZE - 1 : h - 1;
+                }
+                if (hashKeys[h] == key) {
+                    prefix = hashCodes[h];
+                    continue;
+                }
+                writeCode(prefix);
+                hashKeys[h] = key;
+                hashCodes[h] = (short) nextCode;
+                addCode();
+                prefix = c;
+            }
+            // the decoder adds a table entry after the last code
+            writeCode(prefix);
+            addCode();
+        }
+        writeCode(EOI);
+        if (bitCount > 0) {
+            put((byte) (bitBuffer << (8 - bitCount)));
+        }
+        return Arrays.copyOf(out, outLength);
+    }
+
+    private void resetTable() {
+        Arrays.fill(hashKeys, 0);
+        nextCode = FIRST_CODE;
+        codeWidth = 9;
+    }
+
+    /**
+     * Counts a new table entry, and increases the code width or clears the
+     * table when necessary.
+     */
+    private void addCode() {
+        nextCode++;
+        if (nextCode == MAX_CODE - 1) {
+            writeCode(CLEAR);
+            resetTable();
+        } else if (nextCode > (1 << codeWidth) - 1) {
+            codeWidth++;
+        }
+    }
+
+    private void writeCode(int code) {
+        bitBuffer = bitBuffer << codeWidth | code;
+        bitCount += codeWidth;
+        while (bitCount >= 8) {
+            bitCount -= 8;
+            put((byte) (bitBuffer >> bitCount));
+        }
+    }
+
+    private void put(byte b) {
+        if (outLength == out.length) {
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        out[outLength++] = b;
+    }
+
+    /**
+     * Decompresses bytes. Decoding stops at the end of information code, when
+     * the destination is full, or at the end of the source.
+     *
+     * @param src The compressed bytes.
+     * @param srcLength The number of compressed bytes in src.
+     * @param dst The destination for the decompressed bytes.
+     * @param dstLength The maximum number of bytes to write to dst.
+     * @return The number of decompressed bytes.
+     * @throws IOException If the compressed data is invalid.
+     */
+    public static int decode(byte[] src, int srcLength, byte[] dst, int dstLength)
+            throws IOException {
+        // a table entry is always a copy of earlier output, so entries are
+        // stored as the position of their first byte in dst and their length
+        int[] entryStart = new int[MAX_CODE + 1];
+        int[] entryLength = new int[MAX_CODE + 1];
+        int n = 0;
+        int next = FIRST_CODE;
+        int width = 9;
+        // position and length of the output of the previous code
+        int previousStart = -1;
+        int previousLength = 0;
+        long buffer = 0;
+        int bits = 0;
+        int srcPos = 0;
+        while (n < dstLength) {
+            while (bits < width && srcPos < srcLength) {
+                buffer = buffer << 8 | (src[srcPos++] & 0xff);
+                bits += 8;
+            }
+            if (bits < width) {
+                break;
+            }
+            bits -= width;
+            int code = (int) (buffer >>> bits) & ((1 << width) - 1);
+            if (code == EOI) {
+                break;
+            }
+            if (code == CLEAR) {
+                next = FIRST_CODE;
+                width = 9;
+                previousStart = -1;
+                continue;
+            }
+            int start = n;
+            if (code < CLEAR) {
+                dst[n++] = (byte) code;
+            } else if (code < next && previousStart >= 0) {
+                int len = Math.min(entryLength[code], dstLength - n);
+                System.arraycopy(dst, entryStart[code], dst, n, len);
+                n += len;
+            } else if (code == next && previousStart >= 0) {
+                // the entry that is being defined: the previous output
+                // followed by its first byte
+                int len = Math.min(previousLength, dstLength - n);
+                System.arraycopy(dst, previousStart, dst, n, len);
+                n += len;
+                if (n < dstLength) {
+                    dst[n++] = dst[previousStart];
+                }
+            } else {
+                throw new IOException("Invalid LZW code " + code);
+            }
+            if (previousStart >= 0 && next <= MAX_CODE) {
+                entryStart[next] = previousStart;
+                entryLength[next] = previousLength + 1;
+                next++;
+                // the code width increases one code early
+                if (next >= (1 << width) - 1 && width < 12) {
+                    width++;
+                }
+            }
+            previousStart = start;
+            previousLength = n - start;
+        }
+        return n;
+    }
+}
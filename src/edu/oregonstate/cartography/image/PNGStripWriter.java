@@ -0,0 +1,481 @@
+package edu.oregonstate.cartography.image;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a PNG image with 8 bits per channel RGBA pixels in strips.
+ *
+ * Strips are divided into blocks of rows, which are filtered and compressed
+ * in parallel. Each block is compressed independently and ends with a
+ * deflate sync flush, so that the compressed blocks can be concatenated to a
+ * single deflate stream. The Adler-32 checksums of the blocks are combined
+ * to the checksum of the zlib stream. Each block is written as an IDAT chunk,
+ * and its CRC is computed in parallel as well. Compressing blocks
+ * independently costs a small amount of compression compared to a single
+ * deflate stream.
+ *
+ * A filter is selected for each row with the minimum sum of absolute
+ * differences heuristic recommended by the PNG specification.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class PNGStripWriter extends ImageStripWriter {
+
+    /**
+     * The PNG file signature.
+     */
+    private static final byte[] SIGNATURE = {
+        (byte) 137, 80, 78, 71, 13, 10, 26, 10
+    };
+
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The minimum number of uncompressed bytes in a block that is compressed
+     * independently. Smaller blocks compress less well.
+     */
+    private static final int BLOCK_BYTES = 512 * 1024;
+
+    /**
+     * The base of Adler-32 checksums.
+     */
+    private static final int ADLER_BASE = 65521;
+
+    /**
+     * Writes chunks to the file.
+     */
+    private final DataOutputStream out;
+
+    /**
+     * The zlib compression level between 0 and 9, or -1 for the default.
+     */
+    private final int compressionLevel;
+
+    /**
+     * The number of bytes of a scanline without the filter type byte.
+     */
+    private final int rowBytes;
+
+    /**
+     * The last row of the previous strip, which is needed for filtering the
+     * first row of the next strip. Null before the first strip.
+     */
+    private int[] previousRow;
+
+    /**
+     * The Adler-32 checksum of all uncompressed bytes written so far.
+     */
+    private long adler = 1;
+
+    /**
+     * Creates a writer with the default compression level and writes the PNG
+     * header to the file.
+     *
+     * @param file The file to write to.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @throws IOException If the file cannot be written.
+     */
+    public PNGStripWriter(File file, int width, int height) throws IOException {
+        this(file, width, height, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer and writes the PNG header to the file.
+     *
+     * @param file The file to write to.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param compressionLevel The compression level between 0 (no
+     * compression, fastest) and 9 (best compression, slowest), or -1 for the
+     * default level.
+     * @throws IOException If the file cannot be written.
+     */
+    public PNGStripWriter(File file, int width, int height, int compressionLevel)
+            throws IOException {
+        this(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024),
+                width, height, compressionLevel);
+    }
+
+    /**
+     * Creates a writer with the default compression level and writes the PNG
+     * header to a stream. The stream is closed when the writer is closed.
+     *
+     * @param stream The stream to write to, for example a
+     * ByteArrayOutputStream for encoding a small image in memory.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @throws IOException If the stream cannot be written.
+     */
+    public PNGStripWriter(OutputStream stream, int width, int height) throws IOException {
+        this(stream, width, height, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Creates a writer and writes the PNG header to a stream. The stream is
+     * closed when the writer is closed.
+     *
+     * @param stream The stream to write to.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param compressionLevel The compression level between 0 and 9, or -1
+     * for the default level.
+     * @throws IOException If the stream cannot be written.
+     */
+    public PNGStripWriter(OutputStream stream, int width, int height,
+            int compressionLevel) throws IOException {
+        super(width, height);
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            stream.close();
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        if ((long) width * 4 + 1 > Integer.MAX_VALUE) {
+            stream.close();
+            throw new IOException("Image too wide for PNG");
+        }
+        this.compressionLevel = compressionLevel;
+        rowBytes = width * 4;
+        out = new DataOutputStream(stream);
+        try {
+            out.write(SIGNATURE);
+            byte[] ihdr = new byte[13];
+            putInt(ihdr, 0, width);
+            putInt(ihdr, 4, height);
+            ihdr[8] = 8; // bit depth
+            ihdr[9] = 6; // color type: RGB with alpha
+            ihdr[10] = 0; // deflate compression
+            ihdr[11] = 0; // adaptive filtering
+            ihdr[12] = 0; // no interlace
+            writeChunk("IHDR", ihdr, ihdr.length);
+
+            // zlib header in its own chunk, because blocks are compressed
+            // before they are written
+            writeChunk("IDAT", zlibHeader(compressionLevel), 2);
+        } catch (IOException exc) {
+            out.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Writes an image to a PNG file. Images of TYPE_INT_ARGB are written
+     * directly from the pixel array of the image without a copy, other images
+     * are converted in strips.
+     *
+     * @param image The image.
+     * @param file The file to write to.
+     * @param compressionLevel The compression level between 0 and 9, or -1
+     * for the default level.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(BufferedImage image, File file, int compressionLevel)
+            throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        try (PNGStripWriter writer = new PNGStripWriter(file, w, h, compressionLevel)) {
+            int[] pixels = directPixels(image, BufferedImage.TYPE_INT_ARGB);
+            if (pixels != null) {
+                writer.writeStrip(pixels, h);
+                return;
+            }
+            int stripRows = Math.max(1, Math.min(h, BLOCK_BYTES * 8 / (w * 4)));
+            int[] strip = new int[stripRows * w];
+            for (int y = 0; y < h; y += stripRows) {
+                int rows = Math.min(stripRows, h - y);
+                image.getRGB(0, y, w, rows, strip, 0, w);
+                writer.writeStrip(strip, rows);
+            }
+        }
+    }
+
+    private static byte[] zlibHeader(int level) {
+        int cmf = 0x78; // deflate with 32K window
+        int flevel;
+        if (level == 0 || level == 1) {
+            flevel = 0;
+        } else if (level >= 2 && level <= 5) {
+            flevel = 1;
+        } else if (level == 6 || level == -1) {
+            flevel = 2;
+        } else {
+            flevel = 3;
+        }
+        int flg = flevel << 6;
+        flg += 31 - (cmf * 256 + flg) % 31;
+        return new byte[]{(byte) cmf, (byte) flg};
+    }
+
+    private static void putInt(byte[] b, int offset, int v) {
+        b[offset] = (byte) (v >>> 24);
+        b[offset + 1] = (byte) (v >>> 16);
+        b[offset + 2] = (byte) (v >>> 8);
+        b[offset + 3] = (byte) v;
+    }
+
+    /**
+     * Writes a chunk with length, type, data and CRC.
+     */
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Combines the Adler-32 checksums of two consecutive byte sequences, as
+     * adler32_combine() of zlib.
+     *
+     * @param adler1 Checksum of the first sequence.
+     * @param adler2 Checksum of the second sequence.
+     * @param length2 Length of the second sequence.
+     * @return Checksum of the concatenated sequences.
+     */
+    static long combineAdler32(long adler1, long adler2, long length2) {
+        long rem = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + ADLER_BASE - rem;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= ((long) ADLER_BASE << 1)) {
+            sum2 -= ((long) ADLER_BASE << 1);
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+    /**
+     * A block of rows that is filtered and compressed independently.
+     */
+    private final class Block {
+
+        /**
+         * IDAT chunk with length, type, compressed data and CRC.
+         */
+        byte[] chunk;
+
+        /**
+         * Adler-32 checksum of the uncompressed filtered bytes.
+         */
+        long adler;
+
+        /**
+         * The number of uncompressed filtered bytes.
+         */
+        long length;
+
+        /**
+         * Filters and compresses rows of a strip.
+         *
+         * @param argb The pixels of the strip.
+         * @param firstRow The first row of the block in the strip.
+         * @param endRow The first row after the block.
+         */
+        void compress(int[] argb, int firstRow, int endRow) {
+            int scanlineBytes = rowBytes + 1;
+            byte[] filtered = new byte[(endRow - firstRow) * scanlineBytes];
+            byte[] prior = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            if (firstRow > 0) {
+                toBytes(argb, (firstRow - 1) * width, prior);
+            } else if (previousRow != null) {
+                toBytes(previousRow, 0, prior);
+            }
+            for (int row = firstRow; row < endRow; row++) {
+                toBytes(argb, row * width, current);
+                filterRow(current, prior, filtered, (row - firstRow) * scanlineBytes);
+                byte[] tmp = prior;
+                prior = current;
+                current = tmp;
+            }
+            Adler32 checksum = new Adler32();
+            checksum.update(filtered);
+            adler = checksum.getValue();
+            length = filtered.length;
+
+            // room for the worst case of stored blocks, and the chunk header
+            byte[] buffer = new byte[filtered.length + filtered.length / 1000 + 64 + 8];
+            int n = 8;
+            Deflater deflater = new Deflater(compressionLevel, true);
+            try {
+                deflater.setInput(filtered);
+                for (;;) {
+                    n += deflater.deflate(buffer, n, buffer.length - n, Deflater.SYNC_FLUSH);
+                    if (n < buffer.length) {
+                        break;
+                    }
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            } finally {
+                deflater.end();
+            }
+            putInt(buffer, 0, n - 8);
+            System.arraycopy(IDAT, 0, buffer, 4, 4);
+            CRC32 crc = new CRC32();
+            crc.update(buffer, 4, n - 4);
+            chunk = Arrays.copyOf(buffer, n + 4);
+            putInt(chunk, n, (int) crc.getValue());
+        }
+    }
+
+    /**
+     * Converts a row of ARGB pixels to RGBA bytes.
+     */
+    private void toBytes(int[] argb, int offset, byte[] bytes) {
+        for (int col = 0, j = 0; col < width; col++) {
+            int p = argb[offset + col];
+            bytes[j++] = (byte) (p >> 16);
+            bytes[j++] = (byte) (p >> 8);
+            bytes[j++] = (byte) p;
+            bytes[j++] = (byte) (p >>> 24);
+        }
+    }
+
+    /**
+     * Filters a row with the filter type that results in the smallest sum of
+     * absolute values, and writes the filter type and the filtered bytes.
+     * Rows are not filtered without compression.
+     */
+    private void filterRow(byte[] row, byte[] prior, byte[] dst, int offset) {
+        if (compressionLevel == Deflater.NO_COMPRESSION) {
+            dst[offset] = 0;
+            System.arraycopy(row, 0, dst, offset + 1, rowBytes);
+            return;
+        }
+        // sums of absolute values for all filter types in a single pass
+        long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+        for (int i = 0; i < rowBytes; i++) {
+            int x = row[i] & 0xff;
+            int a = i >= 4 ? row[i - 4] & 0xff : 0;
+            int b = prior[i] & 0xff;
+            int c = i >= 4 ? prior[i - 4] & 0xff : 0;
+            none += Math.abs((byte) x);
+            sub += Math.abs((byte) (x - a));
+            up += Math.abs((byte) (x - b));
+            average += Math.abs((byte) (x - ((a + b) >> 1)));
+            paeth += Math.abs((byte) (x - paethPredictor(a, b, c)));
+        }
+        long[] sums = {none, sub, up, average, paeth};
+        int bestType = 0;
+        for (int type = 1; type < sums.length; type++) {
+            if (sums[type] < sums[bestType]) {
+                bestType = type;
+            }
+        }
+        dst[offset] = (byte) bestType;
+        for (int i = 0; i < rowBytes; i++) {
+            dst[offset + 1 + i] = filter(bestType, row, prior, i);
+        }
+    }
+
+    /**
+     * Applies a PNG filter to a byte of a row.
+     */
+    private static byte filter(int type, byte[] row, byte[] prior, int i) {
+        int x = row[i] & 0xff;
+        int a = i >= 4 ? row[i - 4] & 0xff : 0;
+        int b = prior[i] & 0xff;
+        switch (type) {
+            case 1:
+                return (byte) (x - a);
+            case 2:
+                return (byte) (x - b);
+            case 3:
+                return (byte) (x - ((a + b) >> 1));
+            case 4:
+                int c = i >= 4 ? prior[i - 4] & 0xff : 0;
+                return (byte) (x - paethPredictor(a, b, c));
+            default:
+                return (byte) x;
+        }
+    }
+
+    /**
+     * Returns the neighbor closest to a + b - c.
+     */
+    private static int paethPredictor(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        return (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+    }
+
+    @Override
+    protected void writeRows(final int[] argb, int rows) throws IOException {
+        final int blockRows = Math.max(1, BLOCK_BYTES / (rowBytes + 1));
+        final int nBlocks = (rows + blockRows - 1) / blockRows;
+        final Block[] blocks = new Block[nBlocks];
+        final int totalRows = rows;
+        SharedExecutor.forEachBand(nBlocks, 1, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int firstBlock, int endBlock) {
+                for (int i = firstBlock; i < endBlock; i++) {
+                    Block block = new Block();
+                    block.compress(argb, i * blockRows, Math.min(totalRows, (i + 1) * blockRows));
+                    blocks[i] = block;
+                }
+            }
+        });
+        for (Block block : blocks) {
+            out.write(block.chunk);
+            adler = combineAdler32(adler, block.adler, block.length);
+        }
+        if (rows > 0) {
+            if (previousRow == null) {
+                previousRow = new int[width];
+            }
+            System.arraycopy(argb, (rows - 1) * width, previousRow, 0, width);
+        }
+    }
+
+    /**
+     * Writes the end of the compressed data and the end of the image, and
+     * closes the file.
+     *
+     * @throws IOException If not all rows have been written, or if the file
+     * cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!isComplete()) {
+                throw new IOException("Incomplete PNG image");
+            }
+            // an empty final deflate block with fixed Huffman codes, followed
+            // by the Adler-32 checksum of the zlib stream
+            byte[] end = {0x03, 0x00, 0, 0, 0, 0};
+            putInt(end, 2, (int) adler);
+            writeChunk("IDAT", end, end.length);
+            writeChunk("IEND", new byte[0], 0);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package edu.oregonstate.cartography.image;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An image file directory of a classic TIFF or a BigTIFF file. A directory is
+ * either assembled with the add methods and written after the image data, or
+ * read from the first directory of a file.
+ *
+ * Written files are in big endian byte order. Files in either byte order can
+ * be read.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TIFFDirectory {
+
+    // TIFF tags
+    public static final int IMAGE_WIDTH = 256;
+    public static final int IMAGE_LENGTH = 257;
+    public static final int BITS_PER_SAMPLE = 258;
+    public static final int COMPRESSION = 259;
+    public static final int PHOTOMETRIC_INTERPRETATION = 262;
+    public static final int STRIP_OFFSETS = 273;
+    public static final int SAMPLES_PER_PIXEL = 277;
+    public static final int ROWS_PER_STRIP = 278;
+    public static final int STRIP_BYTE_COUNTS = 279;
+    public static final int X_RESOLUTION = 282;
+    public static final int Y_RESOLUTION = 283;
+    public static final int PLANAR_CONFIGURATION = 284;
+    public static final int RESOLUTION_UNIT = 296;
+    public static final int PREDICTOR = 317;
+    public static final int TILE_WIDTH = 322;
+    public static final int TILE_LENGTH = 323;
+    public static final int TILE_OFFSETS = 324;
+    public static final int TILE_BYTE_COUNTS = 325;
+    public static final int EXTRA_SAMPLES = 338;
+    public static final int SAMPLE_FORMAT = 339;
+
+    // GeoTIFF tags
+    public static final int MODEL_PIXEL_SCALE = 33550;
+    public static final int MODEL_TIEPOINT = 33922;
+    public static final int GEO_KEY_DIRECTORY = 34735;
+    public static final int GDAL_NODATA = 42113;
+
+    // TIFF field types
+    private static final int ASCII = 2;
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    private static final int RATIONAL = 5;
+    private static final int DOUBLE = 12;
+    private static final int LONG8 = 16;
+
+    /**
+     * The size in bytes of field types, indexed by type. Unknown types have
+     * size 0.
+     */
+    private static final int[] TYPE_SIZES = {
+        0, 1, 1, 2, 4, 8, 1, 1, 2, 4, 8, 4, 8, 0, 0, 0, 8, 8, 8
+    };
+
+    /**
+     * The largest file size that can be addressed by 32 bit offsets.
+     */
+    public static final long MAX_FILE_SIZE = 0xFFFFFFFFL;
+
+    /**
+     * A directory entry. Values are in the byte order of the file.
+     */
+    private static final class Entry {
+
+        final int tag;
+        final int type;
+        final long count;
+        final ByteBuffer values;
+
+        Entry(int tag, int type, long count, ByteBuffer values) {
+            this.tag = tag;
+            this.type = type;
+            this.count = count;
+            this.values = values;
+        }
+    }
+
+    private final boolean bigTIFF;
+
+    /**
+     * The byte order of values.
+     */
+    private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Creates an empty directory.
+     *
+     * @param bigTIFF If true, the directory is written in BigTIFF format.
+     */
+    public TIFFDirectory(boolean bigTIFF) {
+        this.bigTIFF = bigTIFF;
+    }
+
+    /**
+     * Returns whether this directory is in BigTIFF format.
+     *
+     * @return True for BigTIFF, false for a classic TIFF file.
+     */
+    public boolean isBigTIFF() {
+        return bigTIFF;
+    }
+
+    /**
+     * Returns the byte order of the file. Directories that are written are
+     * always in big endian byte order.
+     *
+     * @return The byte order.
+     */
+    public ByteOrder getByteOrder() {
+        return byteOrder;
+    }
+
+    /**
+     * Returns a big endian file header. The offset of the first directory is
+     * 0 and is set when the directory is written.
+     *
+     * @param bigTIFF If true, a BigTIFF header is returned.
+     * @return The header, ready to be written.
+     */
+    public static ByteBuffer header(boolean bigTIFF) {
+        ByteBuffer header = ByteBuffer.allocate(bigTIFF ? 16 : 8);
+        header.put((byte) 'M').put((byte) 'M');
+        if (bigTIFF) {
+            header.putShort((short) 43).putShort((short) 8).putShort((short) 0);
+            header.putLong(0);
+        } else {
+            header.putShort((short) 42).putInt(0);
+        }
+        header.flip();
+        return header;
+    }
+
+    private void add(int tag, int type, long count, ByteBuffer values) {
+        values.flip();
+        entries.add(new Entry(tag, type, count, values));
+    }
+
+    /**
+     * Adds an entry with SHORT values.
+     *
+     * @param tag The tag.
+     * @param values The values.
+     */
+    public void addShorts(int tag, int... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 2);
+        for (int v : values) {
+            buffer.putShort((short) v);
+        }
+        add(tag, SHORT, values.length, buffer);
+    }
+
+    /**
+     * Adds an entry with a LONG value.
+     *
+     * @param tag The tag.
+     * @param value The value.
+     */
+    public void addLong(int tag, long value) {
+        add(tag, LONG, 1, ByteBuffer.allocate(4).putInt((int) value));
+    }
+
+    /**
+     * Adds an entry with LONG values, or LONG8 values for BigTIFF.
+     *
+     * @param tag The tag.
+     * @param values The file offsets or byte counts.
+     */
+    public void addOffsets(int tag, long[] values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * (bigTIFF ? 8 : 4));
+        for (long v : values) {
+            if (bigTIFF) {
+                buffer.putLong(v);
+            } else {
+                buffer.putInt((int) v);
+            }
+        }
+        add(tag, bigTIFF ? LONG8 : LONG, values.length, buffer);
+    }
+
+    /**
+     * Adds an entry with a RATIONAL value.
+     *
+     * @param tag The tag.
+     * @param numerator The numerator.
+     * @param denominator The denominator.
+     */
+    public void addRational(int tag, int numerator, int denominator) {
+        add(tag, RATIONAL, 1, ByteBuffer.allocate(8).putInt(numerator).putInt(denominator));
+    }
+
+    /**
+     * Adds an entry with DOUBLE values.
+     *
+     * @param tag The tag.
+     * @param values The values.
+     */
+    public void addDoubles(int tag, double... values) {
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 8);
+        for (double v : values) {
+            buffer.putDouble(v);
+        }
+        add(tag, DOUBLE, values.length, buffer);
+    }
+
+    /**
+     * Adds an entry with an ASCII string. A terminating null is appended.
+     *
+     * @param tag The tag.
+     * @param value The string with ASCII characters.
+     */
+    public void addASCII(int tag, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 1);
+        buffer.put(bytes).put((byte) 0);
+        add(tag, ASCII, bytes.length + 1, buffer);
+    }
+
+    /**
+     * Writes the directory and the values that do not fit into entries, and
+     * writes the offset of the directory to the file header. Entries are
+     * sorted by tag.
+     *
+     * @param channel The channel of a file with a header created by header().
+     * @param position The file position after the image data. The directory
+     * starts at the next word boundary.
+     * @throws IOException If the file would be too large for a classic TIFF
+     * file, or if the file cannot be written.
+     */
+    public void write(FileChannel channel, long position) throws IOException {
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry e1, Entry e2) {
+                return Integer.compare(e1.tag, e2.tag);
+            }
+        });
+
+        // the directory starts at a word boundary, values that do not fit
+        // into an entry follow the directory
+        int valueSize = bigTIFF ? 8 : 4;
+        long directoryOffset = (position + 1) & ~1L;
+        long directorySize = bigTIFF ? 8 + entries.size() * 20L + 8 : 2 + entries.size() * 12L + 4;
+        long valuesOffset = directoryOffset + directorySize;
+        long valuesSize = 0;
+        for (Entry entry : entries) {
+            if (entry.values.remaining() > valueSize) {
+                valuesSize += (entry.values.remaining() + 1) & ~1;
+            }
+        }
+        if (!bigTIFF && valuesOffset + valuesSize > MAX_FILE_SIZE) {
+            throw new IOException("Image too large for TIFF");
+        }
+        ByteBuffer directory = ByteBuffer.allocate((int) directorySize);
+        ByteBuffer values = ByteBuffer.allocate((int) valuesSize);
+        if (bigTIFF) {
+            directory.putLong(entries.size());
+        } else {
+            directory.putShort((short) entries.size());
+        }
+        for (Entry entry : entries) {
+            directory.putShort((short) entry.tag);
+            directory.putShort((short) entry.type);
+            if (bigTIFF) {
+                directory.putLong(entry.count);
+            } else {
+                directory.putInt((int) entry.count);
+            }
+            int start = directory.position();
+            ByteBuffer entryValues = entry.values.duplicate();
+            if (entryValues.remaining() <= valueSize) {
+                // values are left aligned in the value field
+                directory.put(entryValues);
+            } else {
+                long offset = valuesOffset + values.position();
+                if (bigTIFF) {
+                    directory.putLong(offset);
+                } else {
+                    directory.putInt((int) offset);
+                }
+                values.put(entryValues);
+                if (values.position() % 2 != 0) {
+                    values.put((byte) 0);
+                }
+            }
+            directory.position(start + valueSize);
+        }
+        // no next directory
+        if (bigTIFF) {
+            directory.putLong(0);
+        } else {
+            directory.putInt(0);
+        }
+        directory.flip();
+        values.flip();
+        writeFully(channel, directory, directoryOffset);
+        writeFully(channel, values, valuesOffset);
+
+        ByteBuffer header = ByteBuffer.allocate(valueSize);
+        if (bigTIFF) {
+            header.putLong(directoryOffset);
+        } else {
+            header.putInt((int) directoryOffset);
+        }
+        header.flip();
+        writeFully(channel, header, bigTIFF ? 8 : 4);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position,
+            long size, ByteOrder byteOrder) throws IOException {
+        if (position < 0 || size < 0 || position + size > channel.size()
+                || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid TIFF file");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(byteOrder);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of TIFF file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Reads the first image file directory of a classic TIFF or BigTIFF file
+     * in either byte order.
+     *
+     * @param channel The channel of the file.
+     * @return The directory. Values are in the byte order of the file.
+     * @throws IOException If the file is not a TIFF file or cannot be read.
+     */
+    public static TIFFDirectory read(FileChannel channel) throws IOException {
+        if (channel.size() < 8) {
+            throw new IOException("Not a TIFF file");
+        }
+        ByteBuffer header = readFully(channel, 0, Math.min(16, channel.size()),
+                ByteOrder.BIG_ENDIAN);
+        ByteOrder byteOrder;
+        if (header.get(0) == 'I' && header.get(1) == 'I') {
+            byteOrder = ByteOrder.LITTLE_ENDIAN;
+        } else if (header.get(0) == 'M' && header.get(1) == 'M') {
+            byteOrder = ByteOrder.BIG_ENDIAN;
+        } else {
+            throw new IOException("Not a TIFF file");
+        }
+        header.order(byteOrder);
+        int version = header.getShort(2);
+        boolean bigTIFF = version == 43;
+        if (version != 42 && !(bigTIFF && header.limit() == 16 && header.getShort(4) == 8)) {
+            throw new IOException("Not a TIFF file");
+        }
+        long directoryOffset = bigTIFF ? header.getLong(8) : header.getInt(4) & 0xFFFFFFFFL;
+
+        int entrySize = bigTIFF ? 20 : 12;
+        int valueSize = bigTIFF ? 8 : 4;
+        ByteBuffer countBuffer = readFully(channel, directoryOffset, bigTIFF ? 8 : 2, byteOrder);
+        long entriesCount = bigTIFF ? countBuffer.getLong() : countBuffer.getShort() & 0xFFFF;
+        ByteBuffer buffer = readFully(channel, directoryOffset + countBuffer.capacity(),
+                entriesCount * entrySize, byteOrder);
+
+        TIFFDirectory directory = new TIFFDirectory(bigTIFF);
+        directory.byteOrder = byteOrder;
+        for (long i = 0; i < entriesCount; i++) {
+            int tag = buffer.getShort() & 0xFFFF;
+            int type = buffer.getShort() & 0xFFFF;
+            long count = bigTIFF ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+            int start = buffer.position();
+            int typeSize = type < TYPE_SIZES.length ? TYPE_SIZES[type] : 0;
+            if (typeSize > 0) {
+                long size = count * typeSize;
+                ByteBuffer values;
+                if (size <= valueSize) {
+                    values = buffer.duplicate().order(byteOrder);
+                    values.limit(start + (int) size);
+                    values = values.slice().order(byteOrder);
+                } else {
+                    long offset = bigTIFF ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+                    values = readFully(channel, offset, size, byteOrder);
+                }
+                directory.entries.add(new Entry(tag, type, count, values));
+            }
+            buffer.position(start + valueSize);
+        }
+        return directory;
+    }
+
+    private Entry find(int tag) {
+        for (Entry entry : entries) {
+            if (entry.tag == tag) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether the directory has an entry for a tag.
+     *
+     * @param tag The tag.
+     * @return True if there is an entry.
+     */
+    public boolean contains(int tag) {
+        return find(tag) != null;
+    }
+
+    /**
+     * Returns the integer values of an entry with BYTE, SHORT, LONG or LONG8
+     * values.
+     *
+     * @param tag The tag.
+     * @return The values, or null if there is no entry for the tag.
+     * @throws IOException If the entry does not have integer values.
+     */
+    public long[] getLongs(int tag) throws IOException {
+        Entry entry = find(tag);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer values = entry.values.duplicate().order(entry.values.order());
+        long[] longs = new long[(int) entry.count];
+        for (int i = 0; i < longs.length; i++) {
+            switch (entry.type) {
+                case 1:
+                    longs[i] = values.get() & 0xFF;
+                    break;
+                case SHORT:
+                    longs[i] = values.getShort() & 0xFFFF;
+                    break;
+                case LONG:
+                    longs[i] = values.getInt() & 0xFFFFFFFFL;
+                    break;
+                case LONG8:
+                    longs[i] = values.getLong();
+                    break;
+                default:
+                    throw new IOException("TIFF tag " + tag + " has no integer values");
+            }
+        }
+        return longs;
+    }
+
+    /**
+     * Returns the first integer value of an entry.
+     *
+     * @param tag The tag.
+     * @param defaultValue The value returned if there is no entry.
+     * @return The value.
+     * @throws IOException If the entry does not have integer values.
+     */
+    public long getLong(int tag, long defaultValue) throws IOException {
+        long[] values = getLongs(tag);
+        return values == null || values.length == 0 ? defaultValue : values[0];
+    }
+
+    /**
+     * Returns the values of an entry with DOUBLE, FLOAT or integer values.
+     *
+     * @param tag The tag.
+     * @return The values, or null if there is no entry for the tag.
+     * @throws IOException If the entry does not have numeric values.
+     */
+    public double[] getDoubles(int tag) throws IOException {
+        Entry entry = find(tag);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer values = entry.values.duplicate().order(entry.values.order());
+        double[] doubles = new double[(int) entry.count];
+        if (entry.type == DOUBLE) {
+            values.asDoubleBuffer().get(doubles);
+        } else if (entry.type == 11) {
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = values.getFloat();
+            }
+        } else {
+            long[] longs = getLongs(tag);
+            for (int i = 0; i < doubles.length; i++) {
+                doubles[i] = longs[i];
+            }
+        }
+        return doubles;
+    }
+
+    /**
+     * Returns the string of an entry with ASCII values, without the
+     * terminating null.
+     *
+     * @param tag The tag.
+     * @return The string, or null if there is no entry for the tag.
+     */
+    public String getASCII(int tag) {
+        Entry entry = find(tag);
+        if (entry == null) {
+            return null;
+        }
+        ByteBuffer values = entry.values.duplicate();
+        byte[] bytes = new byte[values.remaining()];
+        values.get(bytes);
+        int length = 0;
+        while (length < bytes.length && bytes[length] != 0) {
+            length++;
+        }
+        return new String(bytes, 0, length, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,454 @@
+package edu.oregonstate.cartography.image;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a baseline TIFF image with 8 bits per channel RGBA or RGB pixels in
+ * strips. Strips can be passed to the writer while they are rendered, and
+ * pixels are appended to the file with a FileChannel. The image file
+ * directory is written at the end of the file when the writer is closed, as
+ * the size of compressed strips is not known in advance.
+ *
+ * Uncompressed strips are converted from the ARGB pixel array to a direct
+ * byte buffer. Strips compressed with LZW or deflate are compressed in
+ * parallel, with horizontal differencing to improve compression.
+ *
+ * A BigTIFF file with 64 bit offsets is written if the file could be larger
+ * than 4 GB.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TIFFStripWriter extends ImageStripWriter {
+
+    /**
+     * Compression of TIFF strips.
+     */
+    public enum Compression {
+
+        NONE(1), LZW(5), DEFLATE(8);
+
+        /**
+         * The value of the TIFF compression tag.
+         */
+        private final int tagValue;
+
+        private Compression(int tagValue) {
+            this.tagValue = tagValue;
+        }
+
+        /**
+         * Returns the value of the TIFF compression tag.
+         *
+         * @return The tag value.
+         */
+        public int getTagValue() {
+            return tagValue;
+        }
+    }
+
+    /**
+     * The approximate number of bytes in an uncompressed TIFF strip.
+     */
+    private static final int STRIP_BYTES = 64 * 1024;
+
+    /**
+     * The approximate number of bytes in a TIFF strip before compression.
+     * Larger strips compress better.
+     */
+    private static final int COMPRESSED_STRIP_BYTES = 256 * 1024;
+
+    private final FileChannel channel;
+
+    private final Compression compression;
+
+    /**
+     * The deflate compression level.
+     */
+    private final int deflateLevel;
+
+    /**
+     * If true, a BigTIFF file with 64 bit offsets is written.
+     */
+    private final boolean bigTIFF;
+
+    /**
+     * The number of channels per pixel, 4 for RGBA or 3 for RGB.
+     */
+    private final int samplesPerPixel;
+
+    private final int rowsPerStrip;
+
+    /**
+     * The file offsets and byte counts of the strips.
+     */
+    private final long[] stripOffsets;
+    private final long[] stripByteCounts;
+
+    /**
+     * The number of strips written.
+     */
+    private int stripsCount = 0;
+
+    /**
+     * The position for the next strip in the file.
+     */
+    private long position;
+
+    /**
+     * Rows of an incomplete TIFF strip that have been passed to the writer,
+     * but not written yet.
+     */
+    private final int[] pendingRows;
+    private int pendingRowsCount = 0;
+
+    /**
+     * Direct buffer for converting uncompressed strips.
+     */
+    private ByteBuffer stripBuffer;
+
+    /**
+     * Creates a writer for an uncompressed RGBA image and writes the TIFF
+     * header.
+     *
+     * @param file The file to write to.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @throws IOException If the image is too wide for a TIFF file or the file
+     * cannot be written.
+     */
+    public TIFFStripWriter(File file, int width, int height) throws IOException {
+        this(file, width, height, Compression.NONE, Deflater.DEFAULT_COMPRESSION, true);
+    }
+
+    /**
+     * Creates a writer and writes the TIFF header.
+     *
+     * @param file The file to write to.
+     * @param width The width of the image in pixels.
+     * @param height The height of the image in pixels.
+     * @param compression The compression of strips.
+     * @param deflateLevel The compression level between 0 and 9 for deflate
+     * compression, or -1 for the default level.
+     * @param alpha If true, RGBA pixels are written, otherwise RGB pixels and
+     * the alpha channel is ignored.
+     * @throws IOException If the image is too wide for a TIFF file or the file
+     * cannot be written.
+     */
+    public TIFFStripWriter(File file, int width, int height,
+            Compression compression, int deflateLevel, boolean alpha) throws IOException {
+        super(width, height);
+        if (deflateLevel < -1 || deflateLevel > 9) {
+            throw new IllegalArgumentException("invalid compression level");
+        }
+        this.compression = compression;
+        this.deflateLevel = deflateLevel;
+        samplesPerPixel = alpha ? 4 : 3;
+        long rowSize = (long) samplesPerPixel * width;
+        if (rowSize > Integer.MAX_VALUE / 2) {
+            throw new IOException("Image too wide for TIFF");
+        }
+        int stripBytes = compression == Compression.NONE ? STRIP_BYTES : COMPRESSED_STRIP_BYTES;
+        rowsPerStrip = (int) Math.max(1, Math.min(height, stripBytes / rowSize));
+        int nStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+        stripOffsets = new long[nStrips];
+        stripByteCounts = new long[nStrips];
+        pendingRows = new int[rowsPerStrip * width];
+
+        // the largest possible file: LZW codes can have up to 12 bits for 8
+        // bit input bytes, and the directory has less than 1 KB plus offsets
+        // and byte counts of strips
+        long maxPixelBytes = rowSize * height;
+        if (compression == Compression.LZW) {
+            maxPixelBytes = maxPixelBytes * 3 / 2 + 16L * nStrips;
+        } else if (compression == Compression.DEFLATE) {
+            maxPixelBytes += maxPixelBytes / 1000 + 64L * nStrips;
+        }
+        bigTIFF = 1024 + 8L * nStrips + maxPixelBytes > TIFFDirectory.MAX_FILE_SIZE;
+
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            // the offset of the directory is written when the writer is
+            // closed
+            ByteBuffer header = TIFFDirectory.header(bigTIFF);
+            writeFully(header, 0);
+            position = header.capacity();
+        } catch (IOException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Writes an image to a TIFF file. Images of TYPE_INT_ARGB and TYPE_INT_RGB
+     * are written directly from the pixel array of the image without a copy,
+     * other images are converted in strips.
+     *
+     * @param image The image.
+     * @param file The file to write to.
+     * @param compression The compression of strips.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(BufferedImage image, File file, Compression compression)
+            throws IOException {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        boolean alpha = image.getColorModel().hasAlpha();
+        try (TIFFStripWriter writer = new TIFFStripWriter(file, w, h, compression,
+                Deflater.DEFAULT_COMPRESSION, alpha)) {
+            int[] pixels = directPixels(image, alpha ? BufferedImage.TYPE_INT_ARGB
+                    : BufferedImage.TYPE_INT_RGB);
+            if (pixels != null) {
+                writer.writeStrip(pixels, h);
+                return;
+            }
+            int stripRows = Math.max(1, Math.min(h, writer.rowsPerStrip * 16));
+            int[] strip = new int[stripRows * w];
+            for (int y = 0; y < h; y += stripRows) {
+                int rows = Math.min(stripRows, h - y);
+                image.getRGB(0, y, w, rows, strip, 0, w);
+                writer.writeStrip(strip, rows);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a BigTIFF file with 64 bit offsets is written.
+     *
+     * @return True for BigTIFF, false for a classic TIFF file.
+     */
+    public boolean isBigTIFF() {
+        return bigTIFF;
+    }
+
+    private void writeFully(ByteBuffer buffer, long filePosition) throws IOException {
+        while (buffer.hasRemaining()) {
+            filePosition += channel.write(buffer, filePosition);
+        }
+    }
+
+    @Override
+    protected void writeRows(int[] argb, int rows) throws IOException {
+        int row = 0;
+
+        // complete the pending strip
+        if (pendingRowsCount > 0) {
+            int n = Math.min(rows, stripRows(stripsCount) - pendingRowsCount);
+            System.arraycopy(argb, 0, pendingRows, pendingRowsCount * width, n * width);
+            pendingRowsCount += n;
+            row = n;
+            if (pendingRowsCount == stripRows(stripsCount)) {
+                writeStrips(pendingRows, 0, 1);
+                pendingRowsCount = 0;
+            }
+        }
+
+        // strips that are completely contained in the passed rows are written
+        // without a copy
+        int nStrips = 0;
+        while (stripsCount + nStrips < stripOffsets.length
+                && row + nStrips * rowsPerStrip + stripRows(stripsCount + nStrips) <= rows) {
+            nStrips++;
+        }
+        if (nStrips > 0) {
+            writeStrips(argb, row, nStrips);
+            row = Math.min(rows, row + nStrips * rowsPerStrip);
+        }
+
+        // keep remaining rows for the next call
+        if (row < rows) {
+            System.arraycopy(argb, row * width, pendingRows, 0, (rows - row) * width);
+            pendingRowsCount = rows - row;
+        }
+    }
+
+    /**
+     * Returns the number of rows of a strip. The last strip can be shorter.
+     */
+    private int stripRows(int strip) {
+        return Math.min(rowsPerStrip, height - strip * rowsPerStrip);
+    }
+
+    /**
+     * Writes consecutive strips. Compressed strips are compressed in parallel.
+     *
+     * @param argb The pixels.
+     * @param firstRow The first row of the first strip in argb.
+     * @param nStrips The number of strips.
+     */
+    private void writeStrips(final int[] argb, final int firstRow, int nStrips)
+            throws IOException {
+        if (compression == Compression.NONE) {
+            for (int i = 0; i < nStrips; i++) {
+                int offset = (firstRow + i * rowsPerStrip) * width;
+                appendStrip(toDirectBuffer(argb, offset, stripRows(stripsCount)));
+            }
+            return;
+        }
+        final ByteBuffer[] compressed = new ByteBuffer[nStrips];
+        final int firstStrip = stripsCount;
+        SharedExecutor.forEachBand(nStrips, 1, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int first, int end) {
+                for (int i = first; i < end; i++) {
+                    int offset = (firstRow + i * rowsPerStrip) * width;
+                    compressed[i] = compressStrip(argb, offset, stripRows(firstStrip + i));
+                }
+            }
+        });
+        for (ByteBuffer buffer : compressed) {
+            appendStrip(buffer);
+        }
+    }
+
+    /**
+     * Appends a strip to the file and records its offset and size.
+     */
+    private void appendStrip(ByteBuffer buffer) throws IOException {
+        long size = buffer.remaining();
+        if (!bigTIFF && position + size > TIFFDirectory.MAX_FILE_SIZE) {
+            throw new IOException("Image too large for TIFF");
+        }
+        writeFully(buffer, position);
+        stripOffsets[stripsCount] = position;
+        stripByteCounts[stripsCount] = size;
+        stripsCount++;
+        position += size;
+    }
+
+    /**
+     * Converts rows of ARGB pixels to RGBA or RGB bytes in a reused direct
+     * buffer.
+     */
+    private ByteBuffer toDirectBuffer(int[] argb, int offset, int rows) {
+        int bytes = rows * width * samplesPerPixel;
+        if (stripBuffer == null) {
+            stripBuffer = ByteBuffer.allocateDirect(rowsPerStrip * width * samplesPerPixel);
+        }
+        stripBuffer.clear();
+        int end = offset + rows * width;
+        if (samplesPerPixel == 4) {
+            IntBuffer ints = stripBuffer.asIntBuffer();
+            for (int i = offset; i < end; i++) {
+                ints.put(Integer.rotateLeft(argb[i], 8));
+            }
+        } else {
+            for (int i = offset; i < end; i++) {
+                int p = argb[i];
+                stripBuffer.put((byte) (p >> 16));
+                stripBuffer.put((byte) (p >> 8));
+                stripBuffer.put((byte) p);
+            }
+        }
+        stripBuffer.position(0).limit(bytes);
+        return stripBuffer;
+    }
+
+    /**
+     * Converts rows to bytes, applies horizontal differencing and compresses
+     * the bytes.
+     */
+    private ByteBuffer compressStrip(int[] argb, int offset, int rows) {
+        int rowSize = width * samplesPerPixel;
+        byte[] bytes = new byte[rows * rowSize];
+        for (int row = 0, j = 0; row < rows; row++) {
+            int i = offset + row * width;
+            for (int col = 0; col < width; col++) {
+                int p = argb[i++];
+                bytes[j++] = (byte) (p >> 16);
+                bytes[j++] = (byte) (p >> 8);
+                bytes[j++] = (byte) p;
+                if (samplesPerPixel == 4) {
+                    bytes[j++] = (byte) (p >>> 24);
+                }
+            }
+            // predictor 2: difference to the same channel of the previous pixel
+            int rowStart = row * rowSize;
+            for (int k = rowStart + rowSize - 1; k >= rowStart + samplesPerPixel; k--) {
+                bytes[k] -= bytes[k - samplesPerPixel];
+            }
+        }
+        if (compression == Compression.LZW) {
+            return ByteBuffer.wrap(LZWCodec.encode(bytes));
+        }
+        Deflater deflater = new Deflater(deflateLevel);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[bytes.length + bytes.length / 1000 + 64];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                n += deflater.deflate(buffer, n, buffer.length - n);
+            }
+            return ByteBuffer.wrap(buffer, 0, n);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Writes the image file directory after the strips, and the offset of the
+     * directory to the header.
+     */
+    private void writeDirectory() throws IOException {
+        TIFFDirectory directory = new TIFFDirectory(bigTIFF);
+        directory.addLong(TIFFDirectory.IMAGE_WIDTH, width);
+        directory.addLong(TIFFDirectory.IMAGE_LENGTH, height);
+        if (samplesPerPixel == 4) {
+            directory.addShorts(TIFFDirectory.BITS_PER_SAMPLE, 8, 8, 8, 8);
+        } else {
+            directory.addShorts(TIFFDirectory.BITS_PER_SAMPLE, 8, 8, 8);
+        }
+        directory.addShorts(TIFFDirectory.COMPRESSION, compression.tagValue);
+        directory.addShorts(TIFFDirectory.PHOTOMETRIC_INTERPRETATION, 2); // RGB
+        directory.addOffsets(TIFFDirectory.STRIP_OFFSETS, stripOffsets);
+        directory.addShorts(TIFFDirectory.SAMPLES_PER_PIXEL, samplesPerPixel);
+        directory.addLong(TIFFDirectory.ROWS_PER_STRIP, rowsPerStrip);
+        directory.addOffsets(TIFFDirectory.STRIP_BYTE_COUNTS, stripByteCounts);
+        // 72 pixels per inch
+        directory.addRational(TIFFDirectory.X_RESOLUTION, 72, 1);
+        directory.addRational(TIFFDirectory.Y_RESOLUTION, 72, 1);
+        directory.addShorts(TIFFDirectory.PLANAR_CONFIGURATION, 1); // chunky
+        directory.addShorts(TIFFDirectory.RESOLUTION_UNIT, 2); // inch
+        if (compression != Compression.NONE) {
+            // horizontal differencing
+            directory.addShorts(TIFFDirectory.PREDICTOR, 2);
+        }
+        if (samplesPerPixel == 4) {
+            // unassociated alpha
+            directory.addShorts(TIFFDirectory.EXTRA_SAMPLES, 2);
+        }
+        directory.write(channel, position);
+    }
+
+    /**
+     * Writes the image file directory and closes the file.
+     *
+     * @throws IOException If not all rows have been written, or if the file
+     * cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!isComplete()) {
+                throw new IOException("Incomplete TIFF image");
+            }
+            writeDirectory();
+        } finally {
+            channel.close();
+        }
+    }
+}
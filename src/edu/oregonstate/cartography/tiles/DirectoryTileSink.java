@@ -0,0 +1,153 @@
+package edu.oregonstate.cartography.tiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Stores tiles as PNG files in a z/x/y.png directory tree. The hashes of all
+ * stored tiles are kept in a manifest file in the root directory, such that a
+ * later export into the same directory only rewrites tiles whose content has
+ * changed.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class DirectoryTileSink implements TileSink {
+
+    /**
+     * The name of the manifest file with one "z/x/y hash" line per tile.
+     */
+    public static final String MANIFEST_NAME = "tiles.sha1";
+
+    private final File directory;
+
+    /**
+     * Hexadecimal hashes of stored tiles, indexed by "z/x/y".
+     */
+    private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a sink and reads the manifest of an earlier export if it
+     * exists.
+     *
+     * @param directory The root directory of the tile tree. Created if it
+     * does not exist.
+     * @throws IOException If the directory cannot be created or the manifest
+     * cannot be read.
+     */
+    public DirectoryTileSink(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        this.directory = directory;
+        File manifest = new File(directory, MANIFEST_NAME);
+        if (manifest.isFile()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(manifest), "US-ASCII"))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] tokens = line.trim().split(" ");
+                    if (tokens.length == 2) {
+                        hashes.put(tokens[0], tokens[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String key(int z, int x, int y) {
+        return z + "/" + x + "/" + y;
+    }
+
+    private File tileFile(int z, int x, int y) {
+        return new File(directory, key(z, x, y).replace('/', File.separatorChar) + ".png");
+    }
+
+    /**
+     * Converts a hash to a hexadecimal string.
+     *
+     * @param hash The hash.
+     * @return Two lower case characters per byte.
+     */
+    static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public boolean isCurrent(int z, int x, int y, byte[] hash) {
+        String stored = hashes.get(key(z, x, y));
+        return stored != null && stored.equals(toHex(hash)) && tileFile(z, x, y).isFile();
+    }
+
+    @Override
+    public void writeTile(int z, int x, int y, byte[] png, byte[] hash) throws IOException {
+        File file = tileFile(z, x, y);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Cannot create directory " + dir);
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(png);
+        }
+        hashes.put(key(z, x, y), toHex(hash));
+    }
+
+    /**
+     * Returns false, as every tile is stored in its own file.
+     */
+    @Override
+    public boolean writeDuplicate(int z, int x, int y, byte[] hash) {
+        return false;
+    }
+
+    @Override
+    public void removeTile(int z, int x, int y) throws IOException {
+        if (hashes.remove(key(z, x, y)) != null) {
+            File file = tileFile(z, x, y);
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest with the hashes of all stored tiles.
+     *
+     * @throws IOException If the manifest cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        File manifest = new File(directory, MANIFEST_NAME);
+        File tmp = new File(directory, MANIFEST_NAME + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tmp), "US-ASCII"))) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(hashes).entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(' ');
+                writer.write(entry.getValue());
+                writer.write('\n');
+            }
+        }
+        if (manifest.exists() && !manifest.delete()) {
+            throw new IOException("Cannot replace " + manifest);
+        }
+        if (!tmp.renameTo(manifest)) {
+            throw new IOException("Cannot write " + manifest);
+        }
+    }
+}
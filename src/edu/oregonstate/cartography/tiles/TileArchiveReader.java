@@ -0,0 +1,253 @@
+package edu.oregonstate.cartography.tiles;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads tiles from an archive written by TileArchiveWriter. The directory is
+ * loaded when the archive is opened, and tile data is read from the file when
+ * a tile is requested. Tiles can be read concurrently.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TileArchiveReader implements Closeable {
+
+    private final FileChannel channel;
+
+    private final int tileSize;
+    private final int minZoom;
+    private final int maxZoom;
+    private final int distinctTilesCount;
+    private final double west;
+    private final double north;
+    private final double pixelSize;
+
+    /**
+     * Tile keys of the directory entries in ascending order.
+     */
+    private final long[] keys;
+
+    /**
+     * Positions of tile data in the file, in the order of keys.
+     */
+    private final long[] offsets;
+
+    /**
+     * Lengths of tile data, in the order of keys.
+     */
+    private final int[] lengths;
+
+    /**
+     * Opens an archive and reads its directory.
+     *
+     * @param file The archive file.
+     * @throws IOException If the file cannot be read or is not a tile
+     * archive.
+     */
+    public TileArchiveReader(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            ByteBuffer header = ByteBuffer.allocate(TileArchiveWriter.HEADER_SIZE);
+            readFully(header, 0);
+            byte[] magic = new byte[TileArchiveWriter.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, TileArchiveWriter.MAGIC)) {
+                throw new IOException("Not a tile archive: " + file.getName());
+            }
+            tileSize = header.getInt();
+            minZoom = header.getInt();
+            maxZoom = header.getInt();
+            int entriesCount = header.getInt();
+            distinctTilesCount = header.getInt();
+            long directoryOffset = header.getLong();
+            long directoryLength = header.getLong();
+            west = header.getDouble();
+            north = header.getDouble();
+            pixelSize = header.getDouble();
+            if (entriesCount < 0 || directoryLength
+                    != (long) entriesCount * TileArchiveWriter.DIRECTORY_ENTRY_SIZE
+                    || directoryLength > Integer.MAX_VALUE) {
+                throw new IOException("Invalid tile archive directory");
+            }
+
+            ByteBuffer directory = ByteBuffer.allocate((int) directoryLength);
+            readFully(directory, directoryOffset);
+            keys = new long[entriesCount];
+            offsets = new long[entriesCount];
+            lengths = new int[entriesCount];
+            for (int i = 0; i < entriesCount; i++) {
+                int z = directory.getInt();
+                int x = directory.getInt();
+                int y = directory.getInt();
+                keys[i] = key(z, x, y);
+                offsets[i] = directory.getLong();
+                lengths[i] = directory.getInt();
+            }
+        } catch (IOException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Returns a key that sorts tiles by zoom level, row and column, in the
+     * order of the directory entries.
+     */
+    private static long key(int z, int x, int y) {
+        return ((long) z << 58) | ((long) y << 29) | x;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Truncated tile archive");
+            }
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the PNG data of a tile.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @return The PNG file content, or null if the archive does not contain
+     * the tile, for example because it is empty.
+     * @throws IOException If the tile cannot be read.
+     */
+    public byte[] getTile(int z, int x, int y) throws IOException {
+        if (z < 0 || x < 0 || y < 0) {
+            return null;
+        }
+        int i = Arrays.binarySearch(keys, key(z, x, y));
+        if (i < 0) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(lengths[i]);
+        readFully(buffer, offsets[i]);
+        return buffer.array();
+    }
+
+    /**
+     * Returns the width and height of tiles.
+     *
+     * @return The tile size in pixels.
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Returns the lowest zoom level with tiles.
+     *
+     * @return The lowest zoom level.
+     */
+    public int getMinZoom() {
+        return minZoom;
+    }
+
+    /**
+     * Returns the highest zoom level.
+     *
+     * @return The highest zoom level.
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the number of tile columns of a zoom level, up to the last
+     * column containing a tile. Empty columns at the right border are not
+     * counted, as empty tiles are not stored.
+     *
+     * @param z The zoom level.
+     * @return The number of tiles in horizontal direction.
+     */
+    public int getTilesX(int z) {
+        int tilesX = 0;
+        int i = Arrays.binarySearch(keys, key(z, 0, 0));
+        for (i = i < 0 ? -i - 1 : i; i < keys.length && keys[i] < key(z + 1, 0, 0); i++) {
+            tilesX = Math.max(tilesX, (int) (keys[i] & 0x1FFFFFFF) + 1);
+        }
+        return tilesX;
+    }
+
+    /**
+     * Returns the number of tile rows of a zoom level, up to the last row
+     * containing a tile. Empty rows at the bottom border are not counted.
+     *
+     * @param z The zoom level.
+     * @return The number of tiles in vertical direction.
+     */
+    public int getTilesY(int z) {
+        int i = Arrays.binarySearch(keys, key(z + 1, 0, 0));
+        i = (i < 0 ? -i - 1 : i) - 1;
+        if (i < 0 || keys[i] < key(z, 0, 0)) {
+            return 0;
+        }
+        return (int) ((keys[i] >> 29) & 0x1FFFFFFF) + 1;
+    }
+
+    /**
+     * Returns the number of tiles in the directory.
+     *
+     * @return The number of tiles.
+     */
+    public int getTilesCount() {
+        return keys.length;
+    }
+
+    /**
+     * Returns the number of distinct tiles stored in the archive. Identical
+     * tiles are only stored once.
+     *
+     * @return The number of distinct tiles.
+     */
+    public int getDistinctTilesCount() {
+        return distinctTilesCount;
+    }
+
+    /**
+     * Returns the horizontal coordinate of the center of the top-left pixel
+     * at the highest zoom level.
+     *
+     * @return The western coordinate.
+     */
+    public double getWest() {
+        return west;
+    }
+
+    /**
+     * Returns the vertical coordinate of the center of the top-left pixel at
+     * the highest zoom level.
+     *
+     * @return The northern coordinate.
+     */
+    public double getNorth() {
+        return north;
+    }
+
+    /**
+     * Returns the size of a pixel at the highest zoom level.
+     *
+     * @return The pixel size.
+     */
+    public double getPixelSize() {
+        return pixelSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,254 @@
+package edu.oregonstate.cartography.tiles;
+
+import edu.oregonstate.cartography.grid.Grid;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes tiles to a single archive file. The archive starts with a header of
+ * fixed size, followed by the tile data and a directory that maps z/x/y tile
+ * indices to the position of the tile data. Tiles with identical pixels, such
+ * as empty ocean tiles, are stored only once and referenced by multiple
+ * directory entries.
+ *
+ * Tiles can be written concurrently. Tile data is written with positional
+ * writes, and only the allocation of space in the file is synchronized. The
+ * directory is written when the archive is closed.
+ *
+ * The layout of the file is (all values big endian):
+ * <pre>
+ * header (HEADER_SIZE bytes)
+ *   8 bytes  magic "PSTILES1"
+ *   int      tile size in pixels
+ *   int      minimum zoom level
+ *   int      maximum zoom level
+ *   int      number of directory entries
+ *   int      number of distinct tiles
+ *   long     directory offset
+ *   long     directory length in bytes
+ *   double   west of the top-left pixel center at the maximum zoom level
+ *   double   north of the top-left pixel center at the maximum zoom level
+ *   double   pixel size at the maximum zoom level
+ *   4 bytes  reserved
+ * tile data
+ * directory, sorted by zoom, row and column, DIRECTORY_ENTRY_SIZE bytes each
+ *   int z, int x, int y, long offset, int length
+ * </pre>
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TileArchiveWriter implements TileSink {
+
+    /**
+     * The first bytes of an archive file.
+     */
+    static final byte[] MAGIC = {'P', 'S', 'T', 'I', 'L', 'E', 'S', '1'};
+
+    /**
+     * The size of the header in bytes.
+     */
+    static final int HEADER_SIZE = 72;
+
+    /**
+     * The size of a directory entry in bytes.
+     */
+    static final int DIRECTORY_ENTRY_SIZE = 24;
+
+    /**
+     * A directory entry.
+     */
+    private static final class Entry implements Comparable<Entry> {
+
+        final int z, x, y;
+        final long offset;
+        final int length;
+
+        Entry(int z, int x, int y, long offset, int length) {
+            this.z = z;
+            this.x = x;
+            this.y = y;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public int compareTo(Entry e) {
+            if (z != e.z) {
+                return z < e.z ? -1 : 1;
+            }
+            if (y != e.y) {
+                return y < e.y ? -1 : 1;
+            }
+            return x < e.x ? -1 : (x == e.x ? 0 : 1);
+        }
+    }
+
+    private final FileChannel channel;
+
+    private final int maxZoom;
+    private final double west;
+    private final double north;
+    private final double pixelSize;
+
+    /**
+     * Directory entries of all written tiles. Access is synchronized on
+     * this writer.
+     */
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * Positions of stored tile data, indexed by the hash of the pixels.
+     * Access is synchronized on this writer.
+     */
+    private final Map<ByteBuffer, long[]> storedTiles = new HashMap<>();
+
+    /**
+     * The position in the file for the next tile data.
+     */
+    private long dataEnd = HEADER_SIZE;
+
+    /**
+     * Creates an archive file. An existing file is replaced.
+     *
+     * @param file The archive file.
+     * @param renderer The renderer providing the zoom levels and the
+     * georeference of the tiles.
+     * @throws IOException If the file cannot be created.
+     */
+    public TileArchiveWriter(File file, TileRenderer renderer) throws IOException {
+        Grid grid = renderer.getGrid();
+        maxZoom = renderer.getMaxZoom();
+        west = grid.getWest();
+        north = grid.getNorth();
+        pixelSize = grid.getCellSize();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Returns false, as the archive is written from scratch.
+     */
+    @Override
+    public boolean isCurrent(int z, int x, int y, byte[] hash) {
+        return false;
+    }
+
+    /**
+     * Adds a tile to the archive. If a tile with the same hash has been
+     * written before, only a directory entry is added.
+     */
+    @Override
+    public void writeTile(int z, int x, int y, byte[] png, byte[] hash) throws IOException {
+        long offset;
+        boolean stored;
+        synchronized (this) {
+            ByteBuffer key = ByteBuffer.wrap(hash.clone());
+            long[] position = storedTiles.get(key);
+            stored = position != null;
+            if (stored) {
+                offset = position[0];
+            } else {
+                offset = dataEnd;
+                dataEnd += png.length;
+                storedTiles.put(key, new long[]{offset, png.length});
+            }
+            entries.add(new Entry(z, x, y, offset, png.length));
+        }
+        if (!stored) {
+            writeFully(ByteBuffer.wrap(png), offset);
+        }
+    }
+
+    /**
+     * Adds a directory entry referencing the data of an identical tile.
+     */
+    @Override
+    public synchronized boolean writeDuplicate(int z, int x, int y, byte[] hash) {
+        long[] position = storedTiles.get(ByteBuffer.wrap(hash));
+        if (position == null) {
+            return false;
+        }
+        entries.add(new Entry(z, x, y, position[0], (int) position[1]));
+        return true;
+    }
+
+    /**
+     * Does nothing, as empty tiles are not stored in the archive.
+     */
+    @Override
+    public void removeTile(int z, int x, int y) {
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Returns the number of distinct tiles written so far.
+     *
+     * @return The number of tiles whose data is stored.
+     */
+    public synchronized int getDistinctTilesCount() {
+        return storedTiles.size();
+    }
+
+    /**
+     * Writes the directory and the header, and closes the file.
+     *
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            synchronized (this) {
+                Entry[] sorted = entries.toArray(new Entry[entries.size()]);
+                Arrays.sort(sorted);
+                int minZoom = sorted.length > 0 ? sorted[0].z : 0;
+                long directoryLength = (long) sorted.length * DIRECTORY_ENTRY_SIZE;
+
+                ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+                long position = dataEnd;
+                for (Entry e : sorted) {
+                    if (buffer.remaining() < DIRECTORY_ENTRY_SIZE) {
+                        buffer.flip();
+                        writeFully(buffer, position);
+                        position += buffer.limit();
+                        buffer.clear();
+                    }
+                    buffer.putInt(e.z).putInt(e.x).putInt(e.y);
+                    buffer.putLong(e.offset).putInt(e.length);
+                }
+                buffer.flip();
+                writeFully(buffer, position);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.put(MAGIC);
+                header.putInt(TileRenderer.TILE_SIZE);
+                header.putInt(minZoom);
+                header.putInt(maxZoom);
+                header.putInt(sorted.length);
+                header.putInt(storedTiles.size());
+                header.putLong(dataEnd);
+                header.putLong(directoryLength);
+                header.putDouble(west);
+                header.putDouble(north);
+                header.putDouble(pixelSize);
+                header.flip();
+                writeFully(header, 0);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+}
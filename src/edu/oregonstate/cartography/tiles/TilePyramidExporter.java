@@ -0,0 +1,208 @@
+package edu.oregonstate.cartography.tiles;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.grid.operators.ProgressAggregator;
+import edu.oregonstate.cartography.gui.ProgressIndicator;
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports a z/x/y tile pyramid to a TileSink. Tiles of all zoom levels are
+ * rendered in parallel by the shared executor. Empty tiles are not written,
+ * and tiles whose hash equals the hash of a tile stored by an earlier export
+ * are neither encoded nor written. Tiles identical to a tile already stored by
+ * the sink are not encoded again if the sink can reference stored tiles.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class TilePyramidExporter {
+
+    /**
+     * Wraps an IOException thrown inside a band task.
+     */
+    private static final class TileIOException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        TileIOException(IOException cause) {
+            super(cause);
+        }
+    }
+
+    private final TileRenderer renderer;
+
+    private int minZoom = 0;
+    private int maxZoom;
+
+    /**
+     * Checked before each tile is rendered. Can be null.
+     */
+    private CancellationToken cancellationToken;
+
+    /**
+     * Informed about progress after each tile. Can be null.
+     */
+    private ProgressIndicator progressIndicator;
+
+    private final AtomicInteger writtenCount = new AtomicInteger();
+    private final AtomicInteger unchangedCount = new AtomicInteger();
+    private final AtomicInteger emptyCount = new AtomicInteger();
+
+    /**
+     * Creates an exporter for all zoom levels of a renderer.
+     *
+     * @param renderer The renderer.
+     */
+    public TilePyramidExporter(TileRenderer renderer) {
+        this.renderer = renderer;
+        this.maxZoom = renderer.getMaxZoom();
+    }
+
+    /**
+     * Restricts the export to a range of zoom levels.
+     *
+     * @param minZoom The lowest zoom level.
+     * @param maxZoom The highest zoom level.
+     */
+    public void setZoomRange(int minZoom, int maxZoom) {
+        if (minZoom < 0 || maxZoom > renderer.getMaxZoom() || minZoom > maxZoom) {
+            throw new IllegalArgumentException("invalid zoom range");
+        }
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+    }
+
+    /**
+     * Sets a token that is checked before each tile is rendered.
+     *
+     * @param token The token. Can be null.
+     */
+    public void setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+    }
+
+    /**
+     * Sets a progress indicator that is informed after each tile.
+     *
+     * @param progressIndicator The progress indicator. Can be null.
+     */
+    public void setProgressIndicator(ProgressIndicator progressIndicator) {
+        this.progressIndicator = progressIndicator;
+    }
+
+    /**
+     * Returns the number of tiles written by the last export.
+     *
+     * @return The number of written tiles.
+     */
+    public int getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * Returns the number of tiles that were not written by the last export,
+     * because they were identical to stored tiles.
+     *
+     * @return The number of unchanged tiles.
+     */
+    public int getUnchangedCount() {
+        return unchangedCount.get();
+    }
+
+    /**
+     * Returns the number of empty tiles skipped by the last export.
+     *
+     * @return The number of empty tiles.
+     */
+    public int getEmptyCount() {
+        return emptyCount.get();
+    }
+
+    /**
+     * Renders all tiles and passes them to a sink. The sink is not closed.
+     *
+     * @param sink The sink that stores tiles.
+     * @throws IOException If the sink cannot store a tile.
+     * @throws CancellationException If the token is cancelled or the progress
+     * indicator is aborted.
+     */
+    public void export(final TileSink sink) throws IOException {
+        writtenCount.set(0);
+        unchangedCount.set(0);
+        emptyCount.set(0);
+
+        // the first tile index of each zoom level in a single queue
+        final int zoomLevels = maxZoom - minZoom + 1;
+        final long[] firstTile = new long[zoomLevels + 1];
+        for (int i = 0; i < zoomLevels; i++) {
+            int z = minZoom + i;
+            firstTile[i + 1] = firstTile[i]
+                    + (long) renderer.getTilesX(z) * renderer.getTilesY(z);
+        }
+        final long tilesCount = firstTile[zoomLevels];
+        if (tilesCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("too many tiles");
+        }
+        final CancellationToken token = cancellationToken;
+        final ProgressAggregator progress = progressIndicator == null
+                ? null : new ProgressAggregator(progressIndicator, tilesCount);
+
+        try {
+            SharedExecutor.forEachBand((int) tilesCount, 1, new SharedExecutor.BandTask() {
+                @Override
+                protected void run(int firstId, int endId) {
+                    for (int id = firstId; id < endId; id++) {
+                        int i = 0;
+                        while (firstTile[i + 1] <= id) {
+                            ++i;
+                        }
+                        int z = minZoom + i;
+                        int tileIndex = (int) (id - firstTile[i]);
+                        int tilesX = renderer.getTilesX(z);
+                        try {
+                            exportTile(sink, z, tileIndex % tilesX, tileIndex / tilesX);
+                        } catch (IOException exc) {
+                            throw new TileIOException(exc);
+                        }
+                        if (progress != null) {
+                            progress.addWork(1);
+                        }
+                    }
+                }
+
+                @Override
+                protected boolean isCancelled() {
+                    return CancellationToken.isCancelled(token)
+                            || (progress != null && progress.isAborted());
+                }
+            });
+        } catch (TileIOException exc) {
+            throw (IOException) exc.getCause();
+        }
+        if (CancellationToken.isCancelled(token)
+                || (progress != null && progress.isAborted())) {
+            throw new CancellationException("tile export canceled");
+        }
+    }
+
+    private void exportTile(TileSink sink, int z, int x, int y) throws IOException {
+        int[] pixels = renderer.renderTile(z, x, y);
+        if (pixels == null) {
+            sink.removeTile(z, x, y);
+            emptyCount.incrementAndGet();
+            return;
+        }
+        byte[] hash = TileRenderer.hash(pixels);
+        if (sink.isCurrent(z, x, y, hash)) {
+            unchangedCount.incrementAndGet();
+        } else if (sink.writeDuplicate(z, x, y, hash)) {
+            writtenCount.incrementAndGet();
+        } else {
+            sink.writeTile(z, x, y, TileRenderer.encodePNG(pixels), hash);
+            writtenCount.incrementAndGet();
+        }
+    }
+}
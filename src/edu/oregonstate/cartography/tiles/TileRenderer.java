@@ -0,0 +1,251 @@
+package edu.oregonstate.cartography.tiles;
+
+import edu.oregonstate.cartography.grid.CompositeRenderer;
+import edu.oregonstate.cartography.grid.GaussianPyramid;
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.Model;
+import edu.oregonstate.cartography.grid.operators.CancellationToken;
+import edu.oregonstate.cartography.image.PNGStripWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Renders square tiles of a z/x/y tile pyramid for a model. At the highest
+ * zoom level, one pixel corresponds to one cell of the generalized grid. Each
+ * lower zoom level halves the resolution. Lower zoom levels are rendered from
+ * the levels of a Gaussian pyramid of the generalized grid, so that the full
+ * resolution grid is never rendered for a tile at a low zoom level. If the
+ * Gaussian pyramid has fewer levels than the tile pyramid, the smallest
+ * Gaussian level is rendered with a fractional scale.
+ *
+ * Tiles are in the coordinate system of the grid. The top-left corner of tile
+ * 0/0/0 is at the top-left cell of the grid, and x and y grow towards east and
+ * south.
+ *
+ * The settings of the model are copied when the renderer is created, and
+ * tiles can be rendered concurrently.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class TileRenderer {
+
+    /**
+     * The width and height of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * The highest zoom level, at which a pixel corresponds to a grid cell.
+     */
+    private final int maxZoom;
+
+    /**
+     * A renderer for each level of the Gaussian pyramid. The renderer for
+     * level 0 renders the generalized grid.
+     */
+    private final CompositeRenderer[] renderers;
+
+    /**
+     * The generalized grid.
+     */
+    private final Grid grid;
+
+    /**
+     * Creates a renderer and prepares all levels of the Gaussian pyramid.
+     *
+     * @param model The model with the generalized grid and the settings.
+     * @param token Checked while preparing the levels. Can be null.
+     * @throws IllegalArgumentException If the model has no grid.
+     * @throws java.util.concurrent.CancellationException If the token is
+     * cancelled.
+     */
+    public TileRenderer(Model model, CancellationToken token) {
+        grid = model.getGeneralizedGrid();
+        if (grid == null) {
+            throw new IllegalArgumentException("no grid");
+        }
+        int size = Math.max(grid.getCols(), grid.getRows());
+        int zoom = 0;
+        while ((long) TILE_SIZE << zoom < size) {
+            ++zoom;
+        }
+        maxZoom = zoom;
+
+        Grid[] levels = GaussianPyramid.createPyramid(grid, maxZoom + 1, 1, token);
+        Grid[] terrainLevels = levels;
+        if (model.backgroundVisualization.isLocal()) {
+            Grid terrainGrid = model.getBackgroundTerrainGrid(token);
+            terrainLevels = GaussianPyramid.createPyramid(terrainGrid,
+                    levels.length, 1, token);
+        }
+
+        renderers = new CompositeRenderer[Math.min(levels.length, terrainLevels.length)];
+        renderers[0] = new CompositeRenderer(model, token);
+        for (int i = 1; i < renderers.length; i++) {
+            renderers[i] = new CompositeRenderer(model, levels[i], terrainLevels[i], token);
+        }
+    }
+
+    /**
+     * Returns the highest zoom level, at which a pixel corresponds to a cell
+     * of the generalized grid.
+     *
+     * @return The highest zoom level.
+     */
+    public int getMaxZoom() {
+        return maxZoom;
+    }
+
+    /**
+     * Returns the generalized grid that is rendered at the highest zoom level.
+     *
+     * @return The grid.
+     */
+    public Grid getGrid() {
+        return grid;
+    }
+
+    /**
+     * Returns the index of the Gaussian pyramid level used for a zoom level.
+     */
+    private int level(int z) {
+        return Math.min(maxZoom - z, renderers.length - 1);
+    }
+
+    /**
+     * Returns the number of pixels per cell of the Gaussian pyramid level
+     * used for a zoom level.
+     */
+    private double scale(int z) {
+        return Math.scalb(1d, level(z) - (maxZoom - z));
+    }
+
+    /**
+     * Returns the width of the image covered by the tiles of a zoom level.
+     *
+     * @param z The zoom level.
+     * @return The width in pixels.
+     */
+    public int getImageWidth(int z) {
+        Grid levelGrid = renderers[level(z)].getGrid();
+        return (int) Math.max(1, Math.round(levelGrid.getCols() * scale(z)));
+    }
+
+    /**
+     * Returns the height of the image covered by the tiles of a zoom level.
+     *
+     * @param z The zoom level.
+     * @return The height in pixels.
+     */
+    public int getImageHeight(int z) {
+        Grid levelGrid = renderers[level(z)].getGrid();
+        return (int) Math.max(1, Math.round(levelGrid.getRows() * scale(z)));
+    }
+
+    /**
+     * Returns the number of tile columns of a zoom level.
+     *
+     * @param z The zoom level.
+     * @return The number of tiles in horizontal direction.
+     */
+    public int getTilesX(int z) {
+        return (getImageWidth(z) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Returns the number of tile rows of a zoom level.
+     *
+     * @param z The zoom level.
+     * @return The number of tiles in vertical direction.
+     */
+    public int getTilesY(int z) {
+        return (getImageHeight(z) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Returns whether a tile exists.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @return True if the tile is inside the pyramid.
+     */
+    public boolean containsTile(int z, int x, int y) {
+        return z >= 0 && z <= maxZoom && x >= 0 && y >= 0
+                && x < getTilesX(z) && y < getTilesY(z);
+    }
+
+    /**
+     * Renders a tile. Pixels outside of the grid are transparent.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @return TILE_SIZE x TILE_SIZE ARGB pixels, or null if the tile only
+     * contains transparent pixels.
+     */
+    public int[] renderTile(int z, int x, int y) {
+        if (!containsTile(z, x, y)) {
+            throw new IllegalArgumentException("invalid tile " + z + "/" + x + "/" + y);
+        }
+        CompositeRenderer renderer = renderers[level(z)];
+        double scale = scale(z);
+        int x0 = x * TILE_SIZE;
+        int y0 = y * TILE_SIZE;
+        int w = Math.min(TILE_SIZE, getImageWidth(z) - x0);
+        int h = Math.min(TILE_SIZE, getImageHeight(z) - y0);
+        if (renderer.isEmptyBlock(scale, x0, y0, w, h)) {
+            return null;
+        }
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        renderer.renderBlock(scale, x0, y0, w, h, pixels, 0, TILE_SIZE);
+        for (int p : pixels) {
+            if (p >>> 24 != 0) {
+                return pixels;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the pixels of a tile as a PNG image.
+     *
+     * @param pixels TILE_SIZE x TILE_SIZE ARGB pixels.
+     * @return The PNG file content.
+     */
+    public static byte[] encodePNG(int[] pixels) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(64 * 1024);
+        try (PNGStripWriter writer = new PNGStripWriter(stream, TILE_SIZE, TILE_SIZE)) {
+            writer.writeStrip(pixels, TILE_SIZE);
+        } catch (IOException exc) {
+            // a ByteArrayOutputStream does not throw
+            throw new IllegalStateException(exc);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Computes a SHA-1 hash of the pixels of a tile. Tiles with identical
+     * pixels have identical hashes.
+     *
+     * @param pixels ARGB pixels.
+     * @return The 20 byte hash.
+     */
+    public static byte[] hash(int[] pixels) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exc) {
+            // every Java platform supports SHA-1
+            throw new IllegalStateException(exc);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(pixels.length * 4);
+        buffer.asIntBuffer().put(pixels);
+        digest.update(buffer.array());
+        return digest.digest();
+    }
+}
@@ -0,0 +1,623 @@
+package edu.oregonstate.cartography.tiles;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.Model;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An embedded HTTP server that renders z/x/y tiles on demand with the current
+ * settings of a model, for viewing the model in a web browser.
+ *
+ * Tiles are rendered from a snapshot of the model, which is taken when the
+ * server is created and when settingsChanged() is called, so that the model
+ * can change while tiles are rendered by other threads.
+ *
+ * Encoded tiles are kept in a least recently used cache with a bounded size.
+ * The cache is invalidated when settingsChanged() is called. Tiles that are
+ * not in the cache are rendered by the shared executor, and concurrent
+ * requests for the same tile wait for a single rendering. After a tile has
+ * been rendered, its eight neighbors are rendered in the background, as they
+ * are likely to be requested next when the map is panned.
+ *
+ * Alternatively, the server answers requests with the tiles of an archive
+ * written by TileArchiveWriter. Tiles are then read from the archive and are
+ * not rendered or cached.
+ *
+ * The map page loads the Leaflet library from unpkg.com, so the browser
+ * showing the map needs internet access. Tiles are served by this server.
+ *
+ * The server answers the following requests:
+ * <pre>
+ * /                  a web page with a map
+ * /tiles/z/x/y.png   a tile, or status 204 if the tile is empty
+ * /metrics           request counts and latencies in plain text
+ * </pre>
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public class TileServer {
+
+    /**
+     * The default port.
+     */
+    public static final int DEFAULT_PORT = 8080;
+
+    /**
+     * The default maximum size of the tile cache.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * The number of latencies kept for computing percentiles.
+     */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /**
+     * Cached content of an empty tile.
+     */
+    private static final byte[] EMPTY_TILE = new byte[0];
+
+    private static final Pattern TILE_PATH
+            = Pattern.compile("/tiles/(\\d+)/(\\d+)/(\\d+)\\.png");
+
+    /**
+     * The model that is changed by the event dispatching thread. Null if tiles
+     * are read from an archive.
+     */
+    private final Model model;
+
+    /**
+     * A snapshot of the model for the current generation of settings, which
+     * is rendered on demand. Null if tiles are read from an archive. Access
+     * is synchronized on this server.
+     */
+    private Model snapshot;
+
+    /**
+     * The archive with the tiles. Null if tiles are rendered.
+     */
+    private final TileArchiveReader archive;
+
+    private final HttpServer server;
+
+    /**
+     * Threads handling HTTP requests. Tiles are rendered by the shared
+     * executor.
+     */
+    private final ExecutorService requestExecutor;
+
+    /**
+     * The renderer for the current settings. Null if the settings have
+     * changed since the last tile was rendered. Access is synchronized on
+     * this server.
+     */
+    private TileRenderer renderer;
+
+    /**
+     * The generation of the settings the renderer was created for. Access is
+     * synchronized on this server.
+     */
+    private long rendererGeneration = -1;
+
+    /**
+     * Incremented when settings change, while holding the lock of this
+     * server. Tiles rendered for an older generation are not cached.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Encoded tiles in the order of access, indexed by "z/x/y". Access is
+     * synchronized on the cache.
+     */
+    private final LinkedHashMap<String, byte[]> cache
+            = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final long maxCacheBytes;
+
+    /**
+     * The number of bytes in the cache. Access is synchronized on the cache.
+     */
+    private long cacheBytes = 0;
+
+    /**
+     * Tiles being rendered, indexed by "generation/z/x/y", so that a request
+     * never waits for a tile rendered with older settings.
+     */
+    private final ConcurrentHashMap<String, FutureTask<byte[]>> pending
+            = new ConcurrentHashMap<>();
+
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final AtomicLong cacheHitsCount = new AtomicLong();
+    private final AtomicLong renderedCount = new AtomicLong();
+    private final AtomicLong prefetchedCount = new AtomicLong();
+
+    /**
+     * The most recent tile request latencies in nanoseconds, used as a ring
+     * buffer. Access is synchronized on the array.
+     */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+
+    /**
+     * The number of latencies recorded. Access is synchronized on latencies.
+     */
+    private long latenciesCount = 0;
+
+    /**
+     * Creates a server on the loopback address. The server is not started.
+     * Must be called on the thread that changes the model.
+     *
+     * @param model The model with the grid and the settings.
+     * @param port The port, or 0 for an arbitrary free port.
+     * @param maxCacheBytes The maximum size of the tile cache in bytes.
+     * @throws IOException If the server cannot be bound to the port.
+     */
+    public TileServer(Model model, int port, long maxCacheBytes) throws IOException {
+        this(model, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                maxCacheBytes);
+    }
+
+    /**
+     * Creates a server. The server is not started. Must be called on the
+     * thread that changes the model.
+     *
+     * @param model The model with the grid and the settings.
+     * @param address The address to bind to. Binding to an address other than
+     * the loopback address makes the server accessible from other computers.
+     * @param maxCacheBytes The maximum size of the tile cache in bytes.
+     * @throws IOException If the server cannot be bound to the address.
+     */
+    public TileServer(Model model, InetSocketAddress address, long maxCacheBytes)
+            throws IOException {
+        this(model, null, address, maxCacheBytes);
+    }
+
+    /**
+     * Creates a server on the loopback address for the tiles of an archive.
+     * The server is not started. The archive is not closed by the server.
+     *
+     * @param archive The archive with the tiles.
+     * @param port The port, or 0 for an arbitrary free port.
+     * @throws IOException If the server cannot be bound to the port.
+     */
+    public TileServer(TileArchiveReader archive, int port) throws IOException {
+        this(null, archive, new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    }
+
+    private TileServer(Model model, final TileArchiveReader archive,
+            InetSocketAddress address, long maxCacheBytes) throws IOException {
+        this.model = model;
+        this.snapshot = model == null ? null : model.createSnapshot();
+        this.archive = archive;
+        this.maxCacheBytes = maxCacheBytes;
+        server = HttpServer.create(address, 0);
+        requestExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger counter = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "Tile Server " + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(requestExecutor);
+        server.createContext("/tiles/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (archive != null) {
+                    handleArchiveTile(exchange);
+                } else {
+                    handleTile(exchange);
+                }
+            }
+        });
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain; charset=utf-8",
+                        getMetrics().getBytes("UTF-8"));
+            }
+        });
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if ("/".equals(exchange.getRequestURI().getPath())) {
+                    send(exchange, 200, "text/html; charset=utf-8",
+                            getMapPage().getBytes("UTF-8"));
+                } else {
+                    send(exchange, 404, "text/plain", "Not found".getBytes("UTF-8"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts answering requests in background threads.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops the server and waits at most one second for requests in progress.
+     */
+    public void stop() {
+        server.stop(1);
+        requestExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the port the server is bound to.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Returns the address of the map page.
+     *
+     * @return A http URL.
+     */
+    public String getURL() {
+        InetSocketAddress address = server.getAddress();
+        String host = address.getAddress().isAnyLocalAddress()
+                ? "localhost" : address.getHostString();
+        return "http://" + host + ":" + address.getPort() + "/";
+    }
+
+    /**
+     * Takes a new snapshot of the model and invalidates cached tiles. Must be
+     * called after the settings or the grid of the model have changed, on the
+     * thread that changes the model. Tiles are rendered with the new settings
+     * when they are requested next.
+     */
+    public void settingsChanged() {
+        if (model == null) {
+            return;
+        }
+        Model newSnapshot = model.createSnapshot();
+        synchronized (this) {
+            snapshot = newSnapshot;
+            renderer = null;
+            generation.incrementAndGet();
+        }
+        synchronized (cache) {
+            cache.clear();
+            cacheBytes = 0;
+        }
+    }
+
+    /**
+     * Returns the renderer for the current settings, and creates it if
+     * needed. The renderer is created without holding the lock, because
+     * computing its pyramid takes long. Concurrent requests may therefore
+     * create more than one renderer, of which only one is kept.
+     *
+     * @param renderGeneration The generation of the settings, read before
+     * this method is called.
+     */
+    private TileRenderer getRenderer(long renderGeneration) {
+        Model rendererModel;
+        synchronized (this) {
+            if (renderer != null && rendererGeneration == renderGeneration) {
+                return renderer;
+            }
+            rendererModel = snapshot;
+        }
+        if (rendererModel == null || rendererModel.getGeneralizedGrid() == null) {
+            return null;
+        }
+        TileRenderer newRenderer = new TileRenderer(rendererModel, null);
+        synchronized (this) {
+            if (generation.get() == renderGeneration) {
+                if (renderer != null && rendererGeneration == renderGeneration) {
+                    return renderer;
+                }
+                renderer = newRenderer;
+                rendererGeneration = renderGeneration;
+            }
+        }
+        return newRenderer;
+    }
+
+    private void handleTile(HttpExchange exchange) throws IOException {
+        long startTime = System.nanoTime();
+        requestsCount.incrementAndGet();
+        try {
+            Matcher m = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+            long renderGeneration = generation.get();
+            TileRenderer tileRenderer = getRenderer(renderGeneration);
+            int z = -1, x = -1, y = -1;
+            if (m.matches()) {
+                try {
+                    z = Integer.parseInt(m.group(1));
+                    x = Integer.parseInt(m.group(2));
+                    y = Integer.parseInt(m.group(3));
+                } catch (NumberFormatException exc) {
+                    // too many digits
+                }
+            }
+            if (tileRenderer == null || !tileRenderer.containsTile(z, x, y)) {
+                send(exchange, 404, "text/plain", "No such tile".getBytes("UTF-8"));
+                return;
+            }
+
+            byte[] png;
+            try {
+                png = getTile(tileRenderer, renderGeneration, z, x, y, true);
+            } catch (InterruptedException exc) {
+                // the server is stopping
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "text/plain", "Server stopping".getBytes("UTF-8"));
+                return;
+            } catch (CancellationException | ExecutionException exc) {
+                send(exchange, 500, "text/plain", String.valueOf(exc).getBytes("UTF-8"));
+                return;
+            }
+            if (png.length == 0) {
+                send(exchange, 204, null, null);
+            } else {
+                send(exchange, 200, "image/png", png);
+            }
+        } finally {
+            recordLatency(System.nanoTime() - startTime);
+        }
+    }
+
+    private void handleArchiveTile(HttpExchange exchange) throws IOException {
+        long startTime = System.nanoTime();
+        requestsCount.incrementAndGet();
+        try {
+            Matcher m = TILE_PATH.matcher(exchange.getRequestURI().getPath());
+            int z = -1, x = -1, y = -1;
+            if (m.matches()) {
+                try {
+                    z = Integer.parseInt(m.group(1));
+                    x = Integer.parseInt(m.group(2));
+                    y = Integer.parseInt(m.group(3));
+                } catch (NumberFormatException exc) {
+                    // too many digits
+                }
+            }
+            if (z < archive.getMinZoom() || z > archive.getMaxZoom() || x < 0 || y < 0) {
+                send(exchange, 404, "text/plain", "No such tile".getBytes("UTF-8"));
+                return;
+            }
+
+            // empty tiles are not stored in the archive
+            byte[] png;
+            try {
+                png = archive.getTile(z, x, y);
+            } catch (IOException exc) {
+                send(exchange, 500, "text/plain", String.valueOf(exc).getBytes("UTF-8"));
+                return;
+            }
+            if (png == null) {
+                send(exchange, 204, null, null);
+            } else {
+                send(exchange, 200, "image/png", png);
+            }
+        } finally {
+            recordLatency(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Returns an encoded tile from the cache, or renders it with the shared
+     * executor and waits for the result.
+     *
+     * @return The PNG data, or an empty array for an empty tile.
+     */
+    private byte[] getTile(TileRenderer tileRenderer, long renderGeneration,
+            int z, int x, int y, boolean prefetchNeighbors)
+            throws InterruptedException, ExecutionException {
+        String key = z + "/" + x + "/" + y;
+        synchronized (cache) {
+            byte[] png = cache.get(key);
+            if (png != null) {
+                cacheHitsCount.incrementAndGet();
+                return png;
+            }
+        }
+        FutureTask<byte[]> task = renderTask(tileRenderer, renderGeneration, key, z, x, y);
+        byte[] png = task.get();
+        if (prefetchNeighbors) {
+            prefetch(tileRenderer, renderGeneration, z, x, y);
+        }
+        return png;
+    }
+
+    /**
+     * Returns the task rendering a tile. A new task is started with the
+     * shared executor if no other request is rendering the tile with the same
+     * generation of settings.
+     */
+    private FutureTask<byte[]> renderTask(final TileRenderer tileRenderer,
+            final long renderGeneration, final String key,
+            final int z, final int x, final int y) {
+        final String pendingKey = renderGeneration + "/" + key;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                int[] pixels = tileRenderer.renderTile(z, x, y);
+                byte[] png = pixels == null ? EMPTY_TILE : TileRenderer.encodePNG(pixels);
+                renderedCount.incrementAndGet();
+                if (generation.get() == renderGeneration) {
+                    putInCache(key, png);
+                }
+                return png;
+            }
+        }) {
+            @Override
+            protected void done() {
+                // only remove this task, not a newer task for the same tile
+                pending.remove(pendingKey, this);
+            }
+        };
+        FutureTask<byte[]> existing = pending.putIfAbsent(pendingKey, task);
+        if (existing != null) {
+            return existing;
+        }
+        SharedExecutor.getExecutor().execute(task);
+        return task;
+    }
+
+    /**
+     * Renders the eight neighbors of a tile in the background, unless they
+     * are cached or being rendered.
+     */
+    private void prefetch(TileRenderer tileRenderer, long renderGeneration,
+            int z, int x, int y) {
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                int nx = x + dx;
+                int ny = y + dy;
+                if ((dx == 0 && dy == 0) || !tileRenderer.containsTile(z, nx, ny)) {
+                    continue;
+                }
+                String key = z + "/" + nx + "/" + ny;
+                synchronized (cache) {
+                    if (cache.containsKey(key)) {
+                        continue;
+                    }
+                }
+                if (!pending.containsKey(renderGeneration + "/" + key)) {
+                    renderTask(tileRenderer, renderGeneration, key, z, nx, ny);
+                    prefetchedCount.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a tile to the cache and removes the least recently used tiles if
+     * the cache is too large.
+     */
+    private void putInCache(String key, byte[] png) {
+        synchronized (cache) {
+            byte[] old = cache.put(key, png);
+            cacheBytes += png.length - (old == null ? 0 : old.length);
+            Iterator<byte[]> iterator = cache.values().iterator();
+            while (cacheBytes > maxCacheBytes && iterator.hasNext()) {
+                cacheBytes -= iterator.next().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    private void recordLatency(long nanos) {
+        synchronized (latencies) {
+            latencies[(int) (latenciesCount++ % LATENCY_SAMPLES)] = nanos;
+        }
+    }
+
+    /**
+     * Returns request counts, cache statistics and percentiles of the most
+     * recent tile request latencies.
+     *
+     * @return Lines with a name and a value.
+     */
+    public String getMetrics() {
+        long[] sorted;
+        synchronized (latencies) {
+            sorted = Arrays.copyOf(latencies, (int) Math.min(latenciesCount, LATENCY_SAMPLES));
+        }
+        Arrays.sort(sorted);
+        int cachedTiles;
+        long bytes;
+        synchronized (cache) {
+            cachedTiles = cache.size();
+            bytes = cacheBytes;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("tile_requests_total ").append(requestsCount.get()).append('\n');
+        sb.append("tile_cache_hits_total ").append(cacheHitsCount.get()).append('\n');
+        sb.append("tile_rendered_total ").append(renderedCount.get()).append('\n');
+        sb.append("tile_prefetched_total ").append(prefetchedCount.get()).append('\n');
+        sb.append("tile_cache_tiles ").append(cachedTiles).append('\n');
+        sb.append("tile_cache_bytes ").append(bytes).append('\n');
+        double[] quantiles = {0.5, 0.9, 0.99, 1};
+        for (double q : quantiles) {
+            double ms = 0;
+            if (sorted.length > 0) {
+                int i = (int) Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1);
+                ms = sorted[Math.max(0, i)] / 1e6;
+            }
+            sb.append(String.format(Locale.US, "tile_latency_ms{quantile=\"%s\"} %.3f%n", q, ms));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns a web page with a map showing the tiles. The map uses the
+     * Leaflet library, which the browser loads from unpkg.com.
+     */
+    private String getMapPage() {
+        int maxZoom, w, h;
+        if (archive != null) {
+            // extent of the stored tiles at zoom level 0
+            maxZoom = archive.getMaxZoom();
+            w = Math.max(1, archive.getTilesX(maxZoom) * archive.getTileSize() >> maxZoom);
+            h = Math.max(1, archive.getTilesY(maxZoom) * archive.getTileSize() >> maxZoom);
+        } else {
+            TileRenderer tileRenderer = getRenderer(generation.get());
+            maxZoom = tileRenderer == null ? 0 : tileRenderer.getMaxZoom();
+            w = tileRenderer == null ? TileRenderer.TILE_SIZE : tileRenderer.getImageWidth(0);
+            h = tileRenderer == null ? TileRenderer.TILE_SIZE : tileRenderer.getImageHeight(0);
+        }
+        return "<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\">"
+                + "<title>Pyramid Shader</title>"
+                + "<link rel=\"stylesheet\" href=\"https://unpkg.com/leaflet@1.9.4/dist/leaflet.css\">"
+                + "<script src=\"https://unpkg.com/leaflet@1.9.4/dist/leaflet.js\"></script>"
+                + "<style>html,body,#map{height:100%;margin:0}</style></head>"
+                + "<body><div id=\"map\"></div><script>"
+                + "var map = L.map('map', {crs: L.CRS.Simple, minZoom: 0, maxZoom: " + (maxZoom + 2) + "});"
+                + "L.tileLayer('tiles/{z}/{x}/{y}.png', {maxNativeZoom: " + maxZoom
+                + ", noWrap: true, bounds: [[0, 0], [-" + h + ", " + w + "]]}).addTo(map);"
+                + "map.fitBounds([[0, 0], [-" + h + ", " + w + "]]);"
+                + "</script></body></html>\n";
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType,
+            byte[] body) throws IOException {
+        try {
+            if (contentType != null) {
+                exchange.getResponseHeaders().set("Content-Type", contentType);
+            }
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(status, body == null ? -1 : body.length);
+            if (body != null) {
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
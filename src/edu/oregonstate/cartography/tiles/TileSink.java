@@ -0,0 +1,63 @@
+package edu.oregonstate.cartography.tiles;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives encoded tiles of a z/x/y tile pyramid. Methods are called
+ * concurrently by multiple threads and must be thread-safe.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public interface TileSink extends Closeable {
+
+    /**
+     * Returns whether a tile with identical content has been stored by an
+     * earlier export and does not need to be encoded and written again.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @param hash The hash of the tile pixels.
+     * @return True if the stored tile is current.
+     * @throws IOException If an error occurs while reading.
+     */
+    boolean isCurrent(int z, int x, int y, byte[] hash) throws IOException;
+
+    /**
+     * Stores a tile.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @param png The PNG encoded tile.
+     * @param hash The hash of the tile pixels.
+     * @throws IOException If an error occurs while writing.
+     */
+    void writeTile(int z, int x, int y, byte[] png, byte[] hash) throws IOException;
+
+    /**
+     * Stores a tile by referencing identical tile data that was written to
+     * this sink before, such that the tile does not need to be encoded.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @param hash The hash of the tile pixels.
+     * @return True if the tile was stored, false if the sink has no tile data
+     * with this hash, or does not support references.
+     * @throws IOException If an error occurs while writing.
+     */
+    boolean writeDuplicate(int z, int x, int y, byte[] hash) throws IOException;
+
+    /**
+     * Removes a tile stored by an earlier export that is now empty.
+     *
+     * @param z The zoom level.
+     * @param x The horizontal tile index.
+     * @param y The vertical tile index.
+     * @throws IOException If an error occurs while removing the tile.
+     */
+    void removeTile(int z, int x, int y) throws IOException;
+}
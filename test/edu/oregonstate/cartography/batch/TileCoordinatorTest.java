@@ -0,0 +1,145 @@
+package edu.oregonstate.cartography.batch;
+
+import edu.oregonstate.cartography.grid.Grid;
+import edu.oregonstate.cartography.grid.GridReader;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import javax.imageio.ImageIO;
+
+/**
+ * Compares the outputs of TileCoordinator with worker processes to the
+ * outputs of a single process, for a grid without void values and for grids
+ * with a small and a large void area in a corner. The generalized grids and
+ * the composite images must be identical.
+ *
+ * The test is in the test source folder and is not included in the
+ * application. Compile it with "ant compile-test" and run it with
+ * <pre>
+ * java -cp build/classes:build/test/classes
+ *     edu.oregonstate.cartography.batch.TileCoordinatorTest
+ * </pre>
+ * The exit status is 1 if the outputs differ.
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class TileCoordinatorTest {
+
+    private static final int COLS = 733;
+    private static final int ROWS = 517;
+    private static final int WORKERS = 3;
+    private static final int TILE_SIZE = 128;
+
+    private TileCoordinatorTest() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("generalization.details", "0.3");
+        properties.setProperty("generalization.maxLevels", "3");
+        properties.setProperty("background.visualization", "HYPSOMETRIC_SHADING");
+        properties.setProperty("output.layers", "composite,generalized");
+        RenderRecipe recipe = new RenderRecipe(properties);
+
+        File dir = Files.createTempDirectory("tiles").toFile();
+        boolean identical;
+        try (TileCoordinator coordinator = new TileCoordinator(recipe, 0)) {
+            coordinator.setTileSize(TILE_SIZE);
+            coordinator.launchWorkers(WORKERS);
+            identical = compare(recipe, coordinator, createGrid(0, 0), dir, "no voids");
+            identical &= compare(recipe, coordinator, createGrid(30, 20), dir, "30 x 20 voids");
+            identical &= compare(recipe, coordinator, createGrid(300, 300), dir, "300 x 300 voids");
+        }
+        dir.delete();
+        System.exit(identical ? 0 : 1);
+    }
+
+    /**
+     * Creates a synthetic terrain with hills and a rectangle of void values in
+     * the top-left corner.
+     */
+    private static Grid createGrid(int voidCols, int voidRows) {
+        Grid grid = new Grid(COLS, ROWS, 10);
+        for (int r = 0; r < ROWS; r++) {
+            for (int c = 0; c < COLS; c++) {
+                grid.setValue((float) (1000 + 500 * Math.sin(r * 0.01) * Math.cos(c * 0.007)
+                        + 30 * Math.sin(r * 0.3 + c * 0.17)), c, r);
+            }
+        }
+        for (int r = 0; r < voidRows; r++) {
+            for (int c = 0; c < voidCols; c++) {
+                grid.setValue(Float.NaN, c, r);
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Renders a grid with workers and with a single process, and prints the
+     * differences.
+     *
+     * @return True if the outputs are identical.
+     */
+    private static boolean compare(RenderRecipe recipe, TileCoordinator coordinator,
+            Grid grid, File dir, String name) throws IOException {
+        List<File> tiled = coordinator.process(grid,
+                new File(dir, "tiled").getPath(), null);
+        List<File> single = recipe.writeOutputs(recipe.createModel(grid, null),
+                new File(dir, "single").getPath(), null);
+        boolean identical = true;
+        for (int i = 0; i < tiled.size(); i++) {
+            File tiledFile = tiled.get(i);
+            File singleFile = single.get(i);
+            long differences;
+            if (tiledFile.getName().endsWith(".png")) {
+                differences = compareImages(ImageIO.read(tiledFile), ImageIO.read(singleFile));
+            } else {
+                differences = compareGrids(GridReader.read(tiledFile.getPath()),
+                        GridReader.read(singleFile.getPath()));
+            }
+            System.out.println(String.format(Locale.US, "%s, %s: %d different values",
+                    name, tiledFile.getName(), differences));
+            identical &= differences == 0;
+            tiledFile.delete();
+            singleFile.delete();
+        }
+        return identical;
+    }
+
+    private static long compareImages(BufferedImage a, BufferedImage b) {
+        if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight()) {
+            return (long) a.getWidth() * a.getHeight();
+        }
+        long differences = 0;
+        for (int y = 0; y < a.getHeight(); y++) {
+            for (int x = 0; x < a.getWidth(); x++) {
+                if (a.getRGB(x, y) != b.getRGB(x, y)) {
+                    ++differences;
+                }
+            }
+        }
+        return differences;
+    }
+
+    private static long compareGrids(Grid a, Grid b) {
+        if (a.getCols() != b.getCols() || a.getRows() != b.getRows()) {
+            return (long) a.getCols() * a.getRows();
+        }
+        long differences = 0;
+        for (int r = 0; r < a.getRows(); r++) {
+            for (int c = 0; c < a.getCols(); c++) {
+                float va = a.getValue(c, r);
+                float vb = b.getValue(c, r);
+                if (va != vb && !(Float.isNaN(va) && Float.isNaN(vb))) {
+                    ++differences;
+                }
+            }
+        }
+        return differences;
+    }
+}
@@ -0,0 +1,142 @@
+package edu.oregonstate.cartography.grid.operators;
+
+import edu.oregonstate.cartography.app.SharedExecutor;
+import edu.oregonstate.cartography.grid.AspectVectorField;
+import edu.oregonstate.cartography.grid.Grid;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Times the rendering of illuminated contours to images that are 4 and 8
+ * times larger than the grid. The incremental bilinear interpolation of
+ * IlluminatedContoursOperator is compared with a reference that calls
+ * Grid.getBilinearInterpol for each value of each pixel, as contours were
+ * rendered before.
+ *
+ * The benchmark is in the test source folder and is not included in the
+ * application. Compile it with "ant compile-test" and run it with
+ * <pre>
+ * java -cp build/classes:build/test/classes
+ *     edu.oregonstate.cartography.grid.operators.ScaledContoursBenchmark
+ *     [columns rows [runs]]
+ * </pre>
+ *
+ * @author Bernhard Jenny, Cartography and Geovisualization Group, Oregon State
+ * University
+ */
+public final class ScaledContoursBenchmark {
+
+    private static final int[] SCALES = {4, 8};
+
+    private ScaledContoursBenchmark() {
+    }
+
+    public static void main(String[] args) {
+        int cols = args.length > 1 ? Integer.parseInt(args[0]) : 500;
+        int rows = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        // synthetic terrain with hills and noise
+        Grid grid = new Grid(cols, rows, 10);
+        Random random = new Random(1);
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid.setValue((float) (1000 + 500 * Math.sin(r * 0.01) * Math.cos(c * 0.007)
+                        + 30 * Math.sin(r * 0.3 + c * 0.17) + random.nextGaussian() * 2), c, r);
+            }
+        }
+        Grid slopeGrid = new GridSlopeOperator().operate(grid);
+        final double aspectGaussBlur = 1;
+        final AspectVectorField aspectField = new AspectVectorField(
+                new GridGaussLowPassOperator(aspectGaussBlur).operate(grid), null);
+
+        System.out.println(String.format(Locale.US, "%d x %d cells, %d threads, best of %d runs",
+                cols, rows, SharedExecutor.getThreadsCount(), runs));
+        for (int scale : SCALES) {
+            IlluminatedContoursOperator op = new IlluminatedContoursOperator(true,
+                    0.5, 0.5, 0.5, 0.5, 0.1, true, 315, 10, 0, 255, aspectGaussBlur,
+                    90, grid.getMinMax());
+            op.setAspectField(aspectField);
+            BufferedImage image = new BufferedImage(cols * scale, rows * scale,
+                    BufferedImage.TYPE_INT_ARGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            int[] reference = new int[pixels.length];
+
+            long incremental = Long.MAX_VALUE;
+            long bilinear = Long.MAX_VALUE;
+            // the first run warms up the JIT compiler
+            for (int run = 0; run <= runs; run++) {
+                long start = System.nanoTime();
+                op.renderToImage(image, grid, slopeGrid);
+                long t = System.nanoTime() - start;
+                start = System.nanoTime();
+                renderBilinear(op, grid, slopeGrid, aspectField, scale, reference);
+                long tReference = System.nanoTime() - start;
+                if (run > 0) {
+                    incremental = Math.min(incremental, t);
+                    bilinear = Math.min(bilinear, tReference);
+                }
+            }
+
+            // interpolated values differ by rounding errors
+            int differentPixels = 0;
+            for (int i = 0; i < pixels.length; i++) {
+                if (pixels[i] != reference[i]) {
+                    differentPixels++;
+                }
+            }
+            System.out.println(String.format(Locale.US,
+                    "%dx: incremental %d ms, getBilinearInterpol %d ms, speedup %.1f, "
+                    + "%.3f%% of pixels differ",
+                    scale, incremental / 1000000, bilinear / 1000000,
+                    (double) bilinear / incremental, 100d * differentPixels / pixels.length));
+        }
+    }
+
+    /**
+     * Renders contours by interpolating each value of each pixel with
+     * Grid.getBilinearInterpol.
+     */
+    private static void renderBilinear(final IlluminatedContoursOperator op,
+            final Grid grid, final Grid slopeGrid, final AspectVectorField aspectField,
+            final int scale, final int[] pixels) {
+        final int cols = grid.getCols();
+        final int width = cols * scale;
+        final double cellSize = grid.getCellSize();
+        final double west = grid.getWest();
+        final double north = grid.getNorth();
+        final Grid aspectXGrid = aspectField.getXGrid();
+        final Grid aspectYGrid = aspectField.getYGrid();
+        SharedExecutor.forEachBand(grid.getRows() - 2, 1, new SharedExecutor.BandTask() {
+            @Override
+            protected void run(int first, int end) {
+                for (int row = first + 1; row < end + 1; row++) {
+                    for (int col = 1; col < cols - 1; col++) {
+                        for (int r = 0; r < scale; r++) {
+                            for (int c = 0; c < scale; c++) {
+                                double x = west + ((col + (double) c / scale) * cellSize);
+                                double y = north - ((row + (double) r / scale) * cellSize);
+                                double elevation = grid.getBilinearInterpol(x, y);
+                                double aspectX = aspectXGrid.getBilinearInterpol(x, y);
+                                double aspectY = aspectYGrid.getBilinearInterpol(x, y);
+                                double length = Math.sqrt(aspectX * aspectX + aspectY * aspectY);
+                                if (length > 0) {
+                                    aspectX /= length;
+                                    aspectY /= length;
+                                }
+                                double slope = slopeGrid.getBilinearInterpol(x, y);
+                                int g = op.computeGray(elevation, aspectX, aspectY, slope);
+                                if (g != op.CONTOURS_TRANSPARENT) {
+                                    pixels[(row * scale + r) * width + col * scale + c]
+                                            = g | (g << 8) | (g << 16) | 0xFF000000;
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        });
+    }
+}